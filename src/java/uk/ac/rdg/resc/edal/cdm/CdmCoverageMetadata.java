@@ -35,6 +35,7 @@ import org.opengis.metadata.extent.GeographicBoundingBox;
 import ucar.nc2.dt.GridDatatype;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.util.Range;
 
 /**
  * A CoverageMetadata object that stores information about a CDM GridDatatype.
@@ -51,6 +52,7 @@ final class CdmCoverageMetadata implements CoverageMetadata
     private final Chronology chronology;
     private final List<DateTime> timesteps;
     private final ElevationAxis zAxis;
+    private final Range<Float> declaredValueRange;
 
     /**
      * Constructs a CdmLayerMetadata object.
@@ -69,11 +71,41 @@ final class CdmCoverageMetadata implements CoverageMetadata
         this.horizGrid = horizGrid;
         this.timesteps = timesteps;
         this.zAxis = zAxis;
+        this.declaredValueRange = CdmUtils.getDeclaredValueRange(grid.getVariable());
         this.chronology = timesteps == null || timesteps.isEmpty()
                 ? null
                 : timesteps.get(0).getChronology();
     }
 
+    /**
+     * Creates a copy of the given CdmCoverageMetadata object with different
+     * timesteps.
+     */
+    private CdmCoverageMetadata(CdmCoverageMetadata cm, List<DateTime> timesteps)
+    {
+        this.id = cm.id;
+        this.title = cm.title;
+        this.description = cm.description;
+        this.units = cm.units;
+        this.bbox = cm.bbox;
+        this.horizGrid = cm.horizGrid;
+        this.timesteps = timesteps;
+        this.zAxis = cm.zAxis;
+        this.declaredValueRange = cm.declaredValueRange;
+        this.chronology = timesteps == null || timesteps.isEmpty()
+                ? null
+                : timesteps.get(0).getChronology();
+    }
+
+    /**
+     * Returns a copy of this object with the given timesteps, sharing all the
+     * other metadata.
+     */
+    CdmCoverageMetadata withTimesteps(List<DateTime> timesteps)
+    {
+        return new CdmCoverageMetadata(this, timesteps);
+    }
+
     @Override
     public String getId() { return this.id; }
 
@@ -109,6 +141,9 @@ final class CdmCoverageMetadata implements CoverageMetadata
 
     @Override
     public boolean isElevationPressure() { return this.zAxis.isPressure(); }
+
+    @Override
+    public Range<Float> getDeclaredValueRange() { return this.declaredValueRange; }
     
     ElevationAxis getElevationAxis() { return this.zAxis; }
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.CoordinateAxis1DTime;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.GridDataset;
+import ucar.nc2.dt.GridDataset.Gridset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+
+/**
+ * <p>A template for reading the metadata of the files in a homogeneous
+ * aggregation, i.e. files that contain the same variables on the same grids
+ * and differ only in their time values.  The template is created from the
+ * full metadata of one of the files.  The metadata of the other files are
+ * created from the template by reading only their time axes from the raw
+ * {@link NetcdfFile}s, without creating coordinate systems or
+ * {@link GridDataset}s.</p>
+ * <p>Before a file is read with the template, its structure (the names, types,
+ * shapes and attributes of its variables and the end points of its coordinate
+ * variables) is checked against that of the template file.  Files with a
+ * different structure can't be read with the template and must be read in
+ * full.  Metadata that depend only on the structure, such as titles, units and
+ * declared value ranges, are therefore correct for every file read with the
+ * template.  Grids are only compared at their end points, so the interior
+ * coordinates of the grids (and so the bounding boxes of curvilinear grids)
+ * are assumed to be the same as those of the template file.</p>
+ * <p>Instances of this class are immutable and can be used by several threads
+ * at once.</p>
+ * @author Jon Blower
+ */
+public final class CdmMetadataTemplate
+{
+    private static final Logger logger = LoggerFactory.getLogger(CdmMetadataTemplate.class);
+
+    private final List<CdmCoverageMetadata> coverages;
+    /** The names of the time axes of the coverages, or null for coverages without time axes */
+    private final List<String> timeAxisNames;
+    /** The names of the dimensions of the time axes, whose lengths can vary between files */
+    private final Set<String> timeDimNames;
+    /** The structure of the template file, or null if no other files can be read with this template */
+    private final String structure;
+
+    private CdmMetadataTemplate(List<CdmCoverageMetadata> coverages,
+            List<String> timeAxisNames, Set<String> timeDimNames, String structure)
+    {
+        this.coverages = coverages;
+        this.timeAxisNames = timeAxisNames;
+        this.timeDimNames = timeDimNames;
+        this.structure = structure;
+    }
+
+    /**
+     * Creates a template from the full metadata of the given dataset, which
+     * must have been opened from a single file.
+     */
+    public static CdmMetadataTemplate create(NetcdfDataset nc) throws IOException
+    {
+        GridDataset gd = CdmUtils.getGridDataset(nc);
+        Map<String, String> timeAxesByGrid = new HashMap<String, String>();
+        for (Gridset gridset : gd.getGridsets())
+        {
+            GridCoordSystem coordSys = gridset.getGeoCoordSystem();
+            String timeAxisName = coordSys.hasTimeAxis1D()
+                ? coordSys.getTimeAxis1D().getFullNameEscaped()
+                : null;
+            for (GridDatatype grid : gridset.getGrids())
+            {
+                timeAxesByGrid.put(grid.getFullName(), timeAxisName);
+            }
+        }
+
+        List<CdmCoverageMetadata> coverages = new ArrayList<CdmCoverageMetadata>();
+        List<String> timeAxisNames = new ArrayList<String>();
+        for (CoverageMetadata cm : CdmUtils.readCoverageMetadata(gd))
+        {
+            coverages.add((CdmCoverageMetadata)cm);
+            timeAxisNames.add(timeAxesByGrid.get(cm.getId()));
+        }
+
+        // We check that the time axes can be read from the raw file and give
+        // the same timesteps as the full metadata: if not, the template
+        // can't be used to read other files
+        NetcdfFile raw = nc.getReferencedFile();
+        Set<String> timeDimNames = new HashSet<String>();
+        String structure = null;
+        if (raw == null)
+        {
+            logger.debug("{} is not a single file", nc.getLocation());
+        }
+        else
+        {
+            Map<String, List<DateTime>> timesteps = readTimeAxes(raw, timeAxisNames, timeDimNames);
+            if (timesteps == null || !hasTimesteps(coverages, timeAxisNames, timesteps))
+            {
+                logger.debug("Time axes of {} can't be read from the raw file", nc.getLocation());
+            }
+            else
+            {
+                structure = getStructure(raw, timeDimNames);
+            }
+        }
+        return new CdmMetadataTemplate(Collections.unmodifiableList(coverages),
+            Collections.unmodifiableList(timeAxisNames),
+            Collections.unmodifiableSet(timeDimNames), structure);
+    }
+
+    /** Returns the metadata of the file from which this template was created */
+    public Collection<CoverageMetadata> getMetadata()
+    {
+        return Collections.<CoverageMetadata>unmodifiableList(this.coverages);
+    }
+
+    /**
+     * Returns true if the metadata of other files can be read with this
+     * template.  This is false if the time axes of the template file could
+     * not be read from the raw file.
+     */
+    public boolean canReadOtherFiles()
+    {
+        return this.structure != null;
+    }
+
+    /**
+     * Creates the metadata of the given raw file from this template, reading
+     * only its time axes.
+     * @return the metadata of the file, or null if the file can't be read with
+     * this template because its structure is different from that of the
+     * template file.
+     */
+    public Collection<CoverageMetadata> readMetadata(NetcdfFile nc) throws IOException
+    {
+        if (this.structure == null) return null;
+        if (!this.structure.equals(getStructure(nc, this.timeDimNames))) return null;
+        Map<String, List<DateTime>> timesteps = readTimeAxes(nc, this.timeAxisNames, null);
+        if (timesteps == null) return null;
+        List<CoverageMetadata> metadata = new ArrayList<CoverageMetadata>(this.coverages.size());
+        for (int i = 0; i < this.coverages.size(); i++)
+        {
+            String timeAxisName = this.timeAxisNames.get(i);
+            CdmCoverageMetadata cm = this.coverages.get(i);
+            metadata.add(timeAxisName == null ? cm : cm.withTimesteps(timesteps.get(timeAxisName)));
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the timesteps of each of the named time axes from the given raw
+     * file, adding the names of their dimensions to {@code timeDimNames} if it
+     * is not null.
+     * @return the timesteps of each time axis, keyed by name, or null if any
+     * of the time axes is not a one-dimensional variable in the file.
+     */
+    private static Map<String, List<DateTime>> readTimeAxes(NetcdfFile nc,
+            List<String> timeAxisNames, Set<String> timeDimNames) throws IOException
+    {
+        Map<String, List<DateTime>> timesteps = new LinkedHashMap<String, List<DateTime>>();
+        NetcdfDataset ncd = null;
+        for (String name : timeAxisNames)
+        {
+            if (name == null || timesteps.containsKey(name)) continue;
+            Variable var = nc.findVariable(name);
+            if (var == null || var.getRank() != 1) return null;
+            if (timeDimNames != null) timeDimNames.add(var.getDimension(0).getShortName());
+            // We only apply scale factors and offsets, so that no coordinate
+            // systems are created
+            if (ncd == null)
+            {
+                ncd = new NetcdfDataset(nc, EnumSet.of(NetcdfDataset.Enhance.ScaleMissing));
+            }
+            CoordinateAxis1DTime timeAxis = CoordinateAxis1DTime.factory(ncd,
+                (VariableDS)ncd.findVariable(name), new Formatter());
+            timesteps.put(name, CdmUtils.getTimesteps(timeAxis));
+        }
+        return timesteps;
+    }
+
+    /**
+     * Returns true if each of the given coverages has the timesteps of its
+     * time axis.
+     */
+    private static boolean hasTimesteps(List<CdmCoverageMetadata> coverages,
+            List<String> timeAxisNames, Map<String, List<DateTime>> timesteps)
+    {
+        for (int i = 0; i < coverages.size(); i++)
+        {
+            String timeAxisName = timeAxisNames.get(i);
+            if (timeAxisName != null &&
+                !timesteps.get(timeAxisName).equals(coverages.get(i).getTimeValues()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes the structure of the given raw file: the names, types, shapes
+     * and attributes of its variables and the end points of its coordinate
+     * variables.  The lengths of the given time dimensions and the attributes
+     * of the time axes are left out, as they can vary between the files of an
+     * aggregation.
+     */
+    private static String getStructure(NetcdfFile nc, Set<String> timeDimNames)
+            throws IOException
+    {
+        // Auxiliary coordinate variables (e.g. the latitudes and longitudes
+        // of curvilinear grids) are named in the "coordinates" attributes
+        Set<String> coordNames = new HashSet<String>();
+        for (Variable var : nc.getVariables())
+        {
+            Attribute coords = var.findAttributeIgnoreCase("coordinates");
+            if (coords != null && coords.isString())
+            {
+                for (String name : coords.getStringValue().trim().split("\\s+"))
+                {
+                    coordNames.add(name);
+                }
+            }
+        }
+
+        StringBuilder buf = new StringBuilder();
+        for (Variable var : nc.getVariables())
+        {
+            buf.append(var.getFullNameEscaped()).append(' ').append(var.getDataType());
+            boolean hasTimeDim = false;
+            for (Dimension dim : var.getDimensions())
+            {
+                buf.append(' ').append(dim.getShortName()).append('=');
+                if (timeDimNames.contains(dim.getShortName()))
+                {
+                    buf.append('*');
+                    hasTimeDim = true;
+                }
+                else
+                {
+                    buf.append(dim.getLength());
+                }
+            }
+            // The end points of the coordinate variables distinguish grids
+            // of the same size in different places
+            boolean isCoordVar = var.isCoordinateVariable()
+                || coordNames.contains(var.getShortName())
+                || coordNames.contains(var.getFullName());
+            if (isCoordVar && !hasTimeDim && var.getDataType().isNumeric()
+                && var.getSize() > 0)
+            {
+                int[] shape = var.getShape();
+                int[] first = new int[shape.length];
+                int[] last = new int[shape.length];
+                for (int i = 0; i < shape.length; i++) last[i] = shape[i] - 1;
+                buf.append(' ').append(readValue(var, first))
+                   .append(' ').append(readValue(var, last));
+            }
+            buf.append('\n');
+            // The attributes give the titles, units and value ranges of the
+            // coverages.  Those of the time axes include the units of time,
+            // which may differ between files and are read from each file.
+            if (!(var.isCoordinateVariable() && hasTimeDim))
+            {
+                for (Attribute att : var.getAttributes())
+                {
+                    buf.append("  ").append(att).append('\n');
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    private static double readValue(Variable var, int[] index) throws IOException
+    {
+        int[] shape = new int[index.length];
+        Arrays.fill(shape, 1);
+        try
+        {
+            return var.read(index, shape).getDouble(0);
+        }
+        catch (InvalidRangeException ire)
+        {
+            // Can't happen: the index is within the variable
+            throw new IllegalStateException(ire);
+        }
+    }
+}
@@ -66,6 +66,7 @@ import ucar.nc2.dataset.CoordinateAxis1D;
 import ucar.nc2.dataset.CoordinateAxis1DTime;
 import ucar.nc2.dataset.CoordinateAxis2D;
 import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDataset.Gridset;
@@ -91,6 +92,11 @@ import uk.ac.rdg.resc.edal.time.AllLeapChronology;
 import uk.ac.rdg.resc.edal.time.NoLeapChronology;
 import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
+import uk.ac.rdg.resc.edal.util.DateTimeArrayList;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.graphics.ImageProducer;
 
 /**
@@ -364,23 +370,31 @@ public final class CdmUtils
     /**
      * Gets List of DateTimes representing the timesteps of the given coordinate
      * system, in an appropriate {@link Chronology}. (Chronologies represent the
-     * calendar system.)
+     * calendar system.)  The timesteps are held as an array of millisecond
+     * instants and DateTime objects are only created when elements of the
+     * list are retrieved.
      * 
      * @param timeAxis
      *            The coordinate system containing the time information
-     * @return List of TimestepInfo objects, or an empty list if the coordinate
+     * @return List of DateTimes, or an empty list if the coordinate
      *         system has no time axis
      * @throws IllegalArgumentException
      *             if the calendar system of the time axis cannot be handled.
      */
     public static List<DateTime> getTimesteps(CoordinateAxis1DTime timeAxis)
     {
-        List<DateTime> timesteps = new ArrayList<DateTime>();
-        // Use the Java NetCDF library's built-in date parsing code
-        //for (Date date : timeAxis.getTimeDates())
-        for (CalendarDate date : timeAxis.getCalendarDates()  )
-            timesteps.add(ExposeDateTime.getDateTime(date));
-        return timesteps;
+        List<CalendarDate> dates = timeAxis.getCalendarDates();
+        if (dates.isEmpty()) return Collections.emptyList();
+        // All the dates on the axis are in the calendar of the axis
+        Chronology chronology = ExposeDateTime.getDateTime(dates.get(0)).getChronology();
+        // Use the Java NetCDF library's built-in date parsing code, which
+        // has already created the dates, so that we agree with it exactly
+        long[] millis = new long[dates.size()];
+        for (int i = 0; i < millis.length; i++)
+        {
+            millis[i] = dates.get(i).getMillis();
+        }
+        return new DateTimeArrayList(millis, chronology);
     }
 
     /**
@@ -590,12 +604,14 @@ public final class CdmUtils
 
         logger.debug("Reading data using strategy {}", strategy);
         long start = System.nanoTime();
-        int bytesRead = strategy.readData(tIndex, zIndex, grid, pixelMap, data);
+        // Gather the statistics of the data as we read them
+        DataStatistics stats = DataStatistics.forSampleSize(targetDomainSize);
+        int bytesRead = strategy.readData(tIndex, zIndex, grid, pixelMap, data, stats);
         long finish = System.nanoTime();
         logger.debug("{} bytes read in {} ms", bytesRead, (finish - start) / 1.e6);
 
         // Wrap the data array as an immutable list and return
-        return wrap(data);
+        return new FloatArrayList(data, stats);
     }
 
     /**
@@ -623,17 +639,7 @@ public final class CdmUtils
      */
     public static List<Float> wrap(final float[] arr)
     {
-        return new AbstractList<Float>()
-        {
-            @Override
-            public Float get(int index) {
-                float val = arr[index];
-                return Float.isNaN(val) ? null : val;
-            }
-
-            @Override
-            public int size() { return arr.length; }
-        };
+        return new FloatArrayList(arr, null);
     }
 
     public static GridDatatype getGridDatatype(NetcdfDataset nc, String varId)
@@ -759,6 +765,85 @@ public final class CdmUtils
         }
     }
     
+    /**
+     * Returns the range of values that the given variable declares in its
+     * attributes.  The actual_range attribute is preferred; failing that the
+     * valid_range attribute or the valid_min and valid_max attributes are used,
+     * unpacked with the scale_factor and add_offset attributes if they are
+     * expressed in packed units.
+     * @return the declared range of values, or an empty range if the variable
+     * does not declare a finite range with distinct minimum and maximum.
+     */
+    public static Range<Float> getDeclaredValueRange(Variable var)
+    {
+        // The packing attributes are removed from enhanced variables, so we
+        // read the attributes of the original variable
+        while (var instanceof VariableDS && ((VariableDS)var).getOriginalVariable() != null)
+        {
+            var = ((VariableDS)var).getOriginalVariable();
+        }
+        // actual_range is always expressed in unpacked units
+        Attribute actualRange = var.findAttributeIgnoreCase("actual_range");
+        if (isNumeric(actualRange, 2))
+        {
+            return newValueRange(actualRange.getNumericValue(0).doubleValue(),
+                actualRange.getNumericValue(1).doubleValue());
+        }
+        Attribute scale = var.findAttributeIgnoreCase("scale_factor");
+        Attribute offset = var.findAttributeIgnoreCase("add_offset");
+        if (!isNumeric(scale, 1)) scale = null;
+        if (!isNumeric(offset, 1)) offset = null;
+        Attribute validRange = var.findAttributeIgnoreCase("valid_range");
+        if (isNumeric(validRange, 2))
+        {
+            return newValueRange(unpack(validRange, 0, scale, offset),
+                unpack(validRange, 1, scale, offset));
+        }
+        Attribute validMin = var.findAttributeIgnoreCase("valid_min");
+        Attribute validMax = var.findAttributeIgnoreCase("valid_max");
+        if (isNumeric(validMin, 1) && isNumeric(validMax, 1))
+        {
+            return newValueRange(unpack(validMin, 0, scale, offset),
+                unpack(validMax, 0, scale, offset));
+        }
+        return Ranges.emptyRange();
+    }
+
+    /** Returns true if the given attribute has at least the given number of numeric values */
+    private static boolean isNumeric(Attribute att, int numValues)
+    {
+        return att != null && !att.isString() && att.getLength() >= numValues;
+    }
+
+    /**
+     * Returns the value of the given valid_* attribute in unpacked units.
+     * Following the NetCDF User Guide, the attribute is in packed units unless
+     * it has the same type as the packing attributes.
+     */
+    private static double unpack(Attribute att, int index, Attribute scale, Attribute offset)
+    {
+        double value = att.getNumericValue(index).doubleValue();
+        Attribute packing = scale == null ? offset : scale;
+        if (packing != null && packing.getDataType() != att.getDataType())
+        {
+            if (scale != null) value *= scale.getNumericValue().doubleValue();
+            if (offset != null) value += offset.getNumericValue().doubleValue();
+        }
+        return value;
+    }
+
+    private static Range<Float> newValueRange(double val1, double val2)
+    {
+        float min = (float)Math.min(val1, val2);
+        float max = (float)Math.max(val1, val2);
+        if (Float.isNaN(min) || Float.isInfinite(min) ||
+            Float.isNaN(max) || Float.isInfinite(max) || min == max)
+        {
+            return Ranges.emptyRange();
+        }
+        return Ranges.newRange(min, max);
+    }
+
     public static void main(String[] args) throws Exception
     {
         NetcdfDataset nc = NetcdfDataset.openDataset("C:\\Godiva2_data\\Nancy DeLosa\\20120930_v_195359_l_0000000.nc");
@@ -35,6 +35,7 @@ import ucar.ma2.Index;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridDatatype;
 import uk.ac.rdg.resc.edal.cdm.PixelMap.PixelMapEntry;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
 
 /**
  * <p>Defines different strategies for reading data from files. The grid below represents the source
@@ -114,7 +115,7 @@ public enum DataReadingStrategy
         
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
+            PixelMap pixelMap, VariableDS var, RangesList ranges, DataStatistics stats)
             throws IOException
         {
             Iterator<PixelMapEntry> it = pixelMap.iterator();
@@ -135,19 +136,20 @@ public enum DataReadingStrategy
                 {
                     // We have a new scanline.
                     // We read the data for the existing scanline first
-                    dataPointsRead += this.readScanline(data, var, ranges, scanline);
+                    dataPointsRead += this.readScanline(data, var, ranges, scanline, stats);
                     // Now we create a new scanline
                     scanline = new Scanline(pme);
                 }
             }
             
             // We must read the last scanline
-            dataPointsRead += this.readScanline(data, var, ranges, scanline);
+            dataPointsRead += this.readScanline(data, var, ranges, scanline, stats);
 
             return dataPointsRead;
         }
         
-        private int readScanline(float[] data, VariableDS var, RangesList ranges, Scanline scanline)
+        private int readScanline(float[] data, VariableDS var, RangesList ranges, Scanline scanline,
+                DataStatistics stats)
                 throws IOException
         {
             ranges.setYRange(scanline.jIndex, scanline.jIndex);
@@ -177,6 +179,7 @@ public enum DataReadingStrategy
                     for (int p : pme.getTargetGridPoints()) {
                         data[p] = val;
                     }
+                    if (stats != null) stats.add(val, pme.getTargetGridPoints().size());
                 }
             }
             
@@ -193,7 +196,7 @@ public enum DataReadingStrategy
     BOUNDING_BOX {
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
+            PixelMap pixelMap, VariableDS var, RangesList ranges, DataStatistics stats)
             throws IOException
         {
             // Read the whole chunk of x-y data
@@ -223,6 +226,7 @@ public enum DataReadingStrategy
                     {
                         data[targetGridPoint] = val;
                     }
+                    if (stats != null) stats.add(val, pme.getTargetGridPoints().size());
                 }
             }
 
@@ -238,7 +242,7 @@ public enum DataReadingStrategy
     PIXEL_BY_PIXEL {
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
+            PixelMap pixelMap, VariableDS var, RangesList ranges, DataStatistics stats)
             throws IOException
         {
             int numDataPointsRead = 0;
@@ -258,6 +262,7 @@ public enum DataReadingStrategy
                     {
                         data[targetGridPoint] = val;
                     }
+                    if (stats != null) stats.add(val, pme.getTargetGridPoints().size());
                 }
             }
             return numDataPointsRead;
@@ -272,6 +277,20 @@ public enum DataReadingStrategy
      */
     public final int readData(int tIndex, int zIndex, GridDatatype grid, PixelMap pixelMap,
             float[] data) throws IOException
+    {
+        return this.readData(tIndex, zIndex, grid, pixelMap, data, null);
+    }
+
+    /**
+     * Reads data from the given GridDatatype, populating the passed-in array
+     * of floats and accumulating the statistics of the values that are read.
+     * Each value is weighted by the number of points in the array that take
+     * that value.  Returns the number of bytes actually read from the source
+     * data files.
+     * @param stats The statistics object, or null if statistics are not required
+     */
+    public final int readData(int tIndex, int zIndex, GridDatatype grid, PixelMap pixelMap,
+            float[] data, DataStatistics stats) throws IOException
     {
         // Set the time and z ranges
         RangesList rangesList = new RangesList(grid);
@@ -280,7 +299,7 @@ public enum DataReadingStrategy
         
         // Now read the actual data from the source GridDatatype
         VariableDS var = grid.getVariable();
-        int dataPointsRead = this.populatePixelArray(data, pixelMap, var, rangesList);
+        int dataPointsRead = this.populatePixelArray(data, pixelMap, var, rangesList, stats);
 
         // Calculate the number of bytes that we read from the source data
         int bytesPerDataPoint = var.getDataType().getSize();
@@ -289,8 +308,9 @@ public enum DataReadingStrategy
 
     /**
      * Reads data from the given variable, populating the given data array
+     * and (if it is not null) the given statistics object
      * @return The number of data points actually read from the source data
      */
-    abstract int populatePixelArray(float[] data, PixelMap pixelMap, VariableDS var, RangesList ranges)
-        throws IOException;
+    abstract int populatePixelArray(float[] data, PixelMap pixelMap, VariableDS var,
+        RangesList ranges, DataStatistics stats) throws IOException;
 }
@@ -33,6 +33,7 @@ import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.util.Range;
 
 /**
  * Contains the metadata about a multidimensional coverage representing a single
@@ -118,4 +119,13 @@ public interface CoverageMetadata
      * @todo This is a lousy name!
      */
     public boolean isElevationPressure();
+
+    /**
+     * Returns the range of values that the source data declare for this
+     * coverage (for example in attributes of the source variable), without
+     * reading any data.
+     * @return the declared range of values of this coverage, or an empty
+     * range if the source data do not declare a usable range.
+     */
+    public Range<Float> getDeclaredValueRange();
 }
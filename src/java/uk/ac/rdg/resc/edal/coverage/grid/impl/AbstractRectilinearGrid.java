@@ -115,4 +115,32 @@ public abstract class AbstractRectilinearGrid extends AbstractHorizontalGrid imp
         );
     }
 
+    @Override
+    public int hashCode() {
+        CoordinateReferenceSystem crs = this.getCoordinateReferenceSystem();
+        int hashCode = 17;
+        hashCode = 31 * hashCode + this.getClass().hashCode();
+        hashCode = 31 * hashCode + (crs == null ? 0 : crs.hashCode());
+        hashCode = 31 * hashCode + this.getXAxis().hashCode();
+        hashCode = 31 * hashCode + this.getYAxis().hashCode();
+        return hashCode;
+    }
+
+    /**
+     * Rectilinear grids are equal if they are of the same class and have equal
+     * coordinate reference systems and axes.  This allows structurally-equal
+     * grids from different sources to share cached objects.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (obj == null || obj.getClass() != this.getClass()) return false;
+        AbstractRectilinearGrid other = (AbstractRectilinearGrid)obj;
+        CoordinateReferenceSystem crs = this.getCoordinateReferenceSystem();
+        CoordinateReferenceSystem otherCrs = other.getCoordinateReferenceSystem();
+        return (crs == null ? otherCrs == null : crs.equals(otherCrs)) &&
+               this.getXAxis().equals(other.getXAxis()) &&
+               this.getYAxis().equals(other.getYAxis());
+    }
+
 }
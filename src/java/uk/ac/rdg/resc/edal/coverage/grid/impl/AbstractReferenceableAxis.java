@@ -225,4 +225,29 @@ public abstract class AbstractReferenceableAxis implements ReferenceableAxis {
     public final List<Double> getCoordinateValues() {
         return this.coordValues;
     }
+
+    /**
+     * Returns true if the given axis has the same name, coordinate system axis
+     * and longitude flag as this axis.  Subclasses use this in their
+     * {@link #equals(java.lang.Object) equals()} methods, then compare their
+     * coordinate values.
+     */
+    protected final boolean equalProperties(AbstractReferenceableAxis other) {
+        return this.isLongitude == other.isLongitude &&
+               (this.name == null ? other.name == null : this.name.equals(other.name)) &&
+               (this.coordSysAxis == null ? other.coordSysAxis == null
+                                          : this.coordSysAxis.equals(other.coordSysAxis));
+    }
+
+    /**
+     * Returns a hash code of the name, coordinate system axis and longitude
+     * flag of this axis, consistent with {@link #equalProperties(AbstractReferenceableAxis)}.
+     */
+    protected final int propertiesHashCode() {
+        int hashCode = 17;
+        hashCode = 31 * hashCode + (this.isLongitude ? 1 : 0);
+        hashCode = 31 * hashCode + (this.name == null ? 0 : this.name.hashCode());
+        hashCode = 31 * hashCode + (this.coordSysAxis == null ? 0 : this.coordSysAxis.hashCode());
+        return hashCode;
+    }
 }
@@ -188,4 +188,26 @@ public final class ReferenceableAxisImpl extends AbstractReferenceableAxis
         return !this.reversed;
     }
 
+    @Override
+    public int hashCode() {
+        int hashCode = this.propertiesHashCode();
+        hashCode = 31 * hashCode + (this.reversed ? 1 : 0);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.axisValues);
+        return hashCode;
+    }
+
+    /**
+     * Referenceable axes are equal if they have the same name and coordinate
+     * values in the same order, and are both (or both not) longitude axes.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof ReferenceableAxisImpl)) return false;
+        ReferenceableAxisImpl other = (ReferenceableAxisImpl)obj;
+        return this.reversed == other.reversed &&
+               Arrays.equals(this.axisValues, other.axisValues) &&
+               this.equalProperties(other);
+    }
+
 }
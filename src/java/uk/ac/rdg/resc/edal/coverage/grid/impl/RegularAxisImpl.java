@@ -142,6 +142,32 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis
         return this.spacing > 0.0;
     }
 
+    @Override
+    public int hashCode() {
+        int hashCode = this.propertiesHashCode();
+        long bits = Double.doubleToLongBits(this.firstValue);
+        hashCode = 31 * hashCode + (int)(bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(this.spacing);
+        hashCode = 31 * hashCode + (int)(bits ^ (bits >>> 32));
+        hashCode = 31 * hashCode + this.size;
+        return hashCode;
+    }
+
+    /**
+     * Regular axes are equal if they have the same name, first value, spacing
+     * and size, and are both (or both not) longitude axes.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof RegularAxisImpl)) return false;
+        RegularAxisImpl other = (RegularAxisImpl)obj;
+        return this.size == other.size &&
+               Double.compare(this.firstValue, other.firstValue) == 0 &&
+               Double.compare(this.spacing, other.spacing) == 0 &&
+               this.equalProperties(other);
+    }
+
     @Override
     public String toString() {
         return String.format("Regular axis: %s, %f, %f, %d", this.getName(),
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.List;
+
+/**
+ * <p>Accumulates the minimum, maximum and number of non-missing values in a set
+ * of floating-point data, together with an optional coarse histogram.  These
+ * statistics are gathered while data are being read (see
+ * {@link uk.ac.rdg.resc.edal.cdm.DataReadingStrategy DataReadingStrategy}), so that
+ * clients can find the range of the data (e.g. for auto-scaling images)
+ * without a second pass over the values.</p>
+ *
+ * <p>The histogram does not need the range of the data to be known in advance:
+ * each bin covers a fixed slice of the ordered bit patterns of floating-point
+ * numbers (the sign, the exponent and the top three bits of the mantissa).
+ * Hence each bin covers roughly 12% of the magnitude of the values within it,
+ * which is sufficient for finding approximate percentiles.</p>
+ *
+ * <p>Instances of this class are not thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+public final class DataStatistics
+{
+    /** The number of bits of the (sortable) float representation used for binning */
+    private static final int HISTOGRAM_BITS = 12;
+    private static final int NUM_BINS = 1 << HISTOGRAM_BITS;
+    private static final int SHIFT = 32 - HISTOGRAM_BITS;
+
+    private float min = Float.NaN;
+    private float max = Float.NaN;
+    private long count = 0;
+    private final boolean withHistogram;
+    /** Allocated when the first value is added */
+    private int[] histogram = null;
+
+    /**
+     * Creates an empty set of statistics
+     * @param withHistogram true if a histogram is to be accumulated
+     */
+    public DataStatistics(boolean withHistogram)
+    {
+        this.withHistogram = withHistogram;
+    }
+
+    /**
+     * Creates an empty set of statistics for a sample of the given size.  A
+     * histogram is only accumulated if the sample is at least as large as the
+     * histogram itself: for smaller samples it is cheaper to make a second
+     * pass through the data if percentiles are needed (see
+     * {@link #forList(java.util.List)}).
+     */
+    public static DataStatistics forSampleSize(int size)
+    {
+        return new DataStatistics(size >= NUM_BINS);
+    }
+
+    /**
+     * Returns statistics (with a histogram) for the given list of values, in
+     * which nulls represent missing values.  If the list is a
+     * {@link FloatArrayList} that already carries statistics with a
+     * histogram these are returned directly, avoiding a pass through the
+     * data; in this case the returned object must not be modified.
+     */
+    public static DataStatistics forList(List<Float> values)
+    {
+        DataStatistics stats;
+        if (values instanceof FloatArrayList)
+        {
+            FloatArrayList floatList = (FloatArrayList)values;
+            stats = floatList.getStatistics();
+            if (stats != null && stats.hasHistogram()) return stats;
+            stats = new DataStatistics(true);
+            for (float val : floatList.getFloatArray()) stats.add(val, 1);
+        }
+        else
+        {
+            stats = new DataStatistics(true);
+            for (Float val : values)
+            {
+                if (val != null) stats.add(val, 1);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the range of the given list of values, in which nulls represent
+     * missing values.  This uses the statistics of a {@link FloatArrayList}
+     * if possible, otherwise it searches the list.  Unlike
+     * {@link Ranges#findMinMax(java.util.Collection)}, this returns an empty
+     * range if the list is empty.
+     */
+    public static Range<Float> findValueRange(List<Float> values)
+    {
+        if (values instanceof FloatArrayList)
+        {
+            DataStatistics stats = ((FloatArrayList)values).getStatistics();
+            if (stats != null) return stats.getValueRange();
+        }
+        if (values.isEmpty()) return Ranges.emptyRange();
+        return Ranges.findMinMax(values);
+    }
+
+    /**
+     * Adds a value to the statistics.  NaNs (missing values) are ignored.
+     * @param value The data value
+     * @param weight The number of times the value occurs (e.g. the number
+     * of pixels in an image that take this value)
+     */
+    public void add(float value, int weight)
+    {
+        if (Float.isNaN(value) || weight <= 0) return;
+        if (this.count == 0)
+        {
+            this.min = value;
+            this.max = value;
+        }
+        else if (value < this.min)
+        {
+            this.min = value;
+        }
+        else if (value > this.max)
+        {
+            this.max = value;
+        }
+        this.count += weight;
+        if (this.withHistogram)
+        {
+            if (this.histogram == null) this.histogram = new int[NUM_BINS];
+            this.histogram[getBin(value)] += weight;
+        }
+    }
+
+    /** Returns the number of non-missing values */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    /** Returns true if a histogram has been accumulated */
+    public boolean hasHistogram()
+    {
+        return this.withHistogram;
+    }
+
+    /**
+     * Returns the range of the values, which will be empty if all values
+     * were missing.
+     */
+    public Range<Float> getValueRange()
+    {
+        if (this.count == 0) return Ranges.emptyRange();
+        return Ranges.newRange(this.min, this.max);
+    }
+
+    /**
+     * Returns an approximate range of the values between the given percentiles,
+     * found from the histogram.  This is useful for colour scales that are not
+     * dominated by outliers.  The returned range will always lie within the
+     * {@link #getValueRange() full range}.
+     * @param lower The lower percentile (0-100)
+     * @param upper The upper percentile (0-100)
+     * @throws IllegalStateException if there is no histogram
+     * @throws IllegalArgumentException if the percentiles are not in order
+     * or not between 0 and 100
+     */
+    public Range<Float> getPercentileRange(double lower, double upper)
+    {
+        if (!this.withHistogram)
+        {
+            throw new IllegalStateException("No histogram has been accumulated");
+        }
+        if (lower < 0.0 || upper > 100.0 || lower > upper)
+        {
+            throw new IllegalArgumentException("Invalid percentiles: " + lower + ", " + upper);
+        }
+        if (this.count == 0) return Ranges.emptyRange();
+        float low = this.getPercentile(lower);
+        float high = this.getPercentile(upper);
+        // Rounding within bins could make these cross
+        return low <= high ? Ranges.newRange(low, high) : Ranges.newRange(high, low);
+    }
+
+    /** Finds the given percentile by interpolating within a histogram bin */
+    private float getPercentile(double percentile)
+    {
+        if (percentile <= 0.0) return this.min;
+        if (percentile >= 100.0) return this.max;
+        double target = percentile * 0.01 * this.count;
+        long cumulative = 0;
+        for (int bin = 0; bin < NUM_BINS; bin++)
+        {
+            int binCount = this.histogram[bin];
+            if (binCount > 0 && cumulative + binCount >= target)
+            {
+                // The extreme bins are open-ended, so clamp to the data range
+                float lo = getBinLowerBound(bin);
+                float hi = bin == NUM_BINS - 1 ? Float.POSITIVE_INFINITY : getBinLowerBound(bin + 1);
+                float binMin = Math.max(lo, this.min);
+                float binMax = Math.min(hi, this.max);
+                double frac = (target - cumulative) / binCount;
+                return (float)(binMin + frac * (binMax - binMin));
+            }
+            cumulative += binCount;
+        }
+        return this.max;
+    }
+
+    /**
+     * Returns the histogram bin for the given value.  We transform the bits
+     * of the float so that they sort in the same order as the float values,
+     * then take the most significant bits.
+     */
+    static int getBin(float value)
+    {
+        int bits = Float.floatToIntBits(value);
+        int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+        return (sortable ^ 0x80000000) >>> SHIFT;
+    }
+
+    /**
+     * Returns the smallest value that would fall in the given histogram bin.
+     * The bins at either end are open-ended (they hold the infinities and the
+     * bit patterns of NaNs), so these return negative or positive infinity.
+     */
+    static float getBinLowerBound(int bin)
+    {
+        int sortable = (bin << SHIFT) ^ 0x80000000;
+        int bits = sortable ^ ((sortable >> 31) & 0x7fffffff);
+        float bound = Float.intBitsToFloat(bits);
+        if (Float.isNaN(bound))
+        {
+            return bin < NUM_BINS / 2 ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        }
+        return bound;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d, min=%s, max=%s", this.count, this.min, this.max);
+    }
+}
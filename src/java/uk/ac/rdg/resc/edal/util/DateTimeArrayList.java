@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+
+/**
+ * An immutable List of DateTimes that wraps an array of primitive millisecond
+ * instants, all of which share the same Chronology.  DateTime objects are
+ * only created when elements are retrieved, so large time axes take much
+ * less memory than a List of DateTime objects.  Clients that can work with
+ * primitive arrays (e.g. for binary searching) can call {@link #getMillisArray()}.
+ * @author Jon Blower
+ */
+public final class DateTimeArrayList extends AbstractList<DateTime> implements RandomAccess
+{
+    private final long[] millis;
+    private final Chronology chronology;
+
+    /**
+     * Creates a new DateTimeArrayList.  The array is not copied and must not
+     * be modified after this is called.
+     * @param millis The millisecond instants of the DateTimes in the list
+     * @param chronology The Chronology of the DateTimes in the list
+     * @throws NullPointerException if either argument is null
+     */
+    public DateTimeArrayList(long[] millis, Chronology chronology)
+    {
+        if (millis == null || chronology == null) throw new NullPointerException();
+        this.millis = millis;
+        this.chronology = chronology;
+    }
+
+    @Override
+    public DateTime get(int index)
+    {
+        return new DateTime(this.millis[index], this.chronology);
+    }
+
+    @Override
+    public int size()
+    {
+        return this.millis.length;
+    }
+
+    /**
+     * Returns the backing array of this list, containing the millisecond
+     * instant of each DateTime.  Clients must not modify the array.
+     */
+    public long[] getMillisArray()
+    {
+        return this.millis;
+    }
+
+    /** Returns the Chronology of all the DateTimes in this list */
+    public Chronology getChronology()
+    {
+        return this.chronology;
+    }
+
+    /**
+     * Returns the same value as {@link java.util.List#hashCode()}, without
+     * creating the DateTime objects.
+     */
+    @Override
+    public int hashCode()
+    {
+        int chronHash = this.chronology.hashCode();
+        int hashCode = 1;
+        for (long m : this.millis)
+        {
+            // This is the hash code of the DateTime
+            hashCode = 31 * hashCode + ((int)(m ^ (m >>> 32)) + chronHash);
+        }
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this) return true;
+        if (obj instanceof DateTimeArrayList)
+        {
+            DateTimeArrayList other = (DateTimeArrayList)obj;
+            return this.chronology.equals(other.chronology) &&
+                   Arrays.equals(this.millis, other.millis);
+        }
+        return super.equals(obj);
+    }
+}
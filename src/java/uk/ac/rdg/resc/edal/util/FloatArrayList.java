@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An immutable List of Floats that wraps an array of primitive floats, in
+ * which NaNs are returned as null values.  Optionally carries the
+ * {@link DataStatistics} of the values, which are usually gathered as the
+ * array is populated.  Clients that can work with primitive arrays can
+ * avoid boxing by calling {@link #getFloatArray()}.
+ * @author Jon Blower
+ */
+public final class FloatArrayList extends AbstractList<Float> implements RandomAccess
+{
+    private final float[] arr;
+    private final DataStatistics stats;
+
+    /**
+     * Creates a new FloatArrayList.  The array is not copied and must not be
+     * modified after this is called.
+     * @param arr The array of values, NaN representing missing data
+     * @param stats Statistics of the values in the array, or null if
+     * they are not known
+     */
+    public FloatArrayList(float[] arr, DataStatistics stats)
+    {
+        this.arr = arr;
+        this.stats = stats;
+    }
+
+    @Override
+    public Float get(int index)
+    {
+        float val = this.arr[index];
+        return Float.isNaN(val) ? null : val;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.arr.length;
+    }
+
+    /**
+     * Returns the backing array of this list, in which NaNs represent missing
+     * values.  Clients must not modify the array.
+     */
+    public float[] getFloatArray()
+    {
+        return this.arr;
+    }
+
+    /**
+     * Returns the statistics of the values in this list, or null if they
+     * were not calculated when the list was created.
+     */
+    public DataStatistics getStatistics()
+    {
+        return this.stats;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>An off-heap store of data arrays (tiles), held in a memory-mapped file.
+ * Several ncWMS servers (i.e. several JVMs) on the same host can open the same
+ * file, allowing them to share the tiles that each has extracted without
+ * duplicating the data on the Java heap of each server.</p>
+ *
+ * <p>The file consists of a header followed by a fixed number of fixed-size
+ * slots.  Each key (a string, usually the string representation of a
+ * {@link TileCacheKey}) is hashed to two candidate slots.  Each slot holds:</p>
+ * <ul>
+ * <li>a version number, which is odd while the slot is being written</li>
+ * <li>an MD5 digest of the key</li>
+ * <li>the time at which the slot was written</li>
+ * <li>the number of data values, followed by the values themselves</li>
+ * </ul>
+ *
+ * <p>Readers never lock: they read the version number, copy the data, then read
+ * the version number again, treating the read as a miss if the version was odd
+ * or has changed.  Java offers no compare-and-swap operation on mapped memory,
+ * so writers take a (non-blocking) lock on the byte range of the slot; if the
+ * slot is already locked by another thread or process the write is simply
+ * skipped.  Tiles that are too large to fit in a slot are not stored.</p>
+ *
+ * <p>Accesses to mapped memory are ordinary (non-volatile) reads and writes,
+ * which the compiler and the processor are free to reorder.  The version
+ * number is therefore separated from the contents of the slot by a full
+ * memory fence (see {@link #fence()}) on both the reading and the writing
+ * side, so that readers cannot see new data with an old version number or
+ * vice versa.</p>
+ *
+ * <p>Instances of this class are thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+public final class MappedTileStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(MappedTileStore.class);
+
+    private static final int MAGIC = 0x6e63574d; // "ncWM"
+    private static final int LAYOUT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    // Offsets within each slot
+    private static final int VERSION_OFFSET = 0;
+    private static final int DIGEST_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 24;
+    private static final int LENGTH_OFFSET = 32;
+    private static final int DATA_OFFSET = 40;
+
+    /** Bit pattern used to store null values (a NaN that is not produced by arithmetic) */
+    private static final int NULL_BITS = 0x7fa00001;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int numSlots;
+    private final int slotSize;
+    private final int maxNumValues;
+    private final long lifetimeMs;
+    /** Used only for its memory-ordering side effects: see {@link #fence()} */
+    private final AtomicInteger fenceCounter = new AtomicInteger();
+
+    /**
+     * Opens the store in the given file, creating it if necessary.  If the
+     * file exists but has a different layout it will be re-created.
+     * @param file The file that backs the store
+     * @param numSlots The number of tiles that the store can hold
+     * @param maxNumValues The maximum number of data values in each tile
+     * @param lifetimeMs Tiles older than this number of milliseconds will
+     * not be returned
+     * @throws IllegalArgumentException if the file would exceed 2GB in size
+     * @throws IOException if the file could not be created or mapped
+     */
+    public MappedTileStore(File file, int numSlots, int maxNumValues, long lifetimeMs)
+            throws IOException
+    {
+        if (numSlots <= 0 || maxNumValues <= 0)
+        {
+            throw new IllegalArgumentException("numSlots and maxNumValues must be positive");
+        }
+        long size = HEADER_SIZE + (long)numSlots * (DATA_OFFSET + 4L * maxNumValues);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Shared tile store cannot exceed 2GB");
+        }
+        this.file = file;
+        this.numSlots = numSlots;
+        this.maxNumValues = maxNumValues;
+        this.slotSize = DATA_OFFSET + 4 * maxNumValues;
+        this.lifetimeMs = lifetimeMs;
+
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = this.raf.getChannel();
+        // Lock the whole file while we check or write the header, so that
+        // other processes don't see a half-initialized file
+        FileLock lock = this.channel.lock();
+        try
+        {
+            if (!this.hasValidHeader(size))
+            {
+                logger.info("Creating shared tile store {}", file);
+                this.raf.setLength(0);
+                this.raf.setLength(size);
+                ByteBuffer header = ByteBuffer.allocate(16);
+                header.putInt(MAGIC).putInt(LAYOUT_VERSION)
+                      .putInt(numSlots).putInt(maxNumValues).flip();
+                this.channel.write(header, 0);
+            }
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    private boolean hasValidHeader(long expectedSize) throws IOException
+    {
+        if (this.raf.length() != expectedSize) return false;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        this.channel.read(header, 0);
+        header.flip();
+        return header.remaining() == 16 &&
+               header.getInt() == MAGIC &&
+               header.getInt() == LAYOUT_VERSION &&
+               header.getInt() == this.numSlots &&
+               header.getInt() == this.maxNumValues;
+    }
+
+    /**
+     * Gets the tile with the given key, returning null if it is not present,
+     * has expired, or is being written concurrently.
+     */
+    public List<Float> get(String key)
+    {
+        byte[] digest = digest(key);
+        int slot = this.findSlot(digest);
+        for (int i = 0; i < 2; i++)
+        {
+            List<Float> data = this.read(slot, digest);
+            if (data != null) return data;
+            slot = (slot + 1) % this.numSlots;
+        }
+        return null;
+    }
+
+    private List<Float> read(int slot, byte[] digest)
+    {
+        // We use a duplicate because the bulk get() methods are relative
+        ByteBuffer buf = this.buffer.duplicate();
+        int base = this.getSlotOffset(slot);
+        long version = buf.getLong(base + VERSION_OFFSET);
+        if (version == 0 || (version & 1L) != 0) return null;
+        // Don't let the reads of the slot's contents happen before we read the version
+        this.fence();
+        if (!this.digestMatches(buf, base, digest)) return null;
+        long timestamp = buf.getLong(base + TIMESTAMP_OFFSET);
+        if (System.currentTimeMillis() - timestamp > this.lifetimeMs) return null;
+        int n = buf.getInt(base + LENGTH_OFFSET);
+        if (n < 0 || n > this.maxNumValues) return null;
+
+        int[] bits = new int[n];
+        buf.position(base + DATA_OFFSET);
+        IntBuffer ib = buf.slice().asIntBuffer();
+        ib.get(bits);
+
+        // Check that the slot was not overwritten while we were reading
+        this.fence();
+        if (buf.getLong(base + VERSION_OFFSET) != version) return null;
+
+        Float[] data = new Float[n];
+        for (int i = 0; i < n; i++)
+        {
+            data[i] = bits[i] == NULL_BITS ? null : Float.intBitsToFloat(bits[i]);
+        }
+        return Arrays.asList(data);
+    }
+
+    /**
+     * Adds a tile to the store.
+     * @return true if the tile was stored, false if it is too large or the
+     * candidate slots are being written by another thread or process.
+     */
+    public boolean put(String key, List<Float> data)
+    {
+        if (data.size() > this.maxNumValues) return false;
+        byte[] digest = digest(key);
+        int slot = this.chooseSlotForWriting(digest);
+        int base = this.getSlotOffset(slot);
+
+        FileLock lock = null;
+        try
+        {
+            lock = this.channel.tryLock(base, this.slotSize, false);
+        }
+        catch (OverlappingFileLockException olfe)
+        {
+            // Another thread in this JVM is writing to this slot
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Error locking slot in shared tile store", ioe);
+        }
+        if (lock == null) return false;
+
+        try
+        {
+            ByteBuffer buf = this.buffer.duplicate();
+            long version = buf.getLong(base + VERSION_OFFSET);
+            // Make the version odd so that readers know the slot is changing
+            if ((version & 1L) == 0) version++;
+            buf.putLong(base + VERSION_OFFSET, version);
+            // Readers must see the odd version before any of the new contents
+            this.fence();
+
+            int[] bits = new int[data.size()];
+            int i = 0;
+            for (Float val : data)
+            {
+                bits[i++] = val == null ? NULL_BITS : Float.floatToRawIntBits(val);
+            }
+            buf.position(base + DATA_OFFSET);
+            buf.slice().asIntBuffer().put(bits);
+            buf.position(base + DIGEST_OFFSET);
+            buf.put(digest);
+            buf.putLong(base + TIMESTAMP_OFFSET, System.currentTimeMillis());
+            buf.putInt(base + LENGTH_OFFSET, bits.length);
+
+            // Make the version even again: the slot is now readable.  Readers
+            // must see all of the new contents before the even version.
+            this.fence();
+            buf.putLong(base + VERSION_OFFSET, version + 1);
+            return true;
+        }
+        finally
+        {
+            try { lock.release(); }
+            catch (IOException ioe) { logger.warn("Error releasing lock", ioe); }
+        }
+    }
+
+    /**
+     * Chooses which of the two candidate slots to write to: a slot that
+     * already holds this key, otherwise the slot that was written least
+     * recently.
+     */
+    private int chooseSlotForWriting(byte[] digest)
+    {
+        ByteBuffer buf = this.buffer.duplicate();
+        int first = this.findSlot(digest);
+        int second = (first + 1) % this.numSlots;
+        if (this.digestMatches(buf, this.getSlotOffset(first), digest)) return first;
+        if (this.digestMatches(buf, this.getSlotOffset(second), digest)) return second;
+        long t1 = buf.getLong(this.getSlotOffset(first) + TIMESTAMP_OFFSET);
+        long t2 = buf.getLong(this.getSlotOffset(second) + TIMESTAMP_OFFSET);
+        return t1 <= t2 ? first : second;
+    }
+
+    /**
+     * Issues a full memory fence, preventing the compiler and the processor
+     * from moving reads or writes of the mapped memory across this call in
+     * either direction.  Java 6 has no explicit fence operation, so we use an
+     * atomic read-modify-write on a private counter, which the JVM implements
+     * with a full barrier (a locked instruction on x86).  This orders accesses
+     * to the mapped memory within this process, and the hardware barrier
+     * orders them with respect to other processes that map the same file.
+     */
+    private void fence()
+    {
+        this.fenceCounter.incrementAndGet();
+    }
+
+    private boolean digestMatches(ByteBuffer buf, int base, byte[] digest)
+    {
+        for (int i = 0; i < digest.length; i++)
+        {
+            if (buf.get(base + DIGEST_OFFSET + i) != digest[i]) return false;
+        }
+        return true;
+    }
+
+    private int findSlot(byte[] digest)
+    {
+        int hash = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) |
+                   ((digest[2] & 0xff) << 8)  |  (digest[3] & 0xff);
+        return (hash & 0x7fffffff) % this.numSlots;
+    }
+
+    private int getSlotOffset(int slot)
+    {
+        return HEADER_SIZE + slot * this.slotSize;
+    }
+
+    /** Gets the file that backs this store */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Closes the file.  The mapped memory will be released when this object
+     * is garbage-collected.
+     */
+    public void close()
+    {
+        try
+        {
+            this.buffer.force();
+            this.raf.close();
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Error closing shared tile store", ioe);
+        }
+    }
+
+    private static byte[] digest(String key)
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform is required to support MD5
+            throw new AssertionError(nsae);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // Every Java platform is required to support UTF-8
+            throw new AssertionError(uee);
+        }
+    }
+}
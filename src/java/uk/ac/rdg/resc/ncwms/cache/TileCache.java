@@ -41,6 +41,7 @@ import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.ncwms.config.Config;
+import uk.ac.rdg.resc.ncwms.controller.ImageCacheKey;
 
 /**
  * <p>Uses the <a href="http://ehcache.sf.net">EHCache</a> software to cache
@@ -80,6 +81,16 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * is still possible but is made less likely by this mechanism.)</li>
  * </ol>
  *
+ * <p>This class also holds a second, memory-only cache of fully-rendered and
+ * encoded GetMap images, keyed by {@link ImageCacheKey}s.  These keys are built
+ * from TileCacheKeys plus all the styling parameters, so the same consistency
+ * measures apply.  This saves the cost of colouring and encoding the image when
+ * clients repeatedly request the same map in the same style.</p>
+ *
+ * <p>Optionally, tiles can also be held in a {@link MappedTileStore}, an
+ * off-heap store in a memory-mapped file that can be shared by several servers
+ * on the same host.  Tiles that fit in this store are not also held by ehcache.</p>
+ *
  * <p>Items are never explicitly removed from the cache by the ncWMS code: ehcache
  * does the clean-up in a background thread using a least-recently-used (LRU)
  * algorithm.</p>
@@ -91,9 +102,15 @@ public class TileCache
     private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
     
     private static final String CACHE_NAME = "tilecache";
+    private static final String IMAGE_CACHE_NAME = "imagecache";
     private static final Float[] EMPTY_FLOAT_ARRAY = new Float[0];
+    private static final String SHARED_STORE_FILENAME = "sharedtiles.dat";
+    private static final int MAX_SHARED_TILE_SIZE = 256 * 256;
 
     private CacheManager cacheManager;
+    
+    /** Off-heap store shared with other servers: null if disabled */
+    private MappedTileStore sharedStore = null;
 
     /** The location of the tile cache: will be injected by Spring */
     private File cacheDirectory;
@@ -131,6 +148,53 @@ public class TileCache
         );
         
         this.cacheManager.addCache(tileCache);
+        
+        int maxNumImages = ncwmsConfig.getCache().getMaxNumImagesInMemory();
+        if (maxNumImages > 0)
+        {
+            // Encoded images are cheap to recreate from the tile cache so we
+            // don't persist them to disk
+            Cache imageCache = new Cache(
+                IMAGE_CACHE_NAME,
+                maxNumImages,
+                MemoryStoreEvictionPolicy.LRU,
+                false,
+                "",
+                false,
+                ncwmsConfig.getCache().getElementLifetimeMinutes() * 60,
+                0,
+                false,
+                1000,
+                null,
+                null,
+                0
+            );
+            this.cacheManager.addCache(imageCache);
+        }
+        
+        if (ncwmsConfig.getCache().isEnableSharedStore())
+        {
+            String location = ncwmsConfig.getCache().getSharedStoreLocation();
+            File storeFile = location == null || location.trim().equals("")
+                ? new File(this.cacheDirectory, SHARED_STORE_FILENAME)
+                : new File(location.trim());
+            try
+            {
+                storeFile.getParentFile().mkdirs();
+                this.sharedStore = new MappedTileStore(
+                    storeFile,
+                    ncwmsConfig.getCache().getSharedStoreNumSlots(),
+                    MAX_SHARED_TILE_SIZE,
+                    ncwmsConfig.getCache().getElementLifetimeMinutes() * 60 * 1000L
+                );
+                logger.info("Shared tile store opened at {}", storeFile);
+            }
+            catch (Exception e)
+            {
+                // We can carry on without the shared store
+                logger.error("Could not open shared tile store at " + storeFile, e);
+            }
+        }
         logger.info("Tile cache started");
     }
     
@@ -140,6 +204,7 @@ public class TileCache
     public void shutdown()
     {
         this.cacheManager.shutdown();
+        if (this.sharedStore != null) this.sharedStore.close();
         logger.info("Tile cache shut down");
     }
     
@@ -149,6 +214,15 @@ public class TileCache
      */
     public List<Float> get(TileCacheKey key)
     {
+        if (this.sharedStore != null)
+        {
+            List<Float> data = this.sharedStore.get(key.toString());
+            if (data != null)
+            {
+                logger.debug("Found in shared tile store");
+                return data;
+            }
+        }
         Cache cache = this.cacheManager.getCache(CACHE_NAME);
         Element el = cache.get(key);
         if (el == null)
@@ -169,11 +243,55 @@ public class TileCache
      */
     public void put(TileCacheKey key, List<Float> data)
     {
+        // If the shared store accepts the data we don't need another copy
+        if (this.sharedStore != null && this.sharedStore.put(key.toString(), data))
+        {
+            logger.debug("Data put into shared tile store: {}", key);
+            return;
+        }
         Float[] arr = data.toArray(EMPTY_FLOAT_ARRAY);
         this.cacheManager.getCache(CACHE_NAME).put(new Element(key, arr));
         logger.debug("Data put into tile cache: {}", key);
     }
 
+    /**
+     * Returns true if this cache holds encoded images as well as data arrays
+     */
+    public boolean isImageCacheEnabled()
+    {
+        return this.cacheManager.cacheExists(IMAGE_CACHE_NAME);
+    }
+    
+    /**
+     * Gets an encoded image from this cache, returning null if there is no
+     * image matching the given key or if the image cache is disabled.
+     */
+    public byte[] getImage(ImageCacheKey key)
+    {
+        Cache cache = this.cacheManager.getCache(IMAGE_CACHE_NAME);
+        if (cache == null) return null;
+        Element el = cache.get(key);
+        if (el == null)
+        {
+            logger.debug("Not found in image cache: {}", key);
+            return null;
+        }
+        logger.debug("Found in image cache");
+        return (byte[])el.getValue();
+    }
+    
+    /**
+     * Adds an encoded image to this cache.  Does nothing if the image cache
+     * is disabled.
+     */
+    public void putImage(ImageCacheKey key, byte[] image)
+    {
+        Cache cache = this.cacheManager.getCache(IMAGE_CACHE_NAME);
+        if (cache == null) return;
+        cache.put(new Element(key, image));
+        logger.debug("Image put into image cache: {}", key);
+    }
+
     /** Called by Spring to set the directory for the cached tiles */
     public void setCacheDirectory(File cacheDirectory)
     {
@@ -149,6 +149,17 @@ public class TileCacheKey implements Serializable
         this.hashCode = this.str.hashCode();
     }
     
+    /**
+     * Returns the time (in ms since the epoch) at which the data behind this
+     * key were last modified, as far as we know.  This is the modification time
+     * of the file, or the last-modified time of the Dataset for OPeNDAP datasets
+     * and NcML aggregations.  Returns zero if neither is known.
+     */
+    public long getDataLastModified()
+    {
+        return Math.max(this.lastModified, this.datasetLastModified);
+    }
+    
     /**
      * Returns an integer code that is used by ehcache to test for equality
      * of TileCacheKeys.  Two different TileCacheKeys can theoretically generate
@@ -28,11 +28,8 @@
 
 package uk.ac.rdg.resc.ncwms.config;
 
-import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.List;
 import org.joda.time.DateTime;
-import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.AbstractScalarLayer;
 import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
 
@@ -47,27 +44,19 @@ import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
  */
 abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
 {
-    /** These are sorted into ascending order of time */
-    protected final List<TimestepInfo> timesteps = new ArrayList<TimestepInfo>();
-
     /**
-     * A view of the {@link #timesteps} as an unmodifiable List of DateTimes,
-     * for the {@link #getTimeValues()} method.
+     * The timesteps of this layer, sorted into ascending order of time.
+     * This is empty until {@link #buildTimesteps()} is called.
      */
-    private final List<DateTime> dateTimes = 
-        new AbstractList<DateTime>() {
-            @Override public DateTime get(int index) {
-                return timesteps.get(index).getDateTime();
-            }
-            @Override public int size() {
-                return timesteps.size();
-            }
-        };
+    protected TimestepIndex timesteps = TimestepIndex.EMPTY;
+
+    /** Collects timesteps until {@link #buildTimesteps()} is called */
+    private TimestepIndex.Builder timestepBuilder = new TimestepIndex.Builder();
     
     /**
      * Creates an AbstractTimeAggregatedLayer.  This will not extract the
      * dateTimes from the CoverageMetadata objects.  Clients will need to
-     * call addTimestepInfo() as required.
+     * call addTimesteps() as required, then buildTimesteps().
      */
     public AbstractTimeAggregatedLayer(CoverageMetadata lm)
     {
@@ -77,136 +66,54 @@ abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
     /**
      * <p>Returns the list of time instants that are valid for this layer, in
      * chronological order, or an empty list if this Layer does not have a time axis.</p>
-     * <p>Note that this implementation returns an unmodifiable <i>view</i> on
-     * the internal list of TimestepInfo objects, therefore if
-     * {@link #addTimestepInfo(org.joda.time.DateTime, java.lang.String, int) addTimestepInfo()}
-     * is called when iterating over the List returned by this method, undefined
-     * behaviour might result.  However, this Layer will usually be constructed
-     * during a metadata-reading operation and then will be treated as a read-only
-     * object, so this conflict will not occur in typical usage.</p>
+     * <p>This list is backed by an array of primitive millisecond instants,
+     * which {@link uk.ac.rdg.resc.ncwms.util.WmsUtils#findTimeIndex(java.util.List,
+     * org.joda.time.DateTime) WmsUtils.findTimeIndex()} searches directly.
+     * Timesteps that are added are not visible in this list until
+     * {@link #buildTimesteps()} is called.</p>
      * @return the list of time instants that are valid for this layer, in
      * chronological order, or an empty list if this Layer does not have a time axis.
      */
     @Override
     public List<DateTime> getTimeValues()
     {
-        return this.dateTimes;
+        return this.timesteps.getTimeValues();
     }
 
     /**
-     * Adds a new TimestepInfo to this layer.  If a TimestepInfo object
-     * already exists for this timestep, the TimestepInfo object with the lower
-     * indexInFile value is chosen (this is most likely to be the result of a
-     * shorter forecast lead time and therefore more accurate).
-     * @param timestep The real date/time of this timestep
-     * @param filename The filename containing this timestep
-     * @param indexInFile The index of this timestep in the file
-     * @throws NullPointerException if {@code timestep} or {@code filename}
-     * is null.
-     * @throws IllegalArgumentException if {@code indexInFile} is less than zero
+     * Adds the timesteps contained in the given file to this layer.  If a
+     * timestep already exists for one of these times, the timestep with the
+     * lower index in its file is chosen (this is most likely to be the result
+     * of a shorter forecast lead time and therefore more accurate).
+     * @param filename The filename containing these timesteps
+     * @param times The real date/times of the timesteps, in the order in
+     * which they appear in the file
+     * @throws NullPointerException if {@code filename} is null.
+     * @throws IllegalStateException if {@link #buildTimesteps()} has already
+     * been called
      */
-    void addTimestepInfo(DateTime dt, String filename, int indexInFile)
+    void addTimesteps(String filename, List<DateTime> times)
     {
-        TimestepInfo tInfo = new TimestepInfo(dt, filename, indexInFile);
-        // Find the insertion point in the List of timesteps
-        int index = WmsUtils.findTimeIndex(this.getTimeValues(), dt);
-        if (index >= 0)
-        {
-            // We already have a timestep for this time
-            TimestepInfo existingTStep = this.timesteps.get(index);
-            if (tInfo.getIndexInFile() < existingTStep.getIndexInFile())
-            {
-                // The new info probably has a shorter forecast time and so we
-                // replace the existing version with this one
-                existingTStep = tInfo;
-            }
-        }
-        else
+        if (this.timestepBuilder == null)
         {
-            // We need to insert the TimestepInfo object into the list at the
-            // correct location to ensure that the list is sorted in ascending
-            // order of time.
-            int insertionPoint = -(index + 1); // see docs for Collections.binarySearch()
-            this.timesteps.add(insertionPoint, tInfo);
+            throw new IllegalStateException("Timesteps have already been built");
         }
+        this.timestepBuilder.add(filename, times);
     }
 
     /**
-     * Simple class that holds information about which files in an aggregation
-     * hold which timesteps for a variable.  Instances of this class are
-     * immutable.
+     * Sorts and merges all the timesteps that have been added into the index
+     * that is used by this layer.  This is called once, after timesteps have
+     * been added for all the files in the aggregation, and before the layer
+     * is made available to clients.
      */
-    protected static class TimestepInfo
+    void buildTimesteps()
     {
-        private DateTime timestep;
-        private String filename;
-        private int indexInFile;
-
-        /**
-         * Creates a new TimestepInfo object
-         * @param timestep The real date/time of this timestep
-         * @param filename The filename containing this timestep
-         * @param indexInFile The index of this timestep in the file
-         * @throws NullPointerException if {@code timestep} or {@code filename}
-         * is null.
-         * @throws IllegalArgumentException if {@code indexInFile} is less than zero
-         */
-        public TimestepInfo(DateTime timestep, String filename, int indexInFile)
-        {
-            if (timestep == null || filename == null)
-            {
-                throw new NullPointerException();
-            }
-            if (indexInFile < 0)
-            {
-                throw new IllegalArgumentException("indexInFile must be >= 0");
-            }
-            this.timestep = timestep;
-            this.filename = filename;
-            this.indexInFile = indexInFile;
-        }
-
-        public String getFilename()
-        {
-            return this.filename;
-        }
-
-        public int getIndexInFile()
-        {
-            return this.indexInFile;
-        }
-
-        /**
-         * @return the date-time that this timestep represents
-         */
-        public DateTime getDateTime()
-        {
-            return this.timestep;
-        }
-
-        /**
-         * Compares all fields for equality, using only the millisecond value
-         * to compare the timesteps.
-         */
-        @Override
-        public boolean equals(Object obj)
-        {
-            if (this == obj) return true;
-            if (!(obj instanceof TimestepInfo)) return false;
-            TimestepInfo otherTstep = (TimestepInfo)obj;
-            return this.timestep.isEqual(otherTstep.timestep) && // Compares based on millisecond value only
-                   this.indexInFile == otherTstep.indexInFile &&
-                   this.filename.equals(otherTstep.filename);
-        }
-
-        @Override
-        public int hashCode() {
-            int hash = 3;
-            hash = 41 * hash + this.timestep.hashCode();
-            hash = 41 * hash + this.filename.hashCode();
-            hash = 41 * hash + this.indexInFile;
-            return hash;
-        }
+        if (this.timestepBuilder == null) return;
+        // Layers from the same files usually have the same timesteps, so
+        // they can share a single index
+        this.timesteps = MetadataInterner.intern(this.timestepBuilder.build());
+        this.timestepBuilder = null;
     }
 
 }
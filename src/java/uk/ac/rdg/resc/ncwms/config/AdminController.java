@@ -37,6 +37,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.GlyphAtlas;
+import uk.ac.rdg.resc.ncwms.graphics.PngFormat;
 import uk.ac.rdg.resc.ncwms.usagelog.h2.H2UsageLogger;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -146,6 +148,13 @@ public class AdminController extends MultiActionController
             server.setUrl(request.getParameter("server.url"));
             server.setMaxImageWidth(Integer.parseInt(request.getParameter("server.maximagewidth")));
             server.setMaxImageHeight(Integer.parseInt(request.getParameter("server.maximageheight")));
+            server.setPngCompressionLevel(Integer.parseInt(request.getParameter("server.pngcompressionlevel")));
+            PngFormat.setCompressionLevel(server.getPngCompressionLevel());
+            server.setGlyphAngleSteps(Integer.parseInt(request.getParameter("server.glyphanglesteps")));
+            GlyphAtlas.setAngleSteps(server.getGlyphAngleSteps());
+            server.setMetadataThreads(Integer.parseInt(request.getParameter("server.metadatathreads")));
+            this.config.setMetadataThreads(server.getMetadataThreads());
+            server.setWatchDebounceSeconds(Integer.parseInt(request.getParameter("server.watchdebounceseconds")));
             server.setAllowFeatureInfo(request.getParameter("server.allowfeatureinfo") != null);
             server.setAllowGlobalCapabilities(request.getParameter("server.allowglobalcapabilities") != null);
 
@@ -186,6 +195,8 @@ public class AdminController extends MultiActionController
                     ds.setQueryable(request.getParameter("dataset." + ds.getId() + ".queryable") != null);
                     ds.setIntervalTime(request.getParameter("dataset." + ds.getId() + ".intervalTime") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset." + ds.getId() + ".updateinterval")));
+                    ds.setWatchFiles(request.getParameter("dataset." + ds.getId() + ".watchfiles") != null);
+                    ds.setHomogeneous(request.getParameter("dataset." + ds.getId() + ".homogeneous") != null);
                     ds.setMoreInfo(request.getParameter("dataset." + ds.getId() + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset." + ds.getId() + ".copyright"));
                     
@@ -239,6 +250,8 @@ public class AdminController extends MultiActionController
                     ds.setQueryable(request.getParameter("dataset.new" + i + ".queryable") != null);
                     ds.setIntervalTime(request.getParameter("dataset.new" + i + ".intervalTime") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset.new" + i + ".updateinterval")));
+                    ds.setWatchFiles(request.getParameter("dataset.new" + i + ".watchfiles") != null);
+                    ds.setHomogeneous(request.getParameter("dataset.new" + i + ".homogeneous") != null);
                     ds.setMoreInfo(request.getParameter("dataset.new" + i + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset.new" + i + ".copyright"));
                     // addDataset() contains code to ensure that the dataset
@@ -254,6 +267,10 @@ public class AdminController extends MultiActionController
             config.getCache().setMaxNumItemsInMemory(Integer.parseInt(request.getParameter("cache.maxNumItemsInMemory")));
             config.getCache().setEnableDiskStore(request.getParameter("cache.enableDiskStore") != null);
             config.getCache().setMaxNumItemsOnDisk(Integer.parseInt(request.getParameter("cache.maxNumItemsOnDisk")));
+            config.getCache().setMaxNumImagesInMemory(Integer.parseInt(request.getParameter("cache.maxNumImagesInMemory")));
+            config.getCache().setEnableSharedStore(request.getParameter("cache.enableSharedStore") != null);
+            config.getCache().setSharedStoreNumSlots(Integer.parseInt(request.getParameter("cache.sharedStoreNumSlots")));
+            config.getCache().setSharedStoreLocation(request.getParameter("cache.sharedStoreLocation"));
             
             // Set the location of the THREDDS catalog if it has changed
             String newThreddsCatalogLocation = request.getParameter("thredds.catalog.location");
@@ -61,6 +61,34 @@ public class Cache
     @Element(name="maxNumItemsOnDisk", required=false)
     private int maxNumItemsOnDisk = 2000; // Gives around a 500MB disk footprint for 256*256 tiles
     
+    /**
+     * The number of encoded GetMap images that will be held in memory.  Zero
+     * disables the image cache (data arrays will still be cached).
+     */
+    @Element(name="maxNumImagesInMemory", required=false)
+    private int maxNumImagesInMemory = 500; // Typically 10-50KB per 256*256 PNG tile
+    
+    /**
+     * If true, tiles of up to 256*256 values are held in an off-heap store in
+     * a memory-mapped file, which can be shared by several servers on the same host
+     */
+    @Element(name="enableSharedStore", required=false)
+    private boolean enableSharedStore = false;
+    
+    /**
+     * The number of tiles that the shared store can hold
+     */
+    @Element(name="sharedStoreNumSlots", required=false)
+    private int sharedStoreNumSlots = 1024; // Gives a 256MB file
+    
+    /**
+     * The path to the file that backs the shared store.  Servers that share
+     * tiles must use the same path.  If this is null or empty the file will be
+     * created in the tile cache directory of this server.
+     */
+    @Element(name="sharedStoreLocation", required=false)
+    private String sharedStoreLocation = null;
+    
     public boolean isEnabled()
     {
         return this.enabled;
@@ -110,4 +138,44 @@ public class Cache
     {
         this.maxNumItemsOnDisk = maxNumItemsOnDisk;
     }
+
+    public int getMaxNumImagesInMemory()
+    {
+        return maxNumImagesInMemory;
+    }
+
+    public void setMaxNumImagesInMemory(int maxNumImagesInMemory)
+    {
+        this.maxNumImagesInMemory = maxNumImagesInMemory;
+    }
+
+    public boolean isEnableSharedStore()
+    {
+        return enableSharedStore;
+    }
+
+    public void setEnableSharedStore(boolean enableSharedStore)
+    {
+        this.enableSharedStore = enableSharedStore;
+    }
+
+    public int getSharedStoreNumSlots()
+    {
+        return sharedStoreNumSlots;
+    }
+
+    public void setSharedStoreNumSlots(int sharedStoreNumSlots)
+    {
+        this.sharedStoreNumSlots = sharedStoreNumSlots;
+    }
+
+    public String getSharedStoreLocation()
+    {
+        return sharedStoreLocation;
+    }
+
+    public void setSharedStoreLocation(String sharedStoreLocation)
+    {
+        this.sharedStoreLocation = sharedStoreLocation;
+    }
 }
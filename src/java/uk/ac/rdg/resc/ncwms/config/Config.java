@@ -29,8 +29,10 @@
 package uk.ac.rdg.resc.ncwms.config;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -39,10 +41,15 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletContext;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -61,6 +68,9 @@ import org.springframework.context.ApplicationContextAware;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.unidata.io.RandomAccessFile;
 import uk.ac.rdg.resc.edal.util.Utils;
+import uk.ac.rdg.resc.ncwms.graphics.GlyphAtlas;
+import uk.ac.rdg.resc.ncwms.graphics.PngFormat;
+import uk.ac.rdg.resc.ncwms.graphics.RenderingThreads;
 import uk.ac.rdg.resc.ncwms.security.Users;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.controller.ServerConfig;
@@ -82,6 +92,13 @@ public class Config implements ServerConfig, ApplicationContextAware
     /** Reads and writes XML to/from disk.  Fully thread safe. */
     private static final Serializer PERSISTER = new Persister();
 
+    /** The directory, next to the config file, in which metadata snapshots are saved */
+    private static final String METADATA_SNAPSHOT_DIR_NAME = "metadataSnapshots";
+
+    /** The minimum and maximum numbers of threads that read metadata from files */
+    static final int MIN_METADATA_THREADS = 1;
+    static final int MAX_METADATA_THREADS = 64;
+
     // We don't do "private List<Dataset> datasetList..." here because if we do,
     // the config file will contain "<datasets class="java.util.ArrayList>",
     // presumably because the definition doesn't clarify what sort of List should
@@ -125,6 +142,14 @@ public class Config implements ServerConfig, ApplicationContextAware
     /** Contains handles to background threads that can be used to cancel reloading of datasets.
       * Maps dataset Ids to Future objects*/
     private Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    /** The pool of threads that read metadata from individual files, shared
+      * between all the datasets that are being (re)loaded.  This bounds the
+      * number of files that are read at the same time. */
+    private ThreadPoolExecutor metadataReaders = newThreadPool("metadata-reader", 4);
+    /** The pool of threads that colour and encode large images in parallel,
+      * shared between all requests. */
+    private ThreadPoolExecutor renderingThreads = newThreadPool("rendering",
+        Runtime.getRuntime().availableProcessors());
 
     /**
      * Private constructor.  This prevents other classes from creating
@@ -157,6 +182,11 @@ public class Config implements ServerConfig, ApplicationContextAware
 
         config.lastUpdateTime = new DateTime();
 
+        PngFormat.setCompressionLevel(config.server.getPngCompressionLevel());
+        GlyphAtlas.setAngleSteps(config.server.getGlyphAngleSteps());
+        config.setMetadataThreads(config.server.getMetadataThreads());
+        RenderingThreads.setExecutor(config.renderingThreads);
+
         // Initialize the cache of NetcdfDatasets.  Hold between 50 and 500
         // datasets, clearing out the cache every 5 minutes.  If the number of
         // individual files in the cache exceeds the limit, the least-recently-used
@@ -285,6 +315,56 @@ public class Config implements ServerConfig, ApplicationContextAware
         logger.debug("Scheduled auto-reloading of dataset {}", ds.getId());
     }
 
+    /**
+     * Creates a pool of threads with the given name prefix.  The threads
+     * are daemon threads and are allowed to die when they are idle.
+     */
+    private static ThreadPoolExecutor newThreadPool(final String name, int numThreads)
+    {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Sets the number of threads that read metadata from files, clamped to
+     * the range {@link #MIN_METADATA_THREADS} to {@link #MAX_METADATA_THREADS}.
+     * This can be called while datasets are loading.
+     */
+    void setMetadataThreads(int numThreads)
+    {
+        numThreads = Math.max(MIN_METADATA_THREADS, Math.min(MAX_METADATA_THREADS, numThreads));
+        // The core pool size must never exceed the maximum pool size
+        if (numThreads > this.metadataReaders.getMaximumPoolSize())
+        {
+            this.metadataReaders.setMaximumPoolSize(numThreads);
+            this.metadataReaders.setCorePoolSize(numThreads);
+        }
+        else
+        {
+            this.metadataReaders.setCorePoolSize(numThreads);
+            this.metadataReaders.setMaximumPoolSize(numThreads);
+        }
+    }
+
+    /**
+     * Returns the pool of threads that read metadata from the individual files
+     * in datasets.
+     */
+    ExecutorService getMetadataReaders()
+    {
+        return this.metadataReaders;
+    }
+
     /**
      * @return the time at which this configuration was last updated
      */
@@ -358,6 +438,8 @@ public class Config implements ServerConfig, ApplicationContextAware
         ScheduledFuture<?> future = this.futures.remove(ds.getId());
         // We allow the reloading task to be interrupted
         if (future != null) future.cancel(true);
+        File snapshotFile = this.getMetadataSnapshotFile(ds);
+        if (snapshotFile != null) snapshotFile.delete();
     }
 
     public synchronized void changeDatasetId(Dataset ds, String newId)
@@ -365,12 +447,40 @@ public class Config implements ServerConfig, ApplicationContextAware
         String oldId = ds.getId();
         this.datasets.remove(oldId);
         ScheduledFuture<?> future = this.futures.remove(oldId);
+        File oldSnapshotFile = this.getMetadataSnapshotFile(ds);
         ds.setId(newId);
         this.datasets.put(newId, ds);
         this.futures.put(newId, future);
+        if (oldSnapshotFile != null && oldSnapshotFile.exists())
+        {
+            oldSnapshotFile.renameTo(this.getMetadataSnapshotFile(ds));
+        }
         logger.debug("Changed dataset with ID {} to {}", oldId, newId);
     }
 
+    /**
+     * Returns the file in which the metadata snapshot of the given dataset is
+     * saved, in a subdirectory of the directory containing the config file,
+     * or null if this configuration has no config file.
+     * @see MetadataSnapshot
+     */
+    File getMetadataSnapshotFile(Dataset ds)
+    {
+        if (this.configFile == null) return null;
+        File dir = new File(this.configFile.getAbsoluteFile().getParentFile(),
+            METADATA_SNAPSHOT_DIR_NAME);
+        try
+        {
+            // Dataset IDs may contain characters that are not allowed in filenames
+            return new File(dir, URLEncoder.encode(ds.getId(), "UTF-8") + ".snapshot");
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // Shouldn't happen: UTF-8 is always supported
+            throw new AssertionError(uee);
+        }
+    }
+
     /**
      * If s is whitespace-only or empty, returns a space, otherwise returns s.
      * This is to work around problems with the Simple XML software, which throws
@@ -430,6 +540,9 @@ public class Config implements ServerConfig, ApplicationContextAware
     public void shutdown()
     {
         this.scheduler.shutdownNow(); // Tries its best to stop ongoing threads
+        this.metadataReaders.shutdownNow();
+        RenderingThreads.setExecutor(null);
+        this.renderingThreads.shutdownNow();
         NetcdfDataset.shutdown();
         logger.info("Cleaned up Config object");
     }
@@ -32,14 +32,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import org.apache.oro.io.GlobFilenameFilter;
-import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
@@ -59,6 +66,8 @@ import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
  */
 public abstract class DataReader
 {
+    private static final Logger logger = LoggerFactory.getLogger(DataReader.class);
+
     /**
      * Maps class names to DataReader objects.  Only one DataReader object of
      * each class will ever be created.
@@ -190,7 +199,16 @@ public abstract class DataReader
     
     /**
      * Reads and returns the metadata for all the layers (i.e. variables) in the
-     * given dataset.
+     * given dataset.  For glob aggregations, metadata are only read from files
+     * that are new or have changed since the previous call; metadata for other
+     * files are taken from the dataset's {@link FileMetadataCache}.  Files are
+     * read in parallel using the {@link Config}'s pool of metadata readers,
+     * and progress is reported through {@link Dataset#getLoadingProgress()}.
+     * In a {@link Dataset#isHomogeneous() homogeneous} aggregation, the first
+     * file that is read is a template for reading the others more quickly
+     * (see {@link #readTemplate(java.lang.String)}).
+     * New Layer objects are always returned, so that Layers currently in use
+     * are not modified.
      * @param dataset The dataset from which we'll read data
      * @return Map of layer IDs mapped to {@link LayerImpl} objects
      * @throws FileNotFoundException if the location does not match
@@ -204,30 +222,162 @@ public abstract class DataReader
         String location = ds.getLocation();
         if (WmsUtils.isOpendapLocation(location))
         {
-            this.updateLayers(location, ds, scalarLayers);
+            this.updateLayers(location, this.readInternedMetadata(location, null), ds, scalarLayers);
         }
         else
         {
-            // The location represents locally-held data so we do a glob expansion
-            List<File> files = expandGlobExpression(location);
+            // The location represents locally-held data so we do a glob expansion.
+            // The searched directories are recorded before any files are read,
+            // so that files that appear during loading trigger another load.
+            Map<File, Long> searchedDirs = new HashMap<File, Long>();
+            List<File> files = expandGlobExpression(location, searchedDirs);
+            ds.getDirectoryWatcher().setDirectories(searchedDirs);
             if (files.isEmpty())
             {
                 throw new FileNotFoundException(location + " does not match any files");
             }
+            // We only read metadata from files that are new or have changed
+            // since the last load: the rest comes from the dataset's cache.
+            // The files are read in parallel, but the results are merged in
+            // the order of the files, so that the Layers are the same as if
+            // the files had been read one after another.
+            final FileMetadataCache cache = ds.getMetadataCache();
+            cache.checkDataReader(this);
+            ExecutorService metadataReaders = ds.getMetadataReaders();
+            // In a homogeneous aggregation, the first file that we read is
+            // read in full, in this thread, as a template for the others.
+            final MetadataTemplate[] template = new MetadataTemplate[1];
+            boolean needTemplate = ds.isHomogeneous();
+            List<String> paths = new ArrayList<String>(files.size());
+            List<Collection<CoverageMetadata>> metadata =
+                new ArrayList<Collection<CoverageMetadata>>(files.size());
+            List<Future<Collection<CoverageMetadata>>> futures =
+                new ArrayList<Future<Collection<CoverageMetadata>>>(files.size());
+            int numFilesToRead = 0;
             for (File file : files)
             {
-                // Read the metadata from the file and update the Map.
-                // TODO: only do this if the file's last modified date has changed?
-                // This would require us to keep the previous metadata...
-                this.updateLayers(file.getPath(), ds, scalarLayers);
+                final String path = file.getPath();
+                paths.add(path);
+                // We record the modification time and length before reading,
+                // so that a file that changes during reading is read again
+                final long lastModified = file.lastModified();
+                final long length = file.length();
+                Collection<CoverageMetadata> cached = cache.get(path, lastModified, length);
+                Future<Collection<CoverageMetadata>> future = null;
+                if (cached == null && needTemplate)
+                {
+                    needTemplate = false;
+                    future = submit(null, new Callable<Collection<CoverageMetadata>>() {
+                        @Override public Collection<CoverageMetadata> call() throws IOException {
+                            template[0] = readTemplate(path);
+                            Collection<CoverageMetadata> lms =
+                                MetadataInterner.intern(template[0].getMetadata());
+                            cache.put(path, lastModified, length, lms);
+                            return lms;
+                        }
+                    });
+                    numFilesToRead++;
+                }
+                else if (cached == null)
+                {
+                    final MetadataTemplate fileTemplate = template[0];
+                    future = submit(metadataReaders, new Callable<Collection<CoverageMetadata>>() {
+                        @Override public Collection<CoverageMetadata> call() throws IOException {
+                            Collection<CoverageMetadata> lms = readInternedMetadata(path, fileTemplate);
+                            cache.put(path, lastModified, length, lms);
+                            return lms;
+                        }
+                    });
+                    numFilesToRead++;
+                }
+                metadata.add(cached);
+                futures.add(future);
+            }
+            ds.appendLoadingProgress("Reading metadata from " + numFilesToRead
+                + " of " + files.size() + " files");
+
+            boolean finished = false;
+            try
+            {
+                // Report progress roughly every 10% of the files read
+                int progressInterval = Math.max(1, numFilesToRead / 10);
+                int numFilesRead = 0;
+                for (int i = 0; i < files.size(); i++)
+                {
+                    String path = files.get(i).getPath();
+                    Collection<CoverageMetadata> lms = metadata.get(i);
+                    if (lms == null)
+                    {
+                        lms = getResult(futures.get(i), path);
+                        numFilesRead++;
+                        if (numFilesRead % progressInterval == 0 || numFilesRead == numFilesToRead)
+                        {
+                            ds.appendLoadingProgress("Read metadata from " + numFilesRead
+                                + " of " + numFilesToRead + " files");
+                        }
+                    }
+                    this.updateLayers(path, lms, ds, scalarLayers);
+                }
+                finished = true;
+            }
+            finally
+            {
+                // If there was an error, stop reading the remaining files
+                if (!finished)
+                {
+                    for (Future<Collection<CoverageMetadata>> future : futures)
+                    {
+                        if (future != null) future.cancel(true);
+                    }
+                }
             }
+            int numFilesRemoved = cache.retainAll(paths);
+            logger.debug("Read metadata from {} of {} files in dataset {} ({} removed)",
+                new Object[]{numFilesToRead, files.size(), ds.getId(), numFilesRemoved});
+            ds.setFiles(paths);
         }
 
+        return combineLayers(ds, scalarLayers);
+    }
+
+    /**
+     * Creates the layers of the given glob-aggregated dataset purely from the
+     * metadata in its {@link FileMetadataCache}, without reading or checking
+     * any files.  This is used to create layers from a {@link MetadataSnapshot}.
+     * @param ds The dataset whose layers are to be created
+     * @return Map of layer IDs mapped to {@link LayerImpl} objects
+     * @throws IllegalStateException if the cache does not contain metadata
+     * for every file in the dataset.
+     */
+    final Map<String, Layer> getCachedLayers(Dataset ds)
+    {
+        Map<String, LayerImpl> scalarLayers = CollectionUtils.newLinkedHashMap();
+        FileMetadataCache cache = ds.getMetadataCache();
+        for (String path : cache.getPaths())
+        {
+            FileMetadataCache.Entry entry = cache.getEntry(path);
+            if (entry == null)
+            {
+                throw new IllegalStateException("No cached metadata for " + path);
+            }
+            this.updateLayers(path, entry.metadata, ds, scalarLayers);
+        }
+        ds.setFiles(cache.getPaths());
+        return combineLayers(ds, scalarLayers);
+    }
+
+    /**
+     * Creates a Map that contains the given scalar layers and the vector
+     * layers that can be created from them.
+     */
+    private static Map<String, Layer> combineLayers(Dataset ds, Map<String, LayerImpl> scalarLayers)
+    {
         // We create a new Map that combines the scalar and vector layers
         Map<String, Layer> allLayers = CollectionUtils.newLinkedHashMap();
-        // Add the scalar layers
+        // Add the scalar layers, now that all their timesteps are known
         for (LayerImpl scalarLayer : scalarLayers.values())
         {
+            scalarLayer.buildTimesteps();
             allLayers.put(scalarLayer.getId(), scalarLayer);
         }
         // Now create the vector layers
@@ -243,17 +393,57 @@ public abstract class DataReader
     }
     
     /**
-     * Reads layer metadata from the given location and updates the map of layer
-     * objects.
-     * @param location the location of the specific file from which we'll read
-     * data, ({@literal i.e.} one element resulting from the expansion of a glob
-     * aggregation).
-     * @param ds The dataset from which we're reading data
+     * Runs the given task on the given executor, or runs it immediately in
+     * this thread if the executor is null.
+     */
+    static <T> Future<T> submit(ExecutorService executor, Callable<T> task)
+    {
+        FutureTask<T> future = new FutureTask<T>(task);
+        if (executor == null) future.run();
+        else executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Waits for the metadata that are being read from the given location,
+     * rethrowing any exception that occurred in reading.
      */
-    private void updateLayers(String location, Dataset ds, Map<String, LayerImpl> layers)
+    private static Collection<CoverageMetadata> getResult(
+            Future<Collection<CoverageMetadata>> future, String location)
             throws IOException
     {
-        for (CoverageMetadata lm : this.readLayerMetadata(location))
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading metadata from " + location);
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException("Error reading metadata from " + location, cause);
+        }
+    }
+
+    /**
+     * Updates the map of layer objects with the layer metadata read from the
+     * given location.
+     * @param location the location of the specific file from which the
+     * metadata were read, ({@literal i.e.} one element resulting from the
+     * expansion of a glob aggregation).
+     * @param metadata the layer metadata read from {@code location}
+     * @param ds The dataset from which we're reading data
+     */
+    private void updateLayers(String location, Collection<CoverageMetadata> metadata,
+            Dataset ds, Map<String, LayerImpl> layers)
+    {
+        for (CoverageMetadata lm : metadata)
         {
             String layerId = lm.getId();
             LayerImpl layer = layers.get(layerId);
@@ -263,14 +453,33 @@ public abstract class DataReader
                 layer = new LayerImpl(lm, ds, this);
                 layers.put(layerId, layer);
             }
-            // Now we update the timesteps in the layer
-            int i = 0;
-            for (DateTime dt : lm.getTimeValues())
+            // Now we add the timesteps to the layer: these are sorted and
+            // merged when all the files have been read
+            layer.addTimesteps(location, lm.getTimeValues());
+        }
+    }
+
+    /**
+     * Reads metadata for each layer in the data at the given location, sharing
+     * the grids and axes of the metadata with those of metadata that have
+     * already been read (see {@link MetadataInterner}).
+     * @param template the template for the files in a homogeneous aggregation,
+     * or null to read the metadata in full.
+     */
+    private Collection<CoverageMetadata> readInternedMetadata(String location,
+            MetadataTemplate template) throws IOException
+    {
+        Collection<CoverageMetadata> metadata = null;
+        if (template != null)
+        {
+            metadata = template.readLayerMetadata(location);
+            if (metadata == null)
             {
-                layer.addTimestepInfo(dt, location, i);
-                i++;
+                logger.debug("{} can't be read with the template of its aggregation", location);
             }
         }
+        if (metadata == null) metadata = this.readLayerMetadata(location);
+        return MetadataInterner.intern(metadata);
     }
 
     /**
@@ -282,6 +491,30 @@ public abstract class DataReader
     protected abstract Collection<CoverageMetadata> readLayerMetadata(String location)
             throws IOException;
 
+    /**
+     * Reads metadata for each layer in the file at the given location, which
+     * belongs to a homogeneous aggregation (see {@link Dataset#isHomogeneous()}),
+     * and returns a template for reading the metadata of the other files in
+     * the aggregation quickly.  This default implementation reads the
+     * metadata with {@link #readLayerMetadata(java.lang.String)} and returns
+     * a template that can't read other files, so that they are read in full.
+     * Subclasses that can read the metadata of similar files more quickly
+     * should override this method.
+     * @param location Full path to a single file in a glob aggregation
+     */
+    protected MetadataTemplate readTemplate(String location) throws IOException
+    {
+        final Collection<CoverageMetadata> metadata = this.readLayerMetadata(location);
+        return new MetadataTemplate() {
+            @Override public Collection<CoverageMetadata> getMetadata() {
+                return metadata;
+            }
+            @Override public Collection<CoverageMetadata> readLayerMetadata(String location) {
+                return null;
+            }
+        };
+    }
+
     /**
      * Expands a glob expression to give a List of absolute paths to files.  This
      * method recursively searches directories, allowing for glob expressions like
@@ -293,6 +526,21 @@ public abstract class DataReader
      * @author Mike Grant, Plymouth Marine Labs; Jon Blower
      */
     public static List<File> expandGlobExpression(String globExpression)
+    {
+        return expandGlobExpression(globExpression, null);
+    }
+
+    /**
+     * Expands a glob expression to give a List of absolute paths to files,
+     * also recording the directories that were searched.  A file being added
+     * to or removed from the results of the expansion will change the
+     * modification time of one of these directories.
+     * @param searchedDirs Map to which the searched directories will be added,
+     * mapped to their modification times before they were searched, or null
+     * if they are not required
+     * @see #expandGlobExpression(java.lang.String)
+     */
+    static List<File> expandGlobExpression(String globExpression, Map<File, Long> searchedDirs)
     {
         // Check that the glob expression represents an absolute path.  Relative
         // paths would cause unpredictable and platform-dependent behaviour so
@@ -335,6 +583,7 @@ public abstract class DataReader
             {
                 if (dir.isDirectory())
                 {
+                    if (searchedDirs != null) searchedDirs.put(dir, dir.lastModified());
                     // Workaround for automounters that don't make filesystems
                     // appear unless they're poked
                     // do a listing on searchpath/pathcomponent whether or not
@@ -363,4 +612,25 @@ public abstract class DataReader
         }
         return files;
     }
+
+    /**
+     * A template for reading the metadata of the files in a homogeneous
+     * aggregation, created from one of the files by
+     * {@link DataReader#readTemplate(java.lang.String)}.  Templates are used
+     * by several threads at once, so must be thread-safe.
+     */
+    protected static interface MetadataTemplate
+    {
+        /** Returns the metadata of the file from which the template was created */
+        public Collection<CoverageMetadata> getMetadata();
+
+        /**
+         * Reads metadata for each layer in the file at the given location,
+         * using this template.
+         * @return the metadata of the file, or null if the file can't be read
+         * with this template (in which case it will be read in full).
+         */
+        public Collection<CoverageMetadata> readLayerMetadata(String location)
+                throws IOException;
+    }
 }
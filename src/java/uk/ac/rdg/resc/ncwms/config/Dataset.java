@@ -28,12 +28,19 @@
 
 package uk.ac.rdg.resc.ncwms.config;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +54,8 @@ import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
+import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 
 /**
  * A dataset object in the ncWMS configuration system: contains a number of
@@ -91,6 +100,12 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @Attribute(name="updateInterval", required=false)
     private int updateInterval = -1; // The update interval in minutes. -1 means "never update automatically"
 
+    @Attribute(name="watchFiles", required=false)
+    private boolean watchFiles = false; // True if we reload when files are added to or removed from the dataset
+
+    @Attribute(name="homogeneous", required=false)
+    private boolean homogeneous = false; // True if all the files in the dataset have the same variables and grids
+
     // We don't do "private List<Variable> variable..." here because if we do,
     // the config file will contain "<variable class="java.util.ArrayList>",
     // presumably because the definition doesn't clarify what sort of List should
@@ -129,6 +144,25 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
 
     private Map<String, Layer> layers = Collections.emptyMap();
 
+    /** Metadata read from each file in a glob aggregation, retained between
+     * reloads so that unchanged files don't have to be read again */
+    private final FileMetadataCache metadataCache = new FileMetadataCache();
+
+    /** Detects files being added to or removed from the dataset's directories */
+    private final DirectoryWatcher directoryWatcher = new DirectoryWatcher();
+
+    /** The files that were found in this dataset when its layers were last
+     * loaded.  This is replaced, never modified, so can be read by request
+     * threads without synchronization. */
+    private volatile List<String> files = Collections.emptyList();
+
+    /** True once we have tried to create the layers from a metadata snapshot */
+    private boolean snapshotRead = false;
+
+    /** True if the layers were created from a metadata snapshot and have not
+     * yet been checked against the files */
+    private boolean needsRevalidation = false;
+
     /**
      * Checks that the data we have read are valid.  Checks that there are no
      * duplicate variable IDs.
@@ -296,6 +330,55 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.dataReaderClass = dataReaderClass;
     }
 
+    /**
+     * Returns the cache of metadata read from the individual files in this
+     * dataset, for use by {@link DataReader#getAllLayers(uk.ac.rdg.resc.ncwms.config.Dataset)}.
+     */
+    FileMetadataCache getMetadataCache()
+    {
+        return this.metadataCache;
+    }
+
+    /**
+     * Returns the paths of the files that were found in this dataset when its
+     * layers were last loaded, in the order in which they were found.  This
+     * is empty if this dataset is an OPeNDAP location or has not yet been
+     * loaded.  The list is unmodifiable and is only updated when the layers
+     * are reloaded, so clients can use it without searching the filesystem.
+     */
+    List<String> getFiles()
+    {
+        return this.files;
+    }
+
+    /**
+     * Sets the paths of the files in this dataset, for use by
+     * {@link DataReader#getAllLayers(uk.ac.rdg.resc.ncwms.config.Dataset)}.
+     */
+    void setFiles(List<String> files)
+    {
+        this.files = Collections.unmodifiableList(new ArrayList<String>(files));
+    }
+
+    /**
+     * Returns the object that watches the directories of this dataset for
+     * changes, for use by {@link DataReader#getAllLayers(uk.ac.rdg.resc.ncwms.config.Dataset)}.
+     */
+    DirectoryWatcher getDirectoryWatcher()
+    {
+        return this.directoryWatcher;
+    }
+
+    /**
+     * Returns the pool of threads that read metadata from the individual files
+     * in this dataset, or null if this dataset has not yet been added to a
+     * {@link Config} (in which case files will be read in the calling thread).
+     */
+    ExecutorService getMetadataReaders()
+    {
+        return this.config == null ? null : this.config.getMetadataReaders();
+    }
+
     /**
      * @return the update interval for this dataset in minutes
      */
@@ -312,6 +395,42 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.updateInterval = updateInterval;
     }
     
+    /**
+     * @return true if this dataset is reloaded as soon as files are added to
+     * or removed from the directories of its glob aggregation, in addition
+     * to being reloaded every {@link #getUpdateInterval() update interval}.
+     */
+    public boolean isWatchFiles()
+    {
+        return this.watchFiles;
+    }
+
+    void setWatchFiles(boolean watchFiles)
+    {
+        this.watchFiles = watchFiles;
+    }
+
+    /**
+     * @return true if all the files in this dataset's glob aggregation contain
+     * the same variables on the same grids, differing only in their time
+     * values.  The metadata of one file are then read in full and used as a
+     * template for the others, from which only the time values are read.
+     * Files whose variables, dimensions, attributes or coordinate end points
+     * differ from those of the template are read in full.  Anything else that
+     * is not checked, such as the interior coordinates of the grids and so
+     * the bounding boxes of curvilinear grids, is assumed to be identical in
+     * every file.
+     */
+    public boolean isHomogeneous()
+    {
+        return this.homogeneous;
+    }
+
+    void setHomogeneous(boolean homogeneous)
+    {
+        this.homogeneous = homogeneous;
+    }
+
     /**
      * @return a DateTime object representing the time at which this dataset was
      * last updated, or null if the dataset has never been loaded.
@@ -411,7 +530,7 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         return this.loadingProgress;
     }
 
-    private void appendLoadingProgress(String loadingProgress)
+    void appendLoadingProgress(String loadingProgress)
     {
         this.loadingProgress.add(loadingProgress);
     }
@@ -531,6 +650,21 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             logger.debug("delay = {} seconds, needsRefresh = {}", delaySeconds, needsRefresh);
             return needsRefresh;
         }
+        else if (this.needsRevalidation)
+        {
+            // The layers were created from a metadata snapshot, so we check
+            // them against the files as soon as possible
+            return true;
+        }
+        else if (this.watchFiles && this.directoryWatcher.hasSettledChanges(
+            System.currentTimeMillis(), this.config.getServer().getWatchDebounceSeconds() * 1000L))
+        {
+            // Files have been added to or removed from the dataset's directories
+            // and the changes have settled down: we reload the dataset, which
+            // only reads the files that have changed
+            logger.debug("Files in dataset {} have changed", this.id);
+            return true;
+        }
         else if (this.updateInterval < 0)
         {
             return false; // We never update this dataset
@@ -552,21 +686,86 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         DataReader dr = DataReader.forName(this.dataReaderClass);
         // Look for OPeNDAP datasets and update the credentials provider accordingly
         this.config.updateCredentialsProvider(this);
-        // Read the layers from the data reader
-        this.layers = dr.getAllLayers(this);
-        this.appendLoadingProgress("loaded layers");
+        // On the first load after a restart, we try to create the layers
+        // from the snapshot of the metadata saved by the last load
+        boolean fromSnapshot = false;
+        if (!this.snapshotRead)
+        {
+            this.snapshotRead = true;
+            fromSnapshot = this.readMetadataSnapshot(dr);
+        }
+        if (fromSnapshot)
+        {
+            this.layers = dr.getCachedLayers(this);
+            this.needsRevalidation = true;
+            this.appendLoadingProgress("loaded layers from metadata snapshot");
+        }
+        else
+        {
+            // Read the layers from the data reader
+            this.layers = dr.getAllLayers(this);
+            this.needsRevalidation = false;
+            this.appendLoadingProgress("loaded layers");
+            this.writeMetadataSnapshot(dr);
+        }
         // Look for overriding attributes in the configuration
         this.readLayerConfig();
         this.appendLoadingProgress("attributes overridden");
         this.appendLoadingProgress("Finished loading metadata");
     }
 
+    /**
+     * Reads the metadata snapshot for this dataset into the metadata cache.
+     * @return true if the layers of this dataset can be created from the
+     * snapshot, false if there is no usable snapshot or if it is incomplete
+     * (in which case the files will be read, but only those that are not in
+     * the snapshot or have changed).
+     */
+    private boolean readMetadataSnapshot(DataReader dr)
+    {
+        File file = this.config.getMetadataSnapshotFile(this);
+        if (file == null || WmsUtils.isOpendapLocation(this.location)) return false;
+        try
+        {
+            return MetadataSnapshot.read(file, this.location, dr, this.metadataCache);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Error reading metadata snapshot " + file.getPath(), e);
+            this.metadataCache.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Saves the metadata cache of this dataset to its snapshot file, if it
+     * has changed.  Errors are logged and otherwise ignored.
+     */
+    private void writeMetadataSnapshot(DataReader dr)
+    {
+        File file = this.config.getMetadataSnapshotFile(this);
+        if (file == null || WmsUtils.isOpendapLocation(this.location)) return;
+        if (!this.metadataCache.isModified()) return;
+        try
+        {
+            WmsUtils.createDirectory(file.getParentFile());
+            MetadataSnapshot.write(this.metadataCache, this.location, dr, file);
+            this.metadataCache.markSaved();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Error writing metadata snapshot " + file.getPath(), e);
+        }
+    }
+
     /**
      * Read the configuration information from individual layers from the
      * config file.
      */
     private void readLayerConfig()
     {
+        // The layers whose colour scale ranges must be estimated from the data
+        Map<Layer, Variable> toEstimate = new LinkedHashMap<Layer, Variable>();
         for (Layer layer : this.getLayers()) // all the layers, scalars and vectors
         {
             // Load the Variable object from the config file or create a new
@@ -584,15 +783,48 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             if (var.getTitle() == null) var.setTitle(layer.getTitle());
 
             // Set the colour scale range.  If this isn't specified in the
-            // config information, load an "educated guess" at the scale range
-            // from the source data.
+            // config information, we use the range that the source data
+            // declare, or failing that an "educated guess" at the scale range
+            // from a sample of the source data.
             if (var.getColorScaleRange() == null)
             {
-                this.appendLoadingProgress("Reading min-max data for layer " + layer.getName());
+                Range<Float> declaredRange = getDeclaredValueRange(layer);
+                if (declaredRange.isEmpty()) toEstimate.put(layer, var);
+                else var.setColorScaleRange(declaredRange);
+            }
+        }
+        if (toEstimate.isEmpty()) return;
+
+        // We read the samples of data in parallel, using the same threads
+        // that read the metadata.  Each scalar layer is only read once, even
+        // if it is also a component of a vector layer.
+        this.appendLoadingProgress("Reading min-max data for " + toEstimate.size() + " layers");
+        ExecutorService sampleReaders = this.getMetadataReaders();
+        Map<ScalarLayer, Future<List<Float>>> samples =
+            new IdentityHashMap<ScalarLayer, Future<List<Float>>>();
+        for (Layer layer : toEstimate.keySet())
+        {
+            if (layer instanceof VectorLayer)
+            {
+                VectorLayer vecLayer = (VectorLayer)layer;
+                submitDataSample(sampleReaders, vecLayer.getXComponent(), samples);
+                submitDataSample(sampleReaders, vecLayer.getYComponent(), samples);
+            }
+            else
+            {
+                submitDataSample(sampleReaders, (ScalarLayer)layer, samples);
+            }
+        }
+
+        try
+        {
+            for (Map.Entry<Layer, Variable> entry : toEstimate.entrySet())
+            {
+                Layer layer = entry.getKey();
                 Range<Float> valueRange;
                 try
                 {
-                    valueRange = WmsUtils.estimateValueRange(layer);
+                    valueRange = estimateValueRange(layer, samples);
                     if (valueRange.isEmpty())
                     {
                         // We failed to get a valid range.  Just guess at a scale
@@ -618,15 +850,105 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
                         );
                     }
                 }
+                catch (InterruptedException ie)
+                {
+                    // Keep the interrupted status so that the caller can see it
+                    Thread.currentThread().interrupt();
+                    logger.error("Interrupted while reading min-max from layer "
+                        + layer.getId() + " in dataset " + this.id);
+                    valueRange = Ranges.newRange(-50.0f, 50.0f);
+                }
                 catch(Exception e)
                 {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
                     logger.error("Error reading min-max from layer " + layer.getId()
-                        + " in dataset " + this.id, e);
+                        + " in dataset " + this.id, cause);
                     valueRange = Ranges.newRange(-50.0f, 50.0f);
                 }
-                var.setColorScaleRange(valueRange);
+                entry.getValue().setColorScaleRange(valueRange);
+            }
+        }
+        finally
+        {
+            // Stop reading any samples that are no longer needed
+            for (Future<List<Float>> sample : samples.values()) sample.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the range of values that the source data declare for the given
+     * layer, or an empty range if they don't declare one.  The range of a
+     * vector layer is the range of magnitudes that its components can take.
+     */
+    private static Range<Float> getDeclaredValueRange(Layer layer)
+    {
+        if (layer instanceof LayerImpl)
+        {
+            return ((LayerImpl)layer).getDeclaredValueRange();
+        }
+        if (layer instanceof VectorLayer)
+        {
+            VectorLayer vecLayer = (VectorLayer)layer;
+            Range<Float> xRange = getDeclaredValueRange(vecLayer.getXComponent());
+            Range<Float> yRange = getDeclaredValueRange(vecLayer.getYComponent());
+            if (xRange.isEmpty() || yRange.isEmpty()) return Ranges.emptyRange();
+            float minX = minAbs(xRange);
+            float minY = minAbs(yRange);
+            float maxX = maxAbs(xRange);
+            float maxY = maxAbs(yRange);
+            return Ranges.newRange(
+                (float)Math.sqrt(minX * minX + minY * minY),
+                (float)Math.sqrt(maxX * maxX + maxY * maxY)
+            );
+        }
+        return Ranges.emptyRange();
+    }
+
+    /** Returns the smallest absolute value in the given range */
+    private static float minAbs(Range<Float> range)
+    {
+        if (range.contains(0.0f)) return 0.0f;
+        return Math.min(Math.abs(range.getMinimum()), Math.abs(range.getMaximum()));
+    }
+
+    /** Returns the largest absolute value in the given range */
+    private static float maxAbs(Range<Float> range)
+    {
+        return Math.max(Math.abs(range.getMinimum()), Math.abs(range.getMaximum()));
+    }
+
+    /**
+     * Starts reading a sample of data from the given layer, unless a sample
+     * of the layer is already being read.
+     */
+    private static void submitDataSample(ExecutorService executor, final ScalarLayer layer,
+            Map<ScalarLayer, Future<List<Float>>> samples)
+    {
+        if (samples.containsKey(layer)) return;
+        samples.put(layer, DataReader.submit(executor, new Callable<List<Float>>() {
+            @Override public List<Float> call() throws IOException {
+                return WmsUtils.readDataSample(layer);
             }
+        }));
+    }
+
+    /**
+     * Estimates the range of values in the given layer from the samples of
+     * data that were read from it (or from its components, if it is a vector
+     * layer).
+     */
+    private static Range<Float> estimateValueRange(Layer layer,
+            Map<ScalarLayer, Future<List<Float>>> samples)
+            throws InterruptedException, ExecutionException
+    {
+        if (layer instanceof VectorLayer)
+        {
+            VectorLayer vecLayer = (VectorLayer)layer;
+            List<Float> eastDataSample = samples.get(vecLayer.getXComponent()).get();
+            List<Float> northDataSample = samples.get(vecLayer.getYComponent()).get();
+            return Ranges.findMinMax(WmsUtils.getMagnitudes(eastDataSample, northDataSample));
         }
+        return Ranges.findMinMax(samples.get((ScalarLayer)layer).get());
     }
 
     /**
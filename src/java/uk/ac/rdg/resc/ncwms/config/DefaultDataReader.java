@@ -33,7 +33,9 @@ import java.util.Collection;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ucar.nc2.NetcdfFile;
 import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.cdm.CdmMetadataTemplate;
 import uk.ac.rdg.resc.edal.cdm.CdmUtils;
 import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
@@ -70,6 +72,57 @@ public class DefaultDataReader extends DataReader
         }
     }
 
+    /**
+     * Reads the metadata of the given file in full and returns a
+     * {@link CdmMetadataTemplate} that reads the metadata of other files by
+     * opening them as raw {@link NetcdfFile}s and reading only their time
+     * axes.  The template reads metadata in the same way as this class, so
+     * subclasses (which may read metadata differently) get the default
+     * template of {@link DataReader}, which reads every file in full, unless
+     * they override this method.
+     */
+    @Override
+    protected MetadataTemplate readTemplate(String location) throws IOException
+    {
+        if (this.getClass() != DefaultDataReader.class) return super.readTemplate(location);
+        // An NcML file is not a raw file, so can't be used as a template
+        if (WmsUtils.isNcmlAggregation(location)) return super.readTemplate(location);
+        NetcdfDataset nc = null;
+        final CdmMetadataTemplate template;
+        try
+        {
+            nc = openDataset(location);
+            template = CdmMetadataTemplate.create(nc);
+        }
+        finally
+        {
+            closeDataset(nc);
+        }
+        if (!template.canReadOtherFiles())
+        {
+            logger.info("Metadata of other files can't be read using {} as a template", location);
+        }
+        return new MetadataTemplate() {
+            @Override public Collection<CoverageMetadata> getMetadata() {
+                return template.getMetadata();
+            }
+            @Override public Collection<CoverageMetadata> readLayerMetadata(String location)
+                    throws IOException {
+                if (!template.canReadOtherFiles()) return null;
+                NetcdfFile nc = null;
+                try
+                {
+                    nc = NetcdfFile.open(location);
+                    return template.readMetadata(nc);
+                }
+                finally
+                {
+                    closeDataset(nc);
+                }
+            }
+        };
+    }
+
     /**
      * Reads data from a NetCDF file.  Reads data for a single timestep only.
      * This method knows
@@ -254,8 +307,8 @@ public class DefaultDataReader extends DataReader
         return nc;
     }
 
-    /** Closes the given dataset, logging any exceptions at debug level */
-    private static void closeDataset(NetcdfDataset nc)
+    /** Closes the given dataset or file, logging any exceptions at debug level */
+    private static void closeDataset(NetcdfFile nc)
     {
         if (nc == null) return;
         try
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Detects files being added to or removed from the directories of a glob
+ * aggregation, by polling the modification times of the directories that were
+ * searched when the glob expression was last expanded.  Adding, removing or
+ * renaming a file changes the modification time of its directory, so only a
+ * handful of directories need to be checked, however many files the dataset
+ * contains.  This works on all file systems, including NFS.</p>
+ * <p>Changes are debounced: {@link #hasSettledChanges(long, long)} only
+ * returns true once no further changes have been seen for a given time, so
+ * that a burst of new files causes a single reload.  Files that are rewritten
+ * in place don't change their directory and are only detected by the
+ * dataset's regular reloading.</p>
+ * <p>Each {@link Dataset} holds one instance of this class.  Instances of this
+ * class are thread-safe.</p>
+ * @author Jon Blower
+ */
+final class DirectoryWatcher
+{
+    /**
+     * If changes keep arriving, we stop waiting for them to settle down after
+     * this multiple of the debounce time, so that a continuous trickle of
+     * files does not postpone the reload forever.
+     */
+    static final int MAX_DELAY_FACTOR = 6;
+
+    /** Maps directories to their modification times when last checked */
+    private Map<File, Long> dirs = Collections.emptyMap();
+
+    /** The times at which changes were first and last seen, or -1 if no
+     * changes have been seen since the directories were set */
+    private long firstChangeTime = -1;
+    private long lastChangeTime = -1;
+
+    /**
+     * Sets the directories to watch, forgetting any changes that have been
+     * seen.  This is called whenever the glob expression is expanded.
+     * @param dirs Maps the directories to their modification times when they
+     * were searched
+     */
+    public synchronized void setDirectories(Map<File, Long> dirs)
+    {
+        this.dirs = new HashMap<File, Long>(dirs);
+        this.firstChangeTime = -1;
+        this.lastChangeTime = -1;
+    }
+
+    /**
+     * Checks the directories for changes.
+     * @param now The current time in milliseconds
+     * @param debounceMillis The time without changes to wait before
+     * reporting the changes that have been seen
+     * @return true if changes have been seen and have settled down, in which
+     * case the dataset should be reloaded.
+     */
+    public synchronized boolean hasSettledChanges(long now, long debounceMillis)
+    {
+        for (Map.Entry<File, Long> entry : this.dirs.entrySet())
+        {
+            // This will be zero if the directory has been deleted
+            long lastModified = entry.getKey().lastModified();
+            if (lastModified != entry.getValue())
+            {
+                entry.setValue(lastModified);
+                if (this.firstChangeTime < 0) this.firstChangeTime = now;
+                this.lastChangeTime = now;
+            }
+        }
+        if (this.firstChangeTime < 0) return false;
+        return now - this.lastChangeTime >= debounceMillis ||
+               now - this.firstChangeTime >= MAX_DELAY_FACTOR * debounceMillis;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+
+/**
+ * <p>Holds the metadata that has been read from each file in a glob aggregation,
+ * so that a reload of the {@link Dataset} only needs to read the files that
+ * have been added or changed since the last load.  Entries are keyed by the
+ * path of the file and are only returned if the file's last-modified time and
+ * length are unchanged.</p>
+ * <p>Each {@link Dataset} holds one instance of this class, which is not
+ * persisted in the config file, but may be saved to and restored from a
+ * {@link MetadataSnapshot}.  Instances of this class are thread-safe.</p>
+ * @author Jon Blower
+ */
+final class FileMetadataCache
+{
+    /** Maps file paths to the metadata read from them */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** The paths of the files in the aggregation, in the order of the glob expansion */
+    private List<String> paths = Collections.emptyList();
+
+    /** The class of the DataReader that produced the cached metadata */
+    private Class<?> dataReaderClass = null;
+
+    /** True if the contents have changed since the last call to {@link #markSaved()} */
+    private boolean modified = false;
+
+    /**
+     * Gets the metadata that was read from the given file, or null if the
+     * file is not in the cache or has been modified since it was read.
+     * @param path The path to the file
+     * @param lastModified The current last-modified time of the file
+     * @param length The current length of the file in bytes
+     */
+    public synchronized Collection<CoverageMetadata> get(String path,
+            long lastModified, long length)
+    {
+        Entry entry = this.entries.get(path);
+        if (entry == null) return null;
+        if (entry.lastModified != lastModified || entry.length != length) return null;
+        return entry.metadata;
+    }
+
+    /**
+     * Gets the entry for the given file without checking whether the file
+     * has been modified, or null if the file is not in the cache.
+     */
+    public synchronized Entry getEntry(String path)
+    {
+        return this.entries.get(path);
+    }
+
+    /**
+     * Stores the metadata that was read from the given file.  The last-modified
+     * time and length should be those recorded <i>before</i> the metadata
+     * were read, so that a file that is modified during reading will be read
+     * again next time.
+     */
+    public synchronized void put(String path, long lastModified, long length,
+            Collection<CoverageMetadata> metadata)
+    {
+        this.entries.put(path, new Entry(lastModified, length, metadata));
+        this.modified = true;
+    }
+
+    /**
+     * Removes the entries for all files that are not in the given list of
+     * paths (i.e. files that have been removed from the aggregation) and
+     * records the order of the paths.
+     * @param paths the paths of all the files in the aggregation, in the
+     * order of the glob expansion
+     * @return the number of entries that were removed
+     */
+    public synchronized int retainAll(List<String> paths)
+    {
+        Set<String> pathSet = new HashSet<String>(paths);
+        int numRemoved = 0;
+        Iterator<String> it = this.entries.keySet().iterator();
+        while (it.hasNext())
+        {
+            if (!pathSet.contains(it.next()))
+            {
+                it.remove();
+                numRemoved++;
+            }
+        }
+        if (numRemoved > 0 || !paths.equals(this.paths)) this.modified = true;
+        this.paths = Collections.unmodifiableList(new ArrayList<String>(paths));
+        return numRemoved;
+    }
+
+    /**
+     * Returns the paths of the files in the aggregation, in the order of the
+     * glob expansion, as recorded by the last call to {@link #retainAll(java.util.List)}.
+     */
+    public synchronized List<String> getPaths()
+    {
+        return this.paths;
+    }
+
+    /**
+     * Clears the cache if the given DataReader is not of the same class as
+     * the one that produced the cached metadata, since different DataReaders
+     * may read different metadata from the same file.
+     */
+    public synchronized void checkDataReader(DataReader dr)
+    {
+        if (dr.getClass() != this.dataReaderClass)
+        {
+            this.clear();
+            this.dataReaderClass = dr.getClass();
+        }
+    }
+
+    /**
+     * Returns true if the contents of this cache have changed since the last
+     * call to {@link #markSaved()}.
+     */
+    public synchronized boolean isModified()
+    {
+        return this.modified;
+    }
+
+    /** Records that the current contents of this cache have been saved */
+    public synchronized void markSaved()
+    {
+        this.modified = false;
+    }
+
+    /** Removes all entries from the cache */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.paths = Collections.emptyList();
+        this.modified = true;
+    }
+
+    /** Returns the number of files whose metadata are held in the cache */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /** The metadata read from a single file.  Instances are immutable. */
+    static final class Entry
+    {
+        final long lastModified;
+        final long length;
+        final Collection<CoverageMetadata> metadata;
+
+        public Entry(long lastModified, long length, Collection<CoverageMetadata> metadata)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+}
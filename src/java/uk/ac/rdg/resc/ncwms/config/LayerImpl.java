@@ -56,12 +56,14 @@ final class LayerImpl extends AbstractTimeAggregatedLayer
 {
     private final Dataset dataset;
     private final DataReader dataReader;
+    private final Range<Float> declaredValueRange;
     
     public LayerImpl(CoverageMetadata lm, Dataset ds, DataReader dr)
     {
         super(lm);
         this.dataset = ds;
         this.dataReader = dr;
+        this.declaredValueRange = lm.getDeclaredValueRange();
     }
 
     /**
@@ -91,6 +93,16 @@ final class LayerImpl extends AbstractTimeAggregatedLayer
     {
         return this.getVariable().getColorScaleRange();
     }
+
+    /**
+     * Returns the range of values that the source data declare for this layer,
+     * or an empty range if they don't declare one.
+     * @see CoverageMetadata#getDeclaredValueRange()
+     */
+    Range<Float> getDeclaredValueRange()
+    {
+        return this.declaredValueRange;
+    }
     
     /**
      * @return true if this variable can be queried through the GetFeatureInfo
@@ -210,14 +222,18 @@ final class LayerImpl extends AbstractTimeAggregatedLayer
                 filename = location;
             } else {
                 //  It's possible that the dataset's location is a glob
-                // expression, so we expand it and take the first element.
-                filename = DataReader.expandGlobExpression(location).get(0).getPath();
+                // expression, so we take the first of the files that were
+                // found when the layers were loaded, to avoid searching the
+                // filesystem on every request.
+                List<String> files = this.dataset.getFiles();
+                filename = files.isEmpty()
+                    ? DataReader.expandGlobExpression(location).get(0).getPath()
+                    : files.get(0);
             }
             tIndexInFile = tIndex;
         } else {
-            TimestepInfo tInfo = this.timesteps.get(tIndex);
-            filename = tInfo.getFilename();
-            tIndexInFile = tInfo.getIndexInFile();
+            filename = this.timesteps.getFilename(tIndex);
+            tIndexInFile = this.timesteps.getIndexInFile(tIndex);
         }
         return new FilenameAndTimeIndex(filename, tIndexInFile);
     }
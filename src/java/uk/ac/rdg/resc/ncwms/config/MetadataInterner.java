@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.joda.time.DateTime;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+
+/**
+ * <p>Shares structurally-equal horizontal grids, time axes and elevation axes
+ * between the {@link CoverageMetadata} of different variables and files, and
+ * shares equal {@link TimestepIndex}es between layers.  In a glob aggregation
+ * each file usually has the same grid, and all the variables in a file usually
+ * have the same time axis, so this saves a lot of memory.  It also means that
+ * layers on the same grid share the same grid object, so caches of objects
+ * that are derived from grids are more likely to be hit.</p>
+ * <p>Objects are compared using their equals() and hashCode() methods, and are
+ * held through weak references, so are discarded when they are no longer used
+ * by any layer.  Interned objects must not be modified.  This class is
+ * thread-safe.</p>
+ * @author Jon Blower
+ */
+final class MetadataInterner
+{
+    private static final Pool<HorizontalGrid> GRIDS = new Pool<HorizontalGrid>();
+    private static final Pool<List<DateTime>> TIME_AXES = new Pool<List<DateTime>>();
+    private static final Pool<List<Double>> ELEVATION_AXES = new Pool<List<Double>>();
+    private static final Pool<TimestepIndex> TIMESTEP_INDICES = new Pool<TimestepIndex>();
+
+    /** Enforce non-instantiability */
+    private MetadataInterner() { throw new AssertionError(); }
+
+    /**
+     * Returns a collection of CoverageMetadata that are the same as the given
+     * metadata, but whose grids, time axes and elevation axes are shared
+     * with all other interned metadata.
+     * @param metadata The metadata read from a single file
+     * @return a new collection of metadata, in the same order
+     */
+    public static Collection<CoverageMetadata> intern(Collection<CoverageMetadata> metadata)
+    {
+        // The variables in a file often share axis objects already, so we
+        // avoid hashing large axes more than once
+        Map<Object, Object> interned = new IdentityHashMap<Object, Object>();
+        List<CoverageMetadata> result = new ArrayList<CoverageMetadata>(metadata.size());
+        for (CoverageMetadata cm : metadata)
+        {
+            HorizontalGrid grid = intern(GRIDS, cm.getHorizontalGrid(), interned);
+            List<DateTime> times = intern(TIME_AXES, cm.getTimeValues(), interned);
+            List<Double> zValues = intern(ELEVATION_AXES, cm.getElevationValues(), interned);
+            if (cm instanceof MetadataSnapshot.SnapshotCoverageMetadata &&
+                grid == cm.getHorizontalGrid() &&
+                times == cm.getTimeValues() &&
+                zValues == cm.getElevationValues())
+            {
+                result.add(cm);
+            }
+            else
+            {
+                result.add(new MetadataSnapshot.SnapshotCoverageMetadata(cm, grid, times, zValues));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a TimestepIndex that is equal to the given index, and that is
+     * shared with all other layers that have equal indices.
+     */
+    public static TimestepIndex intern(TimestepIndex index)
+    {
+        return TIMESTEP_INDICES.intern(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T intern(Pool<T> pool, T obj, Map<Object, Object> interned)
+    {
+        if (obj == null) return null;
+        T result = (T)interned.get(obj);
+        if (result == null)
+        {
+            result = pool.intern(obj);
+            interned.put(obj, result);
+        }
+        return result;
+    }
+
+    /**
+     * A pool of interned objects of a certain type.
+     */
+    private static final class Pool<T>
+    {
+        private final Map<T, WeakReference<T>> objects = new WeakHashMap<T, WeakReference<T>>();
+
+        public synchronized T intern(T obj)
+        {
+            WeakReference<T> ref = this.objects.get(obj);
+            T existing = ref == null ? null : ref.get();
+            if (existing != null) return existing;
+            this.objects.put(obj, new WeakReference<T>(obj));
+            return obj;
+        }
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.GJChronology;
+import org.joda.time.chrono.GregorianChronology;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.chrono.JulianChronology;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.time.AllLeapChronology;
+import uk.ac.rdg.resc.edal.time.NoLeapChronology;
+import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.edal.util.DateTimeArrayList;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * <p>Saves the contents of a dataset's {@link FileMetadataCache} to a compact
+ * binary file and restores it, so that a restarted server can create the
+ * dataset's layers without opening any of its files.  The snapshot is
+ * written after each load of the dataset that changed the metadata.</p>
+ * <p>Only longitude-latitude grids (regular or rectilinear) and the calendar
+ * systems that ncWMS knows about can be saved.  Files with other metadata
+ * (e.g. curvilinear or projected grids) are left out of the snapshot, which
+ * is then marked as incomplete: the layers of such datasets are not created
+ * from the snapshot, but the files that were saved will not be read again.</p>
+ * <p>Identical grids and elevation axes, which are typically shared by
+ * every file in an aggregation, are only written once.  The value ranges that
+ * the files declare are saved too, so that the colour scale ranges of new
+ * layers can be set without reading any data.</p>
+ * @author Jon Blower
+ */
+final class MetadataSnapshot
+{
+    private static final Logger logger = LoggerFactory.getLogger(MetadataSnapshot.class);
+
+    /** Identifies a snapshot file: "NCMS" in ASCII */
+    private static final int MAGIC = 0x4E434D53;
+
+    /** The version of the file format, incremented when the format changes */
+    private static final int VERSION = 2;
+
+    private static final byte REGULAR_GRID = 0;
+    private static final byte RECTILINEAR_GRID = 1;
+    private static final byte REGULAR_AXIS = 0;
+    private static final byte REFERENCEABLE_AXIS = 1;
+
+    /** The calendar systems that can be saved, identified by their index */
+    private static final Chronology[] CHRONOLOGIES = {
+        ISOChronology.getInstanceUTC(),
+        GJChronology.getInstanceUTC(),
+        GregorianChronology.getInstanceUTC(),
+        JulianChronology.getInstanceUTC(),
+        ThreeSixtyDayChronology.getInstanceUTC(),
+        NoLeapChronology.getInstanceUTC(),
+        AllLeapChronology.getInstanceUTC()
+    };
+
+    /** Enforce non-instantiability */
+    private MetadataSnapshot() { throw new AssertionError(); }
+
+    /**
+     * Writes the contents of the given cache to the given file.  The snapshot
+     * is first written to a temporary file, which then replaces the existing
+     * file, so an interrupted write never leaves a corrupt snapshot.
+     * @param cache The metadata for the files in the dataset
+     * @param location The location (glob expression) of the dataset
+     * @param dr The DataReader that read the metadata
+     * @param file The file to which the snapshot will be written
+     * @return true if the metadata for all the files could be saved, false
+     * if some files were left out because their metadata can't be saved
+     */
+    public static boolean write(FileMetadataCache cache, String location,
+            DataReader dr, File file) throws IOException
+    {
+        List<String> paths = cache.getPaths();
+        Encoder grids = new Encoder();
+        Encoder zAxes = new Encoder();
+        ByteArrayOutputStream filesBytes = new ByteArrayOutputStream();
+        DataOutputStream files = new DataOutputStream(filesBytes);
+        List<String> savedPaths = new ArrayList<String>(paths.size());
+        for (String path : paths)
+        {
+            FileMetadataCache.Entry entry = cache.getEntry(path);
+            if (entry == null) continue;
+            byte[] encoded = encodeFile(path, entry, grids, zAxes);
+            if (encoded == null)
+            {
+                logger.debug("Can't save metadata for {} in snapshot", path);
+            }
+            else
+            {
+                files.write(encoded);
+                savedPaths.add(path);
+            }
+        }
+        boolean complete = savedPaths.size() == paths.size();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(new FileOutputStream(tempFile))));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(location);
+            out.writeUTF(dr.getClass().getName());
+            out.writeBoolean(complete);
+            grids.writeTo(out);
+            zAxes.writeTo(out);
+            out.writeInt(savedPaths.size());
+            filesBytes.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        // File.renameTo() won't replace an existing file on all platforms
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Could not replace " + file.getPath());
+        }
+        if (!tempFile.renameTo(file))
+        {
+            throw new IOException("Could not rename " + tempFile.getPath()
+                + " to " + file.getPath());
+        }
+        logger.debug("Saved metadata for {} of {} files to {}",
+            new Object[]{savedPaths.size(), paths.size(), file.getPath()});
+        return complete;
+    }
+
+    /**
+     * Reads a snapshot into the given cache, replacing its contents.  The file
+     * modification times and lengths in the snapshot are restored too, so
+     * that the cache can be revalidated against the files later.
+     * @param file The snapshot file
+     * @param location The current location (glob expression) of the dataset
+     * @param dr The DataReader for the dataset.  If the snapshot was saved for
+     * a different location or DataReader it is ignored.
+     * @param cache The cache into which the metadata will be read
+     * @return true if the snapshot contained the metadata for all the files
+     * in the dataset, false if it was incomplete, or was absent or out of date
+     * (in which case the cache will not be modified).
+     */
+    public static boolean read(File file, String location, DataReader dr,
+            FileMetadataCache cache) throws IOException
+    {
+        if (!file.exists()) return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(new FileInputStream(file))));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                logger.debug("Ignoring snapshot {} written in another format", file.getPath());
+                return false;
+            }
+            if (!in.readUTF().equals(location) || !in.readUTF().equals(dr.getClass().getName()))
+            {
+                logger.debug("Ignoring snapshot {} written for another location or DataReader",
+                    file.getPath());
+                return false;
+            }
+            boolean complete = in.readBoolean();
+            List<HorizontalGrid> grids = new ArrayList<HorizontalGrid>();
+            for (int i = in.readInt(); i > 0; i--) grids.add(readGrid(in));
+            List<ElevationAxis> zAxes = new ArrayList<ElevationAxis>();
+            for (int i = in.readInt(); i > 0; i--) zAxes.add(readElevationAxis(in));
+
+            int numFiles = in.readInt();
+            List<String> paths = new ArrayList<String>(numFiles);
+            cache.checkDataReader(dr);
+            cache.clear();
+            for (int i = 0; i < numFiles; i++)
+            {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                int numCoverages = in.readInt();
+                List<CoverageMetadata> metadata = new ArrayList<CoverageMetadata>(numCoverages);
+                for (int j = 0; j < numCoverages; j++)
+                {
+                    metadata.add(readCoverage(in, grids, zAxes));
+                }
+                cache.put(path, lastModified, length, MetadataInterner.intern(metadata));
+                paths.add(path);
+            }
+            cache.retainAll(paths);
+            cache.markSaved();
+            return complete;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Encodes the metadata for a single file, or returns null if the metadata
+     * can't be saved.
+     */
+    private static byte[] encodeFile(String path, FileMetadataCache.Entry entry,
+            Encoder grids, Encoder zAxes) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(path);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.length);
+        out.writeInt(entry.metadata.size());
+        for (CoverageMetadata cm : entry.metadata)
+        {
+            byte[] grid = encodeGrid(cm.getHorizontalGrid());
+            if (grid == null) return null;
+            int chronIndex = -1;
+            List<DateTime> times = cm.getTimeValues();
+            if (!times.isEmpty())
+            {
+                chronIndex = indexOf(cm.getChronology());
+                if (chronIndex < 0) return null;
+                if (times instanceof DateTimeArrayList)
+                {
+                    Chronology chron = ((DateTimeArrayList)times).getChronology();
+                    if (!chron.equals(cm.getChronology())) return null;
+                }
+                else
+                {
+                    for (DateTime dt : times)
+                    {
+                        if (!dt.getChronology().equals(cm.getChronology())) return null;
+                    }
+                }
+            }
+            writeString(out, cm.getId());
+            writeString(out, cm.getTitle());
+            writeString(out, cm.getDescription());
+            writeString(out, cm.getUnits());
+            GeographicBoundingBox bbox = cm.getGeographicBoundingBox();
+            out.writeDouble(bbox.getWestBoundLongitude());
+            out.writeDouble(bbox.getEastBoundLongitude());
+            out.writeDouble(bbox.getSouthBoundLatitude());
+            out.writeDouble(bbox.getNorthBoundLatitude());
+            out.writeInt(grids.indexOf(grid));
+            out.writeInt(zAxes.indexOf(encodeElevationAxis(cm)));
+            out.writeByte(chronIndex);
+            out.writeInt(times.size());
+            if (times instanceof DateTimeArrayList)
+            {
+                for (long millis : ((DateTimeArrayList)times).getMillisArray()) out.writeLong(millis);
+            }
+            else
+            {
+                for (DateTime dt : times) out.writeLong(dt.getMillis());
+            }
+            Range<Float> valueRange = cm.getDeclaredValueRange();
+            out.writeBoolean(!valueRange.isEmpty());
+            if (!valueRange.isEmpty())
+            {
+                out.writeFloat(valueRange.getMinimum());
+                out.writeFloat(valueRange.getMaximum());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static CoverageMetadata readCoverage(DataInputStream in,
+            List<HorizontalGrid> grids, List<ElevationAxis> zAxes) throws IOException
+    {
+        String id = readString(in);
+        String title = readString(in);
+        String description = readString(in);
+        String units = readString(in);
+        double west = in.readDouble();
+        double east = in.readDouble();
+        double south = in.readDouble();
+        double north = in.readDouble();
+        GeographicBoundingBox bbox = new DefaultGeographicBoundingBox(west, east, south, north);
+        HorizontalGrid grid = grids.get(in.readInt());
+        ElevationAxis zAxis = zAxes.get(in.readInt());
+        int chronIndex = in.readByte();
+        Chronology chronology = chronIndex < 0 ? null : CHRONOLOGIES[chronIndex];
+        long[] millis = new long[in.readInt()];
+        for (int i = 0; i < millis.length; i++) millis[i] = in.readLong();
+        List<DateTime> times = millis.length == 0
+            ? Collections.<DateTime>emptyList()
+            : new DateTimeArrayList(millis, chronology);
+        Range<Float> valueRange = in.readBoolean()
+            ? Ranges.newRange(in.readFloat(), in.readFloat())
+            : Ranges.<Float>emptyRange();
+        return new SnapshotCoverageMetadata(id, title, description, units, bbox,
+            grid, chronology, times, zAxis, valueRange);
+    }
+
+    /**
+     * Encodes the given grid, or returns null if the grid can't be saved.
+     * Only grids in longitude-latitude coordinates whose axes are all
+     * regular or referenceable can be saved.
+     */
+    private static byte[] encodeGrid(HorizontalGrid grid) throws IOException
+    {
+        if (!(grid instanceof RectilinearGrid)) return null;
+        if (!DefaultGeographicCRS.WGS84.equals(grid.getCoordinateReferenceSystem())) return null;
+        RectilinearGrid rectGrid = (RectilinearGrid)grid;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(grid instanceof RegularGrid ? REGULAR_GRID : RECTILINEAR_GRID);
+        writeAxis(out, rectGrid.getXAxis());
+        writeAxis(out, rectGrid.getYAxis());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static HorizontalGrid readGrid(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        // The x axis of a longitude-latitude grid is always longitude
+        ReferenceableAxis xAxis = readAxis(in, true);
+        ReferenceableAxis yAxis = readAxis(in, false);
+        if (type == REGULAR_GRID)
+        {
+            return new RegularGridImpl((RegularAxis)xAxis, (RegularAxis)yAxis,
+                DefaultGeographicCRS.WGS84);
+        }
+        return new RectilinearGridImpl(xAxis, yAxis, DefaultGeographicCRS.WGS84);
+    }
+
+    private static void writeAxis(DataOutputStream out, ReferenceableAxis axis)
+            throws IOException
+    {
+        writeString(out, axis.getName());
+        if (axis instanceof RegularAxis)
+        {
+            out.writeByte(REGULAR_AXIS);
+            out.writeDouble(axis.getCoordinateValue(0));
+            out.writeDouble(((RegularAxis)axis).getCoordinateSpacing());
+            out.writeInt(axis.getSize());
+        }
+        else
+        {
+            out.writeByte(REFERENCEABLE_AXIS);
+            out.writeInt(axis.getSize());
+            for (int i = 0; i < axis.getSize(); i++)
+            {
+                out.writeDouble(axis.getCoordinateValue(i));
+            }
+        }
+    }
+
+    private static ReferenceableAxis readAxis(DataInputStream in, boolean isLongitude)
+            throws IOException
+    {
+        String name = readString(in);
+        if (in.readByte() == REGULAR_AXIS)
+        {
+            double firstValue = in.readDouble();
+            double spacing = in.readDouble();
+            int size = in.readInt();
+            return new RegularAxisImpl(name, firstValue, spacing, size, isLongitude);
+        }
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readDouble();
+        return new ReferenceableAxisImpl(name, values, isLongitude);
+    }
+
+    private static byte[] encodeElevationAxis(CoverageMetadata cm) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, cm.getElevationUnits());
+        out.writeBoolean(cm.isElevationPositive());
+        out.writeBoolean(cm.isElevationPressure());
+        List<Double> values = cm.getElevationValues();
+        out.writeInt(values.size());
+        for (double value : values) out.writeDouble(value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ElevationAxis readElevationAxis(DataInputStream in) throws IOException
+    {
+        String units = readString(in);
+        boolean positive = in.readBoolean();
+        boolean pressure = in.readBoolean();
+        List<Double> values = new ArrayList<Double>();
+        for (int i = in.readInt(); i > 0; i--) values.add(in.readDouble());
+        return new ElevationAxis(units, Collections.unmodifiableList(values), positive, pressure);
+    }
+
+    private static int indexOf(Chronology chronology)
+    {
+        for (int i = 0; i < CHRONOLOGIES.length; i++)
+        {
+            if (CHRONOLOGIES[i].equals(chronology)) return i;
+        }
+        return -1;
+    }
+
+    /** Writes a string that may be null */
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Assigns indices to distinct encoded objects, so that each distinct
+     * object is only written once.
+     */
+    private static final class Encoder
+    {
+        private final Map<ByteBuffer, Integer> indices = new HashMap<ByteBuffer, Integer>();
+        private final List<byte[]> encoded = new ArrayList<byte[]>();
+
+        public int indexOf(byte[] bytes)
+        {
+            ByteBuffer key = ByteBuffer.wrap(bytes);
+            Integer index = this.indices.get(key);
+            if (index == null)
+            {
+                index = this.encoded.size();
+                this.indices.put(key, index);
+                this.encoded.add(bytes);
+            }
+            return index;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException
+        {
+            out.writeInt(this.encoded.size());
+            for (byte[] bytes : this.encoded) out.write(bytes);
+        }
+    }
+
+    /** An elevation axis read from a snapshot */
+    private static final class ElevationAxis
+    {
+        private final String units;
+        private final List<Double> values;
+        private final boolean positive;
+        private final boolean pressure;
+
+        public ElevationAxis(String units, List<Double> values, boolean positive, boolean pressure)
+        {
+            this.units = units;
+            this.values = values;
+            this.positive = positive;
+            this.pressure = pressure;
+        }
+    }
+
+    /**
+     * An immutable CoverageMetadata object, read from a snapshot or created
+     * by the {@link MetadataInterner} with interned axes.
+     */
+    static final class SnapshotCoverageMetadata implements CoverageMetadata
+    {
+        private final String id;
+        private final String title;
+        private final String description;
+        private final String units;
+        private final GeographicBoundingBox bbox;
+        private final HorizontalGrid horizGrid;
+        private final Chronology chronology;
+        private final List<DateTime> timesteps;
+        private final ElevationAxis zAxis;
+        private final Range<Float> declaredValueRange;
+
+        public SnapshotCoverageMetadata(String id, String title, String description,
+                String units, GeographicBoundingBox bbox, HorizontalGrid horizGrid,
+                Chronology chronology, List<DateTime> timesteps, ElevationAxis zAxis,
+                Range<Float> declaredValueRange)
+        {
+            this.id = id;
+            this.title = title;
+            this.description = description;
+            this.units = units;
+            this.bbox = bbox;
+            this.horizGrid = horizGrid;
+            this.chronology = chronology;
+            this.timesteps = timesteps;
+            this.zAxis = zAxis;
+            this.declaredValueRange = declaredValueRange;
+        }
+
+        /**
+         * Creates a copy of the given metadata with the given grid and axes.
+         * No reference to the given metadata is kept, so that its own axes
+         * can be garbage-collected.
+         */
+        public SnapshotCoverageMetadata(CoverageMetadata cm, HorizontalGrid horizGrid,
+                List<DateTime> timesteps, List<Double> zValues)
+        {
+            this(cm.getId(), cm.getTitle(), cm.getDescription(), cm.getUnits(),
+                cm.getGeographicBoundingBox(), horizGrid, cm.getChronology(), timesteps,
+                new ElevationAxis(cm.getElevationUnits(), zValues,
+                    cm.isElevationPositive(), cm.isElevationPressure()),
+                cm.getDeclaredValueRange());
+        }
+
+        @Override public String getId() { return this.id; }
+
+        @Override public String getTitle() { return this.title; }
+
+        @Override public String getDescription() { return this.description; }
+
+        @Override public String getUnits() { return this.units; }
+
+        @Override public GeographicBoundingBox getGeographicBoundingBox() { return this.bbox; }
+
+        @Override public HorizontalGrid getHorizontalGrid() { return this.horizGrid; }
+
+        @Override public Chronology getChronology() { return this.chronology; }
+
+        @Override public List<DateTime> getTimeValues() { return this.timesteps; }
+
+        @Override public List<Double> getElevationValues() { return this.zAxis.values; }
+
+        @Override public String getElevationUnits() { return this.zAxis.units; }
+
+        @Override public boolean isElevationPositive() { return this.zAxis.positive; }
+
+        @Override public boolean isElevationPressure() { return this.zAxis.pressure; }
+
+        @Override public Range<Float> getDeclaredValueRange() { return this.declaredValueRange; }
+    }
+}
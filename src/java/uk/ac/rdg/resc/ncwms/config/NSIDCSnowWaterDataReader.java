@@ -49,6 +49,8 @@ import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
 import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.edal.util.Utils;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -150,6 +152,8 @@ public class NSIDCSnowWaterDataReader extends DataReader
 
             @Override public boolean isElevationPressure() { return false; }
 
+            @Override public Range<Float> getDeclaredValueRange() { return Ranges.emptyRange(); }
+
         };
         
         return Arrays.asList(lm);
@@ -55,6 +55,8 @@ import uk.ac.rdg.resc.edal.coverage.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
@@ -244,6 +246,10 @@ public final class PhaveosDataReader extends DataReader {
             @Override public boolean isElevationPressure() {
                 return false;
             }
+
+            @Override public Range<Float> getDeclaredValueRange() {
+                return Ranges.emptyRange();
+            }
         };
     }
 }
@@ -30,6 +30,9 @@ package uk.ac.rdg.resc.ncwms.config;
 
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.ncwms.graphics.GlyphAtlas;
 
 /**
  * The part of the configuration file that pertains to the server itself.
@@ -42,6 +45,8 @@ import org.simpleframework.xml.Root;
 @Root(name="server")
 public class Server
 {
+    private static final Logger logger = LoggerFactory.getLogger(Server.class);
+
     @Element(name="title")
     private String title = "My ncWMS server"; // Title for this ncWMS
     @Element(name="allowFeatureInfo", required=false)
@@ -50,6 +55,14 @@ public class Server
     private int maxImageWidth = 1024;
     @Element(name="maxImageHeight", required=false)
     private int maxImageHeight = 1024;
+    @Element(name="pngCompressionLevel", required=false)
+    private int pngCompressionLevel = 4; // 0 (fastest) to 9 (smallest): passed to PngFormat by Config
+    @Element(name="glyphAngleSteps", required=false)
+    private int glyphAngleSteps = GlyphAtlas.DEFAULT_ANGLE_STEPS; // Angles at which arrows and barbs are drawn
+    @Element(name="metadataThreads", required=false)
+    private int metadataThreads = 4; // Threads used to read metadata and data samples from files in datasets
+    @Element(name="watchDebounceSeconds", required=false)
+    private int watchDebounceSeconds = 10; // Wait after changes to watched files before reloading
     @Element(name="abstract", required=false)
     private String abstr = " "; // "abstract" is a reserved word
     @Element(name="keywords", required=false)
@@ -109,6 +122,80 @@ public class Server
         this.maxImageHeight = maxImageHeight;
     }
 
+    public int getPngCompressionLevel()
+    {
+        return pngCompressionLevel;
+    }
+
+    public void setPngCompressionLevel(int pngCompressionLevel)
+    {
+        if (pngCompressionLevel < 0 || pngCompressionLevel > 9)
+        {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+        }
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    public int getGlyphAngleSteps()
+    {
+        return glyphAngleSteps;
+    }
+
+    /**
+     * Sets the number of angles at which glyphs are drawn.  Like
+     * {@link GlyphAtlas#setAngleSteps(int)}, this clamps out-of-range values
+     * to the nearest valid value.
+     */
+    public void setGlyphAngleSteps(int glyphAngleSteps)
+    {
+        int clamped = Math.max(GlyphAtlas.MIN_ANGLE_STEPS,
+            Math.min(GlyphAtlas.MAX_ANGLE_STEPS, glyphAngleSteps));
+        if (clamped != glyphAngleSteps)
+        {
+            logger.warn("Number of glyph angles must be between {} and {}: using {} instead of {}",
+                new Object[] { GlyphAtlas.MIN_ANGLE_STEPS, GlyphAtlas.MAX_ANGLE_STEPS,
+                clamped, glyphAngleSteps });
+        }
+        this.glyphAngleSteps = clamped;
+    }
+
+    public int getMetadataThreads()
+    {
+        return metadataThreads;
+    }
+
+    /**
+     * Sets the number of threads that read metadata from files.  Like
+     * {@link Config#setMetadataThreads(int)}, this clamps out-of-range values
+     * to the nearest valid value.
+     */
+    public void setMetadataThreads(int metadataThreads)
+    {
+        int clamped = Math.max(Config.MIN_METADATA_THREADS,
+            Math.min(Config.MAX_METADATA_THREADS, metadataThreads));
+        if (clamped != metadataThreads)
+        {
+            logger.warn("Number of metadata threads must be between {} and {}: using {} instead of {}",
+                new Object[] { Config.MIN_METADATA_THREADS, Config.MAX_METADATA_THREADS,
+                clamped, metadataThreads });
+        }
+        this.metadataThreads = clamped;
+    }
+
+    public int getWatchDebounceSeconds()
+    {
+        return watchDebounceSeconds;
+    }
+
+    public void setWatchDebounceSeconds(int watchDebounceSeconds)
+    {
+        if (watchDebounceSeconds < 1 || watchDebounceSeconds > 3600)
+        {
+            throw new IllegalArgumentException("Watch debounce time must be between 1 and 3600 seconds");
+        }
+        this.watchDebounceSeconds = watchDebounceSeconds;
+    }
+
     public String getServerAbstract()
     {
         return abstr;
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import uk.ac.rdg.resc.edal.util.DateTimeArrayList;
+
+/**
+ * <p>Records which files in an aggregation hold which timesteps for a layer.
+ * The index is held in columns of primitives: a sorted array of millisecond
+ * instants, an array of indices into a table of filenames and an array of
+ * indices of the timesteps within their files.  This takes much less memory
+ * than an object per timestep, which matters for aggregations with hundreds
+ * of thousands of timesteps.</p>
+ * <p>Instances of this class are immutable and are created through a
+ * {@link Builder}.</p>
+ * @author Jon Blower
+ */
+final class TimestepIndex
+{
+    /** An index that contains no timesteps */
+    static final TimestepIndex EMPTY = new TimestepIndex(
+        new long[0], null, new int[0], new int[0], new String[0]);
+
+    private final long[] millis;
+    private final Chronology chronology;
+    private final List<DateTime> times;
+    private final int[] fileIds;
+    private final int[] indicesInFile;
+    private final String[] filenames;
+
+    private TimestepIndex(long[] millis, Chronology chronology, int[] fileIds,
+            int[] indicesInFile, String[] filenames)
+    {
+        this.millis = millis;
+        this.chronology = chronology;
+        this.times = millis.length == 0
+            ? Collections.<DateTime>emptyList()
+            : new DateTimeArrayList(millis, chronology);
+        this.fileIds = fileIds;
+        this.indicesInFile = indicesInFile;
+        this.filenames = filenames;
+    }
+
+    /** Returns the number of timesteps in this index */
+    int size()
+    {
+        return this.fileIds.length;
+    }
+
+    /**
+     * Returns the timesteps in this index as an unmodifiable List, in
+     * ascending order of time.  This will be a {@link DateTimeArrayList}
+     * unless the index is empty.
+     */
+    List<DateTime> getTimeValues()
+    {
+        return this.times;
+    }
+
+    /** Returns the filename containing the timestep with the given index */
+    String getFilename(int tIndex)
+    {
+        return this.filenames[this.fileIds[tIndex]];
+    }
+
+    /** Returns the index, within its file, of the timestep with the given index */
+    int getIndexInFile(int tIndex)
+    {
+        return this.indicesInFile[tIndex];
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hashCode = 17;
+        hashCode = 31 * hashCode + Arrays.hashCode(this.millis);
+        hashCode = 31 * hashCode + (this.chronology == null ? 0 : this.chronology.hashCode());
+        hashCode = 31 * hashCode + Arrays.hashCode(this.fileIds);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.indicesInFile);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.filenames);
+        return hashCode;
+    }
+
+    /**
+     * Indices are equal if they contain the same timesteps, held in the same
+     * files at the same indices.
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this) return true;
+        if (!(obj instanceof TimestepIndex)) return false;
+        TimestepIndex other = (TimestepIndex)obj;
+        return Arrays.equals(this.millis, other.millis) &&
+               Arrays.equals(this.fileIds, other.fileIds) &&
+               Arrays.equals(this.indicesInFile, other.indicesInFile) &&
+               Arrays.equals(this.filenames, other.filenames) &&
+               (this.chronology == null ? other.chronology == null
+                                        : this.chronology.equals(other.chronology));
+    }
+
+    /**
+     * Collects the timesteps of each file in an aggregation, then sorts and
+     * merges them into a {@link TimestepIndex}.  If two files contain the
+     * same timestep, the one with the lower index in its file is chosen (this
+     * is most likely to be the result of a shorter forecast lead time and
+     * therefore more accurate).  If the indices are also equal, the file that
+     * was added first is chosen.  Instances of this class are not thread-safe.
+     */
+    static final class Builder
+    {
+        private long[] millis = new long[16];
+        private int[] fileIds = new int[16];
+        private int[] indicesInFile = new int[16];
+        private int size = 0;
+        private final List<String> filenames = new ArrayList<String>();
+        private final Map<String, Integer> fileIdsByName = new HashMap<String, Integer>();
+        private Chronology chronology = null;
+
+        /**
+         * Adds the timesteps contained in the given file.
+         * @param filename The file containing the timesteps
+         * @param times The timesteps in the order in which they appear in
+         * the file
+         * @throws NullPointerException if {@code filename} is null
+         */
+        void add(String filename, List<DateTime> times)
+        {
+            if (filename == null) throw new NullPointerException();
+            if (times.isEmpty()) return;
+            Integer fileId = this.fileIdsByName.get(filename);
+            if (fileId == null)
+            {
+                fileId = this.filenames.size();
+                this.filenames.add(filename);
+                this.fileIdsByName.put(filename, fileId);
+            }
+            this.ensureCapacity(this.size + times.size());
+            if (times instanceof DateTimeArrayList)
+            {
+                // Copy the millisecond values without creating DateTimes
+                DateTimeArrayList dtList = (DateTimeArrayList)times;
+                if (this.chronology == null) this.chronology = dtList.getChronology();
+                System.arraycopy(dtList.getMillisArray(), 0, this.millis, this.size, dtList.size());
+                for (int i = 0; i < dtList.size(); i++)
+                {
+                    this.fileIds[this.size + i] = fileId;
+                    this.indicesInFile[this.size + i] = i;
+                }
+                this.size += dtList.size();
+                return;
+            }
+            int indexInFile = 0;
+            for (DateTime dt : times)
+            {
+                if (this.chronology == null) this.chronology = dt.getChronology();
+                this.millis[this.size] = dt.getMillis();
+                this.fileIds[this.size] = fileId;
+                this.indicesInFile[this.size] = indexInFile;
+                this.size++;
+                indexInFile++;
+            }
+        }
+
+        private void ensureCapacity(int capacity)
+        {
+            if (capacity <= this.millis.length) return;
+            int newCapacity = Math.max(capacity, this.millis.length * 2);
+            this.millis = Arrays.copyOf(this.millis, newCapacity);
+            this.fileIds = Arrays.copyOf(this.fileIds, newCapacity);
+            this.indicesInFile = Arrays.copyOf(this.indicesInFile, newCapacity);
+        }
+
+        /**
+         * Creates a TimestepIndex from the timesteps that have been added.
+         */
+        TimestepIndex build()
+        {
+            if (this.size == 0) return EMPTY;
+
+            // Sort the timesteps by time, then by index in file.  The sort is
+            // stable so timesteps that are otherwise equal stay in the order
+            // in which their files were added.
+            int[] order = new int[this.size];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            this.sort(order, new int[this.size], 0, this.size);
+
+            // Remove duplicate times, keeping the first of each
+            int n = 0;
+            for (int i = 0; i < order.length; i++)
+            {
+                if (n == 0 || this.millis[order[i]] != this.millis[order[n - 1]])
+                {
+                    order[n] = order[i];
+                    n++;
+                }
+            }
+
+            long[] sortedMillis = new long[n];
+            int[] sortedFileIds = new int[n];
+            int[] sortedIndicesInFile = new int[n];
+            for (int i = 0; i < n; i++)
+            {
+                sortedMillis[i] = this.millis[order[i]];
+                sortedFileIds[i] = this.fileIds[order[i]];
+                sortedIndicesInFile[i] = this.indicesInFile[order[i]];
+            }
+            return new TimestepIndex(
+                sortedMillis,
+                this.chronology,
+                sortedFileIds,
+                sortedIndicesInFile,
+                this.filenames.toArray(new String[this.filenames.size()])
+            );
+        }
+
+        /**
+         * Sorts the given range of the array of positions with a merge sort.
+         * The timesteps of each file are usually already in order, and files
+         * usually follow one another in time, in which case each merge is
+         * skipped and the sort takes linear time.
+         */
+        private void sort(int[] order, int[] temp, int from, int to)
+        {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            this.sort(order, temp, from, mid);
+            this.sort(order, temp, mid, to);
+            // Skip the merge if the two halves are already in order
+            if (!this.isBefore(order[mid], order[mid - 1])) return;
+            System.arraycopy(order, from, temp, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++)
+            {
+                if (j >= to || (i < mid && !this.isBefore(temp[j], temp[i])))
+                {
+                    order[k] = temp[i++];
+                }
+                else
+                {
+                    order[k] = temp[j++];
+                }
+            }
+        }
+
+        /**
+         * Returns true if the timestep at position {@code a} should come
+         * before the timestep at position {@code b}.
+         */
+        private boolean isBefore(int a, int b)
+        {
+            if (this.millis[a] != this.millis[b]) return this.millis[a] < this.millis[b];
+            return this.indicesInFile[a] < this.indicesInFile[b];
+        }
+    }
+}
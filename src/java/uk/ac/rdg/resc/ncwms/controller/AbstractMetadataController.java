@@ -43,11 +43,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.servlet.ModelAndView;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
 import uk.ac.rdg.resc.edal.util.Range;
-import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.controller.AbstractWmsController.LayerFactory;
 import uk.ac.rdg.resc.ncwms.exceptions.LayerNotDefinedException;
 import uk.ac.rdg.resc.ncwms.exceptions.MetadataException;
+import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -294,7 +295,9 @@ public abstract class AbstractMetadataController
         List<DateTime> timeValues = AbstractWmsController.getTimeValues(dr.getTimeString(), layer);
         DateTime tValue = timeValues.isEmpty() ? null : timeValues.get(0);
         
-        // Now read the data and calculate the minimum and maximum values
+        // Now read the data and calculate the minimum and maximum values.
+        // For scalar layers we can usually use the statistics that were
+        // gathered as the data were read.
         List<Float> magnitudes;
         if (layer instanceof ScalarLayer)
         {
@@ -312,10 +315,50 @@ public abstract class AbstractMetadataController
             throw new IllegalStateException("Invalid Layer type");
         }
 
-        Range<Float> valueRange = Ranges.findMinMax(magnitudes);
+        DataStatistics stats = DataStatistics.forList(magnitudes);
+        Range<Float> valueRange;
+        // The optional PERCENTILES parameter (e.g. "2,98") clips outliers from the range
+        String percentiles = params.getString("percentiles");
+        if (percentiles == null || percentiles.trim().equals(""))
+        {
+            valueRange = stats.getValueRange();
+        }
+        else
+        {
+            String[] els = percentiles.split(",");
+            if (els.length != 2)
+            {
+                throw new WmsException("PERCENTILES must be of the form low,high, not "
+                    + percentiles);
+            }
+            double low = parsePercentile(els[0]);
+            double high = parsePercentile(els[1]);
+            if (low > high)
+            {
+                throw new WmsException("Invalid PERCENTILES " + percentiles
+                    + ": the lower percentile must not exceed the upper");
+            }
+            valueRange = stats.getPercentileRange(low, high);
+        }
         return new ModelAndView("showMinMax", "valueRange", valueRange);
     }
 
+    /** Parses a single value from the PERCENTILES parameter */
+    private static double parsePercentile(String str) throws WmsException
+    {
+        try
+        {
+            double percentile = Double.parseDouble(str.trim());
+            if (percentile >= 0.0 && percentile <= 100.0) return percentile;
+        }
+        catch (NumberFormatException nfe)
+        {
+            // Fall through to the exception below
+        }
+        throw new WmsException("Invalid percentile " + str.trim()
+            + ": must be a number between 0 and 100");
+    }
+
     /**
      * Calculates the TIME strings necessary to generate animations for the
      * given layer at hourly, daily, weekly, monthly and yearly resolution.
@@ -29,6 +29,7 @@ package uk.ac.rdg.resc.ncwms.controller;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -39,15 +40,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -79,10 +79,16 @@ import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
 import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
 import uk.ac.rdg.resc.edal.geometry.impl.HorizontalPositionImpl;
 import uk.ac.rdg.resc.edal.geometry.impl.LineString;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.edal.util.Utils;
@@ -96,9 +102,13 @@ import uk.ac.rdg.resc.ncwms.exceptions.Wms1_1_1Exception;
 import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
 import uk.ac.rdg.resc.ncwms.graphics.BilinearInterpolator;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.ColourScale;
 import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
 import uk.ac.rdg.resc.ncwms.graphics.ImageProducer;
+import uk.ac.rdg.resc.ncwms.graphics.IndexedPngWriter;
 import uk.ac.rdg.resc.ncwms.graphics.KmzFormat;
+import uk.ac.rdg.resc.ncwms.graphics.PngFormat;
+import uk.ac.rdg.resc.ncwms.graphics.RawDataFormat;
 import uk.ac.rdg.resc.ncwms.servlet.ServletOutputStreamWrapper;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogger;
@@ -138,6 +148,10 @@ public abstract class AbstractWmsController extends AbstractController {
     private static final int LAYER_LIMIT = 1;
     private static final String FEATURE_INFO_XML_FORMAT = "text/xml";
     private static final String FEATURE_INFO_PNG_FORMAT = "image/png";
+    /** Indexed PNG images with at least this many pixels are written in bands */
+    private static final int BANDED_IMAGE_MIN_PIXELS = 1024 * 1024;
+    /** Approximate number of pixels in each band of a banded image */
+    private static final int BANDED_IMAGE_BAND_PIXELS = 256 * 1024;
 
     // These objects will be injected by Spring
     protected ServerConfig serverConfig;
@@ -357,7 +371,9 @@ public abstract class AbstractWmsController extends AbstractController {
             "EPSG:32761" // South Polar stereographic
         };
         models.put("supportedCrsCodes", supportedCrsCodes); //*/HorizontalGrid.SUPPORTED_CRS_CODES);
-        models.put("supportedImageFormats", ImageFormat.getSupportedMimeTypes());
+        Set<String> supportedMapFormats = new LinkedHashSet<String>(ImageFormat.getSupportedMimeTypes());
+        supportedMapFormats.addAll(RawDataFormat.getSupportedMimeTypes());
+        models.put("supportedImageFormats", supportedMapFormats);
         models.put("layerLimit", LAYER_LIMIT);
         models.put("featureInfoFormats", new String[]{FEATURE_INFO_PNG_FORMAT,
                     FEATURE_INFO_XML_FORMAT});
@@ -413,6 +429,23 @@ public abstract class AbstractWmsController extends AbstractController {
     protected ModelAndView getMap(RequestParams params, LayerFactory layerFactory,
             HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
             throws WmsException, Exception
+    {
+        return this.getMap(params, layerFactory, null, httpServletResponse, usageLogEntry);
+    }
+
+    /**
+     * Executes the GetMap operation as {@link #getMap(RequestParams, LayerFactory,
+     * HttpServletResponse, UsageLogEntry) above}.  If the subclass can
+     * {@link #getImageCacheKey identify the response uniquely}, this also sends
+     * ETag and Last-Modified headers, answers conditional requests with
+     * "304 Not Modified" and uses any cache of encoded images.
+     * @param httpServletRequest The request from the client, used to read the
+     * headers of conditional requests.  If this is null, conditional requests
+     * are not supported.
+     */
+    protected ModelAndView getMap(RequestParams params, LayerFactory layerFactory,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            UsageLogEntry usageLogEntry) throws WmsException, Exception
     {
         // Parse the URL parameters
         GetMapRequest getMapRequest = new GetMapRequest(params);
@@ -422,8 +455,10 @@ public abstract class AbstractWmsController extends AbstractController {
 
         // Get the ImageFormat object corresponding with the requested MIME type
         String mimeType = styleRequest.getImageFormat();
+        // Raw data formats are not images and are handled separately
+        RawDataFormat rawDataFormat = RawDataFormat.get(mimeType);
         // This throws an InvalidFormatException if the MIME type is not supported
-        ImageFormat imageFormat = ImageFormat.get(mimeType);
+        ImageFormat imageFormat = rawDataFormat == null ? ImageFormat.get(mimeType) : null;
 
         GetMapDataRequest dr = getMapRequest.getDataRequest();
 
@@ -441,6 +476,14 @@ public abstract class AbstractWmsController extends AbstractController {
 
         // Get the grid onto which the data will be projected
         RegularGrid grid = WmsUtils.getImageGrid(dr);
+
+        // Raw data formats are written directly from the data grids, without
+        // creating or encoding any images
+        if (rawDataFormat != null) {
+            this.writeRawData(layer, dr, grid, rawDataFormat, httpServletRequest,
+                    httpServletResponse, usageLogEntry);
+            return null;
+        }
         
         CoordinateReferenceSystem sourcecs = WmsUtils.getCrs(dr.getCrsCode());
         CoordinateReferenceSystem wgs84cs = WmsUtils.getCrs("CRS:84");
@@ -552,6 +595,47 @@ public abstract class AbstractWmsController extends AbstractController {
         // Use a single null time value if the layer has no time axis
         if (timeValues.isEmpty()) timeValues = Arrays.asList((DateTime)null);
         boolean googleEarth = imageFormat instanceof KmzFormat;
+
+        // See if the response can be identified uniquely, in which case we can
+        // send validators to the client and perhaps avoid rendering altogether
+        String styleKey = getStyleKey(layer, imageFormat, style, palette,
+                scaleRange, logScale, styleRequest, dr.getElevationString());
+        ImageCacheKey imageCacheKey = this.getImageCacheKey(layer, timeValues,
+                zValue, grid, styleKey);
+        if (imageCacheKey != null) {
+            httpServletResponse.setHeader("ETag", imageCacheKey.getETag());
+            if (imageCacheKey.getLastModified() > 0) {
+                httpServletResponse.setDateHeader("Last-Modified", imageCacheKey.getLastModified());
+            }
+            if (isNotModified(httpServletRequest, imageCacheKey)) {
+                usageLogEntry.setUsedCache(true);
+                httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+            byte[] image = this.getCachedImage(imageCacheKey);
+            if (image != null) {
+                usageLogEntry.setUsedCache(true);
+                setImageHeaders(httpServletResponse, mimeType, layer, googleEarth);
+                httpServletResponse.setContentLength(image.length);
+                httpServletResponse.getOutputStream().write(image);
+                return null;
+            }
+        }
+
+        // Large single-frame boxfill images in indexed PNG format are read,
+        // coloured and encoded in bands of rows, so that memory use is bounded
+        // by the size of a band rather than the size of the image.  We don't
+        // cache these images.
+        if (timeValues.size() == 1 && layer instanceof ScalarLayer
+                && imageProducer.canRenderBands()
+                && imageFormat instanceof PngFormat && ((PngFormat)imageFormat).isIndexed()
+                && (long)dr.getWidth() * dr.getHeight() >= BANDED_IMAGE_MIN_PIXELS) {
+            usageLogEntry.setTimeToExtractDataMs(writeImageInBands((ScalarLayer)layer,
+                    timeValues.get(0), zValue, grid, imageProducer, (PngFormat)imageFormat,
+                    httpServletResponse, mimeType, googleEarth));
+            return null;
+        }
+
         for (DateTime timeValue : timeValues) {
             // Only add a label if this is part of an animation
             String tValueStr = "";
@@ -586,6 +670,191 @@ public abstract class AbstractWmsController extends AbstractController {
 
         // Write the image to the client.
         // First we set the HTTP headers
+        setImageHeaders(httpServletResponse, mimeType, layer, googleEarth);
+        // Render the images and write to the output stream
+        OutputStream out = new ServletOutputStreamWrapper(httpServletResponse.getOutputStream());
+        // We don't cache animations: they are rarely repeated and can be large
+        if (imageCacheKey != null && timeValues.size() == 1 && this.isImageCachingEnabled()) {
+            // Encode into memory so that we can keep a copy of the bytes
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            imageFormat.writeImage(imageProducer.getRenderedFrames(),
+                    buf, layer, tValueStrings,
+                    dr.getElevationString(), grid.getExtent(), legend);
+            byte[] image = buf.toByteArray();
+            this.cacheImage(imageCacheKey, image);
+            httpServletResponse.setContentLength(image.length);
+            out.write(image);
+        } else {
+            imageFormat.writeImage(imageProducer.getRenderedFrames(),
+                    out, layer, tValueStrings,
+                    dr.getElevationString(), grid.getExtent(), legend);
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the data for each requested time value and writes them in the
+     * given {@link RawDataFormat}.  Data are read using {@link #readDataGrid
+     * readDataGrid()} and so may come from a cache.  The styling parameters
+     * of the request are ignored, so responses are identified only by the
+     * data and the format.  The response is compressed if the client accepts
+     * the deflate content coding, in which case the ETag is weakened because
+     * the bytes differ from the uncompressed response.
+     */
+    private void writeRawData(Layer layer, GetMapDataRequest dr, RegularGrid grid,
+            RawDataFormat format, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
+            throws Exception
+    {
+        double zValue = getElevationValue(dr.getElevationString(), layer);
+        List<DateTime> timeValues = getTimeValues(dr.getTimeString(), layer);
+        usageLogEntry.setNumTimeSteps(timeValues.size());
+        // Use a single null time value if the layer has no time axis
+        if (timeValues.isEmpty()) timeValues = Arrays.asList((DateTime)null);
+
+        ImageCacheKey imageCacheKey = this.getImageCacheKey(layer, timeValues,
+                zValue, grid, format.getMimeType());
+        if (imageCacheKey != null) {
+            httpServletResponse.setHeader("ETag", imageCacheKey.getETag());
+            if (imageCacheKey.getLastModified() > 0) {
+                httpServletResponse.setDateHeader("Last-Modified", imageCacheKey.getLastModified());
+            }
+            if (isNotModified(httpServletRequest, imageCacheKey)) {
+                usageLogEntry.setUsedCache(true);
+                httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        long beforeExtractData = System.currentTimeMillis();
+        List<List<Float>> grids = new ArrayList<List<Float>>();
+        int numBands = 1;
+        for (DateTime timeValue : timeValues) {
+            if (layer instanceof ScalarLayer) {
+                grids.add(this.readDataGrid((ScalarLayer)layer, timeValue, zValue,
+                        grid, usageLogEntry, false));
+            } else if (layer instanceof VectorLayer) {
+                List<Float>[] xyVals = ((VectorLayer)layer).readXYComponents(timeValue, zValue, grid);
+                grids.add(xyVals[0]);
+                grids.add(xyVals[1]);
+                numBands = 2;
+            } else {
+                throw new IllegalStateException("Unrecognized layer type");
+            }
+        }
+        usageLogEntry.setTimeToExtractDataMs(System.currentTimeMillis() - beforeExtractData);
+
+        setImageHeaders(httpServletResponse, format.getMimeType(), layer, false);
+        httpServletResponse.setHeader("Vary", "Accept-Encoding");
+        OutputStream out = new ServletOutputStreamWrapper(httpServletResponse.getOutputStream());
+        String acceptEncoding = httpServletRequest == null ? null
+                : httpServletRequest.getHeader("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("deflate")) {
+            httpServletResponse.setHeader("Content-Encoding", "deflate");
+            if (imageCacheKey != null) {
+                httpServletResponse.setHeader("ETag", "W/" + imageCacheKey.getETag());
+            }
+            Deflater deflater = new Deflater(PngFormat.getCompressionLevel());
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, 8192);
+                format.writeData(grids, grid.getXAxis().getSize(), grid.getYAxis().getSize(),
+                        numBands, deflaterOut);
+                deflaterOut.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            format.writeData(grids, grid.getXAxis().getSize(), grid.getYAxis().getSize(),
+                    numBands, out);
+        }
+    }
+
+    /**
+     * <p>Reads, colours and encodes a single-frame image in horizontal bands,
+     * starting at the top of the image, writing the encoded rows to the
+     * response as each band is completed.  The data for each band are read
+     * directly from the layer rather than through
+     * {@link #readDataGrid readDataGrid()}, so that the bands (which are
+     * fragments of a single large image, unlikely to be requested again) do
+     * not displace useful tiles from the tile cache.</p>
+     *
+     * <p>The first band is read and coloured before anything is written, so
+     * that errors in reading the data are reported to the client as a normal
+     * exception report.  Once the first rows have been written the response
+     * has been committed with a status of 200, so if a later band fails the
+     * exception is propagated (and a warning logged) but the client receives
+     * a PNG that is truncated before its IEND chunk.  Decoders will reject
+     * such an image as incomplete.</p>
+     *
+     * @return the time spent reading data, in milliseconds
+     */
+    static long writeImageInBands(ScalarLayer layer, DateTime timeValue,
+            double zValue, RegularGrid grid, ImageProducer imageProducer,
+            PngFormat pngFormat, HttpServletResponse httpServletResponse,
+            String mimeType, boolean googleEarth)
+            throws InvalidDimensionValueException, IOException
+    {
+        int width = grid.getXAxis().getSize();
+        int height = grid.getYAxis().getSize();
+        int rowsPerBand = Math.max(1, BANDED_IMAGE_BAND_PIXELS / width);
+        BoundingBox bbox = grid.getExtent();
+        double ySpacing = (bbox.getMaxY() - bbox.getMinY()) / height;
+        long timeToExtractData = 0;
+
+        IndexedPngWriter writer = null;
+        boolean finished = false;
+        try {
+            byte[] pixels = null;
+            for (int firstRow = 0; firstRow < height; firstRow += rowsPerBand) {
+                int numRows = Math.min(rowsPerBand, height - firstRow);
+                // The index along the y axis of the lowest row in this band: the
+                // y axis increases upwards, the image rows downwards
+                int firstYIndex = height - firstRow - numRows;
+                RegularGrid bandGrid = new RegularGridImpl(
+                        bbox.getMinX(),
+                        bbox.getMinY() + firstYIndex * ySpacing,
+                        bbox.getMaxX(),
+                        bbox.getMinY() + (firstYIndex + numRows) * ySpacing,
+                        grid.getCoordinateReferenceSystem(),
+                        width, numRows);
+                long beforeExtractData = System.currentTimeMillis();
+                List<Float> data = layer.readHorizontalPoints(timeValue, zValue, bandGrid);
+                timeToExtractData += System.currentTimeMillis() - beforeExtractData;
+
+                if (pixels == null || pixels.length != numRows * width) {
+                    pixels = new byte[numRows * width];
+                }
+                imageProducer.renderBand(data, numRows, pixels);
+                if (writer == null) {
+                    // The first band is ready: only now do we commit the response
+                    setImageHeaders(httpServletResponse, mimeType, layer, googleEarth);
+                    OutputStream out = new ServletOutputStreamWrapper(httpServletResponse.getOutputStream());
+                    writer = pngFormat.startIndexedImage(out, width, height,
+                            imageProducer.getColorModel());
+                }
+                writer.writeRows(pixels, 0, numRows);
+            }
+            writer.finish();
+            finished = true;
+        } finally {
+            if (writer != null) {
+                writer.abort();
+                if (!finished) {
+                    log.warn("Banded image of layer {} was truncated after the response was committed",
+                            layer.getName());
+                }
+            }
+        }
+        return timeToExtractData;
+    }
+
+    /**
+     * Sets the status and content headers for a successful GetMap response
+     */
+    private static void setImageHeaders(HttpServletResponse httpServletResponse,
+            String mimeType, Layer layer, boolean googleEarth)
+    {
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
         httpServletResponse.setContentType(mimeType);
         // If this is a KMZ file give it a sensible filename
@@ -593,15 +862,128 @@ public abstract class AbstractWmsController extends AbstractController {
             httpServletResponse.setHeader("Content-Disposition", "inline; filename=" +
                     layer.getDataset().getId() + "_" + layer.getId() + ".kmz");
         }
-        // Render the images and write to the output stream
-        OutputStream out = new ServletOutputStreamWrapper(httpServletResponse.getOutputStream());
-        imageFormat.writeImage(imageProducer.getRenderedFrames(),
-                out, layer, tValueStrings,
-                dr.getElevationString(), grid.getExtent(), legend);
+    }
+
+    /**
+     * Creates a string that captures every parameter (other than the data
+     * themselves) that affects the bytes of an encoded GetMap response.
+     */
+    private static String getStyleKey(Layer layer, ImageFormat imageFormat,
+            ImageProducer.Style style, ColorPalette palette, Range<Float> scaleRange,
+            boolean logScale, GetMapStyleRequest styleRequest, String elevationString)
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append(imageFormat.getMimeType()).append(',');
+        buf.append(style).append(',');
+        buf.append(palette.getName()).append(',');
+        if (scaleRange.isEmpty()) {
+            buf.append("auto");
+        } else {
+            buf.append(scaleRange.getMinimum()).append(':').append(scaleRange.getMaximum());
+        }
+        buf.append(',').append(logScale);
+        buf.append(',').append(styleRequest.isTransparent());
+        buf.append(',').append(styleRequest.getOpacity());
+        buf.append(',').append(styleRequest.getNumColourBands());
+        buf.append(',').append(styleRequest.getNumContours());
+        buf.append(',').append(styleRequest.getVectorScaleFactor());
+        buf.append(',').append(colourToString(styleRequest.getBackgroundColour()));
+        buf.append(',').append(colourToString(styleRequest.getLowOutOfRangeColour()));
+        buf.append(',').append(colourToString(styleRequest.getHighOutOfRangeColour()));
+        // These are written into the response by some formats (e.g. KMZ)
+        buf.append(',').append(elevationString);
+        if (imageFormat.requiresLegend()) {
+            buf.append(',').append(layer.getTitle()).append(',').append(layer.getUnits());
+        }
+        return buf.toString();
+    }
+
+    private static String colourToString(Color colour)
+    {
+        return colour == null ? "null" : Integer.toHexString(colour.getRGB());
+    }
+
+    /**
+     * Returns true if the given request is a conditional request that can be
+     * answered with "304 Not Modified".  As required by HTTP, If-None-Match
+     * takes precedence over If-Modified-Since.
+     */
+    static boolean isNotModified(HttpServletRequest httpServletRequest, ImageCacheKey key)
+    {
+        if (httpServletRequest == null) return false;
+        String ifNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison is sufficient for GET requests
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(key.getETag())) return true;
+            }
+            return false;
+        }
+        if (key.getLastModified() <= 0) return false;
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = httpServletRequest.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException iae) {
+            // The header could not be parsed as a date: ignore it
+            return false;
+        }
+        // HTTP dates have a resolution of one second
+        return ifModifiedSince >= 0 && key.getLastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * <p>Returns a key that uniquely identifies the GetMap response for the
+     * given data and style, or null if this is not possible.  If a key is
+     * returned, the ETag and Last-Modified headers are sent to the client,
+     * conditional requests are honoured and the response may be cached
+     * (see {@link #getCachedImage getCachedImage()}).</p>
+     * <p>The key must change whenever the underlying data change, so
+     * subclasses should only return a key if they know the versions of the
+     * files or datasets behind the image.  This default implementation returns
+     * null.</p>
+     * @param layer The layer from which the image will be created
+     * @param timeValues The time values for each frame of the image (this
+     * will contain a single null value if the layer has no time axis)
+     * @param zValue The elevation value of the image
+     * @param grid The grid onto which the data will be projected
+     * @param styleKey String that captures all the styling parameters of the
+     * request, including the output format
+     */
+    protected ImageCacheKey getImageCacheKey(Layer layer, List<DateTime> timeValues,
+            double zValue, RegularGrid grid, String styleKey) throws WmsException
+    {
+        return null;
+    }
 
+    /**
+     * Returns true if encoded images are to be stored using
+     * {@link #cacheImage cacheImage()}.  This default implementation
+     * returns false.
+     */
+    protected boolean isImageCachingEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the encoded image with the given key, or null if it is not
+     * held in a cache.  This default implementation always returns null.
+     */
+    protected byte[] getCachedImage(ImageCacheKey key)
+    {
         return null;
     }
 
+    /**
+     * Stores an encoded image for later retrieval through
+     * {@link #getCachedImage getCachedImage()}.  This is only called if
+     * {@link #isImageCachingEnabled()} returns true.  This default implementation
+     * does nothing.
+     */
+    protected void cacheImage(ImageCacheKey key, byte[] image) {}
+
     /**
      * Utility method for getting the layer name (unique within a Capabilities
      * document) from the given GetMapRequest, checking that there is only one
@@ -759,7 +1141,7 @@ public abstract class AbstractWmsController extends AbstractController {
     protected ModelAndView getLegendGraphic(RequestParams params,
             LayerFactory layerFactory, HttpServletResponse httpServletResponse)
             throws Exception {
-        BufferedImage legend;
+        byte[] legend;
 
         // numColourBands defaults to ColorPalette.MAX_NUM_COLOURS if not set
         int numColourBands = GetMapStyleRequest.getNumColourBands(params);
@@ -775,7 +1157,7 @@ public abstract class AbstractWmsController extends AbstractController {
             int height = params.getPositiveInt("height", 200);
             // Find the requested colour palette, or use the default if not set
             ColorPalette palette = ColorPalette.get(paletteName);
-            legend = palette.createColorBar(width, height, numColourBands);
+            legend = palette.getColorBarPng(width, height, numColourBands);
         } else {
             // We're creating a legend with supporting text so we need to know
             // the colour scale range and the layer in question
@@ -807,12 +1189,13 @@ public abstract class AbstractWmsController extends AbstractController {
             Color backgroundColor = params.getColor("bgcolor", Color.black);
 
             // Now create the legend image
-            legend = palette.createLegend(numColourBands, layer.getTitle(), layer.getUnits(),
+            legend = palette.getLegendPng(numColourBands, layer.getTitle(), layer.getUnits(),
                                           logarithmic, colorScaleRange,
                                           transparent, backgroundColor);
         }
         httpServletResponse.setContentType("image/png");
-        ImageIO.write(legend, "png", httpServletResponse.getOutputStream());
+        httpServletResponse.setContentLength(legend.length);
+        httpServletResponse.getOutputStream().write(legend);
 
         return null;
     }
@@ -1421,109 +1804,114 @@ public abstract class AbstractWmsController extends AbstractController {
         if(!smoothed) {
             return layer.readHorizontalPoints(dateTime, elevation, imageGrid);
         } else {
-            int width = imageGrid.getXAxis().getSize();
-            int height = imageGrid.getYAxis().getSize();
-            
-            RectilinearGrid dataGrid;
-            if(!(layer.getHorizontalGrid() instanceof RectilinearGrid)) {
-                return layer.readHorizontalPoints(dateTime, elevation, imageGrid);
-            } else {
-                dataGrid = (RectilinearGrid) layer.getHorizontalGrid();
-            }
-            PixelMap pixelMap = new PixelMap(dataGrid, imageGrid);
-            /*
-             * Check whether it is worth smoothing this data
-             */
-            int imageSize = width * height;
-            if(pixelMap.getNumUniqueIJPairs() >= imageSize || pixelMap.getNumUniqueIJPairs() == 0) {
-                /*
-                 * We don't need to smooth the data
-                 */
-                return layer.readHorizontalPoints(dateTime, elevation, imageGrid);
-            }
-            
-            ReferenceableAxis xAxis = dataGrid.getXAxis();
-            ReferenceableAxis yAxis = dataGrid.getYAxis();
-            SortedSet<Double> xCoords = new TreeSet<Double>();
-            SortedSet<Double> yCoords = new TreeSet<Double>();
-            double minX = imageGrid.getXAxis().getCoordinateValue(0);
-           
-            /*
-             * Loop through all points on the data grid which are needed, and add
-             * them to sorted sets
-             */
-            Iterator<PixelMapEntry> iterator = pixelMap.iterator();
-            while(iterator.hasNext()) {
-                PixelMapEntry pme = iterator.next();
-                xCoords.add(Utils.getNextEquivalentLongitude(minX,
-                        xAxis.getCoordinateValue(pme.getSourceGridIIndex())));
-                yCoords.add(yAxis.getCoordinateValue(pme.getSourceGridJIndex()));
-            }
-            Float[][] data = new Float[xCoords.size()][yCoords.size()];
-            final CoordinateReferenceSystem crs = layer.getHorizontalGrid().getCoordinateReferenceSystem();
-            final List<HorizontalPosition> pointsToRead = new ArrayList<HorizontalPosition>();
-            
-            /*
-             * Loop through required coords and add to a list to read
-             */
-            for(Double x : xCoords) {
-                for(Double y : yCoords) {
-                    pointsToRead.add(new HorizontalPositionImpl(x, y, crs));
-                }               
-            }
-            /*
-             * Use the list to read all required points at once
-             */
-            List<Float> points;
-            try {
-                points = layer.readHorizontalPoints(dateTime, elevation, new Domain<HorizontalPosition>() {
-                    @Override
-                    public CoordinateReferenceSystem getCoordinateReferenceSystem() {
-                        return crs;
-                    }
-                    @Override
-                    public List<HorizontalPosition> getDomainObjects() {
-                        return pointsToRead;
-                    }
-                    @Override
-                    public long size() {
-                        return pointsToRead.size();
-                    }
-                });
-            } catch (InvalidDimensionValueException e) {
-                e.printStackTrace();
-                throw new IllegalArgumentException("Problem reading data");
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new IllegalArgumentException("Problem reading data");
-            }
+            return this.readSmoothedDataGrid(layer, dateTime, elevation, imageGrid);
+        }
+    }
+
+    /**
+     * <p>Reads data for the given image grid, bilinearly interpolating between
+     * the points of the source grid.  This is only worthwhile if the source
+     * grid is rectilinear and the image oversamples it; otherwise this simply
+     * reads the nearest data point to each pixel.</p>
+     * <p>The source points that are needed are read in one operation as a
+     * rectilinear sub-grid, and the interpolation weights are calculated once
+     * for each column and row of the image, so that no boxed values or
+     * position objects are created for each pixel.</p>
+     * @return a List of data values, one for each point in the {@code imageGrid},
+     * in the same order.
+     */
+    protected List<Float> readSmoothedDataGrid(ScalarLayer layer, DateTime dateTime,
+        double elevation, RegularGrid imageGrid)
+        throws InvalidDimensionValueException, IOException
+    {
+        int width = imageGrid.getXAxis().getSize();
+        int height = imageGrid.getYAxis().getSize();
+
+        if (!(layer.getHorizontalGrid() instanceof RectilinearGrid)) {
+            return layer.readHorizontalPoints(dateTime, elevation, imageGrid);
+        }
+        RectilinearGrid dataGrid = (RectilinearGrid) layer.getHorizontalGrid();
+        PixelMap pixelMap = new PixelMap(dataGrid, imageGrid);
+        /*
+         * Check whether it is worth smoothing this data
+         */
+        int numUniqueIJPairs = pixelMap.getNumUniqueIJPairs();
+        if (numUniqueIJPairs >= width * height || numUniqueIJPairs == 0) {
             /*
-             * Now populate the data array
+             * We don't need to smooth the data
              */
-            int index = 0;
-            for (int i = 0; i < xCoords.size(); i++) {
-                for (int j = 0; j < yCoords.size(); j++) {
-                    data[i][j] = points.get(index++);
-                }
+            return layer.readHorizontalPoints(dateTime, elevation, imageGrid);
+        }
+
+        /*
+         * Find the rows and columns of the source grid that are needed
+         */
+        ReferenceableAxis xAxis = dataGrid.getXAxis();
+        ReferenceableAxis yAxis = dataGrid.getYAxis();
+        boolean[] iNeeded = new boolean[xAxis.getSize()];
+        boolean[] jNeeded = new boolean[yAxis.getSize()];
+        for (PixelMapEntry pme : pixelMap) {
+            iNeeded[pme.getSourceGridIIndex()] = true;
+            jNeeded[pme.getSourceGridJIndex()] = true;
+        }
+        double minX = imageGrid.getXAxis().getCoordinateValue(0);
+        double[] xCoords = new double[xAxis.getSize()];
+        int nx = 0;
+        for (int i = 0; i < iNeeded.length; i++) {
+            if (iNeeded[i]) {
+                xCoords[nx++] = Utils.getNextEquivalentLongitude(minX, xAxis.getCoordinateValue(i));
             }
-           
-            /*
-             * All data reading is done at this point. We now interpolate onto each
-             * image point, using a BilinearInterpolator
-             */
-            BilinearInterpolator interpolator = new BilinearInterpolator(xCoords, yCoords, data);
-               
-            List<Float> retData = new ArrayList<Float>();
-           
-            for (int j = 0; j < height; j++) {
-                double y = imageGrid.getYAxis().getCoordinateValue(j);
-                for (int i = 0; i < width; i++) {
-                    double x = imageGrid.getXAxis().getCoordinateValue(i);
-                    retData.add(interpolator.getValue(x, y));
-                }
+        }
+        double[] yCoords = new double[yAxis.getSize()];
+        int ny = 0;
+        for (int j = 0; j < jNeeded.length; j++) {
+            if (jNeeded[j]) yCoords[ny++] = yAxis.getCoordinateValue(j);
+        }
+        xCoords = getSortedUniqueValues(xCoords, nx);
+        yCoords = getSortedUniqueValues(yCoords, ny);
+
+        /*
+         * Read the sub-grid of source points in one operation.  The values
+         * are returned with the x index varying fastest.
+         */
+        RectilinearGrid subGrid = new RectilinearGridImpl(
+            new ReferenceableAxisImpl(xAxis.getName(), xCoords, false),
+            new ReferenceableAxisImpl(yAxis.getName(), yCoords, false),
+            dataGrid.getCoordinateReferenceSystem());
+        float[] data = ColourScale.toFloatArray(
+            layer.readHorizontalPoints(dateTime, elevation, subGrid));
+
+        /*
+         * Interpolate onto each image point
+         */
+        double[] xOut = new double[width];
+        for (int i = 0; i < width; i++) {
+            xOut[i] = imageGrid.getXAxis().getCoordinateValue(i);
+        }
+        double[] yOut = new double[height];
+        for (int j = 0; j < height; j++) {
+            yOut[j] = imageGrid.getYAxis().getCoordinateValue(j);
+        }
+        DataStatistics stats = DataStatistics.forSampleSize(width * height);
+        float[] values = BilinearInterpolator.interpolate(xCoords, yCoords, data,
+            xOut, yOut, stats);
+        return new FloatArrayList(values, stats);
+    }
+
+    /**
+     * Returns the first {@code n} values of the given array, sorted into
+     * ascending order with duplicates removed.
+     */
+    private static double[] getSortedUniqueValues(double[] values, int n)
+    {
+        Arrays.sort(values, 0, n);
+        int numUnique = 0;
+        for (int k = 0; k < n; k++) {
+            if (numUnique == 0 || values[k] != values[numUnique - 1]) {
+                values[numUnique++] = values[k];
             }
-            return retData;
         }
+        return Arrays.copyOf(values, numUnique);
     }
 
     /**
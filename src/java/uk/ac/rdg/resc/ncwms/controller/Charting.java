@@ -77,6 +77,7 @@ import uk.ac.rdg.resc.edal.geometry.impl.LineString;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Utils;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.ColourScale;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
@@ -728,6 +729,14 @@ public class Charting
     {
         final IndexColorModel cm = colorPalette.getColorModel(numColourBands, 100,
                 Color.white, Color.black, Color.black, true);
+        final ColourScale colourScale = new ColourScale(colourScaleRange,
+                numColourBands, logarithmic);
+        // Each colour in the colour model, so we don't create a new Color
+        // object for each data point
+        final Color[] colours = new Color[cm.getMapSize()];
+        for (int i = 0; i < colours.length; i++) {
+            colours[i] = new Color(cm.getRGB(i));
+        }
 
         return new PaintScale()
         {
@@ -743,50 +752,7 @@ public class Charting
 
             @Override
             public Color getPaint(double value) {
-                // TODO: replicate/factor out code in ImageProducer.java
-                int index = this.getColourIndex(value);
-                return new Color(cm.getRGB(index));
-            }
-
-            /**
-             * @return the colour index that corresponds to the given value
-             * @todo This is adapted from ImageProducer.
-             */
-            private int getColourIndex(double value)
-            {
-                if (Double.isNaN(value)) {
-                    return numColourBands; // represents a background pixel
-                } else if (value < this.getLowerBound()) {
-                    /*
-                     * represents a low out-of-range pixel
-                     */
-                    return numColourBands + 1; 
-                } else if (value > this.getUpperBound()) {
-                    /*
-                     * represents a high out-of-range pixel
-                     */
-                    return numColourBands + 2; 
-                } else {
-                    double min = logarithmic ? Math.log(this.getLowerBound()) : this
-                            .getLowerBound();
-                    double max = logarithmic ? Math.log(this.getUpperBound()) : this
-                            .getUpperBound();
-                    double val = logarithmic ? Math.log(value) : value;
-                    double frac = (val - min) / (max - min);
-                    // Compute and return the index of the corresponding colour
-                    int index = (int) (frac * numColourBands);
-                    // For values very close to the maximum value in the range,
-                    // this
-                    // index might turn out to be equal to this.numColourBands
-                    // due to
-                    // rounding error. In this case we subtract one from the
-                    // index to
-                    // ensure that such pixels are not displayed as background
-                    // pixels.
-                    if (index == numColourBands)
-                        index--;
-                    return index;
-                }
+                return colours[colourScale.getColourIndex((float) value)];
             }
         };
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Key that identifies a fully-rendered and encoded GetMap response.  The key
+ * combines a string that identifies the data behind the image (including the
+ * versions of the underlying files or datasets) with a string that captures
+ * every styling parameter that affects the encoded bytes.  Two requests with
+ * equal keys will therefore produce identical responses.</p>
+ *
+ * <p>The key also provides the validators ({@link #getETag() ETag} and
+ * {@link #getLastModified() last-modified time}) that are sent to clients
+ * so that they can make conditional requests.  ImageCacheKeys are immutable.</p>
+ *
+ * @author Jon Blower
+ * @see AbstractWmsController#getImageCacheKey
+ */
+public final class ImageCacheKey implements Serializable
+{
+    private final String dataKey;
+    private final String styleKey;
+    private final long lastModified;
+
+    // Derived from the above: ImageCacheKeys are immutable so we store these
+    private final String eTag;
+    private final int hashCode;
+
+    /**
+     * Creates a new key
+     * @param dataKey String that uniquely identifies the data arrays behind
+     * the image, including version information (e.g. file modification times)
+     * so that the key changes whenever the data change
+     * @param styleKey String that captures all the styling parameters of the
+     * request, including the output format
+     * @param lastModified The time (in milliseconds since the epoch) at which
+     * the data behind the image were last modified
+     */
+    public ImageCacheKey(String dataKey, String styleKey, long lastModified)
+    {
+        if (dataKey == null || styleKey == null) throw new NullPointerException();
+        this.dataKey = dataKey;
+        this.styleKey = styleKey;
+        this.lastModified = lastModified;
+        String str = this.toString();
+        this.hashCode = str.hashCode();
+        this.eTag = "\"" + digest(str) + "\"";
+    }
+
+    /**
+     * Returns the entity tag for the response, including the surrounding
+     * quotes, as it should appear in the ETag header.
+     */
+    public String getETag()
+    {
+        return this.eTag;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) at which the data
+     * behind the image were last modified.
+     */
+    public long getLastModified()
+    {
+        return this.lastModified;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof ImageCacheKey)) return false;
+        ImageCacheKey other = (ImageCacheKey)o;
+        return this.hashCode == other.hashCode &&
+               this.lastModified == other.lastModified &&
+               this.styleKey.equals(other.styleKey) &&
+               this.dataKey.equals(other.dataKey);
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.dataKey + "|" + this.styleKey + "|" + this.lastModified;
+    }
+
+    /** Returns a hexadecimal MD5 digest of the given string */
+    private static String digest(String str)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(str.getBytes("UTF-8"));
+            StringBuilder buf = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+            {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform is required to support MD5
+            throw new AssertionError(nsae);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // Every Java platform is required to support UTF-8
+            throw new AssertionError(uee);
+        }
+    }
+}
@@ -158,6 +158,93 @@ class AnimatedGifEncoder {
             firstFrame = false;
         }
 	
+        /**
+         * Adds a frame whose pixels have already been compressed using
+         * {@link #encodePixels encodePixels()}.  The frame may cover only
+         * part of the image.  All frames are drawn using the global colour
+         * table, which is taken from the first frame.
+         * @param rgbPalette Array of 256*3 bytes representing the colour palette
+         * of 256 colours in RGB order.  Only used for the first frame.
+         * @param encodedPixels The compressed pixel indices of the frame
+         * @param x The position of the left edge of the frame in the image
+         * @param y The position of the top edge of the frame in the image
+         * @param w The width of the frame
+         * @param h The height of the frame
+         * @param transparentIndex Index of transparent colour in the palette, or
+         * -1 if no colour is to be transparent
+         * @param disposal The disposal method for the frame: 1 to leave the
+         * frame in place when drawing the next one, 2 to restore the frame's
+         * area to the background colour.
+         * @throws IOException if the frame could not be written
+         */
+        public void addEncodedFrame(byte[] rgbPalette, byte[] encodedPixels,
+            int x, int y, int w, int h, int transparentIndex, int disposal)
+            throws IOException
+        {
+            if (!started) {
+                    throw new IllegalStateException("AnimatedGifEncoder not started");
+            }
+            if (x < 0 || y < 0 || x + w > this.width || y + h > this.height)
+            {
+                throw new IllegalArgumentException("Frame does not fit in the image");
+            }
+            if (firstFrame) {
+                    if (rgbPalette.length != 256 * 3)
+                    {
+                        throw new IllegalArgumentException("Palette must be 256 * 3 bytes long");
+                    }
+                    this.colorTab = rgbPalette;
+                    this.palSize = 7;
+                    writeLSD(); // logical screen descriptior
+                    writePalette(); // global color table
+                    if (repeat >= 0) {
+                            // use NS app extension to indicate reps
+                            writeNetscapeExt();
+                    }
+            }
+            if (transparentIndex >= 0)
+            {
+                this.transIndex = transparentIndex;
+                this.transparent = new Color(0); // Just set non-null for benefit of writeGraphicCtrlExt()
+            }
+            else
+            {
+                this.transIndex = 0;
+                this.transparent = null;
+            }
+            this.dispose = disposal;
+            writeGraphicCtrlExt(); // write graphic control extension
+            // image descriptor, with no local color table
+            out.write(0x2c); // image separator
+            writeShort(x);
+            writeShort(y);
+            writeShort(w);
+            writeShort(h);
+            out.write(0);
+            out.write(encodedPixels);
+            firstFrame = false;
+        }
+
+        /**
+         * Compresses an array of 8-bit colour indices
+         * for use in {@link #addEncodedFrame addEncodedFrame()}.  This does not
+         * depend on the state of any encoder, so frames may be compressed
+         * in parallel.
+         * @param indexedPixels Array of (width * height) pixel indices
+         */
+        public static byte[] encodePixels(byte[] indexedPixels, int width, int height)
+            throws IOException
+        {
+            if (width * height != indexedPixels.length)
+            {
+                throw new IllegalArgumentException("Image dimensions are " +
+                    "inconsistent with length of array of pixel indices");
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            new LZWEncoder(width, height, indexedPixels, 8).encode(buf);
+            return buf.toByteArray();
+        }
+	
 	/**
 	 * Adds next GIF frame.  The frame is not written immediately, but is
 	 * actually deferred until the next frame is received so that timing
@@ -195,6 +195,17 @@ public class BarbFactory {
   }
 
   public static void renderWindBarbForSpeed(double speed, double angle, int i, int j, String units, float scale, boolean southern_hemisphere, Graphics2D g) {
+    Path2D ret = getWindBarb(getBarbRank(speed, units), angle, scale, southern_hemisphere);
+    // Place the image
+    ret.transform(AffineTransform.getTranslateInstance(i, j));
+    g.draw(ret);
+  }
+
+  /**
+   * Returns the index of the barb that represents the given speed, in 5 knot
+   * steps.
+   */
+  static int getBarbRank(double speed, String units) {
     /* Convert to knots */
     if (units.trim().equalsIgnoreCase("m/s")) {
       speed = speed * 1.94384449;
@@ -211,7 +222,14 @@ public class BarbFactory {
     } else if (rank >= windBarbs.size()) {
       rank = windBarbs.size() - 1;
     }
+    return rank;
+  }
 
+  /**
+   * Returns the outline of the barb with the given rank, rotated and scaled,
+   * with its base at the origin.
+   */
+  static Path2D getWindBarb(int rank, double angle, float scale, boolean southern_hemisphere) {
     Path2D ret = (Path2D) windBarbs.get(rank).clone();
     /* Rotate so the Barb represents 0 from degrees.
      * 
@@ -243,9 +261,7 @@ public class BarbFactory {
     ret.transform(AffineTransform.getRotateInstance(angle));
     // Scale the image
     ret.transform(AffineTransform.getScaleInstance(scale, scale));
-    // Place the image
-    ret.transform(AffineTransform.getTranslateInstance(i, j));
-    g.draw(ret);
+    return ret;
   }
 
   private static Path2D barb_0_4() {
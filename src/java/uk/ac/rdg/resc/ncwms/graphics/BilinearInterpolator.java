@@ -1,7 +1,9 @@
 package uk.ac.rdg.resc.ncwms.graphics;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
 public class BilinearInterpolator {
     private List<Double> xVals;
     private List<Double> yVals;
@@ -66,4 +68,83 @@ public class BilinearInterpolator {
             return null;
         }
     }
+
+    /**
+     * Interpolates a grid of data values onto a grid of target points,
+     * without boxing.  The interpolation weights are calculated once for
+     * each target column and row.  Target points outside the source grid
+     * take the values at the nearest edge of the grid.
+     * @param xVals The x coordinates of the source grid, in ascending order
+     * @param yVals The y coordinates of the source grid, in ascending order
+     * @param data The source data, with the x index varying fastest, NaN
+     * representing missing values
+     * @param xOut The x coordinates of the target grid
+     * @param yOut The y coordinates of the target grid
+     * @param stats If not null, the statistics of the interpolated values
+     * are added to this object
+     * @return The interpolated values, with the x index varying fastest,
+     * NaN representing missing values.  A value is missing if any of the
+     * four surrounding source values is missing.
+     */
+    public static float[] interpolate(double[] xVals, double[] yVals, float[] data,
+            double[] xOut, double[] yOut, DataStatistics stats) {
+        if (data.length != xVals.length * yVals.length) {
+            throw new IllegalArgumentException("Data size must match axis sizes");
+        }
+        int nx = xVals.length;
+        int[] x0 = new int[xOut.length];
+        int[] x1 = new int[xOut.length];
+        double[] xFAlong = new double[xOut.length];
+        getWeights(xVals, xOut, x0, x1, xFAlong);
+        int[] y0 = new int[yOut.length];
+        int[] y1 = new int[yOut.length];
+        double[] yFAlong = new double[yOut.length];
+        getWeights(yVals, yOut, y0, y1, yFAlong);
+
+        float[] result = new float[xOut.length * yOut.length];
+        int index = 0;
+        for (int j = 0; j < yOut.length; j++) {
+            int row0 = y0[j] * nx;
+            int row1 = y1[j] * nx;
+            double fy = yFAlong[j];
+            for (int i = 0; i < xOut.length; i++) {
+                double fx = xFAlong[i];
+                // NaNs propagate through the arithmetic, even with zero weight
+                float val = (float) ((1.0 - fy) * ((1.0 - fx) * data[row0 + x0[i]] + fx * data[row0 + x1[i]])
+                        + fy * ((1.0 - fx) * data[row1 + x0[i]] + fx * data[row1 + x1[i]]));
+                result[index++] = val;
+                if (stats != null && !Float.isNaN(val)) stats.add(val, 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the indices of the source coordinates on either side of each
+     * target coordinate, and the fraction of the distance between them.
+     */
+    private static void getWeights(double[] vals, double[] targets, int[] lower,
+            int[] upper, double[] fAlong) {
+        int last = vals.length - 1;
+        for (int k = 0; k < targets.length; k++) {
+            double t = targets[k];
+            if (!(t > vals[0])) {
+                // Also catches NaN
+                lower[k] = upper[k] = 0;
+            } else if (t >= vals[last]) {
+                lower[k] = upper[k] = last;
+            } else {
+                int pos = Arrays.binarySearch(vals, t);
+                if (pos >= 0) {
+                    lower[k] = upper[k] = pos;
+                } else {
+                    // vals[-pos - 2] < t < vals[-pos - 1]
+                    int below = -pos - 2;
+                    lower[k] = below;
+                    upper[k] = below + 1;
+                    fAlong[k] = (t - vals[below]) / (vals[below + 1] - vals[below]);
+                }
+            }
+        }
+    }
 }
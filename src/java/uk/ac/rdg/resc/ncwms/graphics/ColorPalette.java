@@ -34,16 +34,21 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -115,8 +120,48 @@ public class ColorPalette
         new Color(175,0,0), new Color(158,0,0), new Color(140,0,0)
     });
     
+    /**
+     * Maximum number of colour models that will be cached for each palette.
+     * The styling parameters come from clients so we must limit the size of
+     * the cache, but in practice only a handful of combinations are used.
+     */
+    private static final int MAX_CACHED_COLOR_MODELS = 1000;
+    
+    /** Maximum number of encoded legends and colour bars that will be cached */
+    private static final int MAX_CACHED_LEGENDS = 500;
+
+    /**
+     * Cache of encoded legends and colour bars for all palettes.  Clients
+     * request these frequently, but they depend on only a few parameters,
+     * which (with the palette name) form the key.
+     */
+    private static final ConcurrentMap<List<Object>, byte[]> legendPngs =
+        new ConcurrentHashMap<List<Object>, byte[]>();
+
+    /**
+     * Formats for the numbers on legends: DecimalFormats are expensive to
+     * create but are not thread-safe.
+     */
+    private static final ThreadLocal<DecimalFormat[]> NUMBER_FORMATS = new ThreadLocal<DecimalFormat[]>() {
+        @Override
+        protected DecimalFormat[] initialValue() {
+            return new DecimalFormat[] {
+                new DecimalFormat("0.#####"),
+                new DecimalFormat("0.###E0")
+            };
+        }
+    };
+    
     private final Color[] palette;
     private final String name;
+    
+    // Caches of interpolated palettes (keyed by the number of colour bands)
+    // and colour models.  Both Color arrays and IndexColorModels are never
+    // modified once created, so they can be shared between threads.
+    private final ConcurrentMap<Integer, Color[]> interpolatedPalettes =
+        new ConcurrentHashMap<Integer, Color[]>();
+    private final ConcurrentMap<ColorModelKey, IndexColorModel> colorModels =
+        new ConcurrentHashMap<ColorModelKey, IndexColorModel>();
 
     static
     {
@@ -312,26 +357,122 @@ public class ColorPalette
     private static String format(double d)
     {
         if (d == 0.0) return "0";
+        DecimalFormat[] formats = NUMBER_FORMATS.get();
         if (Math.abs(d) > 1000 || Math.abs(d) < 0.01)
         {
-            return new DecimalFormat("0.###E0").format(d);
+            return formats[1].format(d);
         }
-        return new DecimalFormat("0.#####").format(d);
+        return formats[0].format(d);
+    }
+
+    /**
+     * Returns a colour bar (see {@link #createColorBar createColorBar()}),
+     * encoded as a PNG.  The results are cached: callers must not modify the
+     * returned array.
+     */
+    public byte[] getColorBarPng(int width, int height, int numColorBands)
+        throws IOException
+    {
+        List<Object> key = Arrays.<Object>asList("colorbar", this.name,
+            width, height, numColorBands);
+        byte[] png = legendPngs.get(key);
+        if (png == null)
+        {
+            png = encodePng(this.createColorBar(width, height, numColorBands));
+            cacheLegend(key, png);
+        }
+        return png;
+    }
+
+    /**
+     * Returns a legend (see {@link #createLegend createLegend()}), encoded as
+     * a PNG.  The results are cached, keyed by all the parameters that affect
+     * the image, so callers must not modify the returned array.
+     */
+    public byte[] getLegendPng(int numColorBands, String title, String units,
+        boolean logarithmic, Range<Float> colorScaleRange,
+        boolean transparent, Color backgroundColor) throws IOException
+    {
+        List<Object> key = Arrays.<Object>asList("legend", this.name,
+            numColorBands, title, units, logarithmic, colorScaleRange.getMinimum(),
+            colorScaleRange.getMaximum(), transparent, backgroundColor.getRGB());
+        byte[] png = legendPngs.get(key);
+        if (png == null)
+        {
+            png = encodePng(this.createLegend(numColorBands, title, units,
+                logarithmic, colorScaleRange, transparent, backgroundColor));
+            cacheLegend(key, png);
+        }
+        return png;
+    }
+
+    private static void cacheLegend(List<Object> key, byte[] png)
+    {
+        // Another thread may create the same legend at the same time, but
+        // this does no harm
+        if (legendPngs.size() >= MAX_CACHED_LEGENDS) legendPngs.clear();
+        legendPngs.put(key, png);
+    }
+
+    private static byte[] encodePng(BufferedImage image) throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PngFormat.writePng(image, buf);
+        return buf.toByteArray();
+    }
+
+    /**
+     * Clears the cache of encoded legends.  Cached legends never become out
+     * of date, because they are keyed by everything that is drawn in them
+     * (including the titles and units of layers), so this only frees memory.
+     */
+    public static void clearLegendCache()
+    {
+        legendPngs.clear();
     }
     
     /**
-     * Creates and returns an IndexColorModel based on this palette.
+     * Returns an IndexColorModel based on this palette.  Colour models are
+     * cached, so repeated calls with the same parameters return the same object.
      * @param numColorBands the number of bands of colour to use in the color
-     * model (note that the ColorModel will have two more bands than this: one
-     * for out-of-range pixels and one for transparent pixels)
+     * model (note that the ColorModel will have three more bands than this: one
+     * for background pixels and one each for low and high out-of-range pixels)
      * @param opacity The opacity of each pixel as a percentage
      * @param bgColor The color to use for background pixels if transparent=false
+     * @param lowColor The color for low out-of-range pixels, or null to use
+     * the lowest colour in the palette
+     * @param highColor The color for high out-of-range pixels, or null to use
+     * the highest colour in the palette
      * @param transparent If true, then the background will be fully-transparent.
      * @throws IllegalArgumentException if the requested number of colour bands
      * is less than one or greater than {@link #MAX_NUM_COLOURS}.
      */
     public IndexColorModel getColorModel(int numColorBands, int opacity,
         Color bgColor, Color lowColor, Color highColor, boolean transparent)
+    {
+        ColorModelKey key = new ColorModelKey(numColorBands, opacity, bgColor,
+            lowColor, highColor, transparent);
+        IndexColorModel cm = this.colorModels.get(key);
+        if (cm == null)
+        {
+            // Another thread may create the same model at the same time, but
+            // this does no harm
+            cm = this.createColorModel(numColorBands, opacity, bgColor,
+                lowColor, highColor, transparent);
+            if (this.colorModels.size() >= MAX_CACHED_COLOR_MODELS)
+            {
+                this.colorModels.clear();
+            }
+            this.colorModels.put(key, cm);
+        }
+        return cm;
+    }
+    
+    /**
+     * Creates a new IndexColorModel: see {@link #getColorModel getColorModel()}
+     */
+    private IndexColorModel createColorModel(int numColorBands, int opacity,
+        Color bgColor, Color lowColor, Color highColor, boolean transparent)
     {
         // Gets an interpolated/subsampled version of this palette with the
         // given number of colour bands
@@ -391,7 +532,8 @@ public class ColorPalette
     
     /**
      * Gets a version of this palette with the given number of color bands,
-     * either by subsampling or interpolating the existing palette
+     * either by subsampling or interpolating the existing palette.  The
+     * results are cached: callers must not modify the returned array.
      * @param numColorBands The number of bands of colour to be used in the new
      * palette
      * @return An array of Colors, with length numColorBands
@@ -406,6 +548,22 @@ public class ColorPalette
             // GetMapStyleRequest
             throw new IllegalArgumentException("numColorBands must be between 1 and " + MAX_NUM_COLOURS);
         }
+        // There are at most MAX_NUM_COLOURS entries in this cache
+        Color[] targetPalette = this.interpolatedPalettes.get(numColorBands);
+        if (targetPalette == null)
+        {
+            targetPalette = this.interpolatePalette(numColorBands);
+            this.interpolatedPalettes.put(numColorBands, targetPalette);
+        }
+        return targetPalette;
+    }
+    
+    /**
+     * Creates a version of this palette with the given number of color bands:
+     * see {@link #getPalette(int)}.
+     */
+    private Color[] interpolatePalette(int numColorBands)
+    {
         Color[] targetPalette;
         if (numColorBands == this.palette.length)
         {
@@ -567,4 +725,58 @@ public class ColorPalette
         }
     }
 
+    
+    /**
+     * Key for the cache of colour models.  Colours are compared by their
+     * ARGB values.
+     */
+    private static final class ColorModelKey
+    {
+        private final int numColorBands;
+        private final int opacity;
+        private final int bgColor;
+        private final Integer lowColor;
+        private final Integer highColor;
+        private final boolean transparent;
+        private final int hashCode;
+        
+        public ColorModelKey(int numColorBands, int opacity, Color bgColor,
+            Color lowColor, Color highColor, boolean transparent)
+        {
+            this.numColorBands = numColorBands;
+            this.opacity = opacity;
+            this.bgColor = bgColor.getRGB();
+            this.lowColor = lowColor == null ? null : lowColor.getRGB();
+            this.highColor = highColor == null ? null : highColor.getRGB();
+            this.transparent = transparent;
+            int hash = 17;
+            hash = 31 * hash + numColorBands;
+            hash = 31 * hash + opacity;
+            hash = 31 * hash + this.bgColor;
+            hash = 31 * hash + (this.lowColor == null ? 0 : this.lowColor.hashCode());
+            hash = 31 * hash + (this.highColor == null ? 0 : this.highColor.hashCode());
+            hash = 31 * hash + (transparent ? 1 : 0);
+            this.hashCode = hash;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof ColorModelKey)) return false;
+            ColorModelKey other = (ColorModelKey)obj;
+            return this.numColorBands == other.numColorBands &&
+                   this.opacity == other.opacity &&
+                   this.bgColor == other.bgColor &&
+                   this.transparent == other.transparent &&
+                   (this.lowColor == null ? other.lowColor == null : this.lowColor.equals(other.lowColor)) &&
+                   (this.highColor == null ? other.highColor == null : this.highColor.equals(other.highColor));
+        }
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Range;
+
+/**
+ * <p>Maps data values to indices in an {@link java.awt.image.IndexColorModel},
+ * as created by {@link ColorPalette#getColorModel ColorPalette.getColorModel()}.
+ * Indices from 0 to {@code numColourBands - 1} represent in-range values;
+ * {@code numColourBands} represents missing data (background),
+ * {@code numColourBands + 1} low out-of-range values and
+ * {@code numColourBands + 2} high out-of-range values.</p>
+ *
+ * <p>The bounds of the scale (and their logarithms for a log scale) are computed
+ * once on construction, so that whole frames can be converted to colour
+ * indices in a tight loop over primitive values.  Large frames are split into
+ * bands of rows that are processed in parallel, using the
+ * {@link RenderingThreads shared pool of threads}.  Instances of this class are
+ * immutable and thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+public final class ColourScale
+{
+    /** Frames with more pixels than this are processed in parallel */
+    private static final int PARALLEL_THRESHOLD = 512 * 512;
+
+    private final float scaleMin;
+    private final float scaleMax;
+    private final boolean logarithmic;
+    private final int numColourBands;
+    // Precomputed values for the linear or log transform
+    private final double min;
+    private final double scale;
+
+    /**
+     * Creates a new ColourScale
+     * @param scaleRange The range of data values covered by the colour bands.
+     * Must not be empty.
+     * @param numColourBands The number of colour bands in the palette
+     * @param logarithmic True if the scale is logarithmic
+     */
+    public ColourScale(Range<Float> scaleRange, int numColourBands, boolean logarithmic)
+    {
+        if (scaleRange.isEmpty())
+        {
+            throw new IllegalArgumentException("Colour scale range must not be empty");
+        }
+        this.scaleMin = scaleRange.getMinimum();
+        this.scaleMax = scaleRange.getMaximum();
+        this.logarithmic = logarithmic;
+        this.numColourBands = numColourBands;
+        this.min = logarithmic ? Math.log(this.scaleMin) : this.scaleMin;
+        double max = logarithmic ? Math.log(this.scaleMax) : this.scaleMax;
+        this.scale = numColourBands / (max - this.min);
+    }
+
+    /**
+     * Returns the colour index that corresponds to the given value, which
+     * may be NaN to represent missing data
+     */
+    public int getColourIndex(float value)
+    {
+        if (Float.isNaN(value)) {
+            return this.numColourBands; // represents a background pixel
+        } else if (value < this.scaleMin) {
+            return this.numColourBands + 1; // represents a low out-of-range pixel
+        } else if (value > this.scaleMax) {
+            return this.numColourBands + 2; // represents a high out-of-range pixel
+        }
+        double val = this.logarithmic ? Math.log(value) : value;
+        int index = (int)((val - this.min) * this.scale);
+        // For values very close to the maximum value in the range, this
+        // index might turn out to be equal to this.numColourBands due to
+        // rounding error. In this case we subtract one from the index to
+        // ensure that such pixels are not displayed as background pixels.
+        return index == this.numColourBands ? index - 1 : index;
+    }
+
+    /**
+     * Converts a frame of data to colour indices.  The data are stored with
+     * the vertical axis increasing upwards, whereas the pixels are stored with
+     * the vertical axis increasing downwards, so this method flips the
+     * vertical axis.
+     * @param data The data values, NaN representing missing data
+     * @param pixels Array of colour indices that will be filled by this method
+     * @param width The width of the frame
+     * @param height The height of the frame
+     */
+    public void getColourIndices(final float[] data, final byte[] pixels,
+        final int width, final int height)
+    {
+        if (data.length != width * height || pixels.length != data.length)
+        {
+            throw new IllegalArgumentException("Arrays do not match frame size");
+        }
+        ExecutorService executor = RenderingThreads.getExecutor();
+        int numThreads = RenderingThreads.getNumThreads();
+        if (data.length < PARALLEL_THRESHOLD || executor == null || numThreads < 2)
+        {
+            this.getColourIndices(data, pixels, width, height, 0, height);
+            return;
+        }
+        int rowsPerBand = (height + numThreads - 1) / numThreads;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int firstRow = 0; firstRow < height; firstRow += rowsPerBand)
+        {
+            final int start = firstRow;
+            final int end = Math.min(height, firstRow + rowsPerBand);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    getColourIndices(data, pixels, width, height, start, end);
+                }
+            }));
+        }
+        try
+        {
+            for (Future<?> future : futures) future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering image", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            throw new IllegalStateException("Error rendering image", ee.getCause());
+        }
+    }
+
+    /** Processes the rows of the image from startRow (inclusive) to endRow (exclusive) */
+    private void getColourIndices(float[] data, byte[] pixels, int width, int height,
+        int startRow, int endRow)
+    {
+        final byte background = (byte)this.numColourBands;
+        final byte low = (byte)(this.numColourBands + 1);
+        final byte high = (byte)(this.numColourBands + 2);
+        final byte top = (byte)(this.numColourBands - 1);
+        for (int imageJ = startRow; imageJ < endRow; imageJ++)
+        {
+            int pixelIndex = imageJ * width;
+            int dataIndex = (height - imageJ - 1) * width;
+            for (int i = 0; i < width; i++, pixelIndex++, dataIndex++)
+            {
+                float value = data[dataIndex];
+                byte index;
+                if (value >= this.scaleMin && value <= this.scaleMax) {
+                    double val = this.logarithmic ? Math.log(value) : value;
+                    int idx = (int)((val - this.min) * this.scale);
+                    index = idx == this.numColourBands ? top : (byte)idx;
+                } else if (value < this.scaleMin) {
+                    index = low;
+                } else if (value > this.scaleMax) {
+                    index = high;
+                } else {
+                    // Comparisons with NaN are always false
+                    index = background;
+                }
+                pixels[pixelIndex] = index;
+            }
+        }
+    }
+
+    /**
+     * Copies the given list of data values to an array of primitive floats,
+     * replacing nulls with NaNs.  If the list is backed by an array of floats
+     * this array is returned without copying, so callers must not modify
+     * the returned array.
+     */
+    public static float[] toFloatArray(List<Float> data)
+    {
+        if (data instanceof FloatArrayList)
+        {
+            return ((FloatArrayList)data).getFloatArray();
+        }
+        float[] arr = new float[data.size()];
+        int i = 0;
+        for (Float val : data)
+        {
+            arr[i++] = val == null ? Float.NaN : val.floatValue();
+        }
+        return arr;
+    }
+}
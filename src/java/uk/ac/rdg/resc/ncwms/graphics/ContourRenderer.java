@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.rdg.resc.edal.util.Range;
+
+/**
+ * <p>Draws contour lines through a grid of data values using the marching
+ * squares algorithm.  Contour segments are found in each cell of the grid,
+ * joined into lines, simplified and then drawn (optionally with labels)
+ * directly onto a {@link Graphics2D}.  Missing values are represented by
+ * NaNs: no contours are drawn through cells with missing corners.</p>
+ *
+ * <p>Data are held in a primitive array in the same order as for the
+ * {@link ColourScale}, i.e. row by row with the vertical axis increasing
+ * upwards.  The grid point with index {@code (i,j)} is drawn at the centre of
+ * pixel {@code (i, height - 1 - j)} of the image.  Instances of this class
+ * are immutable and thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+public final class ContourRenderer
+{
+    /** Lines are simplified so that they deviate by no more than this many pixels */
+    private static final double SIMPLIFICATION_TOLERANCE = 0.5;
+
+    /** The size of the font used for labels */
+    private static final float LABEL_FONT_SIZE = 10.0f;
+
+    // Edges of a cell of the grid
+    private static final int BOTTOM = 0;
+    private static final int RIGHT = 1;
+    private static final int TOP = 2;
+    private static final int LEFT = 3;
+
+    /**
+     * The pairs of edges joined by contour segments for each configuration of
+     * corners above the contour level (bit 0 = bottom-left, 1 = bottom-right,
+     * 2 = top-right, 3 = top-left).  Saddle points (cases 5 and 10) are
+     * handled separately.
+     */
+    private static final int[][] SEGMENTS = {
+        {},                         // 0: all below
+        {LEFT, BOTTOM},             // 1
+        {BOTTOM, RIGHT},            // 2
+        {LEFT, RIGHT},              // 3
+        {RIGHT, TOP},               // 4
+        null,                       // 5: saddle
+        {BOTTOM, TOP},              // 6
+        {LEFT, TOP},                // 7
+        {LEFT, TOP},                // 8
+        {BOTTOM, TOP},              // 9
+        null,                       // 10: saddle
+        {RIGHT, TOP},               // 11
+        {LEFT, RIGHT},              // 12
+        {BOTTOM, RIGHT},            // 13
+        {LEFT, BOTTOM},             // 14
+        {}                          // 15: all above
+    };
+
+    private final double[] levels;
+    private final boolean labelled;
+    private final Color lineColour;
+
+    /**
+     * Creates a ContourRenderer
+     * @param levels The data values at which contours are drawn
+     * @param labelled True if contours are to be labelled with their values
+     * @param lineColour The colour of the lines and labels
+     */
+    public ContourRenderer(double[] levels, boolean labelled, Color lineColour)
+    {
+        this.levels = levels.clone();
+        Arrays.sort(this.levels);
+        this.labelled = labelled;
+        this.lineColour = lineColour;
+    }
+
+    /**
+     * Returns {@code numContours + 1} evenly-spaced contour levels, from the
+     * minimum to the maximum of the given range inclusive.
+     */
+    public static double[] getLevels(Range<Float> range, int numContours)
+    {
+        double min = range.getMinimum();
+        double max = range.getMaximum();
+        double[] levels = new double[numContours + 1];
+        for (int i = 0; i <= numContours; i++)
+        {
+            levels[i] = min + i * (max - min) / numContours;
+        }
+        return levels;
+    }
+
+    /**
+     * Draws the contours of the given data.
+     * @param data The data values, row by row with the vertical axis
+     * increasing upwards, NaN representing missing values
+     * @param width The number of points in each row
+     * @param height The number of rows
+     * @param g The graphics onto which the contours are drawn
+     */
+    public void render(float[] data, int width, int height, Graphics2D g)
+    {
+        if (data.length != width * height)
+        {
+            throw new IllegalArgumentException("Data array does not match grid size");
+        }
+        if (width < 2 || height < 2) return;
+
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(this.lineColour);
+        g.setStroke(new BasicStroke(1.0f));
+        g.setFont(g.getFont().deriveFont(LABEL_FONT_SIZE));
+        DecimalFormat labelFormat = new DecimalFormat("0.###");
+
+        ContourTracer tracer = new ContourTracer(data, width, height, this.levels);
+        for (int k = 0; k < this.levels.length; k++)
+        {
+            List<float[]> lines = tracer.findContours(k);
+            String label = labelFormat.format(this.levels[k]);
+            for (float[] line : lines)
+            {
+                float[] simplified = simplify(line, SIMPLIFICATION_TOLERANCE);
+                this.drawLine(simplified, height, g);
+                if (this.labelled) this.drawLabel(simplified, height, label, g);
+            }
+        }
+    }
+
+    /**
+     * Finds the lines of the contour at the given level.  Package-private
+     * for testing.
+     * @return a list of lines, each an array of x and y grid coordinates
+     * {@code [x0, y0, x1, y1, ...]}.  Closed lines end with their first point.
+     */
+    static List<float[]> findContours(float[] data, int width, int height, double level)
+    {
+        return new ContourTracer(data, width, height, new double[] {level}).findContours(0);
+    }
+
+    private void drawLine(float[] line, int height, Graphics2D g)
+    {
+        GeneralPath path = new GeneralPath(GeneralPath.WIND_NON_ZERO, line.length / 2);
+        path.moveTo(line[0] + 0.5f, height - 0.5f - line[1]);
+        for (int k = 2; k < line.length; k += 2)
+        {
+            path.lineTo(line[k] + 0.5f, height - 0.5f - line[k + 1]);
+        }
+        g.draw(path);
+    }
+
+    /**
+     * Draws a label halfway along the given line, aligned with the line,
+     * if the line is long enough.  The line is erased behind the label.
+     */
+    private void drawLabel(float[] line, int height, String label, Graphics2D g)
+    {
+        FontMetrics fm = g.getFontMetrics();
+        int labelWidth = fm.stringWidth(label);
+        double length = 0.0;
+        for (int k = 2; k < line.length; k += 2)
+        {
+            length += Math.hypot(line[k] - line[k - 2], line[k + 1] - line[k - 1]);
+        }
+        if (length < 3 * labelWidth) return;
+
+        // Find the segment containing the midpoint of the line
+        double remaining = length / 2;
+        for (int k = 2; k < line.length; k += 2)
+        {
+            double dx = line[k] - line[k - 2];
+            double dy = -(line[k + 1] - line[k - 1]); // image y axis points down
+            double segLength = Math.hypot(dx, dy);
+            if (segLength >= remaining && segLength > 0)
+            {
+                double f = remaining / segLength;
+                double x = line[k - 2] + 0.5 + f * dx;
+                double y = height - 0.5 - line[k - 1] + f * dy;
+                double angle = Math.atan2(dy, dx);
+                // Keep the text the right way up
+                if (angle > Math.PI / 2) angle -= Math.PI;
+                else if (angle < -Math.PI / 2) angle += Math.PI;
+
+                AffineTransform oldTransform = g.getTransform();
+                Composite oldComposite = g.getComposite();
+                g.translate(x, y);
+                g.rotate(angle);
+                int ascent = fm.getAscent();
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(-labelWidth / 2 - 1, -ascent / 2 - 1, labelWidth + 2, ascent + 2);
+                g.setComposite(oldComposite);
+                g.drawString(label, -labelWidth / 2, ascent / 2);
+                g.setTransform(oldTransform);
+                return;
+            }
+            remaining -= segLength;
+        }
+    }
+
+    /**
+     * Simplifies a line using the Douglas-Peucker algorithm, removing points
+     * that lie within the given distance of the simplified line.
+     */
+    static float[] simplify(float[] line, double tolerance)
+    {
+        int numPoints = line.length / 2;
+        if (numPoints < 3) return line;
+        boolean[] keep = new boolean[numPoints];
+        keep[0] = true;
+        keep[numPoints - 1] = true;
+        // Stack of (first, last) index pairs still to be processed
+        int[] stack = new int[2 * numPoints];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = numPoints - 1;
+        int numKept = 2;
+        double tol2 = tolerance * tolerance;
+        while (top > 0)
+        {
+            int last = stack[--top];
+            int first = stack[--top];
+            double x1 = line[2 * first], y1 = line[2 * first + 1];
+            double dx = line[2 * last] - x1, dy = line[2 * last + 1] - y1;
+            double len2 = dx * dx + dy * dy;
+            double maxDist2 = -1.0;
+            int farthest = -1;
+            for (int k = first + 1; k < last; k++)
+            {
+                double px = line[2 * k] - x1, py = line[2 * k + 1] - y1;
+                double dist2;
+                if (len2 == 0.0)
+                {
+                    // The ends are the same point (e.g. a closed line)
+                    dist2 = px * px + py * py;
+                }
+                else
+                {
+                    double cross = px * dy - py * dx;
+                    dist2 = cross * cross / len2;
+                }
+                if (dist2 > maxDist2)
+                {
+                    maxDist2 = dist2;
+                    farthest = k;
+                }
+            }
+            if (farthest >= 0 && maxDist2 > tol2)
+            {
+                keep[farthest] = true;
+                numKept++;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        float[] result = new float[2 * numKept];
+        int n = 0;
+        for (int k = 0; k < numPoints; k++)
+        {
+            if (keep[k])
+            {
+                result[n++] = line[2 * k];
+                result[n++] = line[2 * k + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds contour segments in the cells of the grid and joins them into
+     * lines.  Each crossing of a contour with an edge between two grid points
+     * is identified by the index of that edge; each crossing is joined to at
+     * most two others (one in each of the cells that share the edge).
+     * A single pass through the grid finds the cells that are crossed by each
+     * level, so that each level only visits the cells it crosses.  The
+     * workspace arrays are reused for each level.
+     */
+    private static final class ContourTracer
+    {
+        private final float[] data;
+        private final int width;
+        private final int height;
+        private final int numHorizEdges;
+        private final double[] levels;
+        // The indices of the bottom-left corners of the cells crossed by each level
+        private final int[][] cells;
+        private final int[] numCells;
+        // The crossings joined to each crossing, -1 if none
+        private final int[] link1;
+        private final int[] link2;
+        private final boolean[] visited;
+        // The edges that are crossed at the current level
+        private int[] crossed = new int[1024];
+        private int numCrossed = 0;
+
+        /**
+         * @param levels The contour levels, in ascending order
+         */
+        public ContourTracer(float[] data, int width, int height, double[] levels)
+        {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.levels = levels;
+            this.numHorizEdges = (width - 1) * height;
+            int numEdges = this.numHorizEdges + width * (height - 1);
+            this.link1 = new int[numEdges];
+            this.link2 = new int[numEdges];
+            this.visited = new boolean[numEdges];
+            Arrays.fill(this.link1, -1);
+            Arrays.fill(this.link2, -1);
+            this.cells = new int[levels.length][];
+            this.numCells = new int[levels.length];
+            this.findCells();
+        }
+
+        /**
+         * Finds the cells crossed by each level.  The "band" of each grid
+         * point is the number of levels that are less than or equal to its
+         * value (-1 for missing values).  A cell is crossed by the levels from
+         * the lowest band of its corners up to (but not including) the highest.
+         */
+        private void findCells()
+        {
+            int w = this.width;
+            int[] lowerBands = new int[w];
+            int[] upperBands = new int[w];
+            this.getBands(0, lowerBands);
+            for (int j = 0; j < this.height - 1; j++)
+            {
+                this.getBands(j + 1, upperBands);
+                for (int i = 0; i < w - 1; i++)
+                {
+                    int bl = lowerBands[i];
+                    int br = lowerBands[i + 1];
+                    int tr = upperBands[i + 1];
+                    int tl = upperBands[i];
+                    if (bl < 0 || br < 0 || tr < 0 || tl < 0) continue;
+                    int min = Math.min(Math.min(bl, br), Math.min(tr, tl));
+                    int max = Math.max(Math.max(bl, br), Math.max(tr, tl));
+                    for (int k = min; k < max; k++)
+                    {
+                        this.addCell(k, j * w + i);
+                    }
+                }
+                int[] tmp = lowerBands;
+                lowerBands = upperBands;
+                upperBands = tmp;
+            }
+        }
+
+        private void getBands(int j, int[] bands)
+        {
+            for (int i = 0; i < this.width; i++)
+            {
+                float val = this.data[j * this.width + i];
+                if (Float.isNaN(val))
+                {
+                    bands[i] = -1;
+                }
+                else
+                {
+                    int band = 0;
+                    while (band < this.levels.length && this.levels[band] <= val) band++;
+                    bands[i] = band;
+                }
+            }
+        }
+
+        private void addCell(int level, int cell)
+        {
+            int[] levelCells = this.cells[level];
+            if (levelCells == null)
+            {
+                levelCells = this.cells[level] = new int[256];
+            }
+            else if (this.numCells[level] == levelCells.length)
+            {
+                levelCells = this.cells[level] = Arrays.copyOf(levelCells, 2 * levelCells.length);
+            }
+            levelCells[this.numCells[level]++] = cell;
+        }
+
+        /** Returns the index of the given edge of cell (i,j) */
+        private int getEdge(int i, int j, int edge)
+        {
+            switch (edge)
+            {
+                case BOTTOM: return j * (this.width - 1) + i;
+                case TOP:    return (j + 1) * (this.width - 1) + i;
+                case LEFT:   return this.numHorizEdges + j * this.width + i;
+                default:     return this.numHorizEdges + j * this.width + i + 1;
+            }
+        }
+
+        /** Finds the lines of the contour at the level with the given index */
+        public List<float[]> findContours(int levelIndex)
+        {
+            double level = this.levels[levelIndex];
+            int w = this.width;
+            int[] levelCells = this.cells[levelIndex];
+            for (int c = 0; c < this.numCells[levelIndex]; c++)
+            {
+                int i = levelCells[c] % w;
+                int j = levelCells[c] / w;
+                float bl = this.data[j * w + i];
+                float br = this.data[j * w + i + 1];
+                float tr = this.data[(j + 1) * w + i + 1];
+                float tl = this.data[(j + 1) * w + i];
+                int config = (bl >= level ? 1 : 0) | (br >= level ? 2 : 0)
+                           | (tr >= level ? 4 : 0) | (tl >= level ? 8 : 0);
+                if (config == 5 || config == 10)
+                {
+                    // Saddle: use the value at the centre of the cell to
+                    // decide which corners are connected
+                    boolean centreAbove = 0.25 * (bl + br + tr + tl) >= level;
+                    if ((config == 5) == centreAbove)
+                    {
+                        this.addSegment(i, j, BOTTOM, RIGHT);
+                        this.addSegment(i, j, LEFT, TOP);
+                    }
+                    else
+                    {
+                        this.addSegment(i, j, LEFT, BOTTOM);
+                        this.addSegment(i, j, RIGHT, TOP);
+                    }
+                }
+                else
+                {
+                    int[] seg = SEGMENTS[config];
+                    this.addSegment(i, j, seg[0], seg[1]);
+                }
+            }
+
+            List<float[]> lines = new ArrayList<float[]>();
+            // Trace open lines first, starting from their ends, then closed lines
+            for (int k = 0; k < this.numCrossed; k++)
+            {
+                int e = this.crossed[k];
+                if (!this.visited[e] && this.link2[e] < 0) lines.add(this.trace(e, level));
+            }
+            for (int k = 0; k < this.numCrossed; k++)
+            {
+                int e = this.crossed[k];
+                if (!this.visited[e]) lines.add(this.trace(e, level));
+            }
+
+            // Reset the workspace for the next level
+            for (int k = 0; k < this.numCrossed; k++)
+            {
+                int e = this.crossed[k];
+                this.link1[e] = -1;
+                this.link2[e] = -1;
+                this.visited[e] = false;
+            }
+            this.numCrossed = 0;
+            return lines;
+        }
+
+        private void addSegment(int i, int j, int edge1, int edge2)
+        {
+            int e1 = this.getEdge(i, j, edge1);
+            int e2 = this.getEdge(i, j, edge2);
+            this.addLink(e1, e2);
+            this.addLink(e2, e1);
+        }
+
+        private void addLink(int from, int to)
+        {
+            if (this.link1[from] < 0)
+            {
+                this.link1[from] = to;
+                if (this.numCrossed == this.crossed.length)
+                {
+                    this.crossed = Arrays.copyOf(this.crossed, 2 * this.numCrossed);
+                }
+                this.crossed[this.numCrossed++] = from;
+            }
+            else
+            {
+                this.link2[from] = to;
+            }
+        }
+
+        /** Follows the links from the given crossing, returning the line */
+        private float[] trace(int start, double level)
+        {
+            float[] line = new float[64];
+            int n = 0;
+            int prev = -1;
+            int cur = start;
+            while (true)
+            {
+                if (n + 4 > line.length) line = Arrays.copyOf(line, 2 * line.length);
+                this.addPoint(cur, level, line, n);
+                n += 2;
+                this.visited[cur] = true;
+                int next = this.link1[cur] != prev ? this.link1[cur] : this.link2[cur];
+                if (next < 0) break; // the end of an open line
+                if (next == start)
+                {
+                    // Close the line
+                    line[n++] = line[0];
+                    line[n++] = line[1];
+                    break;
+                }
+                if (this.visited[next]) break; // shouldn't happen
+                prev = cur;
+                cur = next;
+            }
+            return Arrays.copyOf(line, n);
+        }
+
+        /** Finds where the contour crosses the given edge, by linear interpolation */
+        private void addPoint(int edge, double level, float[] line, int n)
+        {
+            int i, j;
+            float va, vb;
+            if (edge < this.numHorizEdges)
+            {
+                j = edge / (this.width - 1);
+                i = edge % (this.width - 1);
+                va = this.data[j * this.width + i];
+                vb = this.data[j * this.width + i + 1];
+                line[n] = (float)(i + (level - va) / (vb - va));
+                line[n + 1] = j;
+            }
+            else
+            {
+                int e = edge - this.numHorizEdges;
+                j = e / this.width;
+                i = e % this.width;
+                va = this.data[j * this.width + i];
+                vb = this.data[(j + 1) * this.width + i];
+                line[n] = i;
+                line[n + 1] = (float)(j + (level - va) / (vb - va));
+            }
+        }
+    }
+}
@@ -28,12 +28,15 @@
 
 package uk.ac.rdg.resc.ncwms.graphics;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +44,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Creates (possibly animated) GIFs.  Only one instance of this class
  * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * thread safety.  In animations, each frame after the first only covers the
+ * region that has changed since the previous frame, and the frames are
+ * compressed in parallel.
  *
  * @author Jon Blower
  * $Revision$
@@ -69,30 +74,225 @@ public class GifFormat extends SimpleFormat
             e.setRepeat(0);
             e.setDelay(150); // delay between frames in milliseconds
         }
-        byte[] rgbPalette = null;
-        IndexColorModel icm = null;
+        BufferedImage firstFrame = frames.get(0);
+        int width = firstFrame.getWidth();
+        int height = firstFrame.getHeight();
+        e.setSize(width, height);
+        // Get the colour palette.  We assume that we have used an
+        // IndexColorModel that is the same for all frames
+        IndexColorModel icm = (IndexColorModel) firstFrame.getColorModel();
+        byte[] rgbPalette = getRGBPalette(icm);
+
+        // Get the indices of each pixel in each image.  We do this after the
+        // frames have been created because we might have added a label to
+        // the image.
+        List<byte[]> pixels = new ArrayList<byte[]>(frames.size());
         for (BufferedImage frame : frames)
         {
-            if (rgbPalette == null)
-            {
-                // This is the first frame
-                e.setSize(frame.getWidth(), frame.getHeight());
-                // Get the colour palette.  We assume that we have used an
-                // IndexColorModel that is the same for all frames
-                icm = (IndexColorModel) frame.getColorModel();
+            pixels.add(((DataBufferByte)frame.getRaster().getDataBuffer()).getData());
+        }
 
-                rgbPalette = getRGBPalette(icm);
-            }
-            // Get the indices of each pixel in the image.  We do this after the
-            // frames have been created because we might have added a label to
-            // the image.
-            byte[] indices = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
-            e.addFrame(rgbPalette, indices, icm.getTransparentPixel());
+        // Work out the region of each frame that must be drawn, then compress
+        // the frames in parallel
+        List<FrameRegion> regions = getFrameRegions(pixels, width, height,
+            icm.getTransparentPixel(), getUnusedIndex(pixels, icm));
+        List<byte[]> encodedFrames = ParallelEncoder.invokeAll(regions);
+        for (int i = 0; i < regions.size(); i++)
+        {
+            FrameRegion region = regions.get(i);
+            e.addEncodedFrame(rgbPalette, encodedFrames.get(i),
+                region.rect.x, region.rect.y, region.rect.width, region.rect.height,
+                region.transparentIndex, region.disposal);
         }
         e.finish();
         logger.debug("  ... written.");
     }
-    
+
+    /**
+     * The part of an animation frame that must be drawn over the previous
+     * frame.  Pixels that are unchanged are given the transparent index, so
+     * that the previous frame shows through.  The {@link #call()} method
+     * compresses the pixels in the region.
+     */
+    private static final class FrameRegion implements Callable<byte[]>
+    {
+        private final byte[] pixels;
+        private final byte[] prevPixels; // null if the whole region must be drawn
+        private final int imageWidth;
+        private final Rectangle rect;
+        private final Rectangle cleared; // Area cleared by the previous frame, or null
+        private final int transparentIndex;
+        private int disposal = 1;
+
+        public FrameRegion(byte[] pixels, byte[] prevPixels, int imageWidth,
+            Rectangle rect, Rectangle cleared, int transparentIndex)
+        {
+            this.pixels = pixels;
+            this.prevPixels = prevPixels;
+            this.imageWidth = imageWidth;
+            this.rect = rect;
+            this.cleared = cleared;
+            this.transparentIndex = transparentIndex;
+        }
+
+        @Override
+        public byte[] call() throws IOException
+        {
+            byte[] sub = new byte[this.rect.width * this.rect.height];
+            int k = 0;
+            for (int j = this.rect.y; j < this.rect.y + this.rect.height; j++)
+            {
+                int index = j * this.imageWidth + this.rect.x;
+                for (int i = this.rect.x; i < this.rect.x + this.rect.width; i++, index++)
+                {
+                    byte pixel = this.pixels[index];
+                    if (this.prevPixels != null && pixel == this.prevPixels[index]
+                        && (this.cleared == null || !this.cleared.contains(i, j)))
+                    {
+                        // Leave the previous frame in place
+                        pixel = (byte)this.transparentIndex;
+                    }
+                    sub[k++] = pixel;
+                }
+            }
+            return AnimatedGifEncoder.encodePixels(sub, this.rect.width, this.rect.height);
+        }
+    }
+
+    /**
+     * <p>Calculates the region of each frame that must be drawn.  The first
+     * frame is drawn in full.  Each subsequent frame is drawn over the previous
+     * one, covering only the bounding box of the pixels that have changed,
+     * with unchanged pixels set to the {@code unchangedIndex}, which the GIF
+     * treats as transparent.</p>
+     *
+     * <p>Pixels that become transparent cannot be drawn over the previous frame,
+     * so in this case the previous frame's region is enlarged to cover them,
+     * and is restored to the background after it is shown.  The next frame
+     * then redraws this area in full.</p>
+     *
+     * @param transparentIndex The index of the transparent colour in the
+     * images, or -1 if there is none
+     * @param unusedIndex A colour index not used in any frame, or -1 if there
+     * is none
+     */
+    private static List<FrameRegion> getFrameRegions(List<byte[]> pixels,
+        int width, int height, int transparentIndex, int unusedIndex)
+    {
+        int numFrames = pixels.size();
+        List<FrameRegion> regions = new ArrayList<FrameRegion>(numFrames);
+        Rectangle full = new Rectangle(0, 0, width, height);
+        // Unchanged pixels in an image with transparency can simply be made
+        // transparent themselves
+        int unchangedIndex = transparentIndex >= 0 ? transparentIndex : unusedIndex;
+        if (numFrames == 1 || unchangedIndex < 0)
+        {
+            // We can't do frame differencing: draw every frame in full
+            for (byte[] frame : pixels)
+            {
+                regions.add(new FrameRegion(frame, null, width, full, null, transparentIndex));
+            }
+            return regions;
+        }
+
+        Rectangle cleared = null; // The area cleared by the previous frame
+        for (int f = 0; f < numFrames; f++)
+        {
+            byte[] frame = pixels.get(f);
+            FrameRegion region;
+            if (f == 0)
+            {
+                region = new FrameRegion(frame, null, width, full, null, transparentIndex);
+            }
+            else
+            {
+                byte[] prev = pixels.get(f - 1);
+                Rectangle rect = union(getChangedRegion(prev, frame, width, height, -1), cleared);
+                // If nothing has changed we still need a frame to mark the delay
+                if (rect == null) rect = new Rectangle(0, 0, 1, 1);
+                region = new FrameRegion(frame, prev, width, rect, cleared, unchangedIndex);
+            }
+            cleared = null;
+            if (transparentIndex >= 0)
+            {
+                // See if any pixels become transparent in the next frame
+                // (which for the last frame is the first frame, as the
+                // animation loops)
+                byte[] next = pixels.get((f + 1) % numFrames);
+                Rectangle clear = getChangedRegion(frame, next, width, height, transparentIndex);
+                if (clear != null)
+                {
+                    // Enlarge this frame's region to cover these pixels and
+                    // restore it to the background when done
+                    Rectangle rect = union(region.rect, clear);
+                    if (!rect.equals(region.rect))
+                    {
+                        region = new FrameRegion(frame, region.prevPixels, width,
+                            rect, region.cleared, region.transparentIndex);
+                    }
+                    region.disposal = 2;
+                    cleared = rect;
+                }
+            }
+            regions.add(region);
+        }
+        return regions;
+    }
+
+    /**
+     * Returns the bounding box of the pixels that differ between the two
+     * frames, or null if they are identical.
+     * @param newIndex If this is non-negative, only pixels that change
+     * <i>to</i> this index are considered.
+     */
+    private static Rectangle getChangedRegion(byte[] prev, byte[] frame,
+        int width, int height, int newIndex)
+    {
+        int minI = width, maxI = -1, minJ = height, maxJ = -1;
+        int index = 0;
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++, index++)
+            {
+                if (prev[index] != frame[index] && (newIndex < 0 || (frame[index] & 0xff) == newIndex))
+                {
+                    if (i < minI) minI = i;
+                    if (i > maxI) maxI = i;
+                    if (j < minJ) minJ = j;
+                    maxJ = j;
+                }
+            }
+        }
+        return maxI < 0 ? null : new Rectangle(minI, minJ, maxI - minI + 1, maxJ - minJ + 1);
+    }
+
+    /** Returns the union of two rectangles, either of which may be null */
+    private static Rectangle union(Rectangle r1, Rectangle r2)
+    {
+        if (r1 == null) return r2;
+        if (r2 == null) return r1;
+        return r1.union(r2);
+    }
+
+    /**
+     * Returns an index in the colour table that is not used in any of the frames,
+     * or -1 if all 256 indices are used.
+     */
+    private static int getUnusedIndex(List<byte[]> pixels, IndexColorModel icm)
+    {
+        if (icm.getMapSize() < 256) return icm.getMapSize();
+        boolean[] used = new boolean[256];
+        for (byte[] frame : pixels)
+        {
+            for (byte pixel : frame) used[pixel & 0xff] = true;
+        }
+        for (int i = 0; i < used.length; i++)
+        {
+            if (!used[i]) return i;
+        }
+        return -1;
+    }
+
     /**
      * Gets the RGB palette as an array of 256*3 bytes (i.e. 256 colours in
      * RGB order).  If the given IndexColorModel contains less than 256 colours
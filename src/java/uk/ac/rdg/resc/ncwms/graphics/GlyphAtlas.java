@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Cache of pre-rendered arrow and wind barb glyphs for the vector styles.
+ * Drawing each glyph with Java2D involves building, transforming and
+ * rasterizing a new shape; instead, each glyph is rasterized once into a
+ * {@link Sprite} (the set of pixels that it covers) and then copied into the
+ * pixels of each image in the colour of the data value.</p>
+ *
+ * <p>Glyphs are keyed by their shape (the vector style, or the barb for the
+ * speed and hemisphere), their angle and their scale.  Angles are quantized
+ * into a configurable number of {@link #setAngleSteps(int) steps} around the
+ * circle.  The colour is not part of the key because it is applied when the
+ * sprite is copied into the image.  Since glyphs are always drawn at whole
+ * pixel positions, the sprites are identical to the glyphs that would be
+ * drawn directly (apart from the quantization of the angle).</p>
+ *
+ * @author Jon Blower
+ */
+public final class GlyphAtlas
+{
+    /** The default number of angles at which glyphs are rendered (1 degree steps) */
+    public static final int DEFAULT_ANGLE_STEPS = 360;
+
+    /** The minimum and maximum values for the number of angle steps */
+    public static final int MIN_ANGLE_STEPS = 8;
+    public static final int MAX_ANGLE_STEPS = 3600;
+
+    /** Maximum number of sprites that will be cached */
+    private static final int MAX_CACHED_SPRITES = 10000;
+
+    private static volatile int angleSteps = DEFAULT_ANGLE_STEPS;
+
+    private static final ConcurrentMap<List<Object>, Sprite> sprites =
+        new ConcurrentHashMap<List<Object>, Sprite>();
+
+    /** Prevents instantiation */
+    private GlyphAtlas() { throw new AssertionError(); }
+
+    /**
+     * Sets the number of angles around the circle at which glyphs are
+     * rendered, clamped to the range {@link #MIN_ANGLE_STEPS} to
+     * {@link #MAX_ANGLE_STEPS}.  Clears the cache if the number changes.
+     */
+    public static void setAngleSteps(int steps)
+    {
+        steps = Math.max(MIN_ANGLE_STEPS, Math.min(MAX_ANGLE_STEPS, steps));
+        if (steps != angleSteps)
+        {
+            angleSteps = steps;
+            sprites.clear();
+        }
+    }
+
+    public static int getAngleSteps()
+    {
+        return angleSteps;
+    }
+
+    /**
+     * Returns the sprite for an arrow of the given style
+     * @param style The name of the style, as used by {@link VectorFactory}
+     * @param angle The direction of the arrow in radians, clockwise from north
+     * @param scale The scale of the arrow
+     */
+    public static Sprite getVector(String style, double angle, float scale)
+    {
+        int steps = angleSteps;
+        int angleIndex = getAngleIndex(angle, steps);
+        List<Object> key = Arrays.<Object>asList("VECTOR", style, steps, angleIndex, scale);
+        Sprite sprite = sprites.get(key);
+        if (sprite == null)
+        {
+            Shape shape = VectorFactory.getVector(style, getAngle(angleIndex, steps), scale);
+            // Arrows are filled and outlined
+            sprite = cacheSprite(key, new Sprite(shape, true));
+        }
+        return sprite;
+    }
+
+    /**
+     * Returns the sprite for a wind barb
+     * @param speed The wind speed
+     * @param units The units of the speed
+     * @param angle The direction of the wind in radians, clockwise from north
+     * @param scale The scale of the barb
+     * @param southernHemisphere True if the barb is in the southern hemisphere
+     */
+    public static Sprite getWindBarb(double speed, String units, double angle,
+        float scale, boolean southernHemisphere)
+    {
+        int rank = BarbFactory.getBarbRank(speed, units);
+        int steps = angleSteps;
+        int angleIndex = getAngleIndex(angle, steps);
+        List<Object> key = Arrays.<Object>asList("BARB", rank, southernHemisphere,
+            steps, angleIndex, scale);
+        Sprite sprite = sprites.get(key);
+        if (sprite == null)
+        {
+            Shape shape = BarbFactory.getWindBarb(rank, getAngle(angleIndex, steps),
+                scale, southernHemisphere);
+            sprite = cacheSprite(key, new Sprite(shape, false));
+        }
+        return sprite;
+    }
+
+    private static Sprite cacheSprite(List<Object> key, Sprite sprite)
+    {
+        if (sprites.size() >= MAX_CACHED_SPRITES) sprites.clear();
+        Sprite existing = sprites.putIfAbsent(key, sprite);
+        return existing == null ? sprite : existing;
+    }
+
+    /** Returns the index of the step nearest to the given angle */
+    private static int getAngleIndex(double angle, int steps)
+    {
+        int index = (int)Math.round(angle * steps / (2 * Math.PI)) % steps;
+        return index < 0 ? index + steps : index;
+    }
+
+    private static double getAngle(int angleIndex, int steps)
+    {
+        return angleIndex * 2 * Math.PI / steps;
+    }
+
+    /**
+     * The pixels covered by a glyph, relative to the point at which the
+     * glyph is anchored.  Instances are immutable.
+     */
+    public static final class Sprite
+    {
+        // Offsets of the covered pixels from the anchor point
+        private final short[] xOffsets;
+        private final short[] yOffsets;
+
+        /**
+         * Rasterizes the given shape, whose anchor point is at the origin,
+         * in the same way as it would be drawn on an image with a one-pixel
+         * stroke and no antialiasing.
+         */
+        private Sprite(Shape shape, boolean filled)
+        {
+            // Shift the shape by a whole number of pixels so that it lies
+            // within the image, with a margin for the stroke
+            Rectangle2D bounds = shape.getBounds2D();
+            int dx = 2 - (int)Math.floor(bounds.getMinX());
+            int dy = 2 - (int)Math.floor(bounds.getMinY());
+            int width = (int)Math.ceil(bounds.getMaxX()) + dx + 3;
+            int height = (int)Math.ceil(bounds.getMaxY()) + dy + 3;
+
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setStroke(new BasicStroke(1));
+            g.setColor(Color.WHITE);
+            Shape translated = AffineTransform.getTranslateInstance(dx, dy).createTransformedShape(shape);
+            if (filled) g.fill(translated);
+            g.draw(translated);
+            g.dispose();
+
+            byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            int numCovered = 0;
+            for (byte pixel : pixels)
+            {
+                if (pixel != 0) numCovered++;
+            }
+            this.xOffsets = new short[numCovered];
+            this.yOffsets = new short[numCovered];
+            int n = 0;
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    if (pixels[y * width + x] != 0)
+                    {
+                        this.xOffsets[n] = (short)(x - dx);
+                        this.yOffsets[n] = (short)(y - dy);
+                        n++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sets the pixels covered by the glyph to the given colour index
+         * @param pixels The pixels of an image, row by row from the top
+         * @param width The width of the image
+         * @param height The height of the image
+         * @param x The x coordinate of the anchor point of the glyph
+         * @param y The y coordinate of the anchor point of the glyph
+         * @param colourIndex The index of the colour in the image's colour model
+         */
+        public void draw(byte[] pixels, int width, int height, int x, int y, byte colourIndex)
+        {
+            for (int k = 0; k < this.xOffsets.length; k++)
+            {
+                int px = x + this.xOffsets[k];
+                int py = y + this.yOffsets[k];
+                if (px >= 0 && px < width && py >= 0 && py < height)
+                {
+                    pixels[py * width + px] = colourIndex;
+                }
+            }
+        }
+
+        /** Returns the number of pixels covered by the glyph */
+        public int getNumPixels()
+        {
+            return this.xOffsets.length;
+        }
+    }
+}
@@ -61,7 +61,8 @@ public abstract class ImageFormat
         ImageIO.setUseCache(false);
         // We pre-create all the ImageFormat objects
         for (ImageFormat format : new ImageFormat[]{new PngFormat(),
-            new Png32Format(), new GifFormat(), new JpegFormat(), new KmzFormat()})
+            new Png32Format(), new GifFormat(), new ApngFormat(), new JpegFormat(),
+            new KmzFormat()})
         {
             formats.put(format.getMimeType(), format);
         }
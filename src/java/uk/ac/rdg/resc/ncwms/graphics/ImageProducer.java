@@ -28,25 +28,9 @@
 
 package uk.ac.rdg.resc.ncwms.graphics;
 
-import gov.noaa.pmel.sgt.CartesianGraph;
-import gov.noaa.pmel.sgt.CartesianRenderer;
-import gov.noaa.pmel.sgt.ContourLevels;
-import gov.noaa.pmel.sgt.DefaultContourLineAttribute;
-import gov.noaa.pmel.sgt.GridAttribute;
-import gov.noaa.pmel.sgt.JPane;
-import gov.noaa.pmel.sgt.LinearTransform;
-import gov.noaa.pmel.sgt.dm.SGTData;
-import gov.noaa.pmel.sgt.dm.SGTGrid;
-import gov.noaa.pmel.sgt.dm.SimpleGrid;
-import gov.noaa.pmel.util.Dimension2D;
-import gov.noaa.pmel.util.Range2D;
-
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
@@ -62,6 +46,7 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.util.DataStatistics;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -101,6 +86,9 @@ public final class ImageProducer
      */
     private Range<Float> scaleRange;
     
+    /** Maps data values to colour indices: created once the scale is known */
+    private ColourScale colourScale = null;
+    
     /**
      * The length of arrows in pixels, only used for vector plots
      */
@@ -202,6 +190,41 @@ public final class ImageProducer
             this.opacity, this.bgColor, this.lowColor, this.highColor, this.transparent);
     }
     
+    /**
+     * Returns true if this ImageProducer can render images in bands of rows
+     * using {@link #renderBand renderBand()}.  This is the case for boxfill
+     * images whose colour scale range is set in advance (i.e. we are not
+     * auto-scaling).
+     */
+    public boolean canRenderBands()
+    {
+        return this.style == Style.BOXFILL && !this.scaleRange.isEmpty();
+    }
+
+    /**
+     * Converts a horizontal band of scalar data, spanning the full width of
+     * the image, to colour indices in the {@link #getColorModel() colour model}.
+     * This allows very large images to be created without holding all the
+     * data or pixels in memory.  No label is drawn.
+     * @param data The data values, in the order of the data grid (i.e. with
+     * the vertical axis increasing upwards)
+     * @param numRows The number of rows in the band
+     * @param pixels Array to hold the colour indices, in image order (i.e.
+     * with the vertical axis increasing downwards).  Must have a length of
+     * exactly {@code numRows * picWidth}.
+     * @throws IllegalStateException if {@link #canRenderBands()} is false
+     */
+    public void renderBand(List<Float> data, int numRows, byte[] pixels)
+    {
+        if (!this.canRenderBands())
+        {
+            throw new IllegalStateException("Cannot render this image in bands");
+        }
+        // The scale range is not empty, so the colour scale cannot be null
+        this.getColourScale().getColourIndices(ColourScale.toFloatArray(data),
+                pixels, this.picWidth, numRows);
+    }
+
     /**
      * Creates and returns a single frame as an Image, based on the given data.
      * Adds the label if one has been set.  The scale must be set before
@@ -213,22 +236,23 @@ public final class ImageProducer
         }
 
         byte[] pixels = new byte[this.picWidth * this.picHeight];
-        String arrowStyle = "TRIVEC";
 
         List<Float> magnitudes = comps.getMagnitudes();
         //if (style != Style.ARROWS && style != Style.BARB) {
         if (!isArrowStyle(style) && style != Style.BARB) {
             // We get the magnitude of the input data (takes care of the case
             // in which the data are two components of a vector)
-            for (int i = 0; i < pixels.length; i++) {
+            ColourScale cs = this.getColourScale();
+            if (cs == null) {
+                // The scale can only be empty if all the data are missing
+                Arrays.fill(pixels, (byte) this.numColourBands);
+            } else {
                 // The image coordinate system has the vertical axis increasing
                 // downward, but the data's coordinate system has the vertical
-                // axis
-                // increasing upwards. The method below flips the axis
-                int dataIndex = this.getDataIndex(i);
-                pixels[i] = (byte) this.getColourIndex(magnitudes.get(dataIndex));
+                // axis increasing upwards: the ColourScale flips the axis
+                cs.getColourIndices(ColourScale.toFloatArray(magnitudes), pixels,
+                        this.picWidth, this.picHeight);
             }
-            arrowStyle = "STUMPVEC";
         } else {
             Arrays.fill(pixels, (byte) this.numColourBands);
         }
@@ -253,9 +277,10 @@ public final class ImageProducer
         }
 
         if (style == Style.VECTOR || isArrowStyle(style) || style == Style.BARB) {
-            Graphics2D g = image.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g.setColor(new Color(0, 0, 0));
+            // Glyphs are copied from the GlyphAtlas directly into the pixels
+            // of the image.  Plain vectors are drawn in the colour closest
+            // to black, other styles in the colour of the magnitude.
+            byte black = ((byte[]) colorModel.getDataElements(Color.BLACK.getRGB(), null))[0];
 
             float stepScale = 1.1f;
             float imageLength = this.arrowLength;
@@ -268,12 +293,12 @@ public final class ImageProducer
                 stepScale = 1.1f * this.vectorScale;
             }
 
-            int index;
             int dataIndex;
             double radangle;
-            Double mag;
+            Float mag;
             Float eastVal;
             Float northVal;
+            GlyphAtlas.Sprite sprite;
 
             for (int i = 0; i < this.picWidth; i += Math.ceil(imageLength + stepScale)) {
                 for (int j = 0; j < this.picHeight; j += Math.ceil(imageLength + stepScale)) {
@@ -282,24 +307,20 @@ public final class ImageProducer
                     northVal = comps.y.get(dataIndex);
                     if (eastVal != null && northVal != null) {
                         radangle = Math.atan2(eastVal.doubleValue(), northVal.doubleValue());
-                        mag = new Double(magnitudes.get(dataIndex));
+                        mag = magnitudes.get(dataIndex);
 
                         // Color arrow
-                        index = this.getColourIndex(mag.floatValue());
-                        if (this.style != Style.VECTOR) {
-                            g.setColor(new Color(colorModel.getRGB(index),
-                                                 colorModel.hasAlpha()));
-                        }
+                        byte colour = this.style == Style.VECTOR ? black
+                                : (byte) this.getColourIndex(mag);
                         if (this.style == Style.BARB) {
-                            g.setStroke(new BasicStroke(1));
-                            BarbFactory.renderWindBarbForSpeed(mag, radangle, i, j, this.units,
-                                    this.vectorScale, j >= this.equator_y_index, g);
+                            sprite = GlyphAtlas.getWindBarb(mag, this.units, radangle,
+                                    this.vectorScale, j >= this.equator_y_index);
                         } else {
                             // Arrows. We need to pick the style arrow now
-                        	arrowStyle = style.toString();
-                            VectorFactory.renderVector(arrowStyle, mag, radangle, i, j,
-                                    this.vectorScale, g);
+                            sprite = GlyphAtlas.getVector(style.toString(), radangle,
+                                    this.vectorScale);
                         }
+                        sprite.draw(pixels, this.picWidth, this.picHeight, i, j, colour);
                     }
                 }
             }
@@ -308,106 +329,24 @@ public final class ImageProducer
     }
     
     private BufferedImage createContourImage(Components comps, String label) {
-        double[] values = new double[picWidth * picHeight];
-        double[] xAxis = new double[picWidth];
-        double[] yAxis = new double[picHeight];
-
-        int count = 0;
-        List<Float> magnitudes = comps.getMagnitudes();
-        for (int i = 0; i < picWidth; i++) {
-            xAxis[i] = i;
-            for (int j = 0; j < picHeight; j++) {
-                yAxis[j] = picHeight - j - 1;
-                int index = i + (picHeight - j - 1) * picWidth;
-                Float value = magnitudes.get(index);
-                if(value == null) {
-                    values[count] = Double.NaN;
-                } else {
-                    values[count] = value;
-                }
-                count++;
-            }
-        }
-        
-        Float scaleMin = scaleRange.getMinimum();
-        Float scaleMax = scaleRange.getMaximum();
-        
-        SGTGrid sgtGrid = new SimpleGrid(values, xAxis, yAxis, null);
-
-        CartesianGraph cg = getCartesianGraph(sgtGrid, picWidth, picHeight);
-
-        double contourSpacing = (scaleMax - scaleMin) / numContours;
-
-        Range2D contourValues = new Range2D(scaleMin, scaleMax, contourSpacing);
-
-        ContourLevels clevels = ContourLevels.getDefault(contourValues);
-
-        DefaultContourLineAttribute defAttr = new DefaultContourLineAttribute();
-
-        defAttr.setLabelEnabled(true);
-        clevels.setDefaultContourLineAttribute(defAttr);
-
-        GridAttribute attr = new GridAttribute(clevels);
-        attr.setStyle(GridAttribute.CONTOUR);
+        BufferedImage image = new BufferedImage(picWidth, picHeight, BufferedImage.TYPE_INT_ARGB);
+        // The scale range is only empty if all the data are missing
+        if (this.scaleRange.isEmpty()) return image;
 
-        CartesianRenderer renderer = CartesianRenderer.getRenderer(cg, sgtGrid, attr);
+        // The data are already in the order expected by the renderer, with
+        // the vertical axis increasing upwards
+        float[] values = ColourScale.toFloatArray(comps.getMagnitudes());
+        double[] levels = ContourRenderer.getLevels(this.scaleRange, this.numContours);
+        ContourRenderer renderer = new ContourRenderer(levels, true, Color.BLACK);
 
-        BufferedImage image = new BufferedImage(picWidth, picHeight, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = image.createGraphics();
-        renderer.draw(g);
-        
-        return image;
-    }
+        renderer.render(values, picWidth, picHeight, g);
+        g.dispose();
 
-    private static CartesianGraph getCartesianGraph(SGTData data, int width, int height) {
-        /*
-         * To get fixed size labels we need to set a physical size much smaller
-         * than the pixel size (since pixels can't represent physical size).
-         * Since the SGT code is so heavily tied into the display mechanism, and
-         * a factor of around 100 seems to produce decent results, it's almost
-         * certainly measured in inches (96dpi being a fairly reasonable monitor
-         * resolution).
-         * 
-         * Anyway, setting the physical size as a constant factor of the pixel
-         * size gives good results.
-         * 
-         * Font size seems to be ignored.
-         */
-        double factor = 96;
-        double physWidth = width / factor;
-        double physHeight = height / factor;
-
-        gov.noaa.pmel.sgt.Layer layer = new gov.noaa.pmel.sgt.Layer("", new Dimension2D(physWidth, physHeight));
-        JPane pane = new JPane("id", new Dimension(width, height));
-        layer.setPane(pane);
-        layer.setBounds(0, 0, width, height);
-
-        CartesianGraph graph = new CartesianGraph();
-        // Create Ranges representing the size of the image
-        Range2D physXRange = new Range2D(0, physWidth);
-        Range2D physYRange = new Range2D(0, physHeight);
-        // These transforms convert x and y coordinates to pixel indices
-        LinearTransform xt = new LinearTransform(physXRange, data.getXRange());
-        LinearTransform yt = new LinearTransform(physYRange, data.getYRange());
-        graph.setXTransform(xt);
-        graph.setYTransform(yt);
-        layer.setGraph(graph);
-        return graph;
+        return image;
     }
     
 
-    /**
-     * Calculates the index of the data point in a data array that corresponds
-     * with the given index in the image array, taking into account that the
-     * vertical axis is flipped.
-     */
-    private int getDataIndex(int imageIndex)
-    {
-        int imageI = imageIndex % this.picWidth;
-        int imageJ = imageIndex / this.picWidth;
-        return this.getDataIndex(imageI, imageJ);
-    }
-
     /**
      * Calculates the index of the data point in a data array that corresponds
      * with the given index in the image array, taking into account that the
@@ -426,27 +365,21 @@ public final class ImageProducer
     public int getColourIndex(Float value) {
         if (value == null) {
             return this.numColourBands; // represents a background pixel
-        } else if (value < scaleRange.getMinimum()) {
-            return this.numColourBands + 1; // represents a low out-of-range pixel
-        } else if (value > scaleRange.getMaximum()) {
-            return this.numColourBands + 2; // represents a high out-of-range pixel
-        } else {
-            float scaleMin = this.scaleRange.getMinimum().floatValue();
-            float scaleMax = this.scaleRange.getMaximum().floatValue();
-            double min = this.logarithmic ? Math.log(scaleMin) : scaleMin;
-            double max = this.logarithmic ? Math.log(scaleMax) : scaleMax;
-            double val = this.logarithmic ? Math.log(value) : value;
-            double frac = (val - min) / (max - min);
-            // Compute and return the index of the corresponding colour
-            int index = (int) (frac * this.numColourBands);
-            // For values very close to the maximum value in the range, this
-            // index might turn out to be equal to this.numColourBands due to
-            // rounding error. In this case we subtract one from the index to
-            // ensure that such pixels are not displayed as background pixels.
-            if (index == this.numColourBands)
-                index--;
-            return index;
         }
+        return this.getColourScale().getColourIndex(value);
+    }
+    
+    /**
+     * Returns the {@link ColourScale} for this ImageProducer, or null if the
+     * scale range is empty (i.e. we are auto-scaling and all the data are
+     * missing).  Must not be called before the scale is set.
+     */
+    private ColourScale getColourScale() {
+        if (this.colourScale == null && !this.scaleRange.isEmpty()) {
+            this.colourScale = new ColourScale(this.scaleRange,
+                    this.numColourBands, this.logarithmic);
+        }
+        return this.colourScale;
     }
     
     /**
@@ -489,8 +422,10 @@ public final class ImageProducer
             // We have a cache of image data, which we use to generate the colour scale
             for (Components comps : this.frameData)
             {
-                // We only use the first component if this is a vector quantity
-                Range<Float> range = Ranges.findMinMax(comps.x);
+                // We only use the first component if this is a vector quantity.
+                // This uses the statistics that were gathered when the data
+                // were read, if possible.
+                Range<Float> range = DataStatistics.findValueRange(comps.x);
                 // TODO: could move this logic to the Range/Ranges class
                 if (!range.isEmpty())
                 {
@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Writes 8-bit palette-based PNG images, as produced by {@link ImageProducer}.
+ * This is considerably faster than using ImageIO for these images: the
+ * palette and transparency chunks are written directly from the
+ * {@link IndexColorModel} and each row is filtered using a cheap heuristic that
+ * suits palette data with large uniform areas.</p>
+ *
+ * <p>Images can be written in one go using {@link #write(BufferedImage,
+ * OutputStream, int)} or row-by-row using {@link #start start()},
+ * {@link #writeRows writeRows()} and {@link #finish finish()}, which allows
+ * large images to be streamed without holding the whole raster in memory.
+ * Each image holds a {@link Deflater}, whose native memory is released by
+ * {@link #finish finish()}, or by {@link #abort abort()} if the image is
+ * abandoned part-way through.
+ * Animations can be written as Animated PNGs using {@link #writeAnimation
+ * writeAnimation()}.  Instances of this class must not be shared between
+ * threads.</p>
+ *
+ * @author Jon Blower
+ */
+public final class IndexedPngWriter
+{
+    private static final byte[] SIGNATURE = {
+        (byte)137, 80, 78, 71, 13, 10, 26, 10
+    };
+    private static final int COLOUR_TYPE_INDEXED = 3;
+
+    // Row filter types (see the PNG specification)
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+
+    // Frame disposal and blending operations (see the APNG specification)
+    private static final int APNG_DISPOSE_OP_NONE = 0;
+    private static final int APNG_BLEND_OP_SOURCE = 0;
+
+    /** Maximum size of each IDAT or fdAT chunk */
+    private static final int CHUNK_SIZE = 32768;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final CRC32 crc = new CRC32();
+
+    /** Compresses rows into IDAT chunks: null for animations */
+    private RowCompressor compressor = null;
+    private int rowsWritten = 0;
+
+    /**
+     * Returns true if the given image can be written by this class, i.e. it
+     * has an {@link IndexColorModel} and 8-bit samples, one per byte.
+     */
+    public static boolean canWrite(BufferedImage image)
+    {
+        if (!(image.getColorModel() instanceof IndexColorModel)) return false;
+        if (image.getColorModel().getPixelSize() != 8) return false;
+        if (image.getRaster().getParent() != null) return false; // subimages
+        SampleModel sm = image.getSampleModel();
+        return sm instanceof PixelInterleavedSampleModel &&
+               sm.getNumBands() == 1 &&
+               ((PixelInterleavedSampleModel)sm).getPixelStride() == 1 &&
+               ((PixelInterleavedSampleModel)sm).getScanlineStride() == image.getWidth() &&
+               image.getRaster().getDataBuffer() instanceof DataBufferByte &&
+               image.getRaster().getDataBuffer().getNumBanks() == 1 &&
+               image.getRaster().getDataBuffer().getOffset() == 0;
+    }
+
+    /**
+     * Writes the given image, which must satisfy {@link #canWrite(BufferedImage)},
+     * to the given output stream.
+     * @param compressionLevel The level of compression, from 0 (none) to 9 (best)
+     */
+    public static void write(BufferedImage image, OutputStream out, int compressionLevel)
+            throws IOException
+    {
+        IndexedPngWriter writer = start(out, image.getWidth(), image.getHeight(),
+            getColorModel(image), compressionLevel);
+        try
+        {
+            writer.writeRows(getPixels(image), 0, image.getHeight());
+            writer.finish();
+        }
+        finally
+        {
+            writer.abort();
+        }
+    }
+
+    /**
+     * Starts writing a PNG image, writing the header, palette and
+     * transparency information to the given stream.  The caller must then
+     * call {@link #writeRows writeRows()} until all rows have been written,
+     * then {@link #finish()}, or {@link #abort()} if the image is abandoned.
+     * @param compressionLevel The level of compression, from 0 (none) to 9 (best)
+     */
+    public static IndexedPngWriter start(OutputStream out, int width, int height,
+            IndexColorModel colorModel, int compressionLevel) throws IOException
+    {
+        final IndexedPngWriter writer = new IndexedPngWriter(out, width, height);
+        writer.writeHeader(colorModel, 1);
+        // Each block of compressed data becomes an IDAT chunk
+        writer.compressor = new RowCompressor(width, compressionLevel, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[]{(byte)b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writer.writeChunk("IDAT", b, off, len);
+            }
+        });
+        return writer;
+    }
+
+    /**
+     * <p>Writes the given frames, which must all satisfy {@link #canWrite(BufferedImage)}
+     * and have the same size and colour model, as an Animated PNG that loops
+     * indefinitely.  (Viewers that do not support APNG will show the first
+     * frame.)  If there is only one frame, a normal PNG is written.</p>
+     *
+     * <p>Each frame after the first covers only the bounding box of the pixels
+     * that have changed since the previous frame, replacing (not blending
+     * with) the pixels of the previous frame, so that partially-transparent
+     * images are displayed correctly.  The frames are compressed in parallel.</p>
+     *
+     * @param compressionLevel The level of compression, from 0 (none) to 9 (best)
+     * @param delayMs The delay between frames in milliseconds
+     */
+    public static void writeAnimation(List<BufferedImage> frames, OutputStream out,
+            final int compressionLevel, int delayMs) throws IOException
+    {
+        BufferedImage firstFrame = frames.get(0);
+        if (frames.size() == 1)
+        {
+            write(firstFrame, out, compressionLevel);
+            return;
+        }
+        final int width = firstFrame.getWidth();
+        int height = firstFrame.getHeight();
+        IndexColorModel colorModel = getColorModel(firstFrame);
+
+        // Work out the region of each frame that must be drawn
+        List<byte[]> pixels = new ArrayList<byte[]>(frames.size());
+        List<Rectangle> regions = new ArrayList<Rectangle>(frames.size());
+        for (BufferedImage frame : frames)
+        {
+            if (frame.getWidth() != width || frame.getHeight() != height)
+            {
+                throw new IllegalArgumentException("All frames must be the same size");
+            }
+            byte[] framePixels = getPixels(frame);
+            Rectangle region;
+            if (pixels.isEmpty())
+            {
+                region = new Rectangle(0, 0, width, height);
+            }
+            else
+            {
+                region = getChangedRegion(pixels.get(pixels.size() - 1),
+                    framePixels, width, height);
+                // If nothing has changed we still need a frame to mark the delay
+                if (region == null) region = new Rectangle(0, 0, 1, 1);
+            }
+            pixels.add(framePixels);
+            regions.add(region);
+        }
+
+        // Compress the frames in parallel
+        List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(frames.size());
+        for (int i = 0; i < frames.size(); i++)
+        {
+            final byte[] framePixels = pixels.get(i);
+            final Rectangle region = regions.get(i);
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return compress(framePixels, width, region, compressionLevel);
+                }
+            });
+        }
+        List<byte[]> compressedFrames = ParallelEncoder.invokeAll(tasks);
+
+        // Now write the frames in order.  The fcTL and fdAT chunks share a
+        // sequence number.
+        IndexedPngWriter writer = new IndexedPngWriter(out, width, height);
+        writer.writeHeader(colorModel, frames.size());
+        int sequenceNumber = 0;
+        for (int i = 0; i < frames.size(); i++)
+        {
+            writer.writeFrameControl(sequenceNumber++, regions.get(i), delayMs);
+            byte[] data = compressedFrames.get(i);
+            for (int off = 0; off < data.length; off += CHUNK_SIZE)
+            {
+                int len = Math.min(CHUNK_SIZE, data.length - off);
+                if (i == 0)
+                {
+                    // The first frame is also the default image
+                    writer.writeChunk("IDAT", data, off, len);
+                }
+                else
+                {
+                    byte[] fdat = new byte[len + 4];
+                    putInt(fdat, 0, sequenceNumber++);
+                    System.arraycopy(data, off, fdat, 4, len);
+                    writer.writeChunk("fdAT", fdat, 0, fdat.length);
+                }
+            }
+        }
+        writer.writeChunk("IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    private static IndexColorModel getColorModel(BufferedImage image)
+    {
+        if (!canWrite(image))
+        {
+            throw new IllegalArgumentException("Image is not an 8-bit indexed image");
+        }
+        return (IndexColorModel)image.getColorModel();
+    }
+
+    private static byte[] getPixels(BufferedImage image)
+    {
+        return ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the bounding box of the pixels that differ between the two
+     * frames, or null if they are identical.
+     */
+    private static Rectangle getChangedRegion(byte[] prev, byte[] frame,
+        int width, int height)
+    {
+        int minI = width, maxI = -1, minJ = height, maxJ = -1;
+        int index = 0;
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++, index++)
+            {
+                if (prev[index] != frame[index])
+                {
+                    if (i < minI) minI = i;
+                    if (i > maxI) maxI = i;
+                    if (j < minJ) minJ = j;
+                    maxJ = j;
+                }
+            }
+        }
+        return maxI < 0 ? null : new Rectangle(minI, minJ, maxI - minI + 1, maxJ - minJ + 1);
+    }
+
+    /**
+     * Filters and compresses the given region of an image, returning the
+     * zlib datastream.
+     */
+    private static byte[] compress(byte[] pixels, int imageWidth, Rectangle region,
+        int compressionLevel) throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        RowCompressor rc = new RowCompressor(region.width, compressionLevel, buf);
+        try
+        {
+            for (int j = region.y; j < region.y + region.height; j++)
+            {
+                rc.compressRow(pixels, j * imageWidth + region.x);
+            }
+            rc.finish();
+        }
+        finally
+        {
+            rc.end();
+        }
+        return buf.toByteArray();
+    }
+
+    private IndexedPngWriter(OutputStream out, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Writes the signature, header, palette and transparency information,
+     * and for animations the animation control chunk.
+     */
+    private void writeHeader(IndexColorModel cm, int numFrames) throws IOException
+    {
+        this.out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, this.width);
+        putInt(ihdr, 4, this.height);
+        ihdr[8] = 8;                    // bit depth
+        ihdr[9] = COLOUR_TYPE_INDEXED;
+        ihdr[10] = 0;                   // deflate compression
+        ihdr[11] = 0;                   // adaptive filtering
+        ihdr[12] = 0;                   // no interlacing
+        this.writeChunk("IHDR", ihdr, 0, ihdr.length);
+
+        if (numFrames > 1)
+        {
+            byte[] actl = new byte[8];
+            putInt(actl, 0, numFrames);
+            putInt(actl, 4, 0);         // loop indefinitely
+            this.writeChunk("acTL", actl, 0, actl.length);
+        }
+
+        int size = cm.getMapSize();
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        cm.getReds(r);
+        cm.getGreens(g);
+        cm.getBlues(b);
+        cm.getAlphas(a);
+
+        byte[] plte = new byte[size * 3];
+        // Trailing entries that are fully opaque can be omitted from tRNS
+        int numAlphas = 0;
+        for (int i = 0; i < size; i++)
+        {
+            plte[3 * i] = r[i];
+            plte[3 * i + 1] = g[i];
+            plte[3 * i + 2] = b[i];
+            if (a[i] != (byte)255) numAlphas = i + 1;
+        }
+        this.writeChunk("PLTE", plte, 0, plte.length);
+        if (numAlphas > 0) this.writeChunk("tRNS", a, 0, numAlphas);
+    }
+
+    /** Writes the fcTL chunk that precedes the data of an animation frame */
+    private void writeFrameControl(int sequenceNumber, Rectangle region, int delayMs)
+        throws IOException
+    {
+        byte[] fctl = new byte[26];
+        putInt(fctl, 0, sequenceNumber);
+        putInt(fctl, 4, region.width);
+        putInt(fctl, 8, region.height);
+        putInt(fctl, 12, region.x);
+        putInt(fctl, 16, region.y);
+        fctl[20] = (byte)(delayMs >>> 8);  // delay numerator
+        fctl[21] = (byte)delayMs;
+        fctl[22] = (byte)(1000 >>> 8);     // delay denominator
+        fctl[23] = (byte)1000;
+        fctl[24] = APNG_DISPOSE_OP_NONE;
+        fctl[25] = APNG_BLEND_OP_SOURCE;
+        this.writeChunk("fcTL", fctl, 0, fctl.length);
+    }
+
+    /**
+     * Writes rows of pixels (palette indices) to the image
+     * @param pixels Array containing the pixels, one byte per pixel
+     * @param offset The index in the array of the first pixel to be written
+     * @param numRows The number of complete rows to write
+     * @throws IllegalStateException if this would exceed the height of the image
+     */
+    public void writeRows(byte[] pixels, int offset, int numRows) throws IOException
+    {
+        if (this.rowsWritten + numRows > this.height)
+        {
+            throw new IllegalStateException("Too many rows written");
+        }
+        for (int row = 0; row < numRows; row++)
+        {
+            this.compressor.compressRow(pixels, offset + row * this.width);
+        }
+        this.rowsWritten += numRows;
+    }
+
+    /**
+     * Finishes the image, flushing all compressed data and writing the
+     * end chunk.  Does not close the output stream.
+     * @throws IllegalStateException if not all rows have been written
+     */
+    public void finish() throws IOException
+    {
+        if (this.rowsWritten != this.height)
+        {
+            throw new IllegalStateException("Only " + this.rowsWritten + " of "
+                + this.height + " rows have been written");
+        }
+        try
+        {
+            this.compressor.finish();
+        }
+        finally
+        {
+            this.compressor.end();
+        }
+        this.writeChunk("IEND", new byte[0], 0, 0);
+        this.out.flush();
+    }
+
+    /**
+     * Releases the resources used to compress the image.  This must be called
+     * if an image is abandoned before {@link #finish()} completes; calling it
+     * after finish() has no effect.
+     */
+    public void abort()
+    {
+        if (this.compressor != null) this.compressor.end();
+    }
+
+    private void writeChunk(String type, byte[] data, int off, int len) throws IOException
+    {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] buf = new byte[4];
+        putInt(buf, 0, len);
+        this.out.write(buf);
+        this.out.write(typeBytes);
+        this.out.write(data, off, len);
+        this.crc.reset();
+        this.crc.update(typeBytes);
+        this.crc.update(data, off, len);
+        putInt(buf, 0, (int)this.crc.getValue());
+        this.out.write(buf);
+    }
+
+    private static void putInt(byte[] buf, int off, int val)
+    {
+        buf[off]     = (byte)(val >>> 24);
+        buf[off + 1] = (byte)(val >>> 16);
+        buf[off + 2] = (byte)(val >>> 8);
+        buf[off + 3] = (byte)val;
+    }
+
+    /**
+     * Filters rows of pixels and compresses them into a zlib datastream,
+     * which is written to an output stream in blocks of at most
+     * {@link #CHUNK_SIZE} bytes.  The {@link Deflater} holds native memory,
+     * so {@link #end()} must always be called.
+     */
+    private static final class RowCompressor
+    {
+        private final int width;
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final byte[] prevRow;   // The previous row (unfiltered), all zeros for the first row
+        private final byte[] filtered;  // The filter type byte followed by the filtered row
+        private final byte[] candidate; // Workspace for trying filters
+        private final byte[] buf = new byte[CHUNK_SIZE];
+        private int bufLength = 0;
+
+        public RowCompressor(int width, int compressionLevel, OutputStream out)
+        {
+            this.width = width;
+            this.out = out;
+            this.prevRow = new byte[width];
+            this.filtered = new byte[width + 1];
+            this.candidate = new byte[width + 1];
+            this.deflater = new Deflater(compressionLevel);
+        }
+
+        /** Filters and compresses the row that starts at the given index */
+        public void compressRow(byte[] pixels, int start) throws IOException
+        {
+            this.filterRow(pixels, start);
+            this.deflater.setInput(this.filtered, 0, this.filtered.length);
+            while (!this.deflater.needsInput()) this.deflate();
+            // Remember this row for the UP filter of the next row
+            System.arraycopy(pixels, start, this.prevRow, 0, this.width);
+        }
+
+        /**
+         * Chooses a filter for the row, putting the filtered row into
+         * this.filtered.  Palette data usually compress best unfiltered, but
+         * gradients of colour compress better with the SUB or UP filters.
+         * We use the standard heuristic of choosing the filter that minimizes the
+         * sum of the absolute values of the (signed) filtered bytes.
+         */
+        private void filterRow(byte[] pixels, int start)
+        {
+            // FILTER_NONE
+            this.filtered[0] = FILTER_NONE;
+            long bestSum = 0;
+            for (int i = 0; i < this.width; i++)
+            {
+                byte val = pixels[start + i];
+                this.filtered[i + 1] = val;
+                bestSum += Math.abs(val);
+            }
+            if (bestSum == 0) return; // Can't do better than this
+
+            // FILTER_SUB: difference from the pixel to the left
+            this.candidate[0] = FILTER_SUB;
+            long sum = 0;
+            byte left = 0;
+            for (int i = 0; i < this.width && sum < bestSum; i++)
+            {
+                byte val = pixels[start + i];
+                byte diff = (byte)(val - left);
+                this.candidate[i + 1] = diff;
+                sum += Math.abs(diff);
+                left = val;
+            }
+            if (sum < bestSum)
+            {
+                bestSum = sum;
+                System.arraycopy(this.candidate, 0, this.filtered, 0, this.filtered.length);
+            }
+
+            // FILTER_UP: difference from the pixel above (equivalent to NONE
+            // for the first row, so will never be chosen there)
+            this.candidate[0] = FILTER_UP;
+            sum = 0;
+            for (int i = 0; i < this.width && sum < bestSum; i++)
+            {
+                byte diff = (byte)(pixels[start + i] - this.prevRow[i]);
+                this.candidate[i + 1] = diff;
+                sum += Math.abs(diff);
+            }
+            if (sum < bestSum)
+            {
+                System.arraycopy(this.candidate, 0, this.filtered, 0, this.filtered.length);
+            }
+        }
+
+        /** Compresses data into the buffer, writing it out whenever it fills */
+        private void deflate() throws IOException
+        {
+            int n = this.deflater.deflate(this.buf, this.bufLength, CHUNK_SIZE - this.bufLength);
+            this.bufLength += n;
+            if (this.bufLength == CHUNK_SIZE)
+            {
+                this.out.write(this.buf, 0, this.bufLength);
+                this.bufLength = 0;
+            }
+        }
+
+        /** Flushes all the compressed data */
+        public void finish() throws IOException
+        {
+            this.deflater.finish();
+            while (!this.deflater.finished()) this.deflate();
+            if (this.bufLength > 0)
+            {
+                this.out.write(this.buf, 0, this.bufLength);
+                this.bufLength = 0;
+            }
+        }
+
+        /** Releases the native memory of the deflater: may be called more than once */
+        public void end()
+        {
+            this.deflater.end();
+        }
+    }
+}
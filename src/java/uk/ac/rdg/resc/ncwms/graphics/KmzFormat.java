@@ -29,12 +29,15 @@
 package uk.ac.rdg.resc.ncwms.graphics;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
-import javax.imageio.ImageIO;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +48,8 @@ import uk.ac.rdg.resc.ncwms.wms.Layer;
 /**
  * Creates KMZ files for importing into Google Earth.  Only one instance of this class
  * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * thread safety.  The frames are encoded as PNGs in parallel and stored in
+ * the KMZ file without further compression.
  * @todo Would this be better handled by a JSP?
  *
  * @author Jon Blower
@@ -81,38 +85,35 @@ public class KmzFormat extends ImageFormat
         OutputStream out, Layer layer, List<String> tValues,
         String zValue, BoundingBox bbox, BufferedImage legend) throws IOException
     {
-        StringBuffer kml = new StringBuffer();
-        
+        // Encode the frames and the colour scale in parallel: this is the
+        // slowest part of creating the KMZ file
+        logger.debug("Encoding frames and colour scale");
+        List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(frames.size() + 1);
+        for (BufferedImage frame : frames)
+        {
+            tasks.add(new PngEncodingTask(frame));
+        }
+        tasks.add(new PngEncodingTask(legend));
+        List<byte[]> pngs = ParallelEncoder.invokeAll(tasks);
+
+        StringBuilder kml = new StringBuilder(getKmlHeader(layer));
+
+        // These parts of the document are the same for each frame
+        String elevation = null;
+        if (zValue != null && !zValue.equals("") && layer.getElevationValues() != null)
+        {
+            elevation = "Elevation: " + zValue + " " + layer.getElevationUnits();
+        }
+        String latLonBox = "<west>"  + bbox.getMinX() + "</west>"
+            + "<south>" + bbox.getMinY() + "</south>"
+            + "<east>"  + bbox.getMaxX() + "</east>"
+            + "<north>" + bbox.getMaxY() + "</north>"
+            + "<rotation>0</rotation>";
+
         for (int frameIndex = 0; frameIndex < frames.size(); frameIndex++)
         {
-            if (frameIndex == 0)
-            {
-                // This is the first frame.  Add the KML header and folder metadata
-                kml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-                kml.append(System.getProperty("line.separator"));
-                kml.append("<kml xmlns=\"http://earth.google.com/kml/2.0\">");
-                kml.append("<Folder>");
-                kml.append("<visibility>1</visibility>");
-                kml.append("<name>" + layer.getDataset().getId() + ", " +
-                    layer.getId() + "</name>");
-                kml.append("<description>" + layer.getDataset().getTitle() + ", "
-                    + layer.getTitle() + ": " + layer.getLayerAbstract() +
-                    "</description>");
-
-                // Add the screen overlay containing the colour scale
-                kml.append("<ScreenOverlay>");
-                kml.append("<name>Colour scale</name>");
-                kml.append("<Icon><href>" + COLOUR_SCALE_FILENAME + "</href></Icon>");
-                kml.append("<overlayXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
-                kml.append("<screenXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
-                kml.append("<rotationXY x=\"0\" y=\"0\" xunits=\"fraction\" yunits=\"fraction\"/>");
-                kml.append("<size x=\"0\" y=\"0\" xunits=\"fraction\" yunits=\"fraction\"/>");
-                kml.append("</ScreenOverlay>");
-            }
-        
             kml.append("<GroundOverlay>");
             String timestamp = null;
-            String z = null;
             if (tValues.get(frameIndex) != null && !tValues.get(frameIndex).equals(""))
             {
                 // We must make sure the ISO8601 timestamp is full and includes
@@ -121,37 +122,28 @@ public class KmzFormat extends ImageFormat
                 // TODO: not sure if this will work for 360-day calendars...
                 DateTime dt = WmsUtils.iso8601ToDateTime(tValues.get(frameIndex), layer.getChronology());
                 timestamp = WmsUtils.dateTimeToISO8601(dt);
-                kml.append("<TimeStamp><when>" + timestamp + "</when></TimeStamp>");
-            }
-            if (zValue != null && !zValue.equals("") && layer.getElevationValues() != null)
-            {
-                z = "";
-                if (timestamp != null) z += "<br />";
-                z += "Elevation: " + zValue + " " + layer.getElevationUnits();
+                kml.append("<TimeStamp><when>").append(timestamp).append("</when></TimeStamp>");
             }
             kml.append("<name>");
-            if (timestamp == null && z == null)
+            if (timestamp == null && elevation == null)
             {
-                kml.append("Frame " + frameIndex);
+                kml.append("Frame ").append(frameIndex);
             }
             else
             {
                 kml.append("<![CDATA[");
-                if (timestamp != null) kml.append("Time: " + timestamp);
-                if (z != null) kml.append(z);
+                if (timestamp != null) kml.append("Time: ").append(timestamp);
+                if (timestamp != null && elevation != null) kml.append("<br />");
+                if (elevation != null) kml.append(elevation);
                 kml.append("]]>");
             }
             kml.append("</name>");
             kml.append("<visibility>1</visibility>");
 
-            kml.append("<Icon><href>" + getPicFileName(frameIndex) + "</href></Icon>");
+            kml.append("<Icon><href>").append(getPicFileName(frameIndex)).append("</href></Icon>");
 
-            kml.append("<LatLonBox id=\"" + frameIndex + "\">");
-            kml.append("<west>"  + bbox.getMinX() + "</west>");
-            kml.append("<south>" + bbox.getMinY() + "</south>");
-            kml.append("<east>"  + bbox.getMaxX() + "</east>");
-            kml.append("<north>" + bbox.getMaxY() + "</north>");
-            kml.append("<rotation>0</rotation>");
+            kml.append("<LatLonBox id=\"").append(frameIndex).append("\">");
+            kml.append(latLonBox);
             kml.append("</LatLonBox>");
             kml.append("</GroundOverlay>");
         }
@@ -168,29 +160,92 @@ public class KmzFormat extends ImageFormat
             layer.getId() + ".kml");
         kmlEntry.setTime(System.currentTimeMillis());
         zipOut.putNextEntry(kmlEntry);
-        zipOut.write(kml.toString().getBytes());
+        zipOut.write(kml.toString().getBytes("UTF-8"));
         
-        // Now write all the images
-        int frameIndex = 0;
+        // Now write all the images.  These are already compressed, so we
+        // store them without compressing them again.
         logger.debug("Writing frames to KMZ file");
-        for (BufferedImage frame : frames)
+        for (int frameIndex = 0; frameIndex < frames.size(); frameIndex++)
         {
-            ZipEntry picEntry = new ZipEntry(getPicFileName(frameIndex));
-            frameIndex++;
-            zipOut.putNextEntry(picEntry);
-            ImageIO.write(frame, PICEXT, zipOut);
+            writeStoredEntry(zipOut, getPicFileName(frameIndex), pngs.get(frameIndex));
         }
         
         // Finally, write the colour scale
-        logger.debug("Constructing colour scale image");
-        ZipEntry scaleEntry = new ZipEntry(COLOUR_SCALE_FILENAME);
-        zipOut.putNextEntry(scaleEntry);
-        // Write the colour scale bar to the KMZ file
         logger.debug("Writing colour scale image to KMZ file");
-        ImageIO.write(legend, PICEXT, zipOut);
+        writeStoredEntry(zipOut, COLOUR_SCALE_FILENAME, pngs.get(frames.size()));
         
         zipOut.close();
     }
+
+    /** Encodes a single image as a PNG */
+    private static final class PngEncodingTask implements Callable<byte[]>
+    {
+        private final BufferedImage image;
+
+        public PngEncodingTask(BufferedImage image)
+        {
+            this.image = image;
+        }
+
+        @Override
+        public byte[] call() throws IOException
+        {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            PngFormat.writePng(this.image, buf);
+            return buf.toByteArray();
+        }
+    }
+
+    /**
+     * Writes an uncompressed entry to the zip file.  The size and checksum
+     * of STORED entries must be known before the data are written.
+     */
+    private static void writeStoredEntry(ZipOutputStream zipOut, String name,
+        byte[] data) throws IOException
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        zipOut.putNextEntry(entry);
+        zipOut.write(data);
+        zipOut.closeEntry();
+    }
+
+    /**
+     * Gets the start of the KML document for the given layer, containing the
+     * folder metadata and the screen overlay for the colour scale.  This is
+     * built for each request, as the titles and abstract can be changed
+     * by the administrator at any time.
+     */
+    private static String getKmlHeader(Layer layer)
+    {
+        StringBuilder kml = new StringBuilder();
+        kml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        kml.append(System.getProperty("line.separator"));
+        kml.append("<kml xmlns=\"http://earth.google.com/kml/2.0\">");
+        kml.append("<Folder>");
+        kml.append("<visibility>1</visibility>");
+        kml.append("<name>" + layer.getDataset().getId() + ", " +
+            layer.getId() + "</name>");
+        kml.append("<description>" + layer.getDataset().getTitle() + ", "
+            + layer.getTitle() + ": " + layer.getLayerAbstract() +
+            "</description>");
+
+        // Add the screen overlay containing the colour scale
+        kml.append("<ScreenOverlay>");
+        kml.append("<name>Colour scale</name>");
+        kml.append("<Icon><href>" + COLOUR_SCALE_FILENAME + "</href></Icon>");
+        kml.append("<overlayXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
+        kml.append("<screenXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
+        kml.append("<rotationXY x=\"0\" y=\"0\" xunits=\"fraction\" yunits=\"fraction\"/>");
+        kml.append("<size x=\"0\" y=\"0\" xunits=\"fraction\" yunits=\"fraction\"/>");
+        kml.append("</ScreenOverlay>");
+        return kml.toString();
+    }
     
     /**
      * @return the name of the picture file with the given index
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent encoding tasks (e.g. compressing the frames of an
+ * animation) in parallel, returning the results in their original order so
+ * that they can be written sequentially.  The tasks must not themselves
+ * submit work to this class or to the {@link RenderingThreads shared pool of
+ * threads}, as they could wait forever for a free thread.
+ * @author Jon Blower
+ */
+final class ParallelEncoder
+{
+    /** Prevents instantiation */
+    private ParallelEncoder() {}
+
+    /**
+     * Runs all the given tasks and returns their results in the same order.
+     * If there is only one task, only one processor, or no
+     * {@link RenderingThreads shared pool of threads}, the tasks are run in
+     * the calling thread.
+     * @throws IOException if any of the tasks throws an IOException
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException
+    {
+        List<T> results = new ArrayList<T>(tasks.size());
+        ExecutorService executor = RenderingThreads.getExecutor();
+        if (tasks.size() < 2 || executor == null || RenderingThreads.getNumThreads() < 2)
+        {
+            for (Callable<T> task : tasks)
+            {
+                try
+                {
+                    results.add(task.call());
+                }
+                catch (IOException ioe)
+                {
+                    throw ioe;
+                }
+                catch (RuntimeException re)
+                {
+                    throw re;
+                }
+                catch (Exception e)
+                {
+                    throw new IOException("Error encoding image", e);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks)
+        {
+            futures.add(executor.submit(task));
+        }
+        try
+        {
+            for (Future<T> future : futures)
+            {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding image", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IOException("Error encoding image", cause);
+        }
+        finally
+        {
+            // Don't leave tasks running if one of them failed
+            for (Future<T> future : futures) future.cancel(true);
+        }
+    }
+}
@@ -56,6 +56,15 @@ public class Png32Format extends PngFormat
         return "image/png;mode=32bit";
     }
 
+    /**
+     * Returns false: images are converted to 32-bit ARGB before writing.
+     */
+    @Override
+    public boolean isIndexed()
+    {
+        return false;
+    }
+
     @Override
     public void writeImage(List<BufferedImage> frames, OutputStream out) throws IOException
     {
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.ncwms.graphics;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import javax.imageio.ImageIO;
 
 import java.io.OutputStream;
@@ -36,13 +37,23 @@ import java.io.IOException;
 import java.util.List;
 
 /**
- * Writes PNG images using the ImageIO class.  Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * Writes PNG images.  8-bit palette-based images (i.e. all images produced
+ * by the {@link ImageProducer}) are written with the {@link IndexedPngWriter};
+ * all others are written using the ImageIO class.  Only one instance of this
+ * class will ever be created, so this class contains no member variables
+ * (other than the global compression level) to ensure thread safety.
  * @author jdb
  */
 public class PngFormat extends SimpleFormat
 {
+    /**
+     * The default compression level for indexed images.  Higher levels give
+     * little reduction in size for typical map images but cost much more time.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+
+    private static volatile int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
     /**
      * Protected default constructor to prevent direct instantiation.
      */
@@ -79,6 +90,61 @@ public class PngFormat extends SimpleFormat
         {
             throw new IllegalArgumentException("Cannot render animations in PNG format");
         }
-        ImageIO.write(frames.get(0), "png", out);
+        writePng(frames.get(0), out);
+    }
+
+    /**
+     * Writes a single image as a PNG, using the {@link IndexedPngWriter} if
+     * possible and ImageIO otherwise.
+     */
+    static void writePng(BufferedImage image, OutputStream out) throws IOException
+    {
+        if (IndexedPngWriter.canWrite(image))
+        {
+            IndexedPngWriter.write(image, out, compressionLevel);
+        }
+        else
+        {
+            ImageIO.write(image, "png", out);
+        }
+    }
+
+    /**
+     * Returns true if this format writes images in their original 8-bit
+     * indexed form, in which case large images can be written in bands of
+     * rows using {@link #startIndexedImage startIndexedImage()}.
+     */
+    public boolean isIndexed()
+    {
+        return true;
+    }
+
+    /**
+     * Starts writing an indexed image row-by-row, using the current
+     * compression level.  The caller must write all the rows of the image,
+     * then call {@link IndexedPngWriter#finish()}.
+     */
+    public IndexedPngWriter startIndexedImage(OutputStream out, int width,
+            int height, IndexColorModel colorModel) throws IOException
+    {
+        return IndexedPngWriter.start(out, width, height, colorModel, compressionLevel);
+    }
+
+    /**
+     * Sets the level of compression used for indexed images, from 0 (no
+     * compression, fastest) to 9 (best compression, slowest).  Out-of-range
+     * values are clipped to this range.
+     */
+    public static void setCompressionLevel(int level)
+    {
+        compressionLevel = Math.max(0, Math.min(9, level));
+    }
+
+    /**
+     * Returns the level of compression used for indexed images
+     */
+    public static int getCompressionLevel()
+    {
+        return compressionLevel;
     }
 }
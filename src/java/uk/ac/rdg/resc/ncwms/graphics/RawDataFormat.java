@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
+import uk.ac.rdg.resc.edal.util.Range;
+
+/**
+ * <p>Writes the data values behind a GetMap response, rather than a coloured
+ * image, so that clients (e.g. using WebGL) can colour the data themselves
+ * and change the styling without further requests to the server.  The
+ * {@link ImageProducer} and image encoders are not used at all, so raw data
+ * formats are not {@link ImageFormat}s: they have their own registry of
+ * supported MIME types.</p>
+ *
+ * <p>The response consists of a 40-byte header followed by the data.  All
+ * numbers are little-endian:</p>
+ * <pre>
+ *   bytes 0-3    magic number "NCWD"
+ *   byte  4      version (1)
+ *   byte  5      sample type: 0 = float32, 1 = uint16
+ *   bytes 6-7    reserved (0)
+ *   bytes 8-11   int32 width of each grid
+ *   bytes 12-15  int32 height of each grid
+ *   bytes 16-19  int32 number of frames (time values)
+ *   bytes 20-23  int32 number of bands: 1 for scalar layers, 2 for
+ *                vector layers (the x and y components, in that order)
+ *   bytes 24-27  float32 minimum of the data (NaN if all data are missing)
+ *   bytes 28-31  float32 maximum of the data (NaN if all data are missing)
+ *   bytes 32-35  float32 scale
+ *   bytes 36-39  float32 offset
+ * </pre>
+ * <p>The header is followed by each band of each frame in turn, each band
+ * being a grid of samples in image order (i.e. row by row from the top-left
+ * corner).  float32 samples are the data values themselves, NaN representing
+ * missing data (the scale and offset are 1 and 0).  uint16 samples are
+ * quantized: the data value is {@code offset + scale * sample}, and the
+ * sample 65535 represents missing data.</p>
+ *
+ * <p>Only one instance of each format will ever be created, so this class
+ * contains no mutable member variables to ensure thread safety.</p>
+ *
+ * @author Jon Blower
+ */
+public final class RawDataFormat
+{
+    private static final Logger logger = LoggerFactory.getLogger(RawDataFormat.class);
+
+    private static final Map<String, RawDataFormat> formats =
+        new LinkedHashMap<String, RawDataFormat>();
+
+    static
+    {
+        for (RawDataFormat format : new RawDataFormat[]{
+            new RawDataFormat("application/x-float32", false),
+            new RawDataFormat("application/x-uint16", true)})
+        {
+            formats.put(format.getMimeType(), format);
+        }
+    }
+
+    /** Length of the header in bytes */
+    public static final int HEADER_LENGTH = 40;
+
+    /** The uint16 sample that represents missing data */
+    public static final int MISSING_UINT16 = 0xffff;
+
+    private static final byte[] MAGIC = {'N', 'C', 'W', 'D'};
+    private static final byte VERSION = 1;
+
+    private final String mimeType;
+    private final boolean quantized;
+
+    /**
+     * @param mimeType The MIME type of the format
+     * @param quantized true if data are quantized to 16-bit integers
+     */
+    private RawDataFormat(String mimeType, boolean quantized)
+    {
+        this.mimeType = mimeType;
+        this.quantized = quantized;
+    }
+
+    /**
+     * Gets the MIME types of the raw data formats that are supported
+     * @return the MIME types as a Set of Strings
+     */
+    public static Set<String> getSupportedMimeTypes()
+    {
+        return formats.keySet();
+    }
+
+    /**
+     * Gets the RawDataFormat object corresponding with the given MIME type.
+     * Only one RawDataFormat object is created for each MIME type.
+     * @param mimeType The MIME type of the requested format
+     * @return the RawDataFormat for the given MIME type, or null if the MIME
+     * type is not a raw data format (it may still be an {@link ImageFormat})
+     */
+    public static RawDataFormat get(String mimeType)
+    {
+        return formats.get(mimeType);
+    }
+
+    /**
+     * Writes the given grids of data to the given output stream.
+     * @param grids The data for each band of each frame, in the order of the
+     * output (i.e. all the bands of the first frame, then all the bands of the
+     * second frame, etc).  Each grid is in the order of the data grid (i.e.
+     * with the vertical axis increasing upwards), nulls representing missing
+     * values.
+     * @param width The width of each grid
+     * @param height The height of each grid
+     * @param numBands The number of bands in each frame
+     * @param out The stream to which the data will be written
+     * @throws IOException if there was an error writing to the output stream
+     */
+    public void writeData(List<List<Float>> grids, int width, int height,
+        int numBands, OutputStream out) throws IOException
+    {
+        if (grids.size() % numBands != 0)
+        {
+            throw new IllegalArgumentException("Number of grids must be a multiple of the number of bands");
+        }
+        logger.debug("Writing {} grids of raw data to output stream ...", grids.size());
+
+        // Find the range of the data over all the grids
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (List<Float> grid : grids)
+        {
+            if (grid.size() != width * height)
+            {
+                throw new IllegalArgumentException("Grid size does not match dimensions");
+            }
+            Range<Float> range = DataStatistics.findValueRange(grid);
+            if (range.isEmpty()) continue;
+            if (Float.isNaN(min) || range.getMinimum() < min) min = range.getMinimum();
+            if (Float.isNaN(max) || range.getMaximum() > max) max = range.getMaximum();
+        }
+        boolean allMissing = Float.isNaN(min);
+
+        float scale = 1.0f;
+        float offset = 0.0f;
+        if (this.quantized)
+        {
+            // The largest sample value is reserved for missing data
+            offset = allMissing ? 0.0f : min;
+            scale = allMissing ? 0.0f : (max - min) / (MISSING_UINT16 - 1);
+        }
+
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = VERSION;
+        header[5] = (byte)(this.quantized ? 1 : 0);
+        putInt(header, 8, width);
+        putInt(header, 12, height);
+        putInt(header, 16, grids.size() / numBands);
+        putInt(header, 20, numBands);
+        putInt(header, 24, Float.floatToIntBits(min));
+        putInt(header, 28, Float.floatToIntBits(max));
+        putInt(header, 32, Float.floatToIntBits(scale));
+        putInt(header, 36, Float.floatToIntBits(offset));
+        out.write(header);
+
+        int bytesPerSample = this.quantized ? 2 : 4;
+        byte[] row = new byte[width * bytesPerSample];
+        for (List<Float> grid : grids)
+        {
+            float[] data = ColourScale.toFloatArray(grid);
+            // The data grid has the vertical axis increasing upwards, so
+            // we write the rows in reverse order
+            for (int j = height - 1; j >= 0; j--)
+            {
+                int dataIndex = j * width;
+                if (this.quantized)
+                {
+                    for (int i = 0, n = 0; i < width; i++, n += 2)
+                    {
+                        float val = data[dataIndex + i];
+                        int sample = Float.isNaN(val) ? MISSING_UINT16
+                            : scale == 0.0f ? 0
+                            : Math.min(MISSING_UINT16 - 1, Math.round((val - offset) / scale));
+                        row[n] = (byte)sample;
+                        row[n + 1] = (byte)(sample >>> 8);
+                    }
+                }
+                else
+                {
+                    for (int i = 0, n = 0; i < width; i++, n += 4)
+                    {
+                        putInt(row, n, Float.floatToIntBits(data[dataIndex + i]));
+                    }
+                }
+                out.write(row);
+            }
+        }
+        logger.debug("  ... written.");
+    }
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        buf[offset]     = (byte)value;
+        buf[offset + 1] = (byte)(value >>> 8);
+        buf[offset + 2] = (byte)(value >>> 16);
+        buf[offset + 3] = (byte)(value >>> 24);
+    }
+
+    /**
+     * Returns the MIME type of this format.
+     */
+    public String getMimeType()
+    {
+        return this.mimeType;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holds the pool of threads that is used to colour and encode large images in
+ * parallel.  The pool is owned (created and shut down) by the server's
+ * configuration object; if no pool has been set, or the pool has been shut
+ * down, images are processed in the calling thread.
+ * @author Jon Blower
+ */
+public final class RenderingThreads
+{
+    private static volatile ExecutorService executor = null;
+
+    /** Prevents instantiation */
+    private RenderingThreads() {}
+
+    /**
+     * Sets the pool of threads that will be used to process images, or null
+     * to process images in the calling thread.  The caller remains
+     * responsible for shutting down the pool.
+     */
+    public static void setExecutor(ExecutorService executorService)
+    {
+        executor = executorService;
+    }
+
+    /**
+     * Returns the pool of threads that should be used to process images, or
+     * null if images should be processed in the calling thread.
+     */
+    static ExecutorService getExecutor()
+    {
+        ExecutorService exec = executor;
+        return exec == null || exec.isShutdown() ? null : exec;
+    }
+
+    /** Returns the number of tasks into which parallel work should be split */
+    static int getNumThreads()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -57,6 +57,20 @@ public class VectorFactory {
     public static void renderVector(String style, double speed, double angle, int i, int j,
             float scale, Graphics2D g) {
 
+        Path2D ret = getVector(style, angle, scale);
+        /* Set position */
+        ret.transform(AffineTransform.getTranslateInstance(i, j));
+
+        g.fill(ret);
+        g.draw(ret);
+    }
+
+    /**
+     * Returns the outline of the vector with the given style, rotated and
+     * scaled, with its tail at the origin.
+     */
+    static Path2D getVector(String style, double angle, float scale) {
+
         int type = 4;
         if (style.equalsIgnoreCase("STUMPVEC")) {
             type = 0;
@@ -71,14 +85,11 @@ public class VectorFactory {
         }
 
         Path2D ret = (Path2D) vectors.get(type).clone();
-        /* Rotate and set position */
+        /* Rotate and scale */
         ret.transform(AffineTransform.getRotateInstance(-Math.PI / 2));
         ret.transform(AffineTransform.getRotateInstance(angle));
         ret.transform(AffineTransform.getScaleInstance(scale, scale));
-        ret.transform(AffineTransform.getTranslateInstance(i, j));
-
-        g.fill(ret);
-        g.draw(ret);
+        return ret;
     }
 
     private static Path2D stumpyVector() {
@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.ncwms.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -60,6 +61,7 @@ import uk.ac.rdg.resc.edal.geometry.impl.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.time.AllLeapChronology;
 import uk.ac.rdg.resc.edal.time.NoLeapChronology;
 import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.edal.util.DateTimeArrayList;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.controller.GetMapDataRequest;
@@ -186,6 +188,13 @@ public class WmsUtils
      */
     public static int findTimeIndex(List<DateTime> dtList, DateTime target)
     {
+        if (dtList instanceof DateTimeArrayList)
+        {
+            // Search the primitive array directly, avoiding the creation
+            // of a DateTime object for each comparison
+            long[] millis = ((DateTimeArrayList)dtList).getMillisArray();
+            return Arrays.binarySearch(millis, target.getMillis());
+        }
         return Collections.binarySearch(dtList, target, DATE_TIME_COMPARATOR);
     }
     
@@ -347,7 +356,12 @@ public class WmsUtils
         }
     }
 
-    private static List<Float> readDataSample(ScalarLayer layer) throws IOException
+    /**
+     * Reads a low-resolution sample of data from the given layer, covering its
+     * entire spatial extent at the default time and elevation.
+     * @throws IOException if there was an error reading from the source data
+     */
+    public static List<Float> readDataSample(ScalarLayer layer) throws IOException
     {
         try {
             // Read a low-resolution grid of data covering the entire spatial extent
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link CdmMetadataTemplate}.
+ * @author Jon Blower
+ */
+public final class CdmMetadataTemplateTest
+{
+    /**
+     * Writes a NetCDF file containing a single variable on a latitude-longitude
+     * grid, with the given times (in days since 2000-01-01).
+     */
+    private static File writeFile(double[] lats, double... times) throws Exception
+    {
+        return writeFile("days since 2000-01-01", null, lats, times);
+    }
+
+    /**
+     * Writes a NetCDF file as above, with the given units of time and, if it
+     * is not null, the given actual_range attribute of the variable.
+     */
+    private static File writeFile(String timeUnits, float[] actualRange,
+            double[] lats, double... times) throws Exception
+    {
+        File file = File.createTempFile("template", ".nc");
+        file.deleteOnExit();
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(
+            NetcdfFileWriter.Version.netcdf3, file.getPath());
+        writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.0"));
+        writer.addDimension(null, "time", times.length);
+        writer.addDimension(null, "lat", lats.length);
+        writer.addDimension(null, "lon", 4);
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "time");
+        writer.addVariableAttribute(time, new Attribute("units", timeUnits));
+        Variable lat = writer.addVariable(null, "lat", DataType.DOUBLE, "lat");
+        writer.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+        Variable lon = writer.addVariable(null, "lon", DataType.DOUBLE, "lon");
+        writer.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+        Variable sst = writer.addVariable(null, "sst", DataType.FLOAT, "time lat lon");
+        writer.addVariableAttribute(sst, new Attribute("units", "K"));
+        writer.addVariableAttribute(sst, new Attribute("standard_name", "sea_surface_temperature"));
+        if (actualRange != null)
+        {
+            writer.addVariableAttribute(sst, new Attribute("actual_range",
+                Array.factory(actualRange)));
+        }
+        writer.create();
+        writer.write(time, Array.factory(times));
+        writer.write(lat, Array.factory(lats));
+        writer.write(lon, Array.factory(new double[]{0.0, 10.0, 20.0, 30.0}));
+        writer.write(sst, Array.factory(DataType.FLOAT, new int[]{times.length, lats.length, 4}));
+        writer.close();
+        return file;
+    }
+
+    private static CdmMetadataTemplate createTemplate(File file) throws Exception
+    {
+        NetcdfDataset nc = NetcdfDataset.openDataset(file.getPath());
+        try
+        {
+            return CdmMetadataTemplate.create(nc);
+        }
+        finally
+        {
+            nc.close();
+        }
+    }
+
+    private static Collection<CoverageMetadata> readMetadata(CdmMetadataTemplate template,
+            File file) throws Exception
+    {
+        NetcdfFile nc = NetcdfFile.open(file.getPath());
+        try
+        {
+            return template.readMetadata(nc);
+        }
+        finally
+        {
+            nc.close();
+        }
+    }
+
+    /** Returns the given number of days since 2000-01-01 in the given chronology */
+    private static DateTime day(int day, Chronology chron)
+    {
+        return new DateTime(2000, 1, 1, 0, 0, 0, 0, chron).plusDays(day);
+    }
+
+    private static final double[] LATS = {-10.0, 0.0, 10.0};
+
+    @Test
+    public void testTemplateFile() throws Exception
+    {
+        CdmMetadataTemplate template = createTemplate(writeFile(LATS, 0.0, 1.0));
+        assertTrue(template.canReadOtherFiles());
+        CoverageMetadata sst = template.getMetadata().iterator().next();
+        assertEquals("sst", sst.getId());
+        Chronology chron = sst.getChronology();
+        assertEquals(Arrays.asList(day(0, chron), day(1, chron)), sst.getTimeValues());
+    }
+
+    @Test
+    public void testOtherFile() throws Exception
+    {
+        CdmMetadataTemplate template = createTemplate(writeFile(LATS, 0.0, 1.0));
+        CoverageMetadata templateSst = template.getMetadata().iterator().next();
+        // The other file has a different number of times
+        Iterator<CoverageMetadata> it = readMetadata(template, writeFile(LATS, 2.0, 3.0, 4.0)).iterator();
+        CoverageMetadata sst = it.next();
+        assertFalse(it.hasNext());
+        assertEquals("sst", sst.getId());
+        assertEquals("K", sst.getUnits());
+        Chronology chron = templateSst.getChronology();
+        assertEquals(chron, sst.getChronology());
+        assertEquals(Arrays.asList(day(2, chron), day(3, chron), day(4, chron)),
+            sst.getTimeValues());
+        // The grid is taken from the template
+        assertSame(templateSst.getHorizontalGrid(), sst.getHorizontalGrid());
+        // ...and is the same as that of the file
+        CoverageMetadata fullSst = createTemplate(writeFile(LATS, 2.0, 3.0, 4.0))
+            .getMetadata().iterator().next();
+        assertEquals(fullSst.getHorizontalGrid(), sst.getHorizontalGrid());
+        assertEquals(fullSst.getTimeValues(), sst.getTimeValues());
+    }
+
+    @Test
+    public void testDifferentFile() throws Exception
+    {
+        CdmMetadataTemplate template = createTemplate(writeFile(LATS, 0.0, 1.0));
+        // A grid of a different size...
+        assertNull(readMetadata(template, writeFile(new double[]{-10.0, 0.0}, 2.0)));
+        // ...or in a different place can't be read with the template
+        assertNull(readMetadata(template, writeFile(new double[]{20.0, 30.0, 40.0}, 2.0)));
+    }
+
+    @Test
+    public void testDifferentAttributes() throws Exception
+    {
+        CdmMetadataTemplate template = createTemplate(
+            writeFile("days since 2000-01-01", new float[]{270.0f, 300.0f}, LATS, 0.0));
+        // The declared range of values of the variable is different...
+        assertNull(readMetadata(template,
+            writeFile("days since 2000-01-01", new float[]{275.0f, 305.0f}, LATS, 1.0)));
+        // ...but the units of time can be different, as they are read from
+        // each file
+        CoverageMetadata sst = readMetadata(template,
+            writeFile("days since 2000-01-02", new float[]{270.0f, 300.0f}, LATS, 1.0))
+            .iterator().next();
+        assertEquals(Arrays.asList(day(2, sst.getChronology())), sst.getTimeValues());
+        assertEquals(270.0f, sst.getDeclaredValueRange().getMinimum(), 0.0f);
+    }
+}
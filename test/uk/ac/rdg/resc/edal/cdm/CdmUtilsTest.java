@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.StringReader;
+import java.util.Formatter;
+import java.util.List;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.CoordinateAxis1DTime;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.ncml.NcMLReader;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.ExposeDateTime;
+import uk.ac.rdg.resc.edal.util.DateTimeArrayList;
+import uk.ac.rdg.resc.edal.util.Range;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the conversion of time axes and of the reading of declared value
+ * ranges in {@link CdmUtils}.
+ * @author Jon Blower
+ */
+public final class CdmUtilsTest
+{
+    /** Creates a time axis with the given units, calendar and values */
+    private static CoordinateAxis1DTime timeAxis(String units, String calendar,
+            String values) throws Exception
+    {
+        String ncml =
+            "<netcdf xmlns='http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2'>" +
+            "  <dimension name='time' length='" + values.split(" ").length + "'/>" +
+            "  <variable name='time' shape='time' type='double'>" +
+            "    <attribute name='units' value='" + units + "'/>" +
+            "    <attribute name='calendar' value='" + calendar + "'/>" +
+            "    <values>" + values + "</values>" +
+            "  </variable>" +
+            "</netcdf>";
+        NetcdfDataset nc = NetcdfDataset.wrap(
+            NcMLReader.readNcML(new StringReader(ncml), null),
+            NetcdfDataset.getDefaultEnhanceMode());
+        return CoordinateAxis1DTime.factory(nc, (VariableDS)nc.findVariable("time"),
+            new Formatter());
+    }
+
+    /** Creates a variable of the given type with the given attributes, in NcML */
+    private static Variable variable(String type, String attributes) throws Exception
+    {
+        String ncml =
+            "<netcdf xmlns='http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2'>" +
+            "  <dimension name='x' length='2'/>" +
+            "  <variable name='sst' shape='x' type='" + type + "'>" +
+            attributes +
+            "    <values>0 1</values>" +
+            "  </variable>" +
+            "</netcdf>";
+        NetcdfDataset nc = NetcdfDataset.wrap(
+            NcMLReader.readNcML(new StringReader(ncml), null),
+            NetcdfDataset.getDefaultEnhanceMode());
+        return nc.findVariable("sst");
+    }
+
+    private static void checkRange(float min, float max, Range<Float> range)
+    {
+        assertFalse(range.isEmpty());
+        assertEquals(min, range.getMinimum(), 1e-4f);
+        assertEquals(max, range.getMaximum(), 1e-4f);
+    }
+
+    /**
+     * Checks that the timesteps are the same as those produced by the Java
+     * NetCDF library.
+     */
+    private static void checkTimesteps(CoordinateAxis1DTime timeAxis)
+    {
+        List<DateTime> timesteps = CdmUtils.getTimesteps(timeAxis);
+        List<CalendarDate> dates = timeAxis.getCalendarDates();
+        assertTrue(timesteps instanceof DateTimeArrayList);
+        assertEquals(dates.size(), timesteps.size());
+        for (int i = 0; i < dates.size(); i++)
+        {
+            assertEquals(ExposeDateTime.getDateTime(dates.get(i)), timesteps.get(i));
+        }
+    }
+
+    @Test
+    public void testStandardCalendar() throws Exception
+    {
+        checkTimesteps(timeAxis("hours since 1970-01-01 00:00:00", "standard",
+            "0 1.5 24 8760 438000"));
+    }
+
+    @Test
+    public void testFractionalValues() throws Exception
+    {
+        // The library truncates fractional milliseconds, so interior values
+        // must be taken from its dates rather than rounded
+        checkTimesteps(timeAxis("hours since 1970-01-01 00:00:00", "standard",
+            "0 0.1 0.7 1.3 2.9 100.9 1000"));
+    }
+
+    @Test
+    public void testFixedLengthCalendars() throws Exception
+    {
+        for (String calendar : new String[]{"360_day", "noleap", "all_leap"})
+        {
+            checkTimesteps(timeAxis("days since 1850-01-01", calendar,
+                "0.5 1.5 30.5 365.5 36000.25"));
+        }
+    }
+
+    @Test
+    public void testCalendarMonths() throws Exception
+    {
+        // Months have a fixed length in the 360-day calendar
+        checkTimesteps(timeAxis("calendar months since 2000-01-16", "360_day",
+            "0 1 2 11 12 1199"));
+        // ...but not in the no-leap calendar
+        checkTimesteps(timeAxis("calendar months since 2000-01-16", "noleap",
+            "0 1 2 11 12 1199"));
+    }
+
+    @Test
+    public void testDeclaredValueRange() throws Exception
+    {
+        // actual_range is preferred to the valid range
+        checkRange(271.5f, 305.0f, CdmUtils.getDeclaredValueRange(variable("float",
+            "<attribute name='actual_range' type='float' value='271.5 305.0'/>" +
+            "<attribute name='valid_range' type='float' value='0 400'/>")));
+        checkRange(-2.0f, 35.0f, CdmUtils.getDeclaredValueRange(variable("float",
+            "<attribute name='valid_min' type='float' value='35'/>" +
+            "<attribute name='valid_max' type='float' value='-2'/>")));
+        // No usable range
+        assertTrue(CdmUtils.getDeclaredValueRange(variable("float", "")).isEmpty());
+        assertTrue(CdmUtils.getDeclaredValueRange(variable("float",
+            "<attribute name='actual_range' type='float' value='3 3'/>")).isEmpty());
+    }
+
+    @Test
+    public void testPackedValueRange() throws Exception
+    {
+        // A valid range of the packed type is in packed units...
+        checkRange(270.0f, 310.0f, CdmUtils.getDeclaredValueRange(variable("short",
+            "<attribute name='scale_factor' type='float' value='0.01'/>" +
+            "<attribute name='add_offset' type='float' value='290'/>" +
+            "<attribute name='valid_range' type='short' value='-2000 2000'/>")));
+        // ...but a valid range of the same type as the scale factor is not
+        checkRange(270.0f, 310.0f, CdmUtils.getDeclaredValueRange(variable("short",
+            "<attribute name='scale_factor' type='float' value='0.01'/>" +
+            "<attribute name='add_offset' type='float' value='290'/>" +
+            "<attribute name='valid_range' type='float' value='270 310'/>")));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link DataStatistics} class.
+ * @author Jon Blower
+ */
+public final class DataStatisticsTest
+{
+    /** Histogram bins must be in the same order as the values */
+    @Test
+    public void testBinOrdering()
+    {
+        float[] vals = { Float.NEGATIVE_INFINITY, -1e30f, -100f, -1f, -1e-30f, 0f,
+                         1e-30f, 1f, 1.1f, 100f, 1e30f, Float.POSITIVE_INFINITY };
+        for (int i = 1; i < vals.length; i++)
+        {
+            assertTrue(DataStatistics.getBin(vals[i - 1]) <= DataStatistics.getBin(vals[i]));
+        }
+        for (float val : vals)
+        {
+            int bin = DataStatistics.getBin(val);
+            assertTrue(DataStatistics.getBinLowerBound(bin) <= val);
+        }
+        // The bins at either end are open-ended
+        assertEquals(Float.NEGATIVE_INFINITY, DataStatistics.getBinLowerBound(0), 0.0f);
+        assertEquals(Float.POSITIVE_INFINITY, DataStatistics.getBinLowerBound(4095), 0.0f);
+    }
+
+    @Test
+    public void testPercentilesWithInfinity()
+    {
+        float[] arr = new float[100];
+        for (int i = 0; i < 99; i++) arr[i] = i + 1;
+        arr[99] = Float.NEGATIVE_INFINITY;
+        DataStatistics stats = DataStatistics.forList(new FloatArrayList(arr, null));
+        Range<Float> clipped = stats.getPercentileRange(5, 95);
+        assertFalse(Float.isNaN(clipped.getMinimum()));
+        assertFalse(Float.isNaN(clipped.getMaximum()));
+        assertEquals(95f, clipped.getMaximum(), 95f * 0.125f);
+    }
+
+    @Test
+    public void testForSampleSize()
+    {
+        // Small samples do not carry a histogram, so forList() makes its own
+        DataStatistics small = DataStatistics.forSampleSize(10);
+        for (int i = 0; i < 10; i++) small.add(i, 1);
+        assertFalse(small.hasHistogram());
+        float[] arr = { 0f, 1f, 2f };
+        DataStatistics fromList = DataStatistics.forList(new FloatArrayList(arr, small));
+        assertTrue(fromList.hasHistogram());
+        assertTrue(DataStatistics.forSampleSize(256 * 256).hasHistogram());
+    }
+
+    @Test
+    public void testRangeAndCount()
+    {
+        DataStatistics stats = new DataStatistics(false);
+        assertTrue(stats.getValueRange().isEmpty());
+        stats.add(3.0f, 2);
+        stats.add(Float.NaN, 5);
+        stats.add(-1.0f, 1);
+        stats.add(7.0f, 1);
+        assertEquals(4, stats.getCount());
+        assertEquals(-1.0f, stats.getValueRange().getMinimum(), 0.0f);
+        assertEquals(7.0f, stats.getValueRange().getMaximum(), 0.0f);
+        assertFalse(stats.hasHistogram());
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        // 1000 values from 1 to 1000, plus one large outlier
+        float[] arr = new float[1001];
+        for (int i = 0; i < 1000; i++) arr[i] = i + 1;
+        arr[1000] = 1e6f;
+        DataStatistics stats = DataStatistics.forList(new FloatArrayList(arr, null));
+        assertEquals(1e6f, stats.getValueRange().getMaximum(), 0.0f);
+        Range<Float> clipped = stats.getPercentileRange(2, 98);
+        // Each bin covers about 12% of the magnitude of its values
+        assertEquals(20f, clipped.getMinimum(), 20f * 0.125f);
+        assertEquals(980f, clipped.getMaximum(), 980f * 0.125f);
+        Range<Float> full = stats.getPercentileRange(0, 100);
+        assertEquals(1f, full.getMinimum(), 0.0f);
+        assertEquals(1e6f, full.getMaximum(), 0.0f);
+    }
+
+    @Test
+    public void testFindValueRange()
+    {
+        List<Float> list = Arrays.asList(null, 2.0f, -3.0f);
+        Range<Float> range = DataStatistics.findValueRange(list);
+        assertEquals(-3.0f, range.getMinimum(), 0.0f);
+        assertEquals(2.0f, range.getMaximum(), 0.0f);
+        DataStatistics stats = new DataStatistics(false);
+        stats.add(5.0f, 1);
+        // The statistics are used in preference to the data
+        range = DataStatistics.findValueRange(new FloatArrayList(new float[] {1.0f}, stats));
+        assertEquals(5.0f, range.getMinimum(), 0.0f);
+        assertTrue(DataStatistics.findValueRange(Arrays.<Float>asList()).isEmpty());
+    }
+}
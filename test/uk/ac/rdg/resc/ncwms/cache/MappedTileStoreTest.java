@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link MappedTileStore} class.
+ * @author Jon Blower
+ */
+public final class MappedTileStoreTest
+{
+    private static final long ONE_HOUR = 60 * 60 * 1000L;
+    private static final String KEY = "layer,CRS:84,{-180.0,-90.0,180.0,90.0,},2,2,/data/file.nc,0,0,0,0,0";
+    private static final List<Float> DATA = Arrays.asList(1.5f, null, Float.NaN, -2.0f);
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("sharedtiles", ".dat");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        MappedTileStore store = new MappedTileStore(this.file, 16, 4, ONE_HOUR);
+        assertNull(store.get(KEY));
+        assertTrue(store.put(KEY, DATA));
+        assertEquals(DATA, store.get(KEY));
+        assertNull(store.get(KEY + "x"));
+        // Too large for a slot
+        assertFalse(store.put(KEY, Arrays.asList(1f, 2f, 3f, 4f, 5f)));
+        store.close();
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        MappedTileStore store = new MappedTileStore(this.file, 16, 4, -1);
+        assertTrue(store.put(KEY, DATA));
+        assertNull(store.get(KEY));
+        store.close();
+    }
+
+    /**
+     * Two stores mapping the same file see each other's tiles.
+     */
+    @Test
+    public void testSharedBetweenInstances() throws Exception
+    {
+        MappedTileStore store1 = new MappedTileStore(this.file, 16, 4, ONE_HOUR);
+        MappedTileStore store2 = new MappedTileStore(this.file, 16, 4, ONE_HOUR);
+        assertTrue(store1.put(KEY, DATA));
+        assertEquals(DATA, store2.get(KEY));
+        store1.close();
+        store2.close();
+
+        // Reopening with a different layout discards the contents
+        MappedTileStore store3 = new MappedTileStore(this.file, 8, 4, ONE_HOUR);
+        assertNull(store3.get(KEY));
+        store3.close();
+    }
+
+    /**
+     * Readers running concurrently with a writer see either a complete tile
+     * or nothing, never a mixture of two tiles.
+     */
+    @Test
+    public void testConcurrentReadAndWrite() throws Exception
+    {
+        final int n = 1024;
+        final MappedTileStore store = new MappedTileStore(this.file, 1, n, ONE_HOUR);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < 2000; i++)
+                {
+                    store.put(KEY, Collections.nCopies(n, (float)i));
+                }
+                done.set(true);
+            }
+        };
+        writer.start();
+        while (!done.get())
+        {
+            List<Float> tile = store.get(KEY);
+            if (tile == null) continue;
+            assertEquals(n, tile.size());
+            assertEquals(Collections.nCopies(n, tile.get(0)), tile);
+        }
+        writer.join();
+        assertEquals(Collections.nCopies(n, 1999f), store.get(KEY));
+        store.close();
+    }
+
+    /**
+     * A tile written by a second JVM is visible to this one.  The second JVM
+     * runs {@link #main(String[])} with the same classpath.
+     */
+    @Test
+    public void testSharedBetweenJvms() throws Exception
+    {
+        MappedTileStore store = new MappedTileStore(this.file, 16, 4, ONE_HOUR);
+        String java = System.getProperty("java.home") + File.separator + "bin" +
+            File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            MappedTileStoreTest.class.getName(), this.file.getPath())
+            .redirectErrorStream(true)
+            .start();
+        assertEquals(0, p.waitFor());
+        assertEquals(DATA, store.get(KEY));
+        store.close();
+    }
+
+    /** Entry point for the second JVM in {@link #testSharedBetweenJvms()} */
+    public static void main(String[] args) throws Exception
+    {
+        MappedTileStore store = new MappedTileStore(new File(args[0]), 16, 4, ONE_HOUR);
+        boolean stored = store.put(KEY, DATA);
+        store.close();
+        System.exit(stored ? 0 : 1);
+    }
+}
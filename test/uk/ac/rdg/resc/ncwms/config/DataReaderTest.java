@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.domain.Domain;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the incremental loading of glob aggregations by
+ * {@link DataReader#getAllLayers(uk.ac.rdg.resc.ncwms.config.Dataset)}.
+ * @author Jon Blower
+ */
+public final class DataReaderTest
+{
+    private static final long DAY = 86400000L;
+
+    private static final Chronology CHRON = ISOChronology.getInstanceUTC();
+
+    private static final HorizontalGrid GRID = new RegularGridImpl(
+        new RegularAxisImpl("lon", -179.5, 1.0, 360, true),
+        new RegularAxisImpl("lat", -89.5, 1.0, 180, false),
+        DefaultGeographicCRS.WGS84);
+
+    /**
+     * Reads a single layer from each file, whose single timestep is the
+     * length of the file in days, and counts the reads of each file.
+     */
+    private static final class CountingDataReader extends DataReader
+    {
+        private final Map<String, Integer> numReads = new HashMap<String, Integer>();
+
+        @Override
+        public List<Float> read(String filename, Layer layer, int tIndex,
+            int zIndex, Domain<HorizontalPosition> domain)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected synchronized Collection<CoverageMetadata> readLayerMetadata(String location)
+        {
+            Integer n = this.numReads.get(location);
+            this.numReads.put(location, n == null ? 1 : n + 1);
+            return Collections.singletonList(coverage(new File(location).length() * DAY));
+        }
+
+        synchronized int getNumReads(File file)
+        {
+            Integer n = this.numReads.get(file.getPath());
+            return n == null ? 0 : n;
+        }
+    }
+
+    private static CoverageMetadata coverage(long millis)
+    {
+        final List<DateTime> times = Arrays.asList(new DateTime(millis, CHRON));
+        return new CoverageMetadata() {
+            @Override public String getId() { return "sst"; }
+            @Override public String getTitle() { return "sst"; }
+            @Override public String getDescription() { return null; }
+            @Override public String getUnits() { return "K"; }
+            @Override public GeographicBoundingBox getGeographicBoundingBox() {
+                return new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0);
+            }
+            @Override public HorizontalGrid getHorizontalGrid() { return GRID; }
+            @Override public Chronology getChronology() { return CHRON; }
+            @Override public List<DateTime> getTimeValues() { return times; }
+            @Override public List<Double> getElevationValues() { return Collections.emptyList(); }
+            @Override public String getElevationUnits() { return null; }
+            @Override public boolean isElevationPositive() { return false; }
+            @Override public boolean isElevationPressure() { return false; }
+            @Override public Range<Float> getDeclaredValueRange() { return Ranges.emptyRange(); }
+        };
+    }
+
+    private static File tempDir() throws Exception
+    {
+        File dir = File.createTempFile("aggregation", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /** Writes a file of the given length with the given modification time */
+    private static File writeFile(File dir, String name, int length, long lastModified)
+        throws IOException
+    {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(new byte[length]);
+        }
+        finally
+        {
+            out.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static List<Long> getTimeDays(Dataset ds, DataReader dr) throws Exception
+    {
+        List<Long> days = new ArrayList<Long>();
+        for (DateTime dt : dr.getAllLayers(ds).get("sst").getTimeValues())
+        {
+            days.add(dt.getMillis() / DAY);
+        }
+        return days;
+    }
+
+    @Test
+    public void testIncrementalReload() throws Exception
+    {
+        File dir = tempDir();
+        File a = writeFile(dir, "a.nc", 1, 100000L);
+        File b = writeFile(dir, "b.nc", 2, 100000L);
+        Dataset ds = new Dataset();
+        ds.setLocation(new File(dir, "*.nc").getPath());
+        CountingDataReader dr = new CountingDataReader();
+
+        assertEquals(Arrays.asList(1L, 2L), getTimeDays(ds, dr));
+        assertEquals(1, dr.getNumReads(a));
+        assertEquals(1, dr.getNumReads(b));
+        assertEquals(2, ds.getMetadataCache().size());
+
+        // Unchanged files are not read again
+        assertEquals(Arrays.asList(1L, 2L), getTimeDays(ds, dr));
+        assertEquals(1, dr.getNumReads(a));
+        assertEquals(1, dr.getNumReads(b));
+
+        // Only the changed file is read again
+        writeFile(dir, "b.nc", 3, 200000L);
+        assertEquals(Arrays.asList(1L, 3L), getTimeDays(ds, dr));
+        assertEquals(1, dr.getNumReads(a));
+        assertEquals(2, dr.getNumReads(b));
+
+        // A file that changes length but not modification time is read again
+        writeFile(dir, "a.nc", 4, 100000L);
+        assertEquals(Arrays.asList(3L, 4L), getTimeDays(ds, dr));
+        assertEquals(2, dr.getNumReads(a));
+        assertEquals(2, dr.getNumReads(b));
+    }
+
+    @Test
+    public void testRemovedFile() throws Exception
+    {
+        File dir = tempDir();
+        File a = writeFile(dir, "a.nc", 1, 100000L);
+        File b = writeFile(dir, "b.nc", 2, 100000L);
+        Dataset ds = new Dataset();
+        ds.setLocation(new File(dir, "*.nc").getPath());
+        CountingDataReader dr = new CountingDataReader();
+        assertEquals(Arrays.asList(1L, 2L), getTimeDays(ds, dr));
+
+        // The timesteps of the removed file are dropped, without reading
+        // the remaining file again
+        assertTrue(a.delete());
+        assertEquals(Arrays.asList(2L), getTimeDays(ds, dr));
+        assertEquals(1, dr.getNumReads(b));
+        assertEquals(1, ds.getMetadataCache().size());
+        assertNull(ds.getMetadataCache().getEntry(a.getPath()));
+        assertEquals(Arrays.asList(b.getPath()), ds.getFiles());
+    }
+
+    @Test
+    public void testSubclassTemplate() throws Exception
+    {
+        // A subclass of DefaultDataReader that reads metadata in its own way
+        // must not get the CDM template, which would read the other files
+        // as NetCDF files
+        final Collection<CoverageMetadata> metadata = Collections.singletonList(coverage(0L));
+        DataReader dr = new DefaultDataReader() {
+            @Override
+            protected Collection<CoverageMetadata> readLayerMetadata(String location)
+            {
+                return metadata;
+            }
+        };
+        DataReader.MetadataTemplate template = dr.readTemplate("/data/a.dat");
+        assertSame(metadata, template.getMetadata());
+        assertNull(template.readLayerMetadata("/data/b.dat"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link DirectoryWatcher}.
+ * @author Jon Blower
+ */
+public final class DirectoryWatcherTest
+{
+    private static final long DEBOUNCE = 10000L;
+
+    private static File tempDir() throws Exception
+    {
+        File dir = File.createTempFile("watched", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static DirectoryWatcher watch(File dir)
+    {
+        Map<File, Long> dirs = new HashMap<File, Long>();
+        dirs.put(dir, dir.lastModified());
+        DirectoryWatcher watcher = new DirectoryWatcher();
+        watcher.setDirectories(dirs);
+        return watcher;
+    }
+
+    @Test
+    public void testDebounce() throws Exception
+    {
+        File dir = tempDir();
+        DirectoryWatcher watcher = watch(dir);
+        assertFalse(watcher.hasSettledChanges(0L, DEBOUNCE));
+
+        // A burst of changes is only reported once it has settled down
+        assertTrue(dir.setLastModified(dir.lastModified() - 60000L));
+        assertFalse(watcher.hasSettledChanges(1000L, DEBOUNCE));
+        assertTrue(dir.setLastModified(dir.lastModified() - 60000L));
+        assertFalse(watcher.hasSettledChanges(5000L, DEBOUNCE));
+        assertFalse(watcher.hasSettledChanges(14999L, DEBOUNCE));
+        assertTrue(watcher.hasSettledChanges(15000L, DEBOUNCE));
+
+        // Setting the directories again forgets the changes
+        watcher = watch(dir);
+        assertFalse(watcher.hasSettledChanges(100000L, DEBOUNCE));
+    }
+
+    @Test
+    public void testContinuousChanges() throws Exception
+    {
+        File dir = tempDir();
+        DirectoryWatcher watcher = watch(dir);
+        // Changes every second are reported after the maximum delay
+        long t = 0;
+        for (; t < DirectoryWatcher.MAX_DELAY_FACTOR * DEBOUNCE; t += 1000L)
+        {
+            assertTrue(dir.setLastModified(dir.lastModified() - 60000L));
+            assertFalse(watcher.hasSettledChanges(t, DEBOUNCE));
+        }
+        assertTrue(dir.setLastModified(dir.lastModified() - 60000L));
+        assertTrue(watcher.hasSettledChanges(t, DEBOUNCE));
+    }
+
+    @Test
+    public void testDeletedDirectory() throws Exception
+    {
+        File dir = tempDir();
+        DirectoryWatcher watcher = watch(dir);
+        assertTrue(dir.delete());
+        assertFalse(watcher.hasSettledChanges(0L, DEBOUNCE));
+        assertTrue(watcher.hasSettledChanges(DEBOUNCE, DEBOUNCE));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link FileMetadataCache}.
+ * @author Jon Blower
+ */
+public final class FileMetadataCacheTest
+{
+    private static final Collection<CoverageMetadata> METADATA =
+        Collections.<CoverageMetadata>emptyList();
+
+    @Test
+    public void testHit()
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        assertNull(cache.get("/data/a.nc", 1000L, 20L));
+        cache.put("/data/a.nc", 1000L, 20L, METADATA);
+        assertSame(METADATA, cache.get("/data/a.nc", 1000L, 20L));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMiss()
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, METADATA);
+        // A change in either the modification time or the length is a miss
+        assertNull(cache.get("/data/a.nc", 1001L, 20L));
+        assertNull(cache.get("/data/a.nc", 1000L, 21L));
+        assertNull(cache.get("/data/b.nc", 1000L, 20L));
+        // The stale entry is still held until it is replaced
+        assertNotNull(cache.getEntry("/data/a.nc"));
+        Collection<CoverageMetadata> newMetadata = Collections.<CoverageMetadata>emptySet();
+        cache.put("/data/a.nc", 1001L, 20L, newMetadata);
+        assertSame(newMetadata, cache.get("/data/a.nc", 1001L, 20L));
+        assertNull(cache.get("/data/a.nc", 1000L, 20L));
+    }
+
+    @Test
+    public void testRetainAll()
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, METADATA);
+        cache.put("/data/b.nc", 1000L, 20L, METADATA);
+        cache.put("/data/c.nc", 1000L, 20L, METADATA);
+        assertEquals(1, cache.retainAll(Arrays.asList("/data/c.nc", "/data/b.nc")));
+        assertEquals(Arrays.asList("/data/c.nc", "/data/b.nc"), cache.getPaths());
+        assertNull(cache.getEntry("/data/a.nc"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testModified()
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, METADATA);
+        cache.retainAll(Arrays.asList("/data/a.nc"));
+        assertTrue(cache.isModified());
+        cache.markSaved();
+        // Nothing has changed
+        cache.retainAll(Arrays.asList("/data/a.nc"));
+        assertFalse(cache.isModified());
+        cache.retainAll(Collections.<String>emptyList());
+        assertTrue(cache.isModified());
+    }
+
+    @Test
+    public void testCheckDataReader()
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        DataReader dr = new DefaultDataReader();
+        cache.checkDataReader(dr);
+        cache.put("/data/a.nc", 1000L, 20L, METADATA);
+        cache.checkDataReader(dr);
+        assertEquals(1, cache.size());
+        // Metadata read by another class of DataReader are discarded
+        cache.checkDataReader(new DefaultDataReader() {});
+        assertEquals(0, cache.size());
+    }
+}
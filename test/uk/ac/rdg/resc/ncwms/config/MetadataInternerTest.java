@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link MetadataInterner}.
+ * @author Jon Blower
+ */
+public final class MetadataInternerTest
+{
+    private static final Chronology ISO = ISOChronology.getInstanceUTC();
+
+    /** Creates a new regular grid each time */
+    private static HorizontalGrid regularGrid()
+    {
+        return new RegularGridImpl(
+            new RegularAxisImpl("lon", -179.5, 1.0, 360, true),
+            new RegularAxisImpl("lat", -89.5, 1.0, 180, false),
+            DefaultGeographicCRS.WGS84);
+    }
+
+    /** Creates a new rectilinear grid each time */
+    private static HorizontalGrid rectilinearGrid(double lastY)
+    {
+        return new RectilinearGridImpl(
+            new RegularAxisImpl("x", 0.0, 0.5, 10, true),
+            new ReferenceableAxisImpl("y", new double[]{-10.0, -2.5, 0.0, lastY}, false),
+            DefaultGeographicCRS.WGS84);
+    }
+
+    /** Creates a new list of timesteps each time */
+    private static List<DateTime> times(long... millis)
+    {
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (long t : millis) times.add(new DateTime(t, ISO));
+        return times;
+    }
+
+    private static CoverageMetadata coverage(final String id, final HorizontalGrid grid,
+            final List<DateTime> times)
+    {
+        final List<Double> zValues = Arrays.asList(-5.0, -10.0);
+        return new CoverageMetadata() {
+            @Override public String getId() { return id; }
+            @Override public String getTitle() { return id + " title"; }
+            @Override public String getDescription() { return null; }
+            @Override public String getUnits() { return "K"; }
+            @Override public GeographicBoundingBox getGeographicBoundingBox() {
+                return new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0);
+            }
+            @Override public HorizontalGrid getHorizontalGrid() { return grid; }
+            @Override public Chronology getChronology() { return ISO; }
+            @Override public List<DateTime> getTimeValues() { return times; }
+            @Override public List<Double> getElevationValues() { return zValues; }
+            @Override public String getElevationUnits() { return "m"; }
+            @Override public boolean isElevationPositive() { return false; }
+            @Override public boolean isElevationPressure() { return false; }
+            @Override public Range<Float> getDeclaredValueRange() { return Ranges.emptyRange(); }
+        };
+    }
+
+    @Test
+    public void testGridEquality()
+    {
+        assertEquals(regularGrid(), regularGrid());
+        assertEquals(regularGrid().hashCode(), regularGrid().hashCode());
+        assertEquals(rectilinearGrid(1.0), rectilinearGrid(1.0));
+        assertEquals(rectilinearGrid(1.0).hashCode(), rectilinearGrid(1.0).hashCode());
+        assertFalse(rectilinearGrid(1.0).equals(rectilinearGrid(2.0)));
+        assertFalse(regularGrid().equals(rectilinearGrid(1.0)));
+    }
+
+    @Test
+    public void testSharedAcrossFiles()
+    {
+        // Two files whose variables each have their own axis objects
+        Collection<CoverageMetadata> file1 = MetadataInterner.intern(Arrays.asList(
+            coverage("sst", regularGrid(), times(0L, 1000L)),
+            coverage("sss", regularGrid(), times(0L, 1000L))));
+        Collection<CoverageMetadata> file2 = MetadataInterner.intern(Arrays.asList(
+            coverage("sst", regularGrid(), times(0L, 1000L)),
+            coverage("mask", rectilinearGrid(1.0), times())));
+
+        Iterator<CoverageMetadata> it1 = file1.iterator();
+        CoverageMetadata sst1 = it1.next();
+        CoverageMetadata sss1 = it1.next();
+        Iterator<CoverageMetadata> it2 = file2.iterator();
+        CoverageMetadata sst2 = it2.next();
+        CoverageMetadata mask2 = it2.next();
+
+        assertSame(sst1.getHorizontalGrid(), sss1.getHorizontalGrid());
+        assertSame(sst1.getHorizontalGrid(), sst2.getHorizontalGrid());
+        assertSame(sst1.getTimeValues(), sss1.getTimeValues());
+        assertSame(sst1.getTimeValues(), sst2.getTimeValues());
+        assertSame(sst1.getElevationValues(), mask2.getElevationValues());
+        assertNotSame(sst1.getHorizontalGrid(), mask2.getHorizontalGrid());
+
+        // The other properties are unchanged
+        assertEquals("sss", sss1.getId());
+        assertEquals("sss title", sss1.getTitle());
+        assertEquals("K", sss1.getUnits());
+        assertEquals(ISO, sss1.getChronology());
+        assertEquals("m", sss1.getElevationUnits());
+        assertEquals(-180.0, sss1.getGeographicBoundingBox().getWestBoundLongitude(), 0.0);
+        assertTrue(mask2.getTimeValues().isEmpty());
+
+        // Interning again returns the same objects
+        assertSame(sst1, MetadataInterner.intern(file1).iterator().next());
+    }
+
+    @Test
+    public void testSharedTimestepIndex()
+    {
+        TimestepIndex.Builder b1 = new TimestepIndex.Builder();
+        b1.add("a.nc", times(0L, 1000L));
+        TimestepIndex.Builder b2 = new TimestepIndex.Builder();
+        b2.add("a.nc", times(0L, 1000L));
+        TimestepIndex.Builder b3 = new TimestepIndex.Builder();
+        b3.add("b.nc", times(0L, 1000L));
+
+        TimestepIndex index1 = MetadataInterner.intern(b1.build());
+        assertSame(index1, MetadataInterner.intern(b2.build()));
+        assertNotSame(index1, MetadataInterner.intern(b3.build()));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link MetadataSnapshot}.
+ * @author Jon Blower
+ */
+public final class MetadataSnapshotTest
+{
+    private static final String LOCATION = "/data/*.nc";
+
+    private static final RegularGrid REGULAR_GRID = new RegularGridImpl(
+        new RegularAxisImpl("lon", -179.5, 1.0, 360, true),
+        new RegularAxisImpl("lat", -89.5, 1.0, 180, false),
+        DefaultGeographicCRS.WGS84);
+
+    private static final RectilinearGrid RECTILINEAR_GRID = new RectilinearGridImpl(
+        new RegularAxisImpl("x", 0.0, 0.5, 10, true),
+        new ReferenceableAxisImpl("y", new double[]{-10.0, -2.5, 0.0, 1.0}, false),
+        DefaultGeographicCRS.WGS84);
+
+    private static CoverageMetadata coverage(final String id, final HorizontalGrid grid,
+            final Chronology chron, long... millis)
+    {
+        final List<DateTime> times = new ArrayList<DateTime>();
+        for (long t : millis) times.add(new DateTime(t, chron));
+        return new CoverageMetadata() {
+            @Override public String getId() { return id; }
+            @Override public String getTitle() { return id + " title"; }
+            @Override public String getDescription() { return null; }
+            @Override public String getUnits() { return "K"; }
+            @Override public GeographicBoundingBox getGeographicBoundingBox() {
+                return new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0);
+            }
+            @Override public HorizontalGrid getHorizontalGrid() { return grid; }
+            @Override public Chronology getChronology() { return times.isEmpty() ? null : chron; }
+            @Override public List<DateTime> getTimeValues() { return times; }
+            @Override public List<Double> getElevationValues() { return Arrays.asList(-5.0, -10.0); }
+            @Override public String getElevationUnits() { return "m"; }
+            @Override public boolean isElevationPositive() { return false; }
+            @Override public boolean isElevationPressure() { return false; }
+            @Override public Range<Float> getDeclaredValueRange() {
+                // Only the SST declares its range of values
+                return id.equals("sst") ? Ranges.newRange(271.0f, 305.5f) : Ranges.<Float>emptyRange();
+            }
+        };
+    }
+
+    private static File tempFile() throws Exception
+    {
+        File file = File.createTempFile("metadata", ".snapshot");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Chronology chron = ThreeSixtyDayChronology.getInstanceUTC();
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, Arrays.asList(
+            coverage("sst", REGULAR_GRID, chron, 0L, 86400000L),
+            coverage("mask", RECTILINEAR_GRID, chron)));
+        cache.put("/data/b.nc", 2000L, 30L, Collections.singletonList(
+            coverage("sst", REGULAR_GRID, chron, 172800000L)));
+        cache.retainAll(Arrays.asList("/data/b.nc", "/data/a.nc"));
+
+        DataReader dr = new DefaultDataReader();
+        File file = tempFile();
+        assertTrue(MetadataSnapshot.write(cache, LOCATION, dr, file));
+
+        FileMetadataCache restored = new FileMetadataCache();
+        assertTrue(MetadataSnapshot.read(file, LOCATION, dr, restored));
+        assertEquals(Arrays.asList("/data/b.nc", "/data/a.nc"), restored.getPaths());
+        assertFalse(restored.isModified());
+        // Entries are only returned if the modification time and length match
+        assertNull(restored.get("/data/a.nc", 1001L, 20L));
+        Collection<CoverageMetadata> a = restored.get("/data/a.nc", 1000L, 20L);
+        assertEquals(2, a.size());
+
+        CoverageMetadata sst = a.iterator().next();
+        assertEquals("sst", sst.getId());
+        assertEquals("sst title", sst.getTitle());
+        assertNull(sst.getDescription());
+        assertEquals("K", sst.getUnits());
+        assertEquals(chron, sst.getChronology());
+        assertEquals(Arrays.asList(new DateTime(0L, chron), new DateTime(86400000L, chron)),
+            sst.getTimeValues());
+        assertEquals(Arrays.asList(-5.0, -10.0), sst.getElevationValues());
+        assertEquals(-180.0, sst.getGeographicBoundingBox().getWestBoundLongitude(), 0.0);
+        RegularGrid grid = (RegularGrid)sst.getHorizontalGrid();
+        assertEquals(360, grid.getXAxis().getSize());
+        assertEquals(-89.5, grid.getYAxis().getCoordinateValue(0), 0.0);
+        assertEquals(271.0f, sst.getDeclaredValueRange().getMinimum(), 0.0f);
+        assertEquals(305.5f, sst.getDeclaredValueRange().getMaximum(), 0.0f);
+
+        CoverageMetadata mask = a.toArray(new CoverageMetadata[0])[1];
+        assertTrue(mask.getTimeValues().isEmpty());
+        assertTrue(mask.getDeclaredValueRange().isEmpty());
+        RectilinearGrid rectGrid = (RectilinearGrid)mask.getHorizontalGrid();
+        assertFalse(rectGrid instanceof RegularGrid);
+        assertEquals(-2.5, rectGrid.getYAxis().getCoordinateValue(1), 0.0);
+
+        // Identical grids are only written once, so are shared when read
+        CoverageMetadata sstB = restored.get("/data/b.nc", 2000L, 30L).iterator().next();
+        assertSame(sst.getHorizontalGrid(), sstB.getHorizontalGrid());
+    }
+
+    @Test
+    public void testUnsupportedGrid() throws Exception
+    {
+        // A grid in another coordinate reference system can't be saved
+        HorizontalGrid grid = new RegularGridImpl(
+            new RegularAxisImpl("x", 0.0, 1.0, 10, false),
+            new RegularAxisImpl("y", 0.0, 1.0, 10, false), null);
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, Collections.singletonList(
+            coverage("sst", REGULAR_GRID, null)));
+        cache.put("/data/b.nc", 1000L, 20L, Collections.singletonList(
+            coverage("sst", grid, null)));
+        cache.retainAll(Arrays.asList("/data/a.nc", "/data/b.nc"));
+
+        DataReader dr = new DefaultDataReader();
+        File file = tempFile();
+        assertFalse(MetadataSnapshot.write(cache, LOCATION, dr, file));
+        FileMetadataCache restored = new FileMetadataCache();
+        assertFalse(MetadataSnapshot.read(file, LOCATION, dr, restored));
+        // The files that could be saved are still restored
+        assertEquals(Arrays.asList("/data/a.nc"), restored.getPaths());
+    }
+
+    @Test
+    public void testOtherLocation() throws Exception
+    {
+        FileMetadataCache cache = new FileMetadataCache();
+        cache.put("/data/a.nc", 1000L, 20L, Collections.singletonList(
+            coverage("sst", REGULAR_GRID, null)));
+        cache.retainAll(Arrays.asList("/data/a.nc"));
+        DataReader dr = new DefaultDataReader();
+        File file = tempFile();
+        MetadataSnapshot.write(cache, LOCATION, dr, file);
+
+        FileMetadataCache restored = new FileMetadataCache();
+        assertFalse(MetadataSnapshot.read(file, "/other/*.nc", dr, restored));
+        assertEquals(0, restored.size());
+    }
+}
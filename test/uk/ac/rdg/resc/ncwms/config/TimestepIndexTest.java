@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link TimestepIndex}.
+ * @author Jon Blower
+ */
+public final class TimestepIndexTest
+{
+    private static final long HOUR = 3600000L;
+
+    /** Returns the given number of hourly timesteps, starting at the given hour */
+    private static List<DateTime> hours(int start, int num)
+    {
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (int i = 0; i < num; i++)
+        {
+            times.add(new DateTime((start + i) * HOUR, DateTimeZone.UTC));
+        }
+        return times;
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        TimestepIndex index = new TimestepIndex.Builder().build();
+        assertEquals(0, index.size());
+        assertTrue(index.getTimeValues().isEmpty());
+    }
+
+    @Test
+    public void testFilesOutOfOrder()
+    {
+        TimestepIndex.Builder builder = new TimestepIndex.Builder();
+        builder.add("b.nc", hours(24, 24));
+        builder.add("c.nc", hours(48, 24));
+        builder.add("a.nc", hours(0, 24));
+        TimestepIndex index = builder.build();
+
+        assertEquals(72, index.size());
+        for (int i = 0; i < 72; i++)
+        {
+            assertEquals(i * HOUR, index.getTimeValues().get(i).getMillis());
+            assertEquals(i % 24, index.getIndexInFile(i));
+        }
+        assertEquals("a.nc", index.getFilename(0));
+        assertEquals("b.nc", index.getFilename(24));
+        assertEquals("c.nc", index.getFilename(71));
+        assertEquals(DateTimeZone.UTC, index.getTimeValues().get(0).getZone());
+    }
+
+    @Test
+    public void testOverlappingForecasts()
+    {
+        // Forecast runs every 12 hours, each of 24 hourly timesteps.  The
+        // timestep with the shortest forecast lead time should be chosen.
+        TimestepIndex.Builder builder = new TimestepIndex.Builder();
+        builder.add("run12.nc", hours(12, 24));
+        builder.add("run00.nc", hours(0, 24));
+        builder.add("run24.nc", hours(24, 24));
+        builder.add("run24copy.nc", hours(24, 24));
+        TimestepIndex index = builder.build();
+
+        assertEquals(48, index.size());
+        for (int i = 0; i < 48; i++)
+        {
+            assertEquals(i * HOUR, index.getTimeValues().get(i).getMillis());
+            // The last run is the only one to contain the final 12 hours
+            assertEquals(i < 36 ? i % 12 : i - 24, index.getIndexInFile(i));
+        }
+        assertEquals("run00.nc", index.getFilename(11));
+        assertEquals("run12.nc", index.getFilename(12));
+        assertEquals("run12.nc", index.getFilename(23));
+        // Where the lead times are equal, the first file wins
+        assertEquals("run24.nc", index.getFilename(24));
+        assertEquals("run24.nc", index.getFilename(47));
+    }
+
+    @Test
+    public void testFindTimeIndex()
+    {
+        TimestepIndex.Builder builder = new TimestepIndex.Builder();
+        builder.add("a.nc", hours(0, 10));
+        List<DateTime> times = builder.build().getTimeValues();
+
+        assertEquals(5, WmsUtils.findTimeIndex(times, new DateTime(5 * HOUR, DateTimeZone.UTC)));
+        // Matches are based only on the millisecond instant
+        assertEquals(5, WmsUtils.findTimeIndex(times,
+            new DateTime(5 * HOUR, DateTimeZone.forOffsetHours(3))));
+        assertEquals(-6, WmsUtils.findTimeIndex(times, new DateTime(5 * HOUR - 1)));
+        assertEquals(-11, WmsUtils.findTimeIndex(times, new DateTime(10 * HOUR)));
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
+import uk.ac.rdg.resc.ncwms.graphics.ImageProducer;
+import uk.ac.rdg.resc.ncwms.graphics.PngFormat;
+import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the static helper methods of {@link AbstractWmsController}.
+ * @author Jon Blower
+ */
+public final class AbstractWmsControllerTest
+{
+    private static final long LAST_MODIFIED = 1300000000500L;
+    private static final ImageCacheKey KEY = new ImageCacheKey("ds/layer@1", "png", LAST_MODIFIED);
+
+    /**
+     * Returns a request that has only the given headers.  Date headers are
+     * given as Longs.
+     */
+    static HttpServletRequest requestWithHeaders(final Map<String, Object> headers)
+    {
+        InvocationHandler handler = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getHeader"))
+                {
+                    Object val = headers.get(args[0]);
+                    return val == null ? null : val.toString();
+                }
+                if (method.getName().equals("getDateHeader"))
+                {
+                    Object val = headers.get(args[0]);
+                    if (val == null) return -1L;
+                    if (val instanceof Long) return val;
+                    throw new IllegalArgumentException("Not a date: " + val);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+        return (HttpServletRequest)Proxy.newProxyInstance(
+            AbstractWmsControllerTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, handler);
+    }
+
+    private static boolean isNotModified(String header, Object value)
+    {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        if (header != null) headers.put(header, value);
+        return AbstractWmsController.isNotModified(requestWithHeaders(headers), KEY);
+    }
+
+    @Test
+    public void testIfNoneMatch()
+    {
+        String eTag = KEY.getETag();
+        assertTrue(isNotModified("If-None-Match", eTag));
+        assertFalse(isNotModified("If-None-Match", "\"somethingelse\""));
+        // Lists of tags, with and without whitespace
+        assertTrue(isNotModified("If-None-Match", "\"a\", " + eTag + ", \"b\""));
+        assertTrue(isNotModified("If-None-Match", "\"a\"," + eTag));
+        assertFalse(isNotModified("If-None-Match", "\"a\", \"b\""));
+        // The wildcard matches any current representation
+        assertTrue(isNotModified("If-None-Match", "*"));
+        // Weak tags are matched using the weak comparison
+        assertTrue(isNotModified("If-None-Match", "W/" + eTag));
+        assertTrue(isNotModified("If-None-Match", "\"a\", W/" + eTag));
+        assertFalse(isNotModified("If-None-Match", "W/\"a\""));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedence()
+    {
+        // If-Modified-Since is ignored when If-None-Match is present
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("If-None-Match", "\"a\"");
+        headers.put("If-Modified-Since", LAST_MODIFIED);
+        assertFalse(AbstractWmsController.isNotModified(requestWithHeaders(headers), KEY));
+    }
+
+    @Test
+    public void testIfModifiedSince()
+    {
+        assertFalse(isNotModified(null, null));
+        assertTrue(isNotModified("If-Modified-Since", LAST_MODIFIED));
+        assertTrue(isNotModified("If-Modified-Since", LAST_MODIFIED + 60000L));
+        assertFalse(isNotModified("If-Modified-Since", LAST_MODIFIED - 60000L));
+        // HTTP dates have a resolution of one second
+        assertTrue(isNotModified("If-Modified-Since", LAST_MODIFIED / 1000 * 1000));
+        // Unparseable dates are ignored
+        assertFalse(isNotModified("If-Modified-Since", "yesterday"));
+        // Keys without a modification time are never considered unmodified
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("If-Modified-Since", LAST_MODIFIED);
+        ImageCacheKey noTime = new ImageCacheKey("ds/layer@1", "png", 0L);
+        assertFalse(AbstractWmsController.isNotModified(requestWithHeaders(headers), noTime));
+    }
+
+    @Test
+    public void testNoRequest()
+    {
+        assertFalse(AbstractWmsController.isNotModified(null, KEY));
+    }
+
+    /**
+     * Returns a layer whose data value at each point is the integer part of
+     * the point's y coordinate.  Reads of the horizontal points fail after
+     * the given number of successful reads.
+     */
+    private static ScalarLayer bandedLayer(final int numReadsBeforeFailure, final List<Integer> bandHeights)
+    {
+        InvocationHandler handler = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws IOException
+            {
+                if (method.getName().equals("getName")) return "banded";
+                if (!method.getName().equals("readHorizontalPoints"))
+                {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                if (bandHeights.size() == numReadsBeforeFailure)
+                {
+                    throw new IOException("Simulated read failure");
+                }
+                RegularGrid grid = (RegularGrid)args[2];
+                int width = grid.getXAxis().getSize();
+                int height = grid.getYAxis().getSize();
+                bandHeights.add(height);
+                List<Float> data = new ArrayList<Float>(width * height);
+                for (int j = 0; j < height; j++)
+                {
+                    float val = (float)Math.floor(grid.getYAxis().getCoordinateValue(j));
+                    for (int i = 0; i < width; i++) data.add(val);
+                }
+                return data;
+            }
+        };
+        return (ScalarLayer)Proxy.newProxyInstance(
+            AbstractWmsControllerTest.class.getClassLoader(),
+            new Class<?>[] { ScalarLayer.class }, handler);
+    }
+
+    /**
+     * Returns a response that writes to the given buffer and records the
+     * names of the methods that are called on it.
+     */
+    private static HttpServletResponse response(final ByteArrayOutputStream buf,
+        final List<String> calls)
+    {
+        final ServletOutputStream out = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                buf.write(b);
+            }
+
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {}
+        };
+        InvocationHandler handler = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                calls.add(method.getName());
+                return method.getName().equals("getOutputStream") ? out : null;
+            }
+        };
+        return (HttpServletResponse)Proxy.newProxyInstance(
+            AbstractWmsControllerTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class }, handler);
+    }
+
+    private static ImageProducer imageProducer(int width, int height)
+    {
+        return new ImageProducer.Builder()
+            .width(width)
+            .height(height)
+            .colourScaleRange(Ranges.newRange(0.0f, (float)height))
+            .numColourBands(250)
+            .build();
+    }
+
+    /**
+     * An image written in bands is identical to the same image rendered in
+     * one go
+     */
+    @Test
+    public void testWriteImageInBands() throws Exception
+    {
+        int width = 512;
+        int height = 1200;
+        RegularGrid grid = new RegularGridImpl(0.0, 0.0, width, height, null, width, height);
+        List<Integer> bandHeights = new ArrayList<Integer>();
+        ScalarLayer layer = bandedLayer(-1, bandHeights);
+        ImageProducer banded = imageProducer(width, height);
+        assertTrue(banded.canRenderBands());
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        List<String> calls = new ArrayList<String>();
+        PngFormat png = (PngFormat)ImageFormat.get("image/png");
+        AbstractWmsController.writeImageInBands(layer, null, 0.0, grid, banded, png,
+            response(buf, calls), "image/png", false);
+        // The image really was read in several bands
+        assertTrue(bandHeights.size() > 1);
+        assertTrue(calls.contains("getOutputStream"));
+
+        bandHeights.clear();
+        ImageProducer whole = imageProducer(width, height);
+        whole.addFrame(layer.readHorizontalPoints(null, 0.0, grid), null);
+        BufferedImage expected = whole.getRenderedFrames().get(0);
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(buf.toByteArray()));
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                assertEquals(expected.getRaster().getSample(i, j, 0),
+                    actual.getRaster().getSample(i, j, 0));
+            }
+        }
+    }
+
+    /**
+     * If the first band cannot be read, nothing is written to the response,
+     * so that an exception report can still be sent.  A later failure
+     * truncates the image.
+     */
+    @Test
+    public void testWriteImageInBandsFailure() throws Exception
+    {
+        int width = 512;
+        int height = 1200;
+        RegularGrid grid = new RegularGridImpl(0.0, 0.0, width, height, null, width, height);
+        PngFormat png = (PngFormat)ImageFormat.get("image/png");
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        List<String> calls = new ArrayList<String>();
+        try
+        {
+            AbstractWmsController.writeImageInBands(bandedLayer(0, new ArrayList<Integer>()),
+                null, 0.0, grid, imageProducer(width, height), png,
+                response(buf, calls), "image/png", false);
+            fail("Expected IOException");
+        }
+        catch (IOException ioe)
+        {
+            // expected
+        }
+        assertTrue(calls.isEmpty());
+        assertEquals(0, buf.size());
+
+        try
+        {
+            AbstractWmsController.writeImageInBands(bandedLayer(1, new ArrayList<Integer>()),
+                null, 0.0, grid, imageProducer(width, height), png,
+                response(buf, calls), "image/png", false);
+            fail("Expected IOException");
+        }
+        catch (IOException ioe)
+        {
+            // expected
+        }
+        assertTrue(calls.contains("getOutputStream"));
+        assertTrue(buf.size() > 0);
+        // There is no IEND chunk at the end of the image
+        byte[] bytes = buf.toByteArray();
+        String end = new String(bytes, bytes.length - 8, 4, "US-ASCII");
+        assertFalse(end.equals("IEND"));
+    }
+}
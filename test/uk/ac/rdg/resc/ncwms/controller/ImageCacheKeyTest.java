@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link ImageCacheKey} class.
+ * @author Jon Blower
+ */
+public final class ImageCacheKeyTest
+{
+    @Test
+    public void testEquality()
+    {
+        ImageCacheKey key = new ImageCacheKey("ds/layer@100", "png|boxfill", 100L);
+        ImageCacheKey same = new ImageCacheKey("ds/layer@100", "png|boxfill", 100L);
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+        assertEquals(key.getETag(), same.getETag());
+
+        // Each component of the key affects equality and the ETag
+        ImageCacheKey[] others = {
+            new ImageCacheKey("ds/layer@200", "png|boxfill", 100L),
+            new ImageCacheKey("ds/layer@100", "gif|boxfill", 100L),
+            new ImageCacheKey("ds/layer@100", "png|boxfill", 200L)
+        };
+        for (ImageCacheKey other : others)
+        {
+            assertFalse(key.equals(other));
+            assertFalse(other.equals(key));
+            assertFalse(key.getETag().equals(other.getETag()));
+        }
+        assertFalse(key.equals(null));
+        assertFalse(key.equals("ds/layer@100|png|boxfill|100"));
+    }
+
+    @Test
+    public void testETagIsQuoted()
+    {
+        String eTag = new ImageCacheKey("data", "style", 0L).getETag();
+        assertTrue(eTag.length() > 2);
+        assertEquals(0, eTag.indexOf('"'));
+        // The only other quote is at the end
+        assertEquals(eTag.length() - 1, eTag.indexOf('"', 1));
+    }
+
+    @Test
+    public void testNullComponents()
+    {
+        try
+        {
+            new ImageCacheKey(null, "style", 0L);
+            fail("Expected NullPointerException");
+        }
+        catch (NullPointerException npe)
+        {
+            // expected
+        }
+    }
+}
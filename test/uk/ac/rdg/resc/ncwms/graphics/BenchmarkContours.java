@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import gov.noaa.pmel.sgt.CartesianGraph;
+import gov.noaa.pmel.sgt.CartesianRenderer;
+import gov.noaa.pmel.sgt.ContourLevels;
+import gov.noaa.pmel.sgt.DefaultContourLineAttribute;
+import gov.noaa.pmel.sgt.GridAttribute;
+import gov.noaa.pmel.sgt.JPane;
+import gov.noaa.pmel.sgt.LinearTransform;
+import gov.noaa.pmel.sgt.dm.SGTGrid;
+import gov.noaa.pmel.sgt.dm.SimpleGrid;
+import gov.noaa.pmel.util.Dimension2D;
+import gov.noaa.pmel.util.Range2D;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Compares the speed of the {@link ContourRenderer} with the SGT contouring
+ * code that it replaced, for grids of 256x256 and 1024x1024 points (or the
+ * sizes given as arguments).  The number of timed iterations can be set
+ * with the system property "iterations" (default 20).
+ * @author Jon Blower
+ */
+public class BenchmarkContours
+{
+    private static final int NUM_CONTOURS = 10;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = Integer.getInteger("iterations", 20);
+        int[] sizes = {256, 1024};
+        if (args.length > 0)
+        {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes)
+        {
+            float[] data = createField(size, size);
+            Range<Float> range = Ranges.newRange(-1.0f, 1.0f);
+
+            // Warm up both renderers
+            for (int i = 0; i < 3; i++)
+            {
+                renderSgt(data, size, size, range);
+                renderNative(data, size, size, range);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) renderSgt(data, size, size, range);
+            report("SGT", size, start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) renderNative(data, size, size, range);
+            report("ContourRenderer", size, start, iterations);
+        }
+    }
+
+    private static void report(String name, int size, long start, int iterations)
+    {
+        double millis = (System.nanoTime() - start) / (1.0e6 * iterations);
+        System.out.printf("%-16s %5dx%-5d %10.2f ms/image%n", name, size, size, millis);
+    }
+
+    private static BufferedImage renderNative(float[] data, int width, int height,
+        Range<Float> range)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        new ContourRenderer(ContourRenderer.getLevels(range, NUM_CONTOURS), true, Color.BLACK)
+            .render(data, width, height, g);
+        g.dispose();
+        return image;
+    }
+
+    /** The contouring code that was previously used in the ImageProducer */
+    private static BufferedImage renderSgt(float[] data, int width, int height,
+        Range<Float> range)
+    {
+        double[] values = new double[width * height];
+        double[] xAxis = new double[width];
+        double[] yAxis = new double[height];
+        int count = 0;
+        for (int i = 0; i < width; i++)
+        {
+            xAxis[i] = i;
+            for (int j = 0; j < height; j++)
+            {
+                yAxis[j] = height - j - 1;
+                values[count++] = data[i + (height - j - 1) * width];
+            }
+        }
+        SGTGrid sgtGrid = new SimpleGrid(values, xAxis, yAxis, null);
+
+        double physWidth = width / 96.0;
+        double physHeight = height / 96.0;
+        gov.noaa.pmel.sgt.Layer layer = new gov.noaa.pmel.sgt.Layer("", new Dimension2D(physWidth, physHeight));
+        JPane pane = new JPane("id", new Dimension(width, height));
+        layer.setPane(pane);
+        layer.setBounds(0, 0, width, height);
+        CartesianGraph cg = new CartesianGraph();
+        cg.setXTransform(new LinearTransform(new Range2D(0, physWidth), sgtGrid.getXRange()));
+        cg.setYTransform(new LinearTransform(new Range2D(0, physHeight), sgtGrid.getYRange()));
+        layer.setGraph(cg);
+
+        double spacing = (range.getMaximum() - range.getMinimum()) / NUM_CONTOURS;
+        ContourLevels clevels = ContourLevels.getDefault(
+            new Range2D(range.getMinimum(), range.getMaximum(), spacing));
+        DefaultContourLineAttribute defAttr = new DefaultContourLineAttribute();
+        defAttr.setLabelEnabled(true);
+        clevels.setDefaultContourLineAttribute(defAttr);
+        GridAttribute attr = new GridAttribute(clevels);
+        attr.setStyle(GridAttribute.CONTOUR);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        CartesianRenderer.getRenderer(cg, sgtGrid, attr).draw(g);
+        g.dispose();
+        return image;
+    }
+
+    /** Creates a smooth field of values between -1 and 1 with some missing values */
+    private static float[] createField(int width, int height)
+    {
+        float[] data = new float[width * height];
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                boolean land = i < width / 4 && j < height / 3;
+                data[j * width + i] = land ? Float.NaN
+                    : (float)(Math.sin(i * 8.0 / width) * Math.cos(j * 6.0 / height));
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the speed and output size of the {@link IndexedPngWriter} with
+ * ImageIO for typical map images.  Run with optional arguments giving the
+ * image size (default 256) and the number of timed iterations (default 200).
+ * @author Jon Blower
+ */
+public class BenchmarkPngWriter
+{
+    public static void main(String[] args) throws Exception
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        BufferedImage image = createMapImage(size, size);
+
+        // Warm up both encoders
+        for (int i = 0; i < iterations; i++)
+        {
+            ImageIO.write(image, "png", new ByteArrayOutputStream());
+            IndexedPngWriter.write(image, new ByteArrayOutputStream(),
+                PngFormat.DEFAULT_COMPRESSION_LEVEL);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            out.reset();
+            ImageIO.write(image, "png", out);
+        }
+        report("ImageIO", start, iterations, out.size());
+
+        for (int level = 1; level <= 9; level++)
+        {
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                out.reset();
+                IndexedPngWriter.write(image, out, level);
+            }
+            report("IndexedPngWriter (level " + level + ")", start, iterations, out.size());
+        }
+    }
+
+    private static void report(String name, long start, int iterations, int bytes)
+    {
+        double millis = (System.nanoTime() - start) / (1.0e6 * iterations);
+        System.out.printf("%-30s %8.3f ms/image %8d bytes%n", name, millis, bytes);
+    }
+
+    /**
+     * Creates an image that resembles a rendered map: a smooth field of
+     * colours with a block of transparent "land" pixels.
+     */
+    static BufferedImage createMapImage(int width, int height)
+    {
+        int numColours = 256;
+        byte[] r = new byte[numColours];
+        byte[] g = new byte[numColours];
+        byte[] b = new byte[numColours];
+        byte[] a = new byte[numColours];
+        for (int i = 0; i < numColours - 1; i++)
+        {
+            r[i] = (byte)i;
+            g[i] = (byte)(255 - i);
+            b[i] = (byte)(i / 2);
+            a[i] = (byte)255;
+        }
+        // The last index is transparent
+        IndexColorModel cm = new IndexColorModel(8, numColours, r, g, b, a);
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_BYTE_INDEXED, cm);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        for (int j = 0; j < height; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                boolean land = i < width / 4 && j < height / 3;
+                double val = 127 + 120 * Math.sin(i * 0.03) * Math.cos(j * 0.02);
+                pixels[j * width + i] = land ? (byte)(numColours - 1) : (byte)val;
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.util.Arrays;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.util.DataStatistics;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the primitive grid interpolation in the {@link BilinearInterpolator}.
+ * @author Jon Blower
+ */
+public final class BilinearInterpolatorTest
+{
+    private static final double[] X_VALS = {0.0, 1.0, 3.0};
+    private static final double[] Y_VALS = {10.0, 20.0};
+
+    /** Returns a field that varies linearly with x and y, x varying fastest */
+    private static float[] createLinearField()
+    {
+        float[] data = new float[X_VALS.length * Y_VALS.length];
+        for (int j = 0; j < Y_VALS.length; j++)
+        {
+            for (int i = 0; i < X_VALS.length; i++)
+            {
+                data[j * X_VALS.length + i] = (float)(2 * X_VALS[i] + Y_VALS[j]);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void testLinearFieldIsReproduced()
+    {
+        double[] xOut = {0.0, 0.5, 1.0, 2.0, 2.5};
+        double[] yOut = {20.0, 15.0, 12.5};
+        DataStatistics stats = new DataStatistics(false);
+        float[] result = BilinearInterpolator.interpolate(X_VALS, Y_VALS,
+            createLinearField(), xOut, yOut, stats);
+        assertEquals(xOut.length * yOut.length, result.length);
+        for (int j = 0; j < yOut.length; j++)
+        {
+            for (int i = 0; i < xOut.length; i++)
+            {
+                assertEquals(2 * xOut[i] + yOut[j], result[j * xOut.length + i], 1e-5);
+            }
+        }
+        assertEquals(result.length, stats.getCount());
+        assertEquals(12.5f, stats.getValueRange().getMinimum(), 1e-5f);
+        assertEquals(25.0f, stats.getValueRange().getMaximum(), 1e-5f);
+    }
+
+    @Test
+    public void testPointsOutsideGridTakeEdgeValues()
+    {
+        float[] result = BilinearInterpolator.interpolate(X_VALS, Y_VALS,
+            createLinearField(), new double[] {-5.0, 10.0}, new double[] {0.0, 30.0}, null);
+        assertArrayEquals(new float[] {10.0f, 16.0f, 20.0f, 26.0f}, result, 1e-5f);
+    }
+
+    @Test
+    public void testMissingValuesPropagate()
+    {
+        float[] data = createLinearField();
+        data[0] = Float.NaN; // (x=0, y=10)
+        float[] result = BilinearInterpolator.interpolate(X_VALS, Y_VALS, data,
+            new double[] {0.5, 2.0}, new double[] {15.0}, null);
+        assertTrue(Float.isNaN(result[0]));
+        assertEquals(19.0f, result[1], 1e-5f);
+    }
+
+    @Test
+    public void testAgreesWithBoxedInterpolator()
+    {
+        float[] data = createLinearField();
+        Float[][] boxed = new Float[X_VALS.length][Y_VALS.length];
+        for (int i = 0; i < X_VALS.length; i++)
+        {
+            for (int j = 0; j < Y_VALS.length; j++)
+            {
+                boxed[i][j] = data[j * X_VALS.length + i];
+            }
+        }
+        BilinearInterpolator interpolator = new BilinearInterpolator(
+            Arrays.asList(0.0, 1.0, 3.0), Arrays.asList(10.0, 20.0), boxed);
+        double[] xOut = {0.25, 1.5, 2.75};
+        double[] yOut = {11.0, 19.0};
+        float[] result = BilinearInterpolator.interpolate(X_VALS, Y_VALS, data, xOut, yOut, null);
+        for (int j = 0; j < yOut.length; j++)
+        {
+            for (int i = 0; i < xOut.length; i++)
+            {
+                assertEquals(interpolator.getValue(xOut[i], yOut[j]), result[j * xOut.length + i], 1e-5f);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.util.Range;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the caching of legends in the {@link ColorPalette}.
+ * @author Jon Blower
+ */
+public final class ColorPaletteTest
+{
+    private static final Range<Float> RANGE = Ranges.newRange(0.0f, 30.0f);
+
+    private static byte[] getLegend(String title) throws Exception
+    {
+        return ColorPalette.get(null).getLegendPng(50, title, "degC", false,
+            RANGE, false, Color.BLACK);
+    }
+
+    @Test
+    public void testLegendIsCached() throws Exception
+    {
+        byte[] legend = getLegend("Temperature");
+        assertSame(legend, getLegend("Temperature"));
+        assertNotSame(legend, getLegend("Salinity"));
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(legend));
+        assertEquals(ColorPalette.LEGEND_WIDTH, image.getWidth());
+        assertEquals(ColorPalette.LEGEND_HEIGHT, image.getHeight());
+    }
+
+    @Test
+    public void testClearLegendCache() throws Exception
+    {
+        byte[] legend = getLegend("Temperature");
+        ColorPalette.clearLegendCache();
+        byte[] newLegend = getLegend("Temperature");
+        assertNotSame(legend, newLegend);
+        assertArrayEquals(legend, newLegend);
+    }
+
+    @Test
+    public void testColorBarIsCached() throws Exception
+    {
+        ColorPalette palette = ColorPalette.get(null);
+        byte[] colorBar = palette.getColorBarPng(20, 100, 10);
+        assertSame(colorBar, palette.getColorBarPng(20, 100, 10));
+        assertNotSame(colorBar, palette.getColorBarPng(20, 100, 11));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link ColourScale} class.
+ * @author Jon Blower
+ */
+public final class ColourScaleTest
+{
+    private static final int BANDS = 10;
+
+    @Test
+    public void testLinear()
+    {
+        ColourScale cs = new ColourScale(Ranges.newRange(0.0f, 10.0f), BANDS, false);
+        assertEquals(0, cs.getColourIndex(0.0f));
+        assertEquals(4, cs.getColourIndex(4.5f));
+        assertEquals(9, cs.getColourIndex(9.99f));
+        // The maximum value is in the top band, not the background
+        assertEquals(9, cs.getColourIndex(10.0f));
+        assertEquals(BANDS, cs.getColourIndex(Float.NaN));
+        assertEquals(BANDS + 1, cs.getColourIndex(-0.1f));
+        assertEquals(BANDS + 2, cs.getColourIndex(10.1f));
+    }
+
+    @Test
+    public void testLogarithmic()
+    {
+        ColourScale cs = new ColourScale(Ranges.newRange(1.0f, 1.0e10f), BANDS, true);
+        assertEquals(0, cs.getColourIndex(1.0f));
+        assertEquals(5, cs.getColourIndex(1.0e5f * 1.01f));
+        assertEquals(9, cs.getColourIndex(1.0e10f));
+        assertEquals(BANDS + 1, cs.getColourIndex(0.5f));
+    }
+
+    /**
+     * Checks that whole frames are converted with the vertical axis flipped,
+     * both in the calling thread and in a pool of threads
+     */
+    @Test
+    public void testFrame()
+    {
+        this.checkFrame();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        RenderingThreads.setExecutor(executor);
+        try
+        {
+            this.checkFrame();
+        }
+        finally
+        {
+            RenderingThreads.setExecutor(null);
+            executor.shutdownNow();
+        }
+    }
+
+    /** Checks a frame that is large enough to be processed in parallel */
+    private void checkFrame()
+    {
+        int width = 1000;
+        int height = 600;
+        float[] data = new float[width * height];
+        for (int j = 0; j < height; j++)
+        {
+            // Each row of data has a constant value
+            Arrays.fill(data, j * width, (j + 1) * width, j % 12 - 1);
+        }
+        data[0] = Float.NaN;
+        byte[] pixels = new byte[data.length];
+        ColourScale cs = new ColourScale(Ranges.newRange(0.0f, 9.999f), BANDS, false);
+        cs.getColourIndices(data, pixels, width, height);
+        for (int imageJ = 0; imageJ < height; imageJ++)
+        {
+            int dataJ = height - imageJ - 1;
+            for (int i = 0; i < width; i++)
+            {
+                int expected = cs.getColourIndex(data[dataJ * width + i]);
+                assertEquals(expected, pixels[imageJ * width + i]);
+            }
+        }
+        assertEquals(BANDS, pixels[(height - 1) * width]);
+    }
+}
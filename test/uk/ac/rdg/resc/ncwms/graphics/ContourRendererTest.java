@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link ContourRenderer}.
+ * @author Jon Blower
+ */
+public final class ContourRendererTest
+{
+    private static final int SIZE = 50;
+
+    /** Creates a field whose value is the distance from the centre of the grid */
+    private static float[] createCone()
+    {
+        float[] data = new float[SIZE * SIZE];
+        for (int j = 0; j < SIZE; j++)
+        {
+            for (int i = 0; i < SIZE; i++)
+            {
+                data[j * SIZE + i] = (float)Math.hypot(i - 24.5, j - 24.5);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void testCircleIsClosed()
+    {
+        List<float[]> lines = ContourRenderer.findContours(createCone(), SIZE, SIZE, 10.0);
+        assertEquals(1, lines.size());
+        float[] line = lines.get(0);
+        // The line is closed
+        assertEquals(line[0], line[line.length - 2], 0.0f);
+        assertEquals(line[1], line[line.length - 1], 0.0f);
+        // All the points are close to the circle
+        for (int k = 0; k < line.length; k += 2)
+        {
+            assertEquals(10.0, Math.hypot(line[k] - 24.5, line[k + 1] - 24.5), 0.1);
+        }
+    }
+
+    @Test
+    public void testMissingValuesBreakContours()
+    {
+        float[] data = createCone();
+        // Remove a column of data through the centre of the grid
+        for (int j = 0; j < SIZE; j++) data[j * SIZE + 25] = Float.NaN;
+        List<float[]> lines = ContourRenderer.findContours(data, SIZE, SIZE, 10.0);
+        assertEquals(2, lines.size());
+        for (float[] line : lines)
+        {
+            // The lines are open
+            assertFalse(line[0] == line[line.length - 2] && line[1] == line[line.length - 1]);
+        }
+    }
+
+    @Test
+    public void testSimplify()
+    {
+        // A straight line with a small kink and a large kink
+        float[] line = {0, 0, 1, 0.1f, 2, 0, 3, 5, 4, 0};
+        float[] simplified = ContourRenderer.simplify(line, 0.5);
+        assertArrayEquals(new float[] {0, 0, 2, 0, 3, 5, 4, 0}, simplified, 0.0f);
+    }
+
+    @Test
+    public void testRender()
+    {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        new ContourRenderer(new double[] {10.0}, false, Color.BLACK)
+            .render(createCone(), SIZE, SIZE, g);
+        g.dispose();
+        // The centre and corners are transparent, but the circle is drawn
+        assertEquals(0, image.getRGB(25, 25) >>> 24);
+        assertEquals(0, image.getRGB(0, 0) >>> 24);
+        assertTrue((image.getRGB(34, 25) | image.getRGB(35, 25)) >>> 24 > 0);
+        assertTrue((image.getRGB(25, 14) | image.getRGB(25, 15)) >>> 24 > 0);
+    }
+}
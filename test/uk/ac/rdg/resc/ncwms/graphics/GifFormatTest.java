@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link GifFormat}, checking that animations whose frames only
+ * cover the changed regions are displayed correctly.
+ * @author Jon Blower
+ */
+public final class GifFormatTest
+{
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 40;
+
+    /** Creates a colour model with the given number of colours */
+    private static IndexColorModel createColorModel(int size, int transparentIndex)
+    {
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            r[i] = (byte)i;
+            g[i] = (byte)(i * 7);
+            b[i] = (byte)(255 - i);
+        }
+        return new IndexColorModel(8, size, r, g, b, transparentIndex);
+    }
+
+    private static BufferedImage createFrame(IndexColorModel cm, int background,
+        int x, int y, int w, int h, int colour)
+    {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+            BufferedImage.TYPE_BYTE_INDEXED, cm);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, (byte)background);
+        for (int j = y; j < y + h; j++)
+        {
+            for (int i = x; i < x + w; i++) pixels[j * WIDTH + i] = (byte)colour;
+        }
+        return image;
+    }
+
+    /**
+     * Decodes a GIF animation, composing each frame over the previous ones
+     * according to its position and disposal method, as a browser would.
+     */
+    private static List<BufferedImage> decode(byte[] gif) throws Exception
+    {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        reader.setInput(iis);
+        int numFrames = reader.getNumImages(true);
+        List<BufferedImage> result = new ArrayList<BufferedImage>();
+        BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int f = 0; f < numFrames; f++)
+        {
+            BufferedImage frame = reader.read(f);
+            IIOMetadataNode root = (IIOMetadataNode)reader.getImageMetadata(f)
+                .getAsTree("javax_imageio_gif_image_1.0");
+            IIOMetadataNode desc = (IIOMetadataNode)root.getElementsByTagName("ImageDescriptor").item(0);
+            IIOMetadataNode gce = (IIOMetadataNode)root.getElementsByTagName("GraphicControlExtension").item(0);
+            int x = Integer.parseInt(desc.getAttribute("imageLeftPosition"));
+            int y = Integer.parseInt(desc.getAttribute("imageTopPosition"));
+            Graphics2D g = canvas.createGraphics();
+            g.drawImage(frame, x, y, null);
+            BufferedImage copy = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+            copy.createGraphics().drawImage(canvas, 0, 0, null);
+            result.add(copy);
+            if ("restoreToBackgroundColor".equals(gce.getAttribute("disposalMethod")))
+            {
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(x, y, frame.getWidth(), frame.getHeight());
+            }
+            g.dispose();
+        }
+        iis.close();
+        return result;
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual)
+    {
+        for (int j = 0; j < HEIGHT; j++)
+        {
+            for (int i = 0; i < WIDTH; i++)
+            {
+                int e = expected.getRGB(i, j);
+                int a = actual.getRGB(i, j);
+                // Fully-transparent pixels may have any colour
+                if ((e >>> 24) == 0) assertEquals("Pixel " + i + "," + j, 0, a >>> 24);
+                else assertEquals("Pixel " + i + "," + j, e, a);
+            }
+        }
+    }
+
+    private static void checkAnimation(List<BufferedImage> frames) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GifFormat().writeImage(frames, out);
+        List<BufferedImage> decoded = decode(out.toByteArray());
+        assertEquals(frames.size(), decoded.size());
+        for (int i = 0; i < frames.size(); i++)
+        {
+            assertSameImage(frames.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void testOpaqueAnimation() throws Exception
+    {
+        IndexColorModel cm = createColorModel(256, -1);
+        checkAnimation(Arrays.asList(
+            createFrame(cm, 10, 5, 5, 10, 10, 200),
+            createFrame(cm, 10, 8, 6, 10, 10, 201),
+            createFrame(cm, 10, 8, 6, 10, 10, 201), // unchanged
+            createFrame(cm, 10, 30, 20, 20, 15, 202)
+        ));
+    }
+
+    @Test
+    public void testTransparentAnimation() throws Exception
+    {
+        // Index 100 is transparent, so pixels come and go
+        IndexColorModel cm = createColorModel(200, 100);
+        checkAnimation(Arrays.asList(
+            createFrame(cm, 100, 5, 5, 10, 10, 3),
+            createFrame(cm, 100, 20, 5, 10, 10, 4),
+            createFrame(cm, 50, 20, 5, 10, 10, 100),
+            createFrame(cm, 100, 0, 0, 60, 40, 5)
+        ));
+    }
+
+    @Test
+    public void testAllColoursUsed() throws Exception
+    {
+        // No spare index for unchanged pixels, so all frames are drawn in full
+        IndexColorModel cm = createColorModel(256, -1);
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        for (int f = 0; f < 3; f++)
+        {
+            BufferedImage frame = createFrame(cm, 0, 0, 0, 0, 0, 0);
+            byte[] pixels = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (byte)(i + f);
+            frames.add(frame);
+        }
+        checkAnimation(frames);
+    }
+
+    @Test
+    public void testSingleFrame() throws Exception
+    {
+        IndexColorModel cm = createColorModel(200, 100);
+        checkAnimation(Arrays.asList(createFrame(cm, 100, 5, 5, 10, 10, 3)));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link GlyphAtlas}: checks that sprites cover the same pixels
+ * as glyphs that are drawn directly.
+ * @author Jon Blower
+ */
+public final class GlyphAtlasTest
+{
+    private static final int SIZE = 64;
+
+    private static Graphics2D createGraphics(BufferedImage image)
+    {
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setStroke(new BasicStroke(1));
+        g.setColor(Color.WHITE);
+        return g;
+    }
+
+    private static byte[] getPixels(BufferedImage image)
+    {
+        return ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Returns an angle that lies exactly on one of the atlas's steps */
+    private static double getAngle(int step)
+    {
+        return step * 2 * Math.PI / GlyphAtlas.getAngleSteps();
+    }
+
+    private static void assertSpriteMatches(GlyphAtlas.Sprite sprite, BufferedImage expected)
+    {
+        byte[] pixels = new byte[SIZE * SIZE];
+        sprite.draw(pixels, SIZE, SIZE, SIZE / 2, SIZE / 2, (byte)255);
+        assertArrayEquals(getPixels(expected), pixels);
+        assertTrue(sprite.getNumPixels() > 0);
+    }
+
+    @Test
+    public void testVectorsMatchDirectDrawing()
+    {
+        for (String style : new String[] {"STUMPVEC", "TRIVEC", "LINEVEC", "FANCYVEC", "PRETTYVEC"})
+        {
+            for (int step = 0; step < GlyphAtlas.getAngleSteps(); step += 37)
+            {
+                double angle = getAngle(step);
+                BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+                Graphics2D g = createGraphics(image);
+                VectorFactory.renderVector(style, 1.0, angle, SIZE / 2, SIZE / 2, 1.5f, g);
+                g.dispose();
+                assertSpriteMatches(GlyphAtlas.getVector(style, angle, 1.5f), image);
+            }
+        }
+    }
+
+    @Test
+    public void testBarbsMatchDirectDrawing()
+    {
+        for (double speed = 0.0; speed < 60.0; speed += 4.5)
+        {
+            for (int step = 0; step < GlyphAtlas.getAngleSteps(); step += 53)
+            {
+                double angle = getAngle(step);
+                boolean southern = step % 2 == 0;
+                BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+                Graphics2D g = createGraphics(image);
+                BarbFactory.renderWindBarbForSpeed(speed, angle, SIZE / 2, SIZE / 2, "m/s", 1.0f, southern, g);
+                g.dispose();
+                assertSpriteMatches(GlyphAtlas.getWindBarb(speed, "m/s", angle, 1.0f, southern), image);
+            }
+        }
+    }
+
+    @Test
+    public void testSpritesAreCached()
+    {
+        double angle = getAngle(57);
+        GlyphAtlas.Sprite sprite = GlyphAtlas.getVector("TRIVEC", angle, 1.0f);
+        // Angles that round to the same step share a sprite
+        double step = getAngle(1);
+        assertSame(sprite, GlyphAtlas.getVector("TRIVEC", angle + step / 4, 1.0f));
+        assertSame(sprite, GlyphAtlas.getVector("TRIVEC", angle - step / 4, 1.0f));
+        assertNotSame(sprite, GlyphAtlas.getVector("TRIVEC", angle + step, 1.0f));
+        assertNotSame(sprite, GlyphAtlas.getVector("TRIVEC", angle, 2.0f));
+        // Speeds in the same 5-knot band share a sprite
+        assertSame(GlyphAtlas.getWindBarb(10.0, "knots", 1.0, 1.0f, false),
+                   GlyphAtlas.getWindBarb(12.0, "knots", 1.0, 1.0f, false));
+    }
+
+    @Test
+    public void testSpritesAreClipped()
+    {
+        byte[] pixels = new byte[SIZE * SIZE];
+        // Draw a sprite that lies mostly outside the image
+        GlyphAtlas.getVector("TRIVEC", 0.0, 3.0f).draw(pixels, SIZE, SIZE, 0, 0, (byte)1);
+        int count = 0;
+        for (byte pixel : pixels) count += pixel;
+        assertTrue(count > 0);
+    }
+}
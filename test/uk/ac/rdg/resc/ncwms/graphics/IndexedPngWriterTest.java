@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link IndexedPngWriter}, checking that images survive a round
+ * trip through ImageIO.
+ * @author Jon Blower
+ */
+public final class IndexedPngWriterTest
+{
+    private static BufferedImage roundTrip(BufferedImage image, int level) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedPngWriter.write(image, out, level);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++)
+        {
+            for (int i = 0; i < expected.getWidth(); i++)
+            {
+                assertEquals("Pixel " + i + "," + j,
+                    expected.getRGB(i, j), actual.getRGB(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        BufferedImage image = BenchmarkPngWriter.createMapImage(300, 200);
+        assertTrue(IndexedPngWriter.canWrite(image));
+        for (int level = 0; level <= 9; level += 3)
+        {
+            assertSameImage(image, roundTrip(image, level));
+        }
+    }
+
+    @Test
+    public void testLargeImage() throws Exception
+    {
+        // Big enough for multiple IDAT chunks even when compressed
+        BufferedImage image = BenchmarkPngWriter.createMapImage(1000, 700);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i += 7) pixels[i] = (byte)(i * 31);
+        assertSameImage(image, roundTrip(image, 1));
+    }
+
+    @Test
+    public void testStreamedRows() throws Exception
+    {
+        BufferedImage image = BenchmarkPngWriter.createMapImage(64, 50);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedPngWriter writer = IndexedPngWriter.start(out, 64, 50,
+            (IndexColorModel)image.getColorModel(), 6);
+        writer.writeRows(pixels, 0, 20);
+        writer.writeRows(pixels, 20 * 64, 30);
+        writer.finish();
+        assertSameImage(image, ImageIO.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void testCannotWriteArgb()
+    {
+        assertFalse(IndexedPngWriter.canWrite(
+            new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIncompleteImage() throws Exception
+    {
+        BufferedImage image = BenchmarkPngWriter.createMapImage(10, 10);
+        IndexedPngWriter writer = IndexedPngWriter.start(new ByteArrayOutputStream(),
+            10, 10, (IndexColorModel)image.getColorModel(), 6);
+        writer.writeRows(new byte[50], 0, 5);
+        writer.finish();
+    }
+
+    /**
+     * Abandoned images can release their resources, and releasing them again
+     * after an image is finished is harmless.
+     */
+    @Test
+    public void testAbort() throws Exception
+    {
+        BufferedImage image = BenchmarkPngWriter.createMapImage(10, 10);
+        IndexColorModel cm = (IndexColorModel)image.getColorModel();
+        IndexedPngWriter abandoned = IndexedPngWriter.start(new ByteArrayOutputStream(),
+            10, 10, cm, 6);
+        abandoned.writeRows(new byte[50], 0, 5);
+        abandoned.abort();
+        abandoned.abort();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedPngWriter writer = IndexedPngWriter.start(out, 10, 10, cm, 6);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        writer.writeRows(pixels, 0, 10);
+        writer.finish();
+        writer.abort();
+        assertSameImage(image, ImageIO.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    /**
+     * Decodes an APNG written by the IndexedPngWriter, returning the colour
+     * indices of each frame after it has been composed over the previous
+     * ones.  Only handles the filters, disposal and blending operations that
+     * the writer uses.
+     */
+    private static List<byte[]> decodeAnimation(byte[] png, int width, int height)
+        throws Exception
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        in.skipBytes(8); // signature
+        List<byte[]> frames = new ArrayList<byte[]>();
+        byte[] canvas = new byte[width * height];
+        int[] fctl = null;
+        ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+        int expectedSequenceNumber = 0;
+        int numFrames = -1;
+        while (true)
+        {
+            int length = in.readInt();
+            byte[] typeBytes = new byte[4];
+            in.readFully(typeBytes);
+            String type = new String(typeBytes, "US-ASCII");
+            byte[] data = new byte[length];
+            in.readFully(data);
+            in.readInt(); // CRC
+            DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(data));
+            if (type.equals("acTL"))
+            {
+                numFrames = chunk.readInt();
+                assertEquals(0, chunk.readInt()); // loops forever
+            }
+            else if (type.equals("fcTL") || type.equals("IEND"))
+            {
+                if (fctl != null)
+                {
+                    drawFrame(canvas, width, fctl, frameData.toByteArray());
+                    frames.add(canvas.clone());
+                    frameData.reset();
+                }
+                if (type.equals("IEND")) break;
+                assertEquals(expectedSequenceNumber++, chunk.readInt());
+                fctl = new int[4];
+                for (int i = 0; i < 4; i++) fctl[i] = chunk.readInt(); // w, h, x, y
+                chunk.skipBytes(4); // delay
+                assertEquals(0, chunk.readByte()); // dispose op none
+                assertEquals(0, chunk.readByte()); // blend op source
+            }
+            else if (type.equals("IDAT"))
+            {
+                frameData.write(data);
+            }
+            else if (type.equals("fdAT"))
+            {
+                assertEquals(expectedSequenceNumber++, chunk.readInt());
+                frameData.write(data, 4, data.length - 4);
+            }
+        }
+        assertEquals(numFrames, frames.size());
+        return frames;
+    }
+
+    private static void drawFrame(byte[] canvas, int width, int[] fctl, byte[] compressed)
+        throws Exception
+    {
+        int w = fctl[0], h = fctl[1], x = fctl[2], y = fctl[3];
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[(w + 1) * h];
+        assertEquals(raw.length, inflater.inflate(raw));
+        assertTrue(inflater.finished());
+        byte[] prev = new byte[w];
+        byte[] row = new byte[w];
+        for (int j = 0; j < h; j++)
+        {
+            int filter = raw[j * (w + 1)];
+            for (int i = 0; i < w; i++)
+            {
+                byte val = raw[j * (w + 1) + 1 + i];
+                if (filter == 1 && i > 0) val += row[i - 1];
+                else if (filter == 2) val += prev[i];
+                else assertTrue(filter == 0 || filter == 1);
+                row[i] = val;
+            }
+            System.arraycopy(row, 0, canvas, (y + j) * width + x, w);
+            System.arraycopy(row, 0, prev, 0, w);
+        }
+    }
+
+    @Test
+    public void testAnimation() throws Exception
+    {
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        for (int f = 0; f < 4; f++)
+        {
+            BufferedImage frame = BenchmarkPngWriter.createMapImage(120, 80);
+            byte[] pixels = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
+            // Change a small part of each frame, leaving one frame unchanged
+            if (f != 2)
+            {
+                for (int j = 10; j < 30; j++)
+                {
+                    for (int i = 20 + f; i < 50; i++) pixels[j * 120 + i] = (byte)(f * 40);
+                }
+            }
+            frames.add(frame);
+        }
+        frames.set(2, frames.get(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedPngWriter.writeAnimation(frames, out, 6, 150);
+        byte[] png = out.toByteArray();
+
+        // Viewers that don't understand APNG show the first frame
+        assertSameImage(frames.get(0), ImageIO.read(new ByteArrayInputStream(png)));
+
+        List<byte[]> decoded = decodeAnimation(png, 120, 80);
+        assertEquals(frames.size(), decoded.size());
+        for (int f = 0; f < frames.size(); f++)
+        {
+            byte[] expected = ((DataBufferByte)frames.get(f).getRaster().getDataBuffer()).getData();
+            assertTrue("Frame " + f, Arrays.equals(expected, decoded.get(f)));
+        }
+    }
+}
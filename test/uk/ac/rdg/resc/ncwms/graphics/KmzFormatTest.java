@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.imageio.ImageIO;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.geometry.impl.BoundingBoxImpl;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.wms.Dataset;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link KmzFormat}, reading back the KMZ file to check that the
+ * frames are named, stored uncompressed and written in the right order.
+ * @author Jon Blower
+ */
+public final class KmzFormatTest
+{
+    /** Returns a layer that provides only the metadata used in KMZ files */
+    private static Layer createLayer()
+    {
+        final Dataset dataset = (Dataset)Proxy.newProxyInstance(
+            KmzFormatTest.class.getClassLoader(),
+            new Class<?>[] { Dataset.class }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getId")) return "ds";
+                if (method.getName().equals("getTitle")) return "Dataset";
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return (Layer)Proxy.newProxyInstance(
+            KmzFormatTest.class.getClassLoader(),
+            new Class<?>[] { Layer.class }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getDataset")) return dataset;
+                if (name.equals("getId")) return "sst";
+                if (name.equals("getTitle")) return "Temperature";
+                if (name.equals("getLayerAbstract")) return "Sea surface temperature";
+                if (name.equals("getChronology")) return ISOChronology.getInstanceUTC();
+                if (name.equals("getElevationValues")) return Arrays.asList(5.0, 10.0);
+                if (name.equals("getElevationUnits")) return "m";
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /** Creates an image of the given width, filled with the given colour */
+    private static BufferedImage createImage(int width, int rgb)
+    {
+        BufferedImage image = new BufferedImage(width, 8, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++)
+        {
+            for (int i = 0; i < width; i++) image.setRGB(i, j, rgb);
+        }
+        return image;
+    }
+
+    /**
+     * Reads all the entries in the given KMZ file, in order, checking that
+     * the images are stored without compression and with the right size and
+     * checksum.
+     */
+    private static Map<String, byte[]> readKmz(byte[] kmz) throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(kmz));
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null)
+        {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] b = new byte[1024];
+            int n;
+            while ((n = zipIn.read(b)) >= 0) buf.write(b, 0, n);
+            byte[] data = buf.toByteArray();
+            if (entry.getName().endsWith(".png"))
+            {
+                assertEquals(entry.getName(), ZipEntry.STORED, entry.getMethod());
+                assertEquals(entry.getName(), data.length, entry.getSize());
+                assertEquals(entry.getName(), data.length, entry.getCompressedSize());
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                assertEquals(entry.getName(), crc.getValue(), entry.getCrc());
+            }
+            entries.put(entry.getName(), data);
+        }
+        zipIn.close();
+        return entries;
+    }
+
+    private static Map<String, byte[]> writeKmz(List<BufferedImage> frames,
+        List<String> tValues, String zValue) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KmzFormat().writeImage(frames, out, createLayer(), tValues, zValue,
+            new BoundingBoxImpl(new double[] { -10.0, 40.0, 10.0, 60.0 }),
+            createImage(3, 0xff000000));
+        return readKmz(out.toByteArray());
+    }
+
+    /**
+     * Checks that the KMZ file contains the KML file followed by the given
+     * frames and the legend, in that order.
+     */
+    private static void checkImages(Map<String, byte[]> entries,
+        List<BufferedImage> frames) throws Exception
+    {
+        List<String> names = new ArrayList<String>(entries.keySet());
+        assertEquals(frames.size() + 2, names.size());
+        assertEquals("ds_sst.kml", names.get(0));
+        for (int i = 0; i < frames.size(); i++)
+        {
+            assertEquals("frame" + i + ".png", names.get(i + 1));
+            BufferedImage decoded = ImageIO.read(
+                new ByteArrayInputStream(entries.get(names.get(i + 1))));
+            assertEquals(frames.get(i).getWidth(), decoded.getWidth());
+            assertEquals(frames.get(i).getRGB(0, 0), decoded.getRGB(0, 0));
+        }
+        assertEquals("legend.png", names.get(frames.size() + 1));
+        assertEquals(3, ImageIO.read(new ByteArrayInputStream(
+            entries.get("legend.png"))).getWidth());
+    }
+
+    @Test
+    public void testTimeSeries() throws Exception
+    {
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        List<String> tValues = new ArrayList<String>();
+        int[] colours = { 0xffff0000, 0xff00ff00, 0xff0000ff, 0x80ffff00, 0xff00ffff };
+        for (int i = 0; i < colours.length; i++)
+        {
+            frames.add(createImage(10 + i, colours[i]));
+            tValues.add("2010-01-0" + (i + 1) + "T12:00:00Z");
+        }
+        // Encode the frames in parallel if there is more than one processor
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        RenderingThreads.setExecutor(executor);
+        Map<String, byte[]> entries;
+        try
+        {
+            entries = writeKmz(frames, tValues, "10.0");
+        }
+        finally
+        {
+            RenderingThreads.setExecutor(null);
+            executor.shutdown();
+        }
+        checkImages(entries, frames);
+
+        String kml = new String(entries.get("ds_sst.kml"), "UTF-8");
+        int pos = 0;
+        for (int i = 0; i < frames.size(); i++)
+        {
+            String timestamp = WmsUtils.dateTimeToISO8601(WmsUtils.iso8601ToDateTime(
+                tValues.get(i), ISOChronology.getInstanceUTC()));
+            String name = "<name><![CDATA[Time: " + timestamp
+                + "<br />Elevation: 10.0 m]]></name>";
+            int namePos = kml.indexOf(name, pos);
+            assertTrue("No name for frame " + i, namePos >= 0);
+            pos = kml.indexOf("<href>frame" + i + ".png</href>", namePos);
+            assertTrue("No image for frame " + i, pos >= 0);
+        }
+    }
+
+    @Test
+    public void testUntimedFrames() throws Exception
+    {
+        List<BufferedImage> frames = Arrays.asList(
+            createImage(10, 0xffff0000), createImage(11, 0xff0000ff));
+        Map<String, byte[]> entries = writeKmz(frames, Arrays.asList("", ""), "");
+        checkImages(entries, frames);
+
+        String kml = new String(entries.get("ds_sst.kml"), "UTF-8");
+        int pos0 = kml.indexOf("<name>Frame 0</name>");
+        int pos1 = kml.indexOf("<name>Frame 1</name>");
+        assertTrue(pos0 >= 0);
+        assertTrue(pos1 > pos0);
+        int href0 = kml.indexOf("<href>frame0.png</href>", pos0);
+        assertTrue(href0 > pos0 && href0 < pos1);
+        assertTrue(kml.indexOf("<href>frame1.png</href>", pos1) > pos1);
+    }
+}
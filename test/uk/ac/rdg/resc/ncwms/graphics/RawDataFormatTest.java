@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link RawDataFormat}.
+ * @author Jon Blower
+ */
+public final class RawDataFormatTest
+{
+    // A 3x2 grid in data order (the bottom row first)
+    private static final List<Float> GRID = Arrays.asList(
+        1.0f, 2.0f, null,
+        4.0f, 5.0f, 11.0f);
+
+    private static ByteBuffer write(RawDataFormat format, int numBands, List<List<Float>> grids)
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.writeData(grids, 3, 2, numBands, out);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkHeader(ByteBuffer buf, int type, int numFrames,
+        int numBands, float min, float max)
+    {
+        assertEquals('N', buf.get(0));
+        assertEquals('C', buf.get(1));
+        assertEquals('W', buf.get(2));
+        assertEquals('D', buf.get(3));
+        assertEquals(1, buf.get(4));
+        assertEquals(type, buf.get(5));
+        assertEquals(3, buf.getInt(8));
+        assertEquals(2, buf.getInt(12));
+        assertEquals(numFrames, buf.getInt(16));
+        assertEquals(numBands, buf.getInt(20));
+        assertEquals(min, buf.getFloat(24), 0.0f);
+        assertEquals(max, buf.getFloat(28), 0.0f);
+    }
+
+    @Test
+    public void testRegistry() throws Exception
+    {
+        assertSame(RawDataFormat.get("application/x-uint16"), RawDataFormat.get("application/x-uint16"));
+        assertNull(RawDataFormat.get("image/png"));
+        // Raw data formats are not image formats
+        assertFalse(ImageFormat.getSupportedMimeTypes().contains("application/x-float32"));
+        assertTrue(RawDataFormat.getSupportedMimeTypes().contains("application/x-float32"));
+    }
+
+    @Test
+    public void testFloat32() throws Exception
+    {
+        RawDataFormat format = RawDataFormat.get("application/x-float32");
+        ByteBuffer buf = write(format, 1, Collections.singletonList(GRID));
+        checkHeader(buf, 0, 1, 1, 1.0f, 11.0f);
+        assertEquals(RawDataFormat.HEADER_LENGTH + 6 * 4, buf.limit());
+        assertEquals(1.0f, buf.getFloat(32), 0.0f);
+        assertEquals(0.0f, buf.getFloat(36), 0.0f);
+        // Rows are written from the top of the image
+        buf.position(RawDataFormat.HEADER_LENGTH);
+        float[] expected = {4.0f, 5.0f, 11.0f, 1.0f, 2.0f, Float.NaN};
+        for (float val : expected)
+        {
+            assertEquals(val, buf.getFloat(), 0.0f);
+        }
+    }
+
+    @Test
+    public void testUint16() throws Exception
+    {
+        RawDataFormat format = RawDataFormat.get("application/x-uint16");
+        // Two frames of a vector layer
+        ByteBuffer buf = write(format, 2, Collections.nCopies(4, GRID));
+        checkHeader(buf, 1, 2, 2, 1.0f, 11.0f);
+        assertEquals(RawDataFormat.HEADER_LENGTH + 4 * 6 * 2, buf.limit());
+        float scale = buf.getFloat(32);
+        float offset = buf.getFloat(36);
+        buf.position(RawDataFormat.HEADER_LENGTH);
+        float[] expected = {4.0f, 5.0f, 11.0f, 1.0f, 2.0f, Float.NaN};
+        for (int grid = 0; grid < 4; grid++)
+        {
+            for (float val : expected)
+            {
+                int sample = buf.getShort() & 0xffff;
+                if (Float.isNaN(val))
+                {
+                    assertEquals(RawDataFormat.MISSING_UINT16, sample);
+                }
+                else
+                {
+                    assertEquals(val, offset + scale * sample, scale / 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAllMissing() throws Exception
+    {
+        RawDataFormat format = RawDataFormat.get("application/x-uint16");
+        List<Float> missing = Arrays.asList(null, null, null, null, null, (Float)null);
+        ByteBuffer buf = write(format, 1, Collections.singletonList(missing));
+        checkHeader(buf, 1, 1, 1, Float.NaN, Float.NaN);
+        buf.position(RawDataFormat.HEADER_LENGTH);
+        for (int i = 0; i < 6; i++)
+        {
+            assertEquals(RawDataFormat.MISSING_UINT16, buf.getShort() & 0xffff);
+        }
+    }
+}
@@ -42,7 +42,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         
         <h2>Datasets</h2>
         <table border="1">
-        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
+        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Watch files?</th><th>Homogeneous files?</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
 
             <c:forEach var="datasetEntry" items="${config.allDatasets}">
                 <c:set var="dataset" value="${datasetEntry.value}"/>
@@ -83,6 +83,8 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                             <option value="1440"<c:if test="${dataset.updateInterval == 1440}"> selected="selected"</c:if>>Daily</option>
                         </select>
                     </td>
+                    <td><input type="checkbox" name="dataset.${dataset.id}.watchfiles"<c:if test="${dataset.watchFiles}"> checked="checked"</c:if>/></td>
+                    <td><input type="checkbox" name="dataset.${dataset.id}.homogeneous"<c:if test="${dataset.homogeneous}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.refresh"/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.disabled"<c:if test="${dataset.disabled}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.queryable"<c:if test="${dataset.queryable}"> checked="checked"</c:if>/></td>
@@ -113,6 +115,8 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                             <option value="1440">Daily</option>
                         </select>
                     </td>
+                    <td><input type="checkbox" name="dataset.new${i}.watchfiles"/></td>
+                    <td><input type="checkbox" name="dataset.new${i}.homogeneous"/></td>
                     <td>N/A</td>
                     <td><input type="checkbox" name="dataset.new${i}.disabled"/></td>
                     <td><input type="checkbox" name="dataset.new${i}.queryable" checked="checked"/></td>
@@ -123,6 +127,11 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                 </tr>
             </c:forEach>
         </table>
+        <p><em>Homogeneous files</em>: for glob aggregations whose files all contain
+        the same variables on the same grids, differing only in their time values.
+        Only the time values are read from most files.  A file whose variables,
+        attributes or grid end points differ from the first file is read in full, but
+        the interior coordinates of the grids are assumed to be identical in every file.</p>
 
 
         <!-- ####################### Added by ndp 4/6/2014 ####################### -->
@@ -243,6 +252,35 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     this value gives a disk footprint for the cache of <b>${diskFootprintMB} megabytes</b>.
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
+            <tr>
+                <th>Maximum number of rendered images to hold in memory</th>
+                <td><input type="text" name="cache.maxNumImagesInMemory" value="${config.cache.maxNumImagesInMemory}"/></td>
+                <td>Encoded GetMap images are cached so that repeated requests for the same map in the same
+                    style need not be re-rendered.  A 256x256 PNG tile is typically 10-50 kilobytes.  Set to zero
+                    to disable the image cache.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Enable shared store?</th>
+                <td><input type="checkbox" name="cache.enableSharedStore"<c:if test="${config.cache.enableSharedStore}"> checked="checked"</c:if>/></td>
+                <td>Check this box to hold tiles of up to 256x256 values in a memory-mapped file outside the Java heap.
+                    Several servers on the same machine can share this file, so that each tile is only extracted once.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <c:set var="sharedFootprintMB" value="${256*256*4*config.cache.sharedStoreNumSlots / (1024*1024)}"/>
+                <th>Number of tiles in the shared store</th>
+                <td><input type="text" name="cache.sharedStoreNumSlots" value="${config.cache.sharedStoreNumSlots}"/></td>
+                <td>This value gives a shared store of <b>${sharedFootprintMB} megabytes</b> (the maximum is 2048 megabytes).
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Location of the shared store</th>
+                <td><input type="text" name="cache.sharedStoreLocation" value="${config.cache.sharedStoreLocation}"/></td>
+                <td>Full path to the file that holds the shared store.  All servers that share tiles must use the same path.
+                    If this is blank the file will be created in the tile cache directory of this server.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
         </table>
         
         <h2>Server settings</h2>
@@ -255,6 +293,10 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
             <!-- TODO: do integer validation on max width and height -->
             <tr><th>Max image width</th><td><input type="text" name="server.maximagewidth" value="${config.server.maxImageWidth}"/></td><td>Maximum width of image that can be requested</td></tr>
             <tr><th>Max image height</th><td><input type="text" name="server.maximageheight" value="${config.server.maxImageHeight}"/></td><td>Maximum width of image that can be requested</td></tr>
+            <tr><th>PNG compression level</th><td><input type="text" name="server.pngcompressionlevel" value="${config.server.pngCompressionLevel}"/></td><td>Compression level for indexed PNG images, from 0 (fastest) to 9 (smallest)</td></tr>
+            <tr><th>Vector glyph angles</th><td><input type="text" name="server.glyphanglesteps" value="${config.server.glyphAngleSteps}"/></td><td>Number of directions (8 to 3600) at which arrows and wind barbs are drawn; 360 gives 1 degree steps</td></tr>
+            <tr><th>Metadata threads</th><td><input type="text" name="server.metadatathreads" value="${config.server.metadataThreads}"/></td><td>Number of files (1 to 64) from which dataset metadata, and the samples of data used to estimate colour scale ranges, are read at the same time</td></tr>
+            <tr><th>File watch delay</th><td><input type="text" name="server.watchdebounceseconds" value="${config.server.watchDebounceSeconds}"/></td><td>Seconds (1 to 3600) without further changes to wait before reloading a dataset whose files are watched, so that bursts of new files cause a single reload</td></tr>
             <tr><th>Allow GetFeatureInfo</th><td><input type="checkbox" name="server.allowfeatureinfo"<c:if test="${config.server.allowFeatureInfo}"> checked="checked"</c:if>/></td><td>Check this box to enable the GetFeatureInfo operation</td></tr>
             <tr><th>Allow global Capabilities</th><td><input type="checkbox" name="server.allowglobalcapabilities"<c:if test="${config.server.allowGlobalCapabilities}"> checked="checked"</c:if>/></td><td>Check this box to allow clients to request a
             WMS Capabilities document including all datasets on this server (not recommended if this server hosts a large number of datasets)</td></tr>